@@ -0,0 +1,176 @@
+package com.ysaito.shogi;
+
+/**
+ * Precomputed move tables for the bitboard index kept by Board.
+ *
+ * A bitboard is a set of squares stored as a pair of longs. Square "sq"
+ * (= x + y * Board.DIM, the same index used by Board.mSquares) is bit "sq" of the
+ * low word if sq < 64, and bit "sq - 64" of the high word otherwise.
+ *
+ * Tables that depend on the owner of a piece are indexed by a player index: 0 for
+ * Player.BLACK, 1 for Player.WHITE.
+ */
+public class BitBoard {
+  public static final int NUM_SQUARES = Board.DIM * Board.DIM;
+
+  // The valid bits in the high word.
+  public static final long HIGH_MASK = (1L << (NUM_SQUARES - 64)) - 1;
+
+  // Directions on the board, as seen from the top of the screen. <0, 0> is the upper left corner.
+  // dir ^ 1 is the opposite direction of dir.
+  public static final int UP = 0;
+  public static final int DOWN = 1;
+  public static final int LEFT = 2;
+  public static final int RIGHT = 3;
+  public static final int UP_LEFT = 4;
+  public static final int DOWN_RIGHT = 5;
+  public static final int UP_RIGHT = 6;
+  public static final int DOWN_LEFT = 7;
+  public static final int NUM_DIRECTIONS = 8;
+
+  private static final int[] DELTA_X = { 0, 0, -1, 1, -1, 1, 1, -1 };
+  private static final int[] DELTA_Y = { -1, 1, 0, 0, -1, 1, -1, 1 };
+
+  public static final int playerIndex(Player p) { return (p == Player.BLACK) ? 0 : 1; }
+
+  public static final long lowBit(int sq) { return (sq < 64) ? (1L << sq) : 0; }
+  public static final long highBit(int sq) { return (sq < 64) ? 0 : (1L << (sq - 64)); }
+
+  public static final boolean contains(long low, long high, int sq) {
+    return (sq < 64) ? ((low >>> sq) & 1) != 0 : ((high >>> (sq - 64)) & 1) != 0;
+  }
+
+  // Index into STEP_LOW and STEP_HIGH.
+  static final int stepIndex(int playerIndex, int type, int sq) {
+    return (playerIndex * Piece.NUM_TYPES + type) * NUM_SQUARES + sq;
+  }
+
+  // STEP_{LOW,HIGH}[stepIndex(player, type, sq)] is the set of squares that a piece of
+  // "type" owned by "player" at "sq" can reach in one step, ignoring other pieces.
+  // Sliding moves are not included; see slideDirections().
+  static final long[] STEP_LOW = new long[2 * Piece.NUM_TYPES * NUM_SQUARES];
+  static final long[] STEP_HIGH = new long[2 * Piece.NUM_TYPES * NUM_SQUARES];
+
+  // Piece types that have at least one non-sliding move.
+  static final int[] STEP_TYPES;
+
+  // The squares in file "x" (FILE_{LOW,HIGH}[x]) and row "y" (ROW_{LOW,HIGH}[y]).
+  static final long[] FILE_LOW = new long[Board.DIM];
+  static final long[] FILE_HIGH = new long[Board.DIM];
+  static final long[] ROW_LOW = new long[Board.DIM];
+  static final long[] ROW_HIGH = new long[Board.DIM];
+
+  /**
+   * Return the squares reached by walking from "sq" in direction "dir", nearest first.
+   * "sq" itself is not included.
+   */
+  static final int[] ray(int dir, int sq) { return RAYS[dir * NUM_SQUARES + sq]; }
+
+  /**
+   * Return the directions in which a piece of "type" owned by player "playerIndex" slides.
+   */
+  static final int[] slideDirections(int playerIndex, int type) {
+    return SLIDE_DIRECTIONS[playerIndex * Piece.NUM_TYPES + type];
+  }
+
+  /**
+   * Check if "piece", a value returned by Board.getPiece(), slides in direction "dir".
+   */
+  static final boolean slidesTowards(int piece, int dir) {
+    final int index = (piece > 0) ? piece : Piece.NUM_TYPES - piece;
+    return (SLIDE_MASKS[index] & (1 << dir)) != 0;
+  }
+
+  /**
+   * If "to" is on a straight line from "from", return the direction from "from" to "to".
+   * Else, return -1.
+   */
+  static final int direction(int from, int to) { return DIRECTIONS[from * NUM_SQUARES + to]; }
+
+  static final boolean isValidType(int type) {
+    return type >= Piece.FU && type < Piece.NUM_TYPES && Piece.japaneseNames[type] != null;
+  }
+
+  private static final int[][] RAYS = new int[NUM_DIRECTIONS * NUM_SQUARES][];
+  private static final int[][] SLIDE_DIRECTIONS = new int[2 * Piece.NUM_TYPES][];
+  private static final int[] SLIDE_MASKS = new int[2 * Piece.NUM_TYPES];
+  private static final byte[] DIRECTIONS = new byte[NUM_SQUARES * NUM_SQUARES];
+
+  private static final int toDirection(int dx, int dy) {
+    for (int dir = 0; dir < NUM_DIRECTIONS; ++dir) {
+      if (DELTA_X[dir] == dx && DELTA_Y[dir] == dy) return dir;
+    }
+    throw new AssertionError("Invalid direction: " + dx + "," + dy);
+  }
+
+  static {
+    for (int i = 0; i < Board.DIM; ++i) {
+      for (int j = 0; j < Board.DIM; ++j) {
+        FILE_LOW[i] |= lowBit(i + j * Board.DIM);
+        FILE_HIGH[i] |= highBit(i + j * Board.DIM);
+        ROW_LOW[i] |= lowBit(j + i * Board.DIM);
+        ROW_HIGH[i] |= highBit(j + i * Board.DIM);
+      }
+    }
+
+    for (int i = 0; i < DIRECTIONS.length; ++i) DIRECTIONS[i] = -1;
+    for (int dir = 0; dir < NUM_DIRECTIONS; ++dir) {
+      for (int sq = 0; sq < NUM_SQUARES; ++sq) {
+        int x = sq % Board.DIM + DELTA_X[dir];
+        int y = sq / Board.DIM + DELTA_Y[dir];
+        int n = 0;
+        int[] tmp = new int[Board.DIM];
+        while (x >= 0 && x < Board.DIM && y >= 0 && y < Board.DIM) {
+          final int to = x + y * Board.DIM;
+          tmp[n++] = to;
+          DIRECTIONS[sq * NUM_SQUARES + to] = (byte)dir;
+          x += DELTA_X[dir];
+          y += DELTA_Y[dir];
+        }
+        int[] ray = new int[n];
+        System.arraycopy(tmp, 0, ray, 0, n);
+        RAYS[dir * NUM_SQUARES + sq] = ray;
+      }
+    }
+
+    boolean[] isStepType = new boolean[Piece.NUM_TYPES];
+    int numStepTypes = 0;
+    for (int player = 0; player < 2; ++player) {
+      final int sign = (player == 0) ? 1 : -1;  // Board.MoveDelta is for Player.BLACK
+      for (int type = 0; type < Piece.NUM_TYPES; ++type) {
+        int[] slides = new int[0];
+        if (isValidType(type)) {
+          for (Board.MoveDelta m : Board.possibleMoves(type)) {
+            final int dy = m.deltaY * sign;
+            if (m.multi) {
+              int[] tmp = new int[slides.length + 1];
+              System.arraycopy(slides, 0, tmp, 0, slides.length);
+              tmp[slides.length] = toDirection(m.deltaX, dy);
+              slides = tmp;
+              SLIDE_MASKS[player * Piece.NUM_TYPES + type] |= 1 << toDirection(m.deltaX, dy);
+              continue;
+            }
+            if (!isStepType[type]) {
+              isStepType[type] = true;
+              ++numStepTypes;
+            }
+            for (int sq = 0; sq < NUM_SQUARES; ++sq) {
+              final int x = sq % Board.DIM + m.deltaX;
+              final int y = sq / Board.DIM + dy;
+              if (x >= 0 && x < Board.DIM && y >= 0 && y < Board.DIM) {
+                STEP_LOW[stepIndex(player, type, sq)] |= lowBit(x + y * Board.DIM);
+                STEP_HIGH[stepIndex(player, type, sq)] |= highBit(x + y * Board.DIM);
+              }
+            }
+          }
+        }
+        SLIDE_DIRECTIONS[player * Piece.NUM_TYPES + type] = slides;
+      }
+    }
+    STEP_TYPES = new int[numStepTypes];
+    numStepTypes = 0;
+    for (int type = 0; type < Piece.NUM_TYPES; ++type) {
+      if (isStepType[type]) STEP_TYPES[numStepTypes++] = type;
+    }
+  }
+}
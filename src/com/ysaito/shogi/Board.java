@@ -1,5 +1,7 @@
 package com.ysaito.shogi;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 
@@ -19,26 +21,29 @@ public class Board implements Serializable {
   
   public Board() {
     mSquares = new int[DIM * DIM];  // initialized to zero
+    mLowBits = new long[2 * Piece.NUM_TYPES];
+    mHighBits = new long[2 * Piece.NUM_TYPES];
     mCapturedBlackList = new ArrayList<CapturedPiece>();
     mCapturedWhiteList = new ArrayList<CapturedPiece>();
   }
 
   public Board(Board src) {
     mSquares = src.mSquares.clone();
+    mLowBits = src.mLowBits.clone();
+    mHighBits = src.mHighBits.clone();
+    mBoardKey = src.mBoardKey;
+    mHandKey = src.mHandKey;
     mCapturedBlack = src.mCapturedBlack;
     mCapturedWhite = src.mCapturedWhite;
-    mLastReadCapturedBlack = src.mLastReadCapturedBlack; 
-    mLastReadCapturedWhite = src.mLastReadCapturedWhite; 
     
-    mCapturedBlackList = new ArrayList<CapturedPiece>(src.mCapturedBlackList);
-    mCapturedWhiteList = new ArrayList<CapturedPiece>(src.mCapturedWhiteList);
+    // The CapturedPiece lists are rebuilt if getCapturedPieces() is ever called.
+    mLastReadCapturedBlack = mLastReadCapturedWhite = -1;
   }
 
   public final void initialize(Handicap h) {
-    mCapturedBlackList.clear();
-    mCapturedWhiteList.clear();
-    mCapturedBlack = mLastReadCapturedBlack = 0;
-    mCapturedWhite = mLastReadCapturedWhite = 0;
+    mCapturedBlack = mCapturedWhite = 0;
+    mLastReadCapturedBlack = mLastReadCapturedWhite = -1;
+    mHandKey = 0;
     
     for (int y = 0; y < Board.DIM; ++y) {
       for (int x = 0; x < Board.DIM; ++x) {
@@ -115,7 +120,7 @@ public class Board implements Serializable {
     Assert.lt(x, Board.DIM);
     Assert.ge(y, 0);
     Assert.lt(y, Board.DIM);
-    mSquares[x + y * DIM] = piece;
+    putPiece(x + y * DIM, piece);
   }
 
   public final int getPiece(int x, int y) {
@@ -161,9 +166,18 @@ public class Board implements Serializable {
     }
   }
 
+  /**
+   * Return the number of pieces of "type" (e.g., Piece.FU) captured by player p. Returns 0 
+   * for a type that can't be captured, e.g., Piece.OU or a promoted piece.
+   */
+  public final int handCount(Player p, int type) {
+    return numCapturedPieces(capturedBits(p), type);
+  }
+
   // Get the list of piece type and its count captured by player p.
-  // For Player.WHITE, the values of CapturedPiece.piece will be still
-  // positive.
+  // For Player.WHITE, the values of CapturedPiece.piece will be negative.
+  // The list is created on demand and kept for compatibility. Use handCount()
+  // to avoid allocation.
   public final ArrayList<CapturedPiece> getCapturedPieces(Player p) {
     // Note: The JNI code will update mCapturedBlack and mCapturedWhite.
     // Translate them to a list.
@@ -206,6 +220,7 @@ public class Board implements Serializable {
         throw new AssertionError("Invalid piece: " + piece);
       }
     }
+    mHandKey ^= Zobrist.handKey(player, capturedBits(player)) ^ Zobrist.handKey(player, bits);
     if (player == Player.BLACK) {
       mCapturedBlackList = new ArrayList<Board.CapturedPiece>(pieces);
       mCapturedBlack = mLastReadCapturedBlack = bits;
@@ -222,7 +237,7 @@ public class Board implements Serializable {
   }
   
   // A relative move by one player.
-  private static class MoveDelta {
+  static class MoveDelta {
     public MoveDelta(int x, int y, boolean m) { deltaX = x; deltaY = y; multi = m; }
     
     // horizontal and vertical deltas. The values are for Player.BLACK.
@@ -271,133 +286,190 @@ public class Board implements Serializable {
 
   /**
    *  Apply the move "m" by player "p" to the board. Does not check if the move is legal. 
+   *  
+   *  @return The undo record of the move. Passing it to undoPly() restores the board to
+   *  the state before this call. The value is the piece captured by the move (Piece.EMPTY
+   *  if none), as returned by getPiece(), possibly ORed with flags that remember whether
+   *  the move promoted the piece, or whether a dropped piece was missing from the hand.
+   *  Use capturedPiece() to extract the captured piece.
    */
-  public final void applyPly(Player p, Play m) {
-    int oldPiece = Piece.EMPTY;
-    boolean capturedChanged = false;
-    ArrayList<CapturedPiece> captured = getCapturedPieces(p);
-
+  public final int applyPly(Player p, Play m) {
+    final int to = m.toX() + m.toY() * DIM;
     if (m.isDroppingPiece()) {
-      setPiece(m.toX(), m.toY(), m.piece());
-      capturedChanged = true;
-      for (int i = 0; i < captured.size(); ++i) {
-        Board.CapturedPiece c = captured.get(i);
-        if (c.piece == m.piece()) {
-          if (c.n == 1) {
-            captured.remove(i);
-          } else {
-            captured.set(i, new Board.CapturedPiece(c.piece, c.n - 1));
-          }
-          break;
-        }
-      }
-    } else {
-      setPiece(m.fromX(), m.fromY(), Piece.EMPTY);
-      oldPiece = getPiece(m.toX(), m.toY());
-      setPiece(m.toX(), m.toY(), m.piece());
+      putPiece(to, m.piece());
+      return addCapturedPieces(p, type(m.piece()), -1) ? 0 : UNDO_NOT_IN_HAND;
     }
+    final int from = m.fromX() + m.fromY() * DIM;
+    int undo = 0;
+    if (mSquares[from] != m.piece()) undo |= UNDO_PROMOTED;
+    final int oldPiece = mSquares[to];
+    putPiece(from, Piece.EMPTY);
+    putPiece(to, m.piece());
     if (oldPiece != Piece.EMPTY) {
-      capturedChanged = true;
-      oldPiece = -oldPiece; // now the piece is owned by the opponent
-      if (Board.isPromoted(oldPiece)) {
-        oldPiece = Board.unpromote(oldPiece);
-      }
-      boolean found = false; 
-      for (int i = 0; i < captured.size(); ++i) {
-        Board.CapturedPiece c = captured.get(i);
-        if (c.piece == oldPiece) {
-          Board.CapturedPiece nc = new Board.CapturedPiece(oldPiece, c.n + 1);
-          captured.set(i, nc);
-          found = true;
-          break;
-        }
-      }
-      if (!found) {
-        captured.add(new Board.CapturedPiece(oldPiece, 1));
-      }
+      undo |= (oldPiece & UNDO_CAPTURED_MASK);
+      addCapturedPieces(p, type(isPromoted(oldPiece) ? unpromote(oldPiece) : oldPiece), 1);
     }
-    if (capturedChanged) setCapturedPieces(p, captured);
+    return undo;
   }
   
   /**
-   * Generate the list of board positions that a piece at <fromX, fromY> can
-   * move to. It takes other pieces on the board into account, but it may
-   * still generate illegal moves -- e.g., this method doesn't check for
-   * sennichite, uchi-fu zume aren't by this method.
+   * Reverse applyPly(p, m). "undo" is the value returned by the applyPly() call. The board
+   * must be in the state right after that call, i.e., plays applied after it must have been
+   * undone already. Runs in constant time and doesn't allocate memory.
+   * 
+   * For a move that didn't promote a piece, "undo" may also be just the captured piece.
+   */
+  public final void undoPly(Player p, Play m, int undo) {
+    final int to = m.toX() + m.toY() * DIM;
+    if (m.isDroppingPiece()) {
+      putPiece(to, Piece.EMPTY);
+      if ((undo & UNDO_NOT_IN_HAND) == 0) addCapturedPieces(p, type(m.piece()), 1);
+      return;
+    }
+    final int captured = capturedPiece(undo);
+    int piece = m.piece();
+    if ((undo & UNDO_PROMOTED) != 0) piece = unpromote(piece);
+    putPiece(to, captured);
+    putPiece(m.fromX() + m.fromY() * DIM, piece);
+    if (captured != Piece.EMPTY) {
+      addCapturedPieces(p, type(isPromoted(captured) ? unpromote(captured) : captured), -1);
+    }
+  }
+
+  /**
+   * Given a value returned by applyPly(), return the piece captured by the play, or Piece.EMPTY.
    */
-  ArrayList<Position> possibleMoveDestinations(int fromX, int fromY) {
-    int piece = getPiece(fromX, fromY);
-    MoveTargetsLister lister = new MoveTargetsLister(
-        this, player(piece), fromX, fromY);
-    for (MoveDelta m: possibleMoves(type(piece))) {
-      lister.tryMove(m);
+  public static final int capturedPiece(int undo) {
+    return (byte)(undo & UNDO_CAPTURED_MASK);
+  }
+
+  // Layout of the value returned by applyPly(). The low 8 bits store the captured piece.
+  private static final int UNDO_CAPTURED_MASK = 0xff;
+  private static final int UNDO_PROMOTED = 1 << 8;
+  private static final int UNDO_NOT_IN_HAND = 1 << 9;  // see addCapturedPieces()
+
+  // Add "delta" pieces of "type" to the pieces captured by player p. The cached
+  // CapturedPiece lists are rebuilt lazily by getCapturedPieces(). Return false, without
+  // changing anything, if the player has fewer than -delta pieces, as when an illegal play
+  // drops a piece not in the hand.
+  private final boolean addCapturedPieces(Player p, int type, int delta) {
+    if (type > Piece.HI) throw new AssertionError("Invalid piece: " + type);
+    final int bits = capturedBits(p);
+    final int n = numCapturedPieces(bits, type);
+    if (n + delta < 0) return false;
+    final int newBits = addToCapturedBits(bits, type, delta);
+    mHandKey ^= Zobrist.handKey(p, type, n) ^ Zobrist.handKey(p, type, n + delta);
+    if (p == Player.BLACK) {
+      mCapturedBlack = newBits;
+    } else {
+      mCapturedWhite = newBits;
     }
-    return lister.getTargets();
+    return true;
+  }
+
+  // Return "bits", a value of capturedBits(), with "delta" more pieces of "type".
+  // The caller must keep the count from underflowing or overflowing its bit field.
+  static final int addToCapturedBits(int bits, int type, int delta) {
+    return bits + (delta << CAPTURED_SHIFTS[type]);
   }
+
+  // CAPTURED_SHIFTS[type] is the position of the count of "type" in mCapturedBlack or mCapturedWhite.
+  private static final int[] CAPTURED_SHIFTS = { 0, 0, 5, 8, 11, 14, 17, 19 };
+
+  // MAX_CAPTURED[type] is the number of pieces of "type" in a game, and thus the max number
+  // of the pieces a player can hold.
+  static final int[] MAX_CAPTURED = { 0, 18, 4, 4, 4, 4, 2, 2 };
   
-  // Helper class for listing possible positions a piece can move to
-  private static final class MoveTargetsLister {
-    // <cur_x, cur_y> is the current board position of the piece.
-    // Both are in range [0, Board.DIM).
-    public MoveTargetsLister(Board board, Player player, int cur_x, int cur_y) {
-      mBoard = board;
-      mPlayer = player;
-      mCurX = cur_x;
-      mCurY = cur_y;
-    }
-
-    // If the piece can be moved to <curX+m.deltaX, curY+m.deltaY>, add it to
-    // mTargets.
-    public final void tryMove(MoveDelta m) {
-      mSeenOpponentPiece = false;
-      int dy = m.deltaY;
-      if (mPlayer == Player.WHITE) dy = -dy;
-      if (!m.multi) {
-        tryMoveTo(mCurX + m.deltaX, mCurY + dy);
-      } else {
-        int x = mCurX;
-        int y = mCurY;
-        for (;;) {
-          x += m.deltaX;
-          y += dy;
-          if (!tryMoveTo(x, y)) break;
-        }
+  // A piece can move to at most 20 squares: a RYU or an UMA in the middle of an empty board.
+  public static final int MAX_MOVE_DESTINATIONS = 20;
+
+  /**
+   * Store the squares that a piece at <fromX, fromY> can move to in "dests", and return
+   * the number of squares stored. Each square is packed as x + y * DIM. "dests" must have
+   * at least MAX_MOVE_DESTINATIONS elements. This method doesn't allocate memory.
+   * 
+   * It takes other pieces on the board into account, but it may still generate illegal
+   * moves -- e.g., this method doesn't check for moves that leave the king in check.
+   * Use MoveGenerator to list legal moves.
+   */
+  public final int possibleMoveDestinations(int fromX, int fromY, int[] dests) {
+    final int from = fromX + fromY * DIM;
+    final int piece = mSquares[from];
+    if (piece == Piece.EMPTY) return 0;
+    final int playerIndex = (piece > 0) ? 0 : 1;
+    final int own = (piece > 0) ? 0 : Piece.NUM_TYPES;
+    final int type = type(piece);
+    final int step = BitBoard.stepIndex(playerIndex, type, from);
+    long low = BitBoard.STEP_LOW[step] & ~mLowBits[own];
+    long high = BitBoard.STEP_HIGH[step] & ~mHighBits[own];
+    int n = 0;
+    while (low != 0) {
+      dests[n++] = Long.numberOfTrailingZeros(low);
+      low &= low - 1;
+    }
+    while (high != 0) {
+      dests[n++] = 64 + Long.numberOfTrailingZeros(high);
+      high &= high - 1;
+    }
+    for (int dir : BitBoard.slideDirections(playerIndex, type)) {
+      for (int to : BitBoard.ray(dir, from)) {
+        final int target = mSquares[to];
+        if (target * piece > 0) break;  // Disallow occupying the same square twice
+        dests[n++] = to;
+        if (target != Piece.EMPTY) break;  // Disallow skipping over an opponent piece
       }
     }
+    return n;
+  }
 
-    // Return the computed list of move targets.
-    public final ArrayList<Position> getTargets() { return mTargets; }
+  // At most 8 pieces of one kind can move to a square: e.g., four RYUs on the diagonal
+  // neighbors and four more sliding along the file and the row.
+  public static final int MAX_ATTACKERS = 8;
 
-    private final boolean tryMoveTo(int x, int y) {
-      // Disallow moving outside the board
-      if (x < 0 || x >= Board.DIM || y < 0 || y >= Board.DIM) {
-        return false;
-      }
-      // Disallow skipping over an opponent piece
-      if (mSeenOpponentPiece) return false;
-
-      // Disallow occuping the same square twice
-      int existing = mBoard.getPiece(x, y);
-      if (existing != 0) {
-        if (Board.player(existing) == mPlayer) return false;
-        mSeenOpponentPiece = true;
-        mTargets.add(new Position(x, y));
-        return true;
-      }
+  /**
+   * Store the squares of the pieces equal to "piece" that can move to square "sq"
+   * (= x + y * DIM) in "squares", and return the number of squares stored. "squares" must
+   * have at least MAX_ATTACKERS elements.
+   *
+   * The result is consistent with possibleMoveDestinations(): a piece at s is listed iff
+   * sq is among the destinations of s. The cost is proportional to the number of squares
+   * around sq that "piece" can come from, rather than to the size of the board.
+   */
+  public final int attackers(int sq, int piece, int[] squares) {
+    if (mSquares[sq] * piece > 0) return 0;  // A piece can't move onto its own side's piece
+    final int type = type(piece);
+    if (!BitBoard.isValidType(type)) return 0;
+    final int playerIndex = (piece > 0) ? 0 : 1;
+    final int i = bitsIndex(piece);
+    int n = 0;
 
-      mTargets.add(new Position(x, y));
-      return true;
+    // A piece at s can step to sq iff the same piece owned by the opponent at sq can step
+    // to s. See isAttacked().
+    final int step = BitBoard.stepIndex(1 - playerIndex, type, sq);
+    long low = BitBoard.STEP_LOW[step] & mLowBits[i];
+    long high = BitBoard.STEP_HIGH[step] & mHighBits[i];
+    while (low != 0) {
+      squares[n++] = Long.numberOfTrailingZeros(low);
+      low &= low - 1;
     }
-
-    private final ArrayList<Position> mTargets = new ArrayList<Position>();
-    private final Board mBoard;
-    private final Player mPlayer;
-    private final int mCurX;
-    private final int mCurY;
-    private boolean mSeenOpponentPiece;
+    while (high != 0) {
+      squares[n++] = 64 + Long.numberOfTrailingZeros(high);
+      high &= high - 1;
+    }
+    // A piece sliding in direction dir reaches sq from the first piece found in the
+    // opposite direction.
+    for (int dir : BitBoard.slideDirections(playerIndex, type)) {
+      for (int s : BitBoard.ray(dir ^ 1, sq)) {
+        final int p = mSquares[s];
+        if (p == Piece.EMPTY) continue;
+        if (p == piece) squares[n++] = s;
+        break;
+      }
+    }
+    return n;
   }
 
-  private static MoveDelta[] possibleMoves(int piece) {
+  static MoveDelta[] possibleMoves(int piece) {
     switch (piece) {
     case Piece.FU: return mFuMoves;
     case Piece.KYO: return mKyoMoves;
@@ -480,6 +552,183 @@ public class Board implements Serializable {
     new MoveDelta(1, 1, false),
   };
   
+  //
+  // Bitboard index
+  //
+
+  // Index into mLowBits and mHighBits for "piece". Index 0 (resp. Piece.NUM_TYPES) stores
+  // all the squares occupied by Player.BLACK (resp. Player.WHITE).
+  static final int bitsIndex(int piece) {
+    return (piece >= 0) ? piece : Piece.NUM_TYPES - piece;
+  }
+
+  static final int occupancyIndex(Player p) {
+    return (p == Player.BLACK) ? 0 : Piece.NUM_TYPES;
+  }
+
+  final int pieceAt(int sq) { return mSquares[sq]; }
+  final long lowBits(int index) { return mLowBits[index]; }
+  final long highBits(int index) { return mHighBits[index]; }
+
+  // Return the bits encoding the pieces captured by player p. See numCapturedPieces().
+  final int capturedBits(Player p) {
+    return (p == Player.BLACK) ? mCapturedBlack : mCapturedWhite;
+  }
+
+  /**
+   * Set the piece at square "sq" (= x + y * DIM) without checking arguments. Keeps the
+   * bitboard index in sync with mSquares.
+   */
+  final void putPiece(int sq, int piece) {
+    final int old = mSquares[sq];
+    if (old != Piece.EMPTY) {
+      final long lowMask = ~BitBoard.lowBit(sq);
+      final long highMask = ~BitBoard.highBit(sq);
+      final int i = bitsIndex(old);
+      final int o = (old > 0) ? 0 : Piece.NUM_TYPES;
+      mLowBits[i] &= lowMask;
+      mHighBits[i] &= highMask;
+      mLowBits[o] &= lowMask;
+      mHighBits[o] &= highMask;
+      mBoardKey ^= Zobrist.pieceKey(old, sq);
+    }
+    mSquares[sq] = piece;
+    if (piece != Piece.EMPTY) {
+      final long low = BitBoard.lowBit(sq);
+      final long high = BitBoard.highBit(sq);
+      final int i = bitsIndex(piece);
+      final int o = (piece > 0) ? 0 : Piece.NUM_TYPES;
+      mLowBits[i] |= low;
+      mHighBits[i] |= high;
+      mLowBits[o] |= low;
+      mHighBits[o] |= high;
+      mBoardKey ^= Zobrist.pieceKey(piece, sq);
+    }
+  }
+
+  /**
+   * Recompute the bitboard index and the hash keys from mSquares, mCapturedBlack and
+   * mCapturedWhite. The JNI code writes these fields directly, so this method must be
+   * called on a board filled by BonanzaJNI before it is used.
+   */
+  final void syncBitboards() {
+    for (int i = 0; i < mLowBits.length; ++i) {
+      mLowBits[i] = mHighBits[i] = 0;
+    }
+    mBoardKey = 0;
+    mHandKey = Zobrist.handKey(Player.BLACK, mCapturedBlack) ^ 
+        Zobrist.handKey(Player.WHITE, mCapturedWhite);
+    for (int sq = 0; sq < DIM * DIM; ++sq) {
+      final int piece = mSquares[sq];
+      if (piece != Piece.EMPTY) {
+        mSquares[sq] = Piece.EMPTY;
+        putPiece(sq, piece);
+      }
+    }
+  }
+
+  /**
+   * Return the square (= x + y * DIM) of player p's king, or -1 if the king isn't on the board.
+   */
+  final int kingSquare(Player p) {
+    final int i = bitsIndex(p == Player.BLACK ? Piece.OU : -Piece.OU);
+    if (mLowBits[i] != 0) return Long.numberOfTrailingZeros(mLowBits[i]);
+    if (mHighBits[i] != 0) return 64 + Long.numberOfTrailingZeros(mHighBits[i]);
+    return -1;
+  }
+
+  /**
+   * Check if any piece owned by player "by" can move to square "sq" (= x + y * DIM).
+   */
+  final boolean isAttacked(int sq, Player by) {
+    final int sign = (by == Player.BLACK) ? 1 : -1;
+    // A piece owned by "by" at square s can step to sq iff the same piece owned by
+    // the opponent at sq can step to s. All the pieces move symmetrically left and right.
+    final int defender = (by == Player.BLACK) ? 1 : 0;
+    for (int type : BitBoard.STEP_TYPES) {
+      final int t = BitBoard.stepIndex(defender, type, sq);
+      final int i = bitsIndex(sign * type);
+      if ((BitBoard.STEP_LOW[t] & mLowBits[i]) != 0 ||
+          (BitBoard.STEP_HIGH[t] & mHighBits[i]) != 0) {
+        return true;
+      }
+    }
+    for (int dir = 0; dir < BitBoard.NUM_DIRECTIONS; ++dir) {
+      for (int s : BitBoard.ray(dir, sq)) {
+        final int piece = mSquares[s];
+        if (piece == Piece.EMPTY) continue;
+        if (piece * sign > 0 && BitBoard.slidesTowards(piece, dir ^ 1)) return true;
+        break;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Return the Zobrist key of the position, covering the pieces on the board, the pieces
+   * in both hands, and the player to move next. Two boards with the same position and
+   * the same nextPlayer have the same key. The key is maintained incrementally by
+   * setPiece() and applyPly(), so this method runs in constant time.
+   * 
+   * See Zobrist for how the key relates to the one used by Bonanza.
+   */
+  public final long hashKey(Player nextPlayer) {
+    final long key = mBoardKey ^ mHandKey;
+    return (nextPlayer == Player.WHITE) ? key ^ Zobrist.WHITE_TO_MOVE : key;
+  }
+
+  /**
+   * Return the Zobrist key of the pieces on the board only. The value is the same as
+   * the one computed by hash_func() in jni/hash.c.
+   */
+  public final long boardKey() { return mBoardKey; }
+
+  /**
+   * Check if player p's king is attacked by the opponent.
+   */
+  public final boolean isInCheck(Player p) {
+    final int king = kingSquare(p);
+    return king >= 0 && isAttacked(king, p.opponent());
+  }
+
+  /**
+   * Copy the pieces on the board to squares[offset, offset + DIM * DIM), one byte per square.
+   */
+  final void saveSquares(byte[] squares, int offset) {
+    for (int i = 0; i < DIM * DIM; ++i) squares[offset + i] = (byte)mSquares[i];
+  }
+
+  /**
+   * Reverse of saveSquares(). "capturedBlack" and "capturedWhite" are the values of capturedBits().
+   */
+  final void restoreSquares(byte[] squares, int offset, int capturedBlack, int capturedWhite) {
+    for (int i = 0; i < DIM * DIM; ++i) mSquares[i] = squares[offset + i];
+    mCapturedBlack = capturedBlack;
+    mCapturedWhite = capturedWhite;
+    syncBitboards();
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    mLowBits = new long[2 * Piece.NUM_TYPES];
+    mHighBits = new long[2 * Piece.NUM_TYPES];
+    syncBitboards();
+  }
+
+  // Return the number of pieces of "type" in "bits", the value of mCapturedBlack or mCapturedWhite.
+  static final int numCapturedPieces(int bits, int type) {
+    switch (type) {
+    case Piece.FU: return numCapturedFu(bits);
+    case Piece.KYO: return numCapturedKyo(bits);
+    case Piece.KEI: return numCapturedKei(bits);
+    case Piece.GIN: return numCapturedGin(bits);
+    case Piece.KIN: return numCapturedKin(bits);
+    case Piece.KAKU: return numCapturedKaku(bits);
+    case Piece.HI: return numCapturedHi(bits);
+    default: return 0;
+    }
+  }
+
   // Helper functions to parse the value of mCapturedBlack or mCapturedWhite.
   private static final int numCapturedFu(int c) { return c & 0x1f; }
   private static final int numCapturedKyo(int c) { return (c >> 5) & 7; }
@@ -495,6 +744,17 @@ public class Board implements Serializable {
   // The sign of the value describes the owner of the piece. A positive (negative) value means that the piece
   // is owned by Player.BLACK (Player.WHITE). The absolute value describes the piece type as defined in the Piece class.
   private int mSquares[];    
+
+  // Bitboard index of mSquares. <mLowBits[i], mHighBits[i]> is the set of squares that store
+  // the piece with bitsIndex(piece)==i. See BitBoard for the encoding. Derived from mSquares,
+  // so they are not serialized.
+  private transient long[] mLowBits;
+  private transient long[] mHighBits;
+
+  // Zobrist keys of mSquares and of mCaptured{Black,White}. See hashKey(). Not serialized for the
+  // same reason as the bitboards.
+  private transient long mBoardKey;
+  private transient long mHandKey;
   
   // The following two fields are set directly by the JNI C code.
   private int mCapturedBlack;
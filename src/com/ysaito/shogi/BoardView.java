@@ -66,10 +66,14 @@ public class BoardView extends View implements View.OnTouchListener {
   /**
    *  Update the state of the board as well as players' turn.
    *  
-   *  @param lastBoard The previous state of the board
+   *  @param lastBoard The previous state of the board. Used only if animateMove is true.
    *  
    *  @param board The new state of the board
    *  
+   *  The view keeps references to the boards rather than copies. The caller must not modify
+   *  them until the next call to update(). Modifying "board" in place (e.g., by Board.applyPly or
+   *  Board.undoPly) and then calling update() again is allowed.
+   *  
    *  @param currentPlayer The next player that's allowed to move a piece next.
    *  Note that this may not be equal to the player with the next turn. Rather, it is
    *  the player that can touch the screen
@@ -84,9 +88,8 @@ public class BoardView extends View implements View.OnTouchListener {
       Play lastMove,
       boolean animateMove) {
     mCurrentPlayer = currentPlayer;
-    mLastBoard = null;
-    if (lastBoard != null) mLastBoard = new Board(lastBoard);
-    mBoard = new Board(board);
+    mLastBoard = (animateMove ? lastBoard : null);
+    mBoard = board;
 
     mLastMove = lastMove;
     mAnimationStartTime = mNextAnimationTime = -1;
@@ -109,7 +112,8 @@ public class BoardView extends View implements View.OnTouchListener {
    */
   static private class NearestSquareFinder {
     // sx and sy are screen location of the touch event, in pixels.
-    public NearestSquareFinder(ScreenLayout layout, float sx, float sy) {
+    // The object is reused for every touch event, so that dragging a piece doesn't allocate memory.
+    public final void reset(ScreenLayout layout, float sx, float sy) {
       mLayout = layout;
       mSx = sx;
       mSy = sy;
@@ -142,8 +146,8 @@ public class BoardView extends View implements View.OnTouchListener {
     }
 
     // Find a piece that's near <mSx, mSy>, owned by "player", and can move elsewhere.
-    // Remember the best piece in <mPx, mPy>.
-    public final void findNearestPlayersPieceOnBoard(Board board, Player player) { 
+    // Remember the best piece in <mPx, mPy>. "dests" is a scratch buffer for Board.possibleMoveDestinations.
+    public final void findNearestPlayersPieceOnBoard(Board board, Player player, int[] dests) { 
       int px = mLayout.boardX(mSx);
       int py = mLayout.boardY(mSy);
       for (int i = -1; i <= 1; ++i) {
@@ -152,8 +156,7 @@ public class BoardView extends View implements View.OnTouchListener {
           int y = py + j;
           if (x >= 0 && x < Board.DIM && y >= 0 && y < Board.DIM) {
             if (Board.player(board.getPiece(x, y)) == player) {
-              ArrayList<Board.Position> dests = board.possibleMoveDestinations(x, y);
-              if (!dests.isEmpty()) {
+              if (board.possibleMoveDestinations(x, y, dests) > 0) {
                 tryScreenPosition(mLayout.screenX(x), mLayout.screenY(y), x, y, S_PIECE);
               }
             }
@@ -211,8 +214,9 @@ public class BoardView extends View implements View.OnTouchListener {
       mMoveFrom = null;
       mMoveTo = null;
       
-      NearestSquareFinder finder = new NearestSquareFinder(layout, event.getX(), event.getY());
-      finder.findNearestPlayersPieceOnBoard(mBoard, mCurrentPlayer);
+      NearestSquareFinder finder = mFinder;
+      finder.reset(layout, event.getX(), event.getY());
+      finder.findNearestPlayersPieceOnBoard(mBoard, mCurrentPlayer, mTmpDests);
 
       ArrayList<CapturedPiece> captured = listCapturedPieces(layout, mCurrentPlayer);
       for (int i = 0; i < captured.size(); ++i) {
@@ -234,14 +238,17 @@ public class BoardView extends View implements View.OnTouchListener {
     boolean needInvalidation = false;
     if (mMoveFrom != null) {
       // User dragging a piece to move
-      NearestSquareFinder finder = new NearestSquareFinder(layout, event.getX(), event.getY());
+      NearestSquareFinder finder = mFinder;
+      finder.reset(layout, event.getX(), event.getY());
       if (mMoveFrom instanceof PositionOnBoard) {
         PositionOnBoard from = (PositionOnBoard)mMoveFrom;
-        ArrayList<Board.Position> dests = mBoard.possibleMoveDestinations(from.x, from.y);
-        for (Board.Position d: dests) {
+        final int numDests = mBoard.possibleMoveDestinations(from.x, from.y, mTmpDests);
+        for (int i = 0; i < numDests; ++i) {
+          final int x = mTmpDests[i] % Board.DIM;
+          final int y = mTmpDests[i] / Board.DIM;
           finder.tryScreenPosition(
-              layout.screenX(d.x), layout.screenY(d.y),
-              d.x, d.y, S_MOVE_DESTINATION);               
+              layout.screenX(x), layout.screenY(y),
+              x, y, S_MOVE_DESTINATION);               
         }
         // Allow moving to the origin point to nullify the move.
         finder.tryScreenPosition(
@@ -252,9 +259,10 @@ public class BoardView extends View implements View.OnTouchListener {
       }
 
       if (finder.nearestType() != S_INVALID) {
-	final PositionOnBoard to = new PositionOnBoard(finder.nearestX(), finder.nearestY());
-	mMoveTo = to;
-	needInvalidation = !to.equals(mMoveTo);
+	if (mMoveTo == null || mMoveTo.x != finder.nearestX() || mMoveTo.y != finder.nearestY()) {
+	  mMoveTo = new PositionOnBoard(finder.nearestX(), finder.nearestY());
+	  needInvalidation = true;
+	}
       } else {
 	needInvalidation = (mMoveTo != null);
 	mMoveTo = null;
@@ -321,7 +329,7 @@ public class BoardView extends View implements View.OnTouchListener {
     }
 
     // Draw pieces
-    final Board board = ((animation & ANIM_DRAW_LAST_BOARD) != 0 ? mLastBoard : mBoard);
+    final Board board = ((animation & ANIM_DRAW_LAST_BOARD) != 0 && mLastBoard != null ? mLastBoard : mBoard);
     
     for (int y = 0; y < Board.DIM; ++y) {
       for (int x = 0; x < Board.DIM; ++x) {
@@ -360,18 +368,14 @@ public class BoardView extends View implements View.OnTouchListener {
       if (mMoveFrom instanceof PositionOnBoard) {
         PositionOnBoard from = (PositionOnBoard)mMoveFrom;
         // Draw orange dots in each possible destination
-        ArrayList<Board.Position> dests = mBoard.possibleMoveDestinations(from.x, from.y);
-
-        Paint cp = new Paint();
-        cp.setColor(0xc0ff8c00);
-        cp.setStyle(Style.FILL);
-        for (Board.Position dest: dests) {
-          float sx = layout.screenX(dest.x);
-          float sy = layout.screenY(dest.y);
+        final int numDests = mBoard.possibleMoveDestinations(from.x, from.y, mTmpDests);
+        for (int i = 0; i < numDests; ++i) {
+          float sx = layout.screenX(mTmpDests[i] % Board.DIM);
+          float sy = layout.screenY(mTmpDests[i] / Board.DIM);
 
           sx += squareDim / 2.0f;
           sy += squareDim / 2.0f;
-          canvas.drawCircle(sx, sy, 5, cp);
+          canvas.drawCircle(sx, sy, 5, mDestinationPaint);
         }
       } else {
         // Dropping a captured piece. Nothing to do
@@ -606,6 +610,19 @@ public class BoardView extends View implements View.OnTouchListener {
   private EventListener mListener;
   private ArrayList<Player> mHumanPlayers;
 
+  // Objects reused across touch events and onDraw calls to avoid allocation while 
+  // the user is dragging a piece.
+  private final NearestSquareFinder mFinder = new NearestSquareFinder();
+  private final int[] mTmpDests = new int[Board.MAX_MOVE_DESTINATIONS];
+  private final Paint mDestinationPaint = newDestinationPaint();
+
+  private static final Paint newDestinationPaint() {
+    Paint p = new Paint();
+    p.setColor(0xc0ff8c00);
+    p.setStyle(Style.FILL);
+    return p;
+  }
+
   private final void drawEmptyBoard(Canvas canvas, ScreenLayout layout) {
     // Fill the board square
     Rect boardRect = layout.getBoard();
@@ -629,11 +646,14 @@ public class BoardView extends View implements View.OnTouchListener {
   private final ArrayList<CapturedPiece> listCapturedPieces(
       ScreenLayout layout,
       Player player) {
+    final int sign = (player == Player.BLACK ? 1 : -1);
     int seq = 0;
     ArrayList<CapturedPiece> pieces = new ArrayList<CapturedPiece>();
-    for (Board.CapturedPiece p: mBoard.getCapturedPieces(player)) {
+    for (int type = Piece.FU; type <= Piece.HI; ++type) {
+      final int n = mBoard.handCount(player, type);
+      if (n == 0) continue;
       pieces.add(new CapturedPiece(
-          seq, p.piece, p.n, 
+          seq, type * sign, n, 
           layout.capturedScreenX(player, seq),
           layout.capturedScreenY(player, seq)));
       ++seq;
@@ -642,17 +662,26 @@ public class BoardView extends View implements View.OnTouchListener {
   }
 
 
+  // Same as drawing the result of listCapturedPieces(), but doesn't allocate memory.
   private final void drawCapturedPieces(
       Canvas canvas, 
       ScreenLayout layout, 
       Player player) {
-    ArrayList<CapturedPiece> pieces = listCapturedPieces(layout, player);
-    for (int i = 0; i < pieces.size(); ++i) {
-      CapturedPiece p = pieces.get(i);
+    final int sign = (player == Player.BLACK ? 1 : -1);
+    int seq = 0;
+    for (int type = Piece.FU; type <= Piece.HI; ++type) {
+      final int n = mBoard.handCount(player, type);
+      if (n == 0) continue;
       int alpha = 255;
-      if (p.equals(mMoveFrom)) alpha = 64; 
-      // int piece = (player == Player.BLACK ? p.piece : -p.piece);
-      drawCapturedPiece(canvas, layout, p.piece, p.n, p.sx, p.sy, alpha);
+      if (mMoveFrom instanceof CapturedPiece) {
+        CapturedPiece p = (CapturedPiece)mMoveFrom;
+        if (p.position == seq && p.piece == type * sign && p.n == n) alpha = 64; 
+      }
+      drawCapturedPiece(canvas, layout, type * sign, n, 
+          layout.capturedScreenX(player, seq),
+          layout.capturedScreenY(player, seq), 
+          alpha);
+      ++seq;
     }
   }
 
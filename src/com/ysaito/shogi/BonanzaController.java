@@ -198,6 +198,7 @@ public class BonanzaController {
         BonanzaJNI.Result jr,
         Player curPlayer) {
       Result r = new Result();
+      jr.board.syncBitboards();  // the JNI code has overwritten the board
       r.board = jr.board;
       r.lastMove = (jr.move != null) ? Play.fromCsaString(jr.move, curPlayer) : null;
       r.lastMoveCookie = jr.moveCookie;
@@ -269,6 +270,7 @@ public class BonanzaController {
       throw new AssertionError(String.format("startGame failed: %d %s", jr.status, jr.error));
     }
     Result r = new Result();
+    jr.board.syncBitboards();  // the JNI code has overwritten the board
     r.board = jr.board;
     r.nextPlayer = nextPlayer;
     r.gameState = GameState.ACTIVE;
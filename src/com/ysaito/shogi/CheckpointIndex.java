@@ -0,0 +1,110 @@
+package com.ysaito.shogi;
+
+/**
+ * Board snapshots taken every interval() plies of a game, for seeking to an arbitrary
+ * play without replaying the game from the beginning.
+ *
+ * A snapshot stores the squares of the board (one byte each) and the pieces captured
+ * by both players, SNAPSHOT_BYTES bytes in total. The interval is the smallest value
+ * (but at least MIN_INTERVAL) that keeps the snapshots within the memory cap passed to
+ * the constructor. Snapshots are taken lazily, the first time a seek passes them, so
+ * creating an index is cheap. Once the snapshots up to the destination are taken,
+ * seek() applies less than interval() plays.
+ *
+ * This class is not thread safe.
+ */
+public class CheckpointIndex {
+  // Size of one snapshot
+  public static final int SNAPSHOT_BYTES = Board.DIM * Board.DIM + 8;
+
+  // Memory cap used by ReplayGameActivity
+  public static final int DEFAULT_MAX_BYTES = 32 * 1024;
+
+  // Restoring a snapshot costs about as much as applying a few plays, so taking
+  // snapshots more often isn't worth the memory.
+  public static final int MIN_INTERVAL = 4;
+
+  /**
+   * @param log The game to index.
+   * @param maxBytes The max memory used by the snapshots.
+   */
+  public CheckpointIndex(GameLog log, int maxBytes) {
+    mLog = log;
+    final int numPositions = log.numPlays() + 1;
+    final int maxSnapshots = Math.max(1, maxBytes / SNAPSHOT_BYTES);
+    mInterval = Math.max(MIN_INTERVAL, (numPositions + maxSnapshots - 1) / maxSnapshots);
+    final int numSnapshots = (numPositions + mInterval - 1) / mInterval;
+    mSquares = new byte[numSnapshots * Board.DIM * Board.DIM];
+    mCaptured = new int[numSnapshots * 2];
+
+    Board board = new Board();
+    board.initialize(log.handicap());
+    save(0, board);
+    mNumSnapshots = 1;
+  }
+
+  /**
+   * Return the distance between snapshots, in plies.
+   */
+  public final int interval() { return mInterval; }
+
+  /**
+   * Return the number of bytes used by the snapshots.
+   */
+  public final int memoryBytes() { return mCaptured.length / 2 * SNAPSHOT_BYTES; }
+
+  /**
+   * Set "board" to the state after the first "numPlays" plays of the game.
+   *
+   * @param undos If non-null, undos[i] is set to the value returned by Board.applyPly()
+   * for the i'th play, for each play applied on top of the snapshot.
+   * @return The number of plays in the snapshot that was restored. Plays in range
+   * [return value, numPlays) were applied to the board.
+   */
+  public final int seek(Board board, int numPlays, int[] undos) {
+    Assert.ge(numPlays, 0);
+    Assert.lt(numPlays, mLog.numPlays() + 1);
+    final int index = numPlays / mInterval;
+    if (index >= mNumSnapshots) {
+      // Take the missing snapshots. "board" is used as a scratch space.
+      restore(mNumSnapshots - 1, board);
+      for (int i = (mNumSnapshots - 1) * mInterval; i < index * mInterval; ++i) {
+        board.applyPly(player(i), mLog.play(i));
+        if ((i + 1) % mInterval == 0) save(mNumSnapshots++, board);
+      }
+    }
+    restore(index, board);
+    final int start = index * mInterval;
+    for (int i = start; i < numPlays; ++i) {
+      final int undo = board.applyPly(player(i), mLog.play(i));
+      if (undos != null) undos[i] = undo;
+    }
+    return start;
+  }
+
+  // The player who makes the i'th play. Player.BLACK moves first, including in handicap games.
+  private static final Player player(int i) {
+    return (i % 2 == 0) ? Player.BLACK : Player.WHITE;
+  }
+
+  private final void save(int index, Board board) {
+    board.saveSquares(mSquares, index * Board.DIM * Board.DIM);
+    mCaptured[index * 2] = board.capturedBits(Player.BLACK);
+    mCaptured[index * 2 + 1] = board.capturedBits(Player.WHITE);
+  }
+
+  private final void restore(int index, Board board) {
+    board.restoreSquares(mSquares, index * Board.DIM * Board.DIM,
+        mCaptured[index * 2], mCaptured[index * 2 + 1]);
+  }
+
+  private final GameLog mLog;
+  private final int mInterval;
+
+  // Snapshot i, taken after i * mInterval plays, is stored in
+  // mSquares[i * DIM * DIM, (i + 1) * DIM * DIM) and mCaptured[i * 2, i * 2 + 2).
+  // Snapshots [0, mNumSnapshots) have been taken.
+  private final byte[] mSquares;
+  private final int[] mCaptured;
+  private int mNumSnapshots;
+}
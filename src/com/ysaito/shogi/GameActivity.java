@@ -123,6 +123,12 @@ public class GameActivity extends Activity {
     case R.id.menu_flip_screen:
       mBoardView.flipScreen();
       return true;
+    case R.id.menu_find_position:
+      GameLogListActivity.startPositionSearch(this, mBoard, mNextPlayer);
+      return true;
+    case R.id.menu_opening_stats:
+      OpeningStatsDialog.show(this, mBoard, mNextPlayer, mPlays.isEmpty() ? null : mPlays.get(mPlays.size() - 1));
+      return true;
     case R.id.menu_quit_game:
       tryQuitGame();
       return true;
@@ -416,13 +422,15 @@ public class GameActivity extends Activity {
         attrs.put(GameLog.ATTR_HANDICAP, mHandicap.toJapaneseString());
       }
 
+      GameLog log = GameLog.newLog(mStartTimeMs, attrs.entrySet(), mPlays,  null /* not on sdcard yet */);
+      log.setResult(mGameState);
       new AsyncTask<GameLog, String, String>() {
         @Override
         protected String doInBackground(GameLog... logs) {
           mGameLogList.saveLogInMemory(mActivity, logs[0]);
           return null;
         }
-      }.execute(GameLog.newLog(mStartTimeMs, attrs.entrySet(), mPlays,  null /* not on sdcard yet */));
+      }.execute(log);
     }
   }
   
@@ -4,12 +4,14 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Serializable;
 import java.io.StringReader;
-import java.io.Writer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -30,8 +32,11 @@ import android.util.Log;
  * GameLog stores the log of a single game, along with its attributes, such as the date and time of the game 
  * and the names of the players.
  */
-@SuppressWarnings("serial") 
 public class GameLog implements Serializable {
+  // The value computed for the class as released before PlayList, so that the logs in a
+  // summary written by that version can still be read. See serialPersistentFields.
+  private static final long serialVersionUID = -8051029289930915117L;
+
   private static final String TAG = "GameLog";
   
   // Common mAttrs keys. They are also the standard KIF headers.
@@ -42,22 +47,56 @@ public class GameLog implements Serializable {
   public static final String ATTR_BLACK_PLAYER = "先手";
   public static final String ATTR_WHITE_PLAYER = "後手";
   public static final String ATTR_HANDICAP = "手合割";    
+
+  // The opening, e.g., "四間飛車". Not a standard KIF header, but common in game collections.
+  public static final String ATTR_OPENING = "戦型";
   
   /**
    * List of attributes names (ATTR_TITLE, etc) and their values. This object
    * must be an ordered map so that digest() can compute a deterministic value.
+   * Use putAttr() to modify.
    */
   private TreeMap<String, String> mAttrs;
   
   private long mStartTimeMs;  // UTC in millisec
-  private ArrayList<Play> mPlays;
+  private PlayList mPlays;  // null in a header. See header(). Use addPlay() to modify.
+  private int mNumPlays;  // the number of plays, in a header
   private String mDigest;  // cached value of getDigest().
   private File mPath;  // the path on sdcard. null in the log is only in memory
+
+  // The location of the game in mPath, if mPath is a collection of games. mEntry is the name
+  // of the entry in the ZIP archive mPath, or null if mPath isn't a ZIP archive. The game is
+  // at [mSliceOffset, mSliceOffset + mSliceLength) in the entry or the file, or is the whole
+  // entry or file if mSliceLength is 0. See GameLogImporter. For a game in a GameLogArchive,
+  // the slice is the index entry of the game.
+  private String mEntry;
+  private long mSliceOffset;
+  private int mSliceLength;
+
+  // The state of fingerprint(), updated by putAttr() and addPlay(). The attributes
+  // are hashed independently of the order they are set in, by adding up the hashes of
+  // the entries, and the plays are hashed in order. Each is a pair of 64-bit hashes.
+  private long mAttrHashHi, mAttrHashLo;
+  private long mPlayHashHi, mPlayHashLo;
+  private transient String mFingerprint;  // cached value of fingerprint()
+
+  // Always true, except in a log written by a version without the fingerprint. The hashes
+  // can't tell, since they are all zero for a log without attributes and plays.
+  private boolean mHasFingerprint;
+
+  // The outcome of the game, or null if unknown. Not a part of fingerprint(). Null in a log
+  // written by a version without it.
+  private GameState mResult;
+
+  // The word that ended the plays in KIF, e.g., "詰み", which tells how the game ended, or
+  // null if unknown. Not a part of fingerprint().
+  private String mResultWord;
   
   private GameLog() {
     mAttrs = new TreeMap<String, String>();
-    mPlays = new ArrayList<Play>();
+    mPlays = new PlayList();
     mPath = null;
+    mHasFingerprint = true;
   }
   
   public String attrsToString() {
@@ -72,14 +111,14 @@ public class GameLog implements Serializable {
 
   @Override public boolean equals(Object o) {
     if (o instanceof GameLog) {
-      return digest().equals(((GameLog)o).digest());
+      return fingerprint().equals(((GameLog)o).fingerprint());
     } else {
       return false;
     }
   }
   
   @Override public int hashCode() {
-    return digest().hashCode();
+    return (int)fingerprintLo();
   }
 
   /**
@@ -94,6 +133,34 @@ public class GameLog implements Serializable {
    * the log is not in sdcard. 
    */
   public final File path() { return mPath; }
+
+  /**
+   * Return the name of the ZIP archive entry that contains the log, or null if path() isn't
+   * a ZIP archive.
+   */
+  public final String entry() { return mEntry; }
+
+  /**
+   * Return the byte offset of the log in the entry() of path(), or in path().
+   */
+  public final long sliceOffset() { return mSliceOffset; }
+
+  /**
+   * Return the length of the log in bytes, or 0 if the log is the whole entry() or path().
+   */
+  public final int sliceLength() { return mSliceLength; }
+
+  /**
+   * Whether path() has other logs besides this one, i.e., the log is in a ZIP archive or in
+   * a file with many games concatenated.
+   */
+  public final boolean isInCollection() { return mEntry != null || mSliceLength > 0; }
+
+  final void setSlice(String entry, long offset, int length) {
+    mEntry = entry;
+    mSliceOffset = offset;
+    mSliceLength = length;
+  }
   
   /**
    * Get the list of <attr_key, attr_value> pairs.
@@ -103,7 +170,8 @@ public class GameLog implements Serializable {
   }
 
   /**
-   * Get the SHA-1 digest of this object.
+   * Get the SHA-1 digest of this object. It is slow to compute; it is meant for
+   * naming files. Use fingerprint() to identify or compare logs.
    */
   public String digest() {
     if (mDigest == null) {
@@ -113,8 +181,9 @@ public class GameLog implements Serializable {
           digest.update(e.getKey().getBytes());
           digest.update(e.getValue().getBytes());
         }
-        for (int i = 0; i < mPlays.size(); ++i) {
-          digest.update(mPlays.get(i).toString().getBytes());
+        final PlayList plays = checkedPlays();
+        for (int i = 0; i < plays.size(); ++i) {
+          digest.update(plays.get(i).toString().getBytes());
         }
         mDigest = Util.bytesToHexText(digest.digest());
       } catch (NoSuchAlgorithmException e) {
@@ -124,6 +193,177 @@ public class GameLog implements Serializable {
     return mDigest;
   }
   
+  /**
+   * Get a 128-bit fingerprint of the attributes and the plays, as a 32-digit hex string.
+   * Two logs with the same fingerprint are considered the same. Unlike digest(), the
+   * fingerprint is maintained as the log is built, so this method is cheap.
+   */
+  public final String fingerprint() {
+    if (mFingerprint == null) {
+      mFingerprint = hex64(fingerprintHi()) + hex64(fingerprintLo());
+    }
+    return mFingerprint;
+  }
+
+  private final long fingerprintHi() {
+    return mix(mAttrHashHi + mix(mPlayHashHi ^ numPlays()));
+  }
+
+  private final long fingerprintLo() {
+    return mix(mAttrHashLo ^ mix(mPlayHashLo + numPlays()));
+  }
+
+  private final void putAttr(String key, String value) {
+    String old = mAttrs.put(key, value);
+    if (old != null) {
+      mAttrHashHi -= attrHash(key, old, HASH_MULTIPLIER_HI);
+      mAttrHashLo -= attrHash(key, old, HASH_MULTIPLIER_LO);
+    }
+    mAttrHashHi += attrHash(key, value, HASH_MULTIPLIER_HI);
+    mAttrHashLo += attrHash(key, value, HASH_MULTIPLIER_LO);
+    mFingerprint = null;
+  }
+
+  private final void addPlay(Play play) {
+    final int packed = Play.encode(play);
+    mPlays.addPacked(packed);
+    hashPlay(packed);
+  }
+
+  private final void hashPlay(int packed) {
+    mPlayHashHi = mix((mPlayHashHi ^ packed) * HASH_MULTIPLIER_HI);
+    mPlayHashLo = mix((mPlayHashLo + packed) * HASH_MULTIPLIER_LO);
+    mFingerprint = null;
+  }
+
+  /**
+   * Copy the state of fingerprint() to state[0, 4). See newHeader().
+   */
+  final void getFingerprintState(long[] state) {
+    state[0] = mAttrHashHi;
+    state[1] = mAttrHashLo;
+    state[2] = mPlayHashHi;
+    state[3] = mPlayHashLo;
+  }
+
+  /**
+   * The serialized form. The first five fields are the ones written by the version before
+   * PlayList, where "mPlays" was an ArrayList<Play>. "mPlays" is now always written as null, and
+   * the plays are in "mPackedPlays". The other fields are missing from an older stream, and read
+   * as zero, false or null.
+   */
+  private static final ObjectStreamField[] serialPersistentFields = {
+    new ObjectStreamField("mAttrs", TreeMap.class),
+    new ObjectStreamField("mStartTimeMs", long.class),
+    new ObjectStreamField("mPlays", ArrayList.class),
+    new ObjectStreamField("mDigest", String.class),
+    new ObjectStreamField("mPath", File.class),
+    new ObjectStreamField("mPackedPlays", PlayList.class),
+    new ObjectStreamField("mNumPlays", int.class),
+    new ObjectStreamField("mEntry", String.class),
+    new ObjectStreamField("mSliceOffset", long.class),
+    new ObjectStreamField("mSliceLength", int.class),
+    new ObjectStreamField("mAttrHashHi", long.class),
+    new ObjectStreamField("mAttrHashLo", long.class),
+    new ObjectStreamField("mPlayHashHi", long.class),
+    new ObjectStreamField("mPlayHashLo", long.class),
+    new ObjectStreamField("mHasFingerprint", boolean.class),
+    new ObjectStreamField("mResult", GameState.class),
+    new ObjectStreamField("mResultWord", String.class),
+  };
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    ObjectOutputStream.PutField fields = out.putFields();
+    fields.put("mAttrs", mAttrs);
+    fields.put("mStartTimeMs", mStartTimeMs);
+    fields.put("mPlays", null);
+    fields.put("mDigest", mDigest);
+    fields.put("mPath", mPath);
+    fields.put("mPackedPlays", mPlays);
+    fields.put("mNumPlays", mNumPlays);
+    fields.put("mEntry", mEntry);
+    fields.put("mSliceOffset", mSliceOffset);
+    fields.put("mSliceLength", mSliceLength);
+    fields.put("mAttrHashHi", mAttrHashHi);
+    fields.put("mAttrHashLo", mAttrHashLo);
+    fields.put("mPlayHashHi", mPlayHashHi);
+    fields.put("mPlayHashLo", mPlayHashLo);
+    fields.put("mHasFingerprint", mHasFingerprint);
+    fields.put("mResult", mResult);
+    fields.put("mResultWord", mResultWord);
+    out.writeFields();
+  }
+
+  @SuppressWarnings("unchecked")
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    ObjectInputStream.GetField fields = in.readFields();
+    try {
+      mAttrs = (TreeMap<String, String>)fields.get("mAttrs", null);
+      mStartTimeMs = fields.get("mStartTimeMs", 0L);
+      mDigest = (String)fields.get("mDigest", null);
+      mPath = (File)fields.get("mPath", null);
+      mPlays = (PlayList)fields.get("mPackedPlays", null);
+      mNumPlays = fields.get("mNumPlays", 0);
+      mEntry = (String)fields.get("mEntry", null);
+      mSliceOffset = fields.get("mSliceOffset", 0L);
+      mSliceLength = fields.get("mSliceLength", 0);
+      mAttrHashHi = fields.get("mAttrHashHi", 0L);
+      mAttrHashLo = fields.get("mAttrHashLo", 0L);
+      mPlayHashHi = fields.get("mPlayHashHi", 0L);
+      mPlayHashLo = fields.get("mPlayHashLo", 0L);
+      mHasFingerprint = fields.get("mHasFingerprint", false);
+      mResult = (GameState)fields.get("mResult", null);
+      mResultWord = (String)fields.get("mResultWord", null);
+      ArrayList<Play> oldPlays = (ArrayList<Play>)fields.get("mPlays", null);
+      if (oldPlays != null) {
+        // Written by the version before PlayList.
+        mPlays = new PlayList();
+        for (Play p : oldPlays) mPlays.addPacked(Play.encode(p));
+      }
+    } catch (ClassCastException e) {
+      throw new InvalidObjectException("Bad GameLog field: " + e.getMessage());
+    }
+    if (mAttrs == null) throw new InvalidObjectException("GameLog without attributes");
+    if (!mHasFingerprint) {
+      // Written by a version without the fingerprint. Compute it from the contents.
+      if (mPlays == null) throw new InvalidObjectException("Header without a fingerprint");
+      mHasFingerprint = true;
+      TreeMap<String, String> attrs = mAttrs;
+      mAttrs = new TreeMap<String, String>();
+      for (Map.Entry<String, String> e : attrs.entrySet()) putAttr(e.getKey(), e.getValue());
+      for (int i = 0; i < mPlays.size(); ++i) hashPlay(mPlays.getPacked(i));
+    }
+  }
+
+  // Odd multipliers of the two halves of the fingerprint. The first is the FNV-1a prime.
+  private static final long HASH_MULTIPLIER_LO = 0x100000001b3L;
+  private static final long HASH_MULTIPLIER_HI = 0x9e3779b97f4a7c15L;
+
+  private static long attrHash(String key, String value, long multiplier) {
+    long h = stringHash(key, 0, multiplier);
+    return mix(stringHash(value, h, multiplier));
+  }
+
+  private static long stringHash(String s, long h, long multiplier) {
+    for (int i = 0; i < s.length(); ++i) h = (h ^ s.charAt(i)) * multiplier;
+    return mix(h + s.length());
+  }
+
+  // The finalizer of MurmurHash3.
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  private static String hex64(long v) {
+    String s = Long.toHexString(v);
+    return "0000000000000000".substring(s.length()) + s;
+  }
+
   public final long getDate() { return mStartTimeMs; }
   public final String dateString() { return toKifDateString(mStartTimeMs); }
   
@@ -135,9 +375,88 @@ public class GameLog implements Serializable {
     return Handicap.NONE;
   }
   
-  public final Play play(int n) { return mPlays.get(n); }
-  public final int numPlays() { return mPlays.size(); }
-  public final ArrayList<Play> plays() { return mPlays; }
+  /**
+   * Return a copy of this object without the plays. A header has the same attributes,
+   * date, fingerprint, path, slice, and numPlays() as the original log, and takes a fraction of its
+   * memory, so it is what GameLogListManager keeps for each log in the sdcard. Like the plays,
+   * digest() isn't available in a header. Use GameLogListManager.readPlays() to get the full
+   * log back.
+   */
+  public final GameLog header() {
+    if (mPlays == null) return this;
+    GameLog h = new GameLog();
+    h.mAttrs = mAttrs;
+    h.mStartTimeMs = mStartTimeMs;
+    h.mPlays = null;
+    h.mNumPlays = mPlays.size();
+    h.mAttrHashHi = mAttrHashHi;
+    h.mAttrHashLo = mAttrHashLo;
+    h.mPlayHashHi = mPlayHashHi;
+    h.mPlayHashLo = mPlayHashLo;
+    h.mFingerprint = mFingerprint;
+    h.mPath = mPath;
+    h.mEntry = mEntry;
+    h.mSliceOffset = mSliceOffset;
+    h.mSliceLength = mSliceLength;
+    h.mResult = mResult;
+    h.mResultWord = mResultWord;
+    return h;
+  }
+
+  /**
+   * Return the outcome of the game, or GameState.ACTIVE if it is unknown, e.g., the game
+   * was suspended, or the log doesn't say. It is read from the line that ends the plays in
+   * KIF, e.g., "投了". Two logs that differ only by the result have the same fingerprint().
+   */
+  public final GameState result() { return (mResult != null) ? mResult : GameState.ACTIVE; }
+
+  /**
+   * Return the word that ended the plays in KIF, e.g., "詰み", or null if it is unknown.
+   */
+  public final String resultWord() { return mResultWord; }
+
+  /** Set the outcome of the game. It isn't saved in the fingerprint; see result(). */
+  public final void setResult(GameState result) {
+    setResult(result, null);
+  }
+
+  /**
+   * Set the outcome of the game, and the word that ended the plays in KIF, e.g., "詰み", or
+   * null if unknown. A word that the KIF parser doesn't know is dropped.
+   */
+  public final void setResult(GameState result, String word) {
+    mResult = (result == GameState.ACTIVE) ? null : result;
+    mResultWord = null;
+    for (String w : RESULT_WORDS) {
+      if (w.equals(word)) mResultWord = w;
+    }
+  }
+
+  /**
+   * Whether this object has the plays, i.e., isn't a header.
+   */
+  public final boolean hasPlays() { return mPlays != null; }
+
+  /**
+   * Return the n'th play. A new Play object is created on every call. Use packedPlay() to avoid allocation.
+   */
+  public final Play play(int n) { return checkedPlays().get(n); }
+  
+  /**
+   * Return the n'th play, encoded by Play.encode().
+   */
+  public final int packedPlay(int n) { return checkedPlays().getPacked(n); }
+  public final int numPlays() { return (mPlays != null) ? mPlays.size() : mNumPlays; }
+  
+  /**
+   * Return a newly created list of the plays in the game.
+   */
+  public final ArrayList<Play> plays() { return checkedPlays().toArrayList(); }
+
+  private final PlayList checkedPlays() {
+    if (mPlays == null) throw new AssertionError(fingerprint() + ": the plays of a header aren't available");
+    return mPlays;
+  }
 
   public final String getPlayer(String playerAttr) {
     String name = mAttrs.get(playerAttr);
@@ -153,11 +472,11 @@ public class GameLog implements Serializable {
       if (g1.getDate() < g2.getDate()) return -1;
       if (g1.getDate() > g2.getDate()) return 1;      
 
-      // Use player name, then digest as a tiebreaker.
+      // Use player name, then fingerprint as a tiebreaker.
       
       // int x = BY_PLAYERS.compare(g1, g2);
       // if (x != 0) return x;
-      return g1.digest().compareTo(g2.digest());
+      return g1.fingerprint().compareTo(g2.fingerprint());
     }
     @Override 
     public boolean equals(Object o) { return o == this; }
@@ -191,30 +510,12 @@ public class GameLog implements Serializable {
   //
   // Methods to parse .kif and .html files into a GameLog object
   //
-  private static final Pattern DATE_PATTERN = Pattern.compile("開始日時[：:](.*)");
-  private static final Pattern PLAY_PATTERN = Pattern.compile("\\s*[0-9]+\\s+(.*)");  
   private static final Pattern OPTIONAL_DAY_OF_WEEK_PATTERN = Pattern.compile("[(（][月火水木金土日][）)]");
-  private static final Pattern UNKNOWN_ATTR_PATTERN = Pattern.compile("(\\S+)[：:](.+)");
-  
-  private static class AttrPattern {
-    public String attr;
-    public Pattern pattern;
-  }
-  private static final AttrPattern[] mAttrPatterns;
   
   public static final String STANDARD_ATTR_NAMES[] = {
     ATTR_BLACK_PLAYER, ATTR_WHITE_PLAYER, ATTR_HANDICAP,
     ATTR_TITLE, ATTR_LOCATION, ATTR_TIME_LIMIT, ATTR_TOURNAMENT,
   };
-  
-  static {
-    mAttrPatterns = new AttrPattern[STANDARD_ATTR_NAMES.length];
-    for (int i = 0; i < STANDARD_ATTR_NAMES.length; ++i) {
-      mAttrPatterns[i] = new AttrPattern();
-      mAttrPatterns[i].attr = STANDARD_ATTR_NAMES[i];
-      mAttrPatterns[i].pattern= Pattern.compile(STANDARD_ATTR_NAMES[i] + "[：:]\\s*(.*)");
-    }
-  }
 
   private static final Pattern HTML_KIF_START_PATTERN = Pattern.compile(".*>\\s*((開始日時|棋戦|場所|表題|手合割|先手|後手)[:：].*)");
   private static final Pattern HTML_KIF_END_PATTERN = Pattern.compile("([^<]*)<.*");
@@ -226,15 +527,49 @@ public class GameLog implements Serializable {
       File path) {
     GameLog log = new GameLog();
     log.mStartTimeMs = startTimeMs;
-    log.mAttrs = new TreeMap<String,String>();
     for (Map.Entry<String, String> e : attrs) {
-      log.mAttrs.put(e.getKey(), e.getValue());
+      log.putAttr(e.getKey(), e.getValue());
+    }
+    for (Play p : plays) log.addPlay(p);
+    log.mPath = path;
+    return log;
+  }
+
+  /**
+   * Create a log with the packed plays[0, numPlays). "attrs" is owned by the log.
+   */
+  static GameLog newLog(long startTimeMs, TreeMap<String, String> attrs, int[] plays, int numPlays, File path) {
+    GameLog log = new GameLog();
+    log.mStartTimeMs = startTimeMs;
+    for (Map.Entry<String, String> e : attrs.entrySet()) log.putAttr(e.getKey(), e.getValue());
+    for (int i = 0; i < numPlays; ++i) {
+      log.mPlays.addPacked(plays[i]);
+      log.hashPlay(plays[i]);
     }
-    log.mPlays = new ArrayList<Play>(plays);
     log.mPath = path;
     return log;
   }
 
+  /**
+   * Create a header (see header()) of a log with "numPlays" plays, whose fingerprint state
+   * was saved by getFingerprintState(). "attrs" is owned by the log. The header has no
+   * digest(), since it is computed from the plays.
+   */
+  static GameLog newHeader(long startTimeMs, TreeMap<String, String> attrs, int numPlays,
+                           long[] state, File path) {
+    GameLog h = new GameLog();
+    h.mAttrs = attrs;
+    h.mStartTimeMs = startTimeMs;
+    h.mPlays = null;
+    h.mNumPlays = numPlays;
+    h.mAttrHashHi = state[0];
+    h.mAttrHashLo = state[1];
+    h.mPlayHashHi = state[2];
+    h.mPlayHashLo = state[3];
+    h.mPath = path;
+    return h;
+  }
+
   /** 
    * Parse an embedded KIF file downloaded from http://wiki.optus.nu/.
    * Such a file can be created by saving a "テキスト表示" link directly to a file.
@@ -274,59 +609,16 @@ public class GameLog implements Serializable {
     
   
   /**
-   * Print the contents of this object to "stream" in KIF format.
+   * Print the contents of this object to "stream" in KIF format, and close the stream.
+   * Use GameLogWriter to write multiple logs, or CSA.
    * 
    * @param format One of @id array/log_save_format_values.
    * @throws IOException
    */
   public void toKif(OutputStream out, String format) throws IOException {
-    Writer stream = null;
-    String EOL = null;
-    if (format.equals("kif_utf8")) {
-      stream = new OutputStreamWriter(out, "UTF-8");
-      EOL = "\n";
-    } else {
-      stream = new OutputStreamWriter(out, "SHIFT-JIS");
-      EOL = "\r\n";
-    }
-    StringBuilder b = new StringBuilder();
-    
-    // Generate header lines
-    if (mStartTimeMs > 0) {
-      b.append("開始日時：").append(toKifDateString(mStartTimeMs)).append(EOL);
-    }
-    for (Map.Entry<String, String> e : mAttrs.entrySet()) {
-      String japaneseName = e.getKey();
-      b.append(japaneseName).append("：").append(e.getValue()).append(EOL);
-    }
-    b.append("手数----指手---------消費時間--").append(EOL);
-    Board board = new Board();
-    board.initialize(Handicap.NONE);
-    Player player = Player.BLACK;
-    for (int i = 0; i < mPlays.size(); ++i) {
-      Play thisPlay = mPlays.get(i);
-      Play prevPlay = (i > 0 ? mPlays.get(i - 1) : null);
-      Play.TraditionalNotation n = thisPlay.toTraditionalNotation(board, prevPlay);
-      b.append(String.format("%4d %s%s%s", 
-          i + 1,
-          Play.japaneseRomanNumbers[n.x],
-          Play.japaneseNumbers[n.y],
-          Piece.japaneseNames[Board.type(n.piece)]));
-      if ((n.modifier & Play.PROMOTE) != 0) {
-        b.append("成");
-      }
-      if (!thisPlay.isDroppingPiece()) {
-        b.append(String.format("(%d%d)", 
-            9 - thisPlay.fromX(), 1 + thisPlay.fromY()));
-      } else {
-        b.append("打");
-      }
-      b.append(EOL);
-      board.applyPly(player, thisPlay);
-      player = player.opponent();
-    }
-    stream.write(b.toString());
-    stream.close();
+    GameLogWriter w = new GameLogWriter(out, format);
+    w.write(this);
+    w.close();
   }
   
   /** 
@@ -346,63 +638,92 @@ public class GameLog implements Serializable {
     GameLog l = new GameLog();
     l.mPath = path;
     
-    Scanner scanner = new Scanner(stream);
+    // Each line is classified by KifLexer. See there for the syntax of each kind of line.
+    KifLexer lexer = new KifLexer(stream);
     Play prevPlay = null;
     Player curPlayer = Player.BLACK;
-    while (scanner.hasNextLine()) {
-      String line = scanner.nextLine();
-      boolean matched = false;
-      for (int i = 0; i < mAttrPatterns.length; ++i) {
-        AttrPattern attr = mAttrPatterns[i];
-        Matcher matcher = attr.pattern.matcher(line);  
-        if (matcher.matches()) {
-          l.mAttrs.put(attr.attr, matcher.group(1));
-          matched = true;
+    for (;;) {
+      switch (lexer.next()) {
+      case KifLexer.EOF:
+        return l;
+      case KifLexer.STANDARD_ATTR:
+        l.putAttr(lexer.name(), lexer.value());
+        break;
+      case KifLexer.DATE:
+        l.mStartTimeMs = parseDate(lexer.value());
+        break;
+      case KifLexer.SKIP:
+        // Skip lines that don't contain information
+        break;
+      case KifLexer.PLAY: {
+        final String line = lexer.line();
+        final int begin = lexer.playBegin();
+        final int word = parseResultWord(line, begin);
+        if (word >= 0) {
+          l.setResult(resultOf(word, curPlayer), RESULT_WORDS[word]);
           break;
         }
-      }
-      if (matched) continue;
-      Matcher matcher = DATE_PATTERN.matcher(line);
-      if (matcher.matches()) {
-        l.mStartTimeMs = parseDate(matcher.group(1));
-        continue;
-      }
-
-      // Skip lines that don't contain information
-      if (line.startsWith("手数")) continue;
-      if (line.startsWith("まで")) continue;
-
-      matcher = PLAY_PATTERN.matcher(line);
-      if (matcher.matches()) {
-        String playString = matcher.group(1);
-        if (playString.startsWith("投了")) {
-          continue;
-        } else {
-          Play m = Play.fromKifString(prevPlay, curPlayer, playString);
-          if (m != null) {
-            l.mPlays.add(m);
-            prevPlay = m;
-          }
-          curPlayer = curPlayer.opponent();
+        Play m = Play.fromKifString(prevPlay, curPlayer, line, begin, line.length());
+        if (m != null) {
+          l.addPlay(m);
+          prevPlay = m;
         }
-        continue;
+        curPlayer = curPlayer.opponent();
+        break;
       }
-      
-      // Parse unsupported attributes. They are just displayed as-is
-      matcher = UNKNOWN_ATTR_PATTERN.matcher(line);
-      if (matcher.matches()) {
-        String attrName = matcher.group(1);
-        String attrValue = matcher.group(2);
-        l.mAttrs.put(attrName, attrValue);
-        Log.d(TAG, "Found attr: " + attrName + "///" + attrValue);
-        continue;
+      case KifLexer.OTHER_ATTR:
+        // Parse unsupported attributes. They are just displayed as-is
+        l.putAttr(lexer.name(), lexer.value());
+        Log.d(TAG, "Found attr: " + lexer.name() + "///" + lexer.value());
+        break;
+      default:
+        Log.e(TAG, lexer.line() + ": ignoring line");
       }
-      
-      Log.e(TAG, line + ": ignoring line");
     }
-    return l;
   }
   
+  // The words that end the plays in KIF.
+  private static final String[] RESULT_WORDS = {
+    "投了", "詰み", "切れ負け", "反則負け", "反則勝ち", "入玉勝ち", "千日手", "持将棋", "中断",
+  };
+  // Whether the player to move at each of RESULT_WORDS wins (1), loses (-1), or draws (2), or
+  // the result is unknown (0).
+  private static final int[] RESULT_FOR_PLAYER_TO_MOVE = {
+    -1, -1, -1, -1, 1, 1, 2, 2, 0,
+  };
+
+  // If line[begin...] is a word that ends the plays, return its index in RESULT_WORDS.
+  // Otherwise return -1.
+  private static int parseResultWord(String line, int begin) {
+    for (int i = 0; i < RESULT_WORDS.length; ++i) {
+      if (line.startsWith(RESULT_WORDS[i], begin)) return i;
+    }
+    return -1;
+  }
+
+  // Return the result of a game that ended with "word", one of the words returned by
+  // resultWord(), where "player" is to move, or null if the word is unknown.
+  static GameState resultOf(String word, Player player) {
+    for (int i = 0; i < RESULT_WORDS.length; ++i) {
+      if (RESULT_WORDS[i].equals(word)) return resultOf(i, player);
+    }
+    return null;
+  }
+
+  // Return the result of a game that ended with RESULT_WORDS[word], where "player" is to move.
+  private static GameState resultOf(int word, Player player) {
+    switch (RESULT_FOR_PLAYER_TO_MOVE[word]) {
+    case 1:
+      return (player == Player.BLACK) ? GameState.BLACK_WON : GameState.WHITE_WON;
+    case -1:
+      return (player == Player.BLACK) ? GameState.WHITE_WON : GameState.BLACK_WON;
+    case 2:
+      return GameState.DRAW;
+    default:
+      return GameState.ACTIVE;
+    }
+  }
+
   // Given a UTC in milliseconds, return a KIF-style date string.
   private static String toKifDateString(long dateMs) {
     Calendar c = new GregorianCalendar();
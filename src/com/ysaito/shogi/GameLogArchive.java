@@ -0,0 +1,436 @@
+package com.ysaito.shogi;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A read-only collection of games in a compact binary file, for collections too large to
+ * keep as KIF files (100k games or more). The file is memory-mapped, and each game is read
+ * from the mapping by its index, without parsing or deserializing anything else.
+ *
+ * The file is laid out as follows. All the integers are big-endian, and all the offsets are
+ * from the beginning of the file.
+ *
+ *   header (HEADER_BYTES):
+ *     int MAGIC, int VERSION, int numGames, int indexOffset,
+ *     int numStrings, int stringsOffset, int 0, int 0
+ *   plays:
+ *     the plays of every game, PLAY_BYTES each, in the format of Play.encode(), which uses
+ *     the low 21 bits
+ *   attributes:
+ *     for each game, a pair of indexes into the string table (key, value) for each attribute
+ *   index (numGames * ENTRY_BYTES, at indexOffset):
+ *     long date, long[4] fingerprint state (see GameLog.getFingerprintState()),
+ *     int playsOffset, int numPlays, int attrsOffset, int numAttrs,
+ *     int result (GameLog.result().ordinal()),
+ *     int 1 + the index of GameLog.resultWord() in the string table, or 0 if null
+ *   string table (at stringsOffset):
+ *     int[numStrings + 1] the offsets of the strings from the end of the array, then the
+ *     strings in UTF-8. Each distinct string, e.g., the name of a player, is stored once.
+ *
+ * Use Writer or convert() to create an archive.
+ */
+public class GameLogArchive {
+  public static final String SUFFIX = ".gla";
+
+  private static final int MAGIC = 0x53474c41;  // "SGLA"
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 32;
+  private static final int ENTRY_BYTES = 64;
+  private static final int PLAY_BYTES = 3;
+
+  // The offsets of the fields of an index entry.
+  private static final int ENTRY_DATE = 0;
+  private static final int ENTRY_STATE = 8;
+  private static final int ENTRY_PLAYS = 40;
+  private static final int ENTRY_NUM_PLAYS = 44;
+  private static final int ENTRY_ATTRS = 48;
+  private static final int ENTRY_NUM_ATTRS = 52;
+  private static final int ENTRY_RESULT = 56;  // 0, i.e., GameState.ACTIVE, in an older archive
+  private static final int ENTRY_RESULT_WORD = 60;  // 0, i.e., unknown, in an older archive
+
+  /**
+   * Whether "name" is the name of an archive file.
+   */
+  public static boolean isArchive(String name) {
+    return name.endsWith(SUFFIX);
+  }
+
+  private final File mPath;
+  private final ByteBuffer mBuf;
+  private final int mNumGames;
+  private final int mIndexOffset;
+  private final int mNumStrings;
+  private final int mStringsOffset;
+
+  // mStrings[i] is the i'th string in the string table, or null if it hasn't been decoded yet.
+  // Filled without locking; a String is immutable, so a racing thread at worst decodes it again.
+  private final String[] mStrings;
+
+  private GameLogArchive(File path, ByteBuffer buf) throws IOException {
+    mPath = path;
+    mBuf = buf;
+    final int size = buf.capacity();
+    if (size < HEADER_BYTES || buf.getInt(0) != MAGIC) throw corrupt("not a game log archive");
+    if (buf.getInt(4) != VERSION) throw corrupt("unsupported version " + buf.getInt(4));
+    mNumGames = buf.getInt(8);
+    mIndexOffset = buf.getInt(12);
+    mNumStrings = buf.getInt(16);
+    mStringsOffset = buf.getInt(20);
+    if (mNumGames < 0 || mIndexOffset < HEADER_BYTES ||
+        (long)mIndexOffset + (long)mNumGames * ENTRY_BYTES > mStringsOffset ||
+        mNumStrings < 0 || (long)mStringsOffset + (mNumStrings + 1L) * 4 > size) {
+      throw corrupt("invalid header");
+    }
+    final int stringsEnd = mStringsOffset + (mNumStrings + 1) * 4;
+    int prev = 0;
+    for (int i = 0; i <= mNumStrings; ++i) {
+      final int offset = buf.getInt(mStringsOffset + i * 4);
+      if (offset < prev || (long)stringsEnd + offset > size) throw corrupt("invalid string table");
+      prev = offset;
+    }
+    // Check each index entry once here, so that the accessors can trust them.
+    for (int i = 0; i < mNumGames; ++i) {
+      final int e = mIndexOffset + i * ENTRY_BYTES;
+      final int plays = buf.getInt(e + ENTRY_PLAYS);
+      final int numPlays = buf.getInt(e + ENTRY_NUM_PLAYS);
+      final int attrs = buf.getInt(e + ENTRY_ATTRS);
+      final int numAttrs = buf.getInt(e + ENTRY_NUM_ATTRS);
+      if (plays < HEADER_BYTES || numPlays < 0 || (long)plays + (long)numPlays * PLAY_BYTES > mIndexOffset ||
+          attrs < HEADER_BYTES || numAttrs < 0 || (long)attrs + (long)numAttrs * 8 > mIndexOffset) {
+        throw corrupt("invalid index entry " + i);
+      }
+      final int result = buf.getInt(e + ENTRY_RESULT);
+      if (result < 0 || result >= GameState.values().length) throw corrupt("invalid result of game " + i);
+      final int word = buf.getInt(e + ENTRY_RESULT_WORD);
+      if (word < 0 || word > mNumStrings) throw corrupt("invalid result word of game " + i);
+      for (int j = 0; j < numAttrs * 2; ++j) {
+        final int s = buf.getInt(attrs + j * 4);
+        if (s < 0 || s >= mNumStrings) throw corrupt("invalid attribute of game " + i);
+      }
+    }
+    mStrings = new String[mNumStrings];
+  }
+
+  private IOException corrupt(String message) {
+    return new IOException(mPath.getAbsolutePath() + ": " + message);
+  }
+
+  /**
+   * Map "file", and check that it is a valid archive. The file must not be modified while
+   * the archive is in use, but it may be deleted or replaced by renaming.
+   */
+  public static GameLogArchive open(File file) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      FileChannel channel = in.getChannel();
+      MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return new GameLogArchive(file, buf);
+    } finally {
+      // The mapping stays valid after the channel is closed.
+      in.close();
+    }
+  }
+
+  public final File path() { return mPath; }
+  public final int numGames() { return mNumGames; }
+
+  public final long date(int game) { return mBuf.getLong(entry(game) + ENTRY_DATE); }
+  public final int numPlays(int game) { return mBuf.getInt(entry(game) + ENTRY_NUM_PLAYS); }
+
+  /**
+   * Return the n'th play of "game", encoded by Play.encode().
+   */
+  public final int packedPlay(int game, int n) {
+    final int e = entry(game);
+    if (n < 0 || n >= mBuf.getInt(e + ENTRY_NUM_PLAYS)) {
+      throw new IndexOutOfBoundsException("Play: " + n + ", Size: " + mBuf.getInt(e + ENTRY_NUM_PLAYS));
+    }
+    return getPlay(mBuf.getInt(e + ENTRY_PLAYS) + n * PLAY_BYTES);
+  }
+
+  /**
+   * Return the value of attribute "key" of "game", or null if the attribute isn't set.
+   */
+  public final String attr(int game, String key) {
+    final int e = entry(game);
+    final int attrs = mBuf.getInt(e + ENTRY_ATTRS);
+    final int numAttrs = mBuf.getInt(e + ENTRY_NUM_ATTRS);
+    for (int i = 0; i < numAttrs; ++i) {
+      if (string(mBuf.getInt(attrs + i * 8)).equals(key)) return string(mBuf.getInt(attrs + i * 8 + 4));
+    }
+    return null;
+  }
+
+  /**
+   * Return the header (see GameLog.header()) of "game". The log can be passed to indexOf()
+   * and read() later to get the plays.
+   */
+  public final GameLog header(int game) {
+    final int e = entry(game);
+    long[] state = new long[4];
+    for (int i = 0; i < 4; ++i) state[i] = mBuf.getLong(e + ENTRY_STATE + i * 8);
+    GameLog h = GameLog.newHeader(mBuf.getLong(e + ENTRY_DATE), attrs(e),
+                                  mBuf.getInt(e + ENTRY_NUM_PLAYS), state, mPath);
+    h.setSlice(null, e, ENTRY_BYTES);
+    h.setResult(result(e), resultWord(e));
+    return h;
+  }
+
+  /**
+   * Return "game" with its plays.
+   */
+  public final GameLog read(int game) {
+    final int e = entry(game);
+    final int plays = mBuf.getInt(e + ENTRY_PLAYS);
+    final int numPlays = mBuf.getInt(e + ENTRY_NUM_PLAYS);
+    int[] packed = new int[numPlays];
+    for (int i = 0; i < numPlays; ++i) packed[i] = getPlay(plays + i * PLAY_BYTES);
+    GameLog log = GameLog.newLog(mBuf.getLong(e + ENTRY_DATE), attrs(e), packed, numPlays, mPath);
+    log.setSlice(null, e, ENTRY_BYTES);
+    log.setResult(result(e), resultWord(e));
+    return log;
+  }
+
+  /**
+   * Return the index of "log", which was returned by header() or read() of an archive of
+   * the same file, or -1 if the log isn't in this archive.
+   */
+  public final int indexOf(GameLog log) {
+    if (!mPath.equals(log.path()) || log.sliceLength() != ENTRY_BYTES) return -1;
+    final long offset = log.sliceOffset() - mIndexOffset;
+    if (offset < 0 || offset % ENTRY_BYTES != 0 || offset / ENTRY_BYTES >= mNumGames) return -1;
+    return (int)(offset / ENTRY_BYTES);
+  }
+
+  private int entry(int game) {
+    if (game < 0 || game >= mNumGames) {
+      throw new IndexOutOfBoundsException("Game: " + game + ", Size: " + mNumGames);
+    }
+    return mIndexOffset + game * ENTRY_BYTES;
+  }
+
+  private GameState result(int e) {
+    return GameState.values()[mBuf.getInt(e + ENTRY_RESULT)];
+  }
+
+  private String resultWord(int e) {
+    final int word = mBuf.getInt(e + ENTRY_RESULT_WORD);
+    return (word == 0) ? null : string(word - 1);
+  }
+
+  private int getPlay(int offset) {
+    return ((mBuf.get(offset) & 0xff) << 16) | ((mBuf.get(offset + 1) & 0xff) << 8) | (mBuf.get(offset + 2) & 0xff);
+  }
+
+  private TreeMap<String, String> attrs(int e) {
+    final int attrs = mBuf.getInt(e + ENTRY_ATTRS);
+    final int numAttrs = mBuf.getInt(e + ENTRY_NUM_ATTRS);
+    TreeMap<String, String> m = new TreeMap<String, String>();
+    for (int i = 0; i < numAttrs; ++i) {
+      m.put(string(mBuf.getInt(attrs + i * 8)), string(mBuf.getInt(attrs + i * 8 + 4)));
+    }
+    return m;
+  }
+
+  private String string(int index) {
+    String s = mStrings[index];
+    if (s == null) {
+      final int begin = mBuf.getInt(mStringsOffset + index * 4);
+      final int length = mBuf.getInt(mStringsOffset + index * 4 + 4) - begin;
+      final int base = mStringsOffset + (mNumStrings + 1) * 4 + begin;
+      byte[] bytes = new byte[length];
+      for (int i = 0; i < length; ++i) bytes[i] = mBuf.get(base + i);
+      try {
+        s = new String(bytes, "UTF-8");
+      } catch (UnsupportedEncodingException e) {
+        throw new AssertionError("UTF-8: " + e.getMessage());
+      }
+      mStrings[index] = s;
+    }
+    return s;
+  }
+
+  /**
+   * Writes an archive. The plays are written to the file as the games are added; only the
+   * index and the strings are kept in memory until close().
+   *
+   * Usage:
+   *   GameLogArchive.Writer w = new GameLogArchive.Writer(file);
+   *   for (GameLog log : logs) w.add(log);
+   *   w.close();
+   */
+  public static class Writer {
+    private final FileOutputStream mFile;
+    private final DataOutputStream mOut;
+    private long mOffset;  // the number of bytes written to mOut
+    private int mNumGames;
+    private final ByteArrayOutputStream mIndexBytes;
+    private final DataOutputStream mIndex;
+    private final ByteArrayOutputStream mAttrBytes;
+    private final DataOutputStream mAttrs;
+    private final HashMap<String, Integer> mStringIndexes;
+    private final ArrayList<String> mStrings;
+    private final long[] mState;
+
+    public Writer(File file) throws IOException {
+      mFile = new FileOutputStream(file);
+      mOut = new DataOutputStream(new BufferedOutputStream(mFile, 65536));
+      mOut.write(new byte[HEADER_BYTES]);  // written by close()
+      mOffset = HEADER_BYTES;
+      mIndexBytes = new ByteArrayOutputStream();
+      mIndex = new DataOutputStream(mIndexBytes);
+      mAttrBytes = new ByteArrayOutputStream();
+      mAttrs = new DataOutputStream(mAttrBytes);
+      mStringIndexes = new HashMap<String, Integer>();
+      mStrings = new ArrayList<String>();
+      mState = new long[4];
+    }
+
+    public final int numGames() { return mNumGames; }
+
+    /**
+     * Append "log", which must have the plays (see GameLog.hasPlays()).
+     */
+    public void add(GameLog log) throws IOException {
+      final int numPlays = log.numPlays();
+      final int numAttrs = log.attrs().size();
+      if (mOffset + (long)numPlays * PLAY_BYTES + mAttrBytes.size() + (long)numAttrs * 8 >= Integer.MAX_VALUE) {
+        throw new IOException("Game log archive too large");
+      }
+      mIndex.writeLong(log.getDate());
+      log.getFingerprintState(mState);
+      for (long v : mState) mIndex.writeLong(v);
+      mIndex.writeInt((int)mOffset);
+      mIndex.writeInt(numPlays);
+      // The attributes are written after the plays, so their offset is only known in close().
+      // Until then, it is relative to the beginning of mAttrBytes.
+      mIndex.writeInt(mAttrBytes.size());
+      mIndex.writeInt(numAttrs);
+      mIndex.writeInt(log.result().ordinal());
+      final String word = log.resultWord();
+      mIndex.writeInt((word == null) ? 0 : stringIndex(word) + 1);
+
+      for (int i = 0; i < numPlays; ++i) {
+        final int play = log.packedPlay(i);
+        mOut.writeByte(play >> 16);
+        mOut.writeShort(play);
+      }
+      mOffset += numPlays * PLAY_BYTES;
+      for (Map.Entry<String, String> e : log.attrs()) {
+        mAttrs.writeInt(stringIndex(e.getKey()));
+        mAttrs.writeInt(stringIndex(e.getValue()));
+      }
+      ++mNumGames;
+    }
+
+    private int stringIndex(String s) {
+      Integer index = mStringIndexes.get(s);
+      if (index == null) {
+        index = mStrings.size();
+        mStringIndexes.put(s, index);
+        mStrings.add(s);
+      }
+      return index;
+    }
+
+    /**
+     * Write the index and the strings, and close the file.
+     */
+    public void close() throws IOException {
+      try {
+        final long attrsOffset = mOffset;
+        mAttrBytes.writeTo(mOut);
+        mOffset += mAttrBytes.size();
+        final long indexOffset = mOffset;
+
+        // Rewrite the attribute offsets in the index.
+        ByteBuffer index = ByteBuffer.wrap(mIndexBytes.toByteArray());
+        for (int i = 0; i < mNumGames; ++i) {
+          final int pos = i * ENTRY_BYTES + ENTRY_ATTRS;
+          index.putInt(pos, (int)(attrsOffset + index.getInt(pos)));
+        }
+        mOut.write(index.array());
+        mOffset += index.capacity();
+        final long stringsOffset = mOffset;
+
+        byte[][] strings = new byte[mStrings.size()][];
+        long stringBytes = 0;
+        for (int i = 0; i < strings.length; ++i) {
+          strings[i] = mStrings.get(i).getBytes("UTF-8");
+          stringBytes += strings[i].length;
+        }
+        if (stringsOffset + (strings.length + 1L) * 4 + stringBytes >= Integer.MAX_VALUE) {
+          throw new IOException("Game log archive too large");
+        }
+        int offset = 0;
+        mOut.writeInt(0);
+        for (byte[] s : strings) {
+          offset += s.length;
+          mOut.writeInt(offset);
+        }
+        for (byte[] s : strings) mOut.write(s);
+        mOut.flush();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putInt(VERSION).putInt(mNumGames).putInt((int)indexOffset);
+        header.putInt(strings.length).putInt((int)stringsOffset);
+        header.rewind();
+        FileChannel channel = mFile.getChannel();
+        while (header.hasRemaining()) channel.write(header, header.position());
+      } finally {
+        mOut.close();
+      }
+    }
+  }
+
+  /**
+   * Write the games in "files" (see GameLogImporter.canImport()) to a new archive "archive".
+   * Add a message for each file or game that couldn't be read to "errors". Return the number
+   * of games written.
+   */
+  public static int convert(List<File> files, File archive, List<String> errors) throws IOException {
+    for (File f : files) {
+      if (!GameLogImporter.canImport(f.getName())) {
+        throw new InvalidParameterException(f.getAbsolutePath() + ": can't import");
+      }
+    }
+    Writer w = new Writer(archive);
+    boolean done = false;
+    try {
+      ArrayList<GameLog> logs = new ArrayList<GameLog>();
+      ArrayList<String> fileErrors = new ArrayList<String>();
+      for (File f : files) {
+        logs.clear();
+        fileErrors.clear();
+        try {
+          GameLogImporter.readGames(f, null, logs, fileErrors);
+        } catch (IOException e) {
+          fileErrors.add("I/O error: " + e.getMessage());
+        }
+        for (GameLog log : logs) w.add(log);
+        for (String error : fileErrors) errors.add(f.getAbsolutePath() + ": " + error);
+      }
+      done = true;
+    } finally {
+      w.close();
+      if (!done) archive.delete();
+    }
+    return w.numGames();
+  }
+}
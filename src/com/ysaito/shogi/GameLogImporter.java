@@ -0,0 +1,326 @@
+package com.ysaito.shogi;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads the games in a game log file, which is one of
+ *
+ *   .html, .htm: a web page with a KIF game embedded. See GameLog.parseHtml().
+ *   .kif: one game, or many games concatenated.
+ *   .zip: a ZIP archive of such files. The archive is read as a stream; nothing is extracted.
+ *
+ * Each game read records its location, i.e., the archive entry, and the range of bytes of
+ * the game in the entry or the file (see GameLog.entry() and GameLog.sliceOffset()), so that
+ * readGame() reads just that range back.
+ */
+public class GameLogImporter {
+  // The number of bytes used to guess the encoding of a multi-game KIF file.
+  private static final int SNIFF_BYTES = 64 * 1024;
+
+  /**
+   * Whether "name" is a file or an archive entry that may contain games.
+   */
+  public static boolean canImport(String name) {
+    return isHtml(name) || isKif(name) || isZip(name);
+  }
+
+  private static boolean isHtml(String name) {
+    return name.endsWith(".html") || name.endsWith(".htm");
+  }
+
+  private static boolean isKif(String name) {
+    return name.endsWith(".kif");
+  }
+
+  private static boolean isZip(String name) {
+    return name.endsWith(".zip");
+  }
+
+  /**
+   * Read the games in "file", and return the SHA-1 digest of its contents. If the digest is
+   * "knownDigest", return without reading any game. Otherwise add the games to "logs", and
+   * a message for each game that couldn't be parsed to "errors".
+   */
+  public static String readGames(File file, String knownDigest, List<GameLog> logs, List<String> errors)
+      throws IOException {
+    if (!isZip(file.getName())) {
+      InputStream in = new FileInputStream(file);
+      byte[] contents;
+      try {
+        contents = Util.streamToBytes(in);
+      } finally {
+        in.close();
+      }
+      MessageDigest digest = newDigest();
+      digest.update(contents);
+      final String hex = Util.bytesToHexText(digest.digest());
+      if (!hex.equals(knownDigest)) parseGames(file, null, contents, logs, errors);
+      return hex;
+    }
+
+    // Read an archive twice only if it may not have changed.
+    if (knownDigest != null) {
+      final String hex = contentDigest(file);
+      if (hex.equals(knownDigest)) return hex;
+    }
+    MessageDigest digest = newDigest();
+    InputStream in = new DigestInputStream(new BufferedInputStream(new FileInputStream(file), 8192), digest);
+    try {
+      ZipInputStream zip = new ZipInputStream(in);
+      ZipEntry e;
+      while ((e = nextEntry(zip)) != null) {
+        final String name = e.getName();
+        if (e.isDirectory() || !(isKif(name) || isHtml(name))) continue;
+        parseGames(file, name, Util.streamToBytes(zip), logs, errors);
+      }
+      // Let the digest see the rest of the archive, i.e., the central directory.
+      byte[] buf = new byte[8192];
+      while (in.read(buf) > 0) ;
+    } finally {
+      in.close();
+    }
+    return Util.bytesToHexText(digest.digest());
+  }
+
+  private static ZipEntry nextEntry(ZipInputStream zip) throws IOException {
+    try {
+      return zip.getNextEntry();
+    } catch (IllegalArgumentException e) {
+      // Thrown for an entry name that isn't valid UTF-8.
+      throw new IOException("ZIP: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Read back "log", which has been read by readGames(), with its plays.
+   *
+   * @throws ParseException if the location of the game no longer contains a game.
+   */
+  public static GameLog readGame(GameLog log) throws IOException, ParseException {
+    final File path = log.path();
+    final String entry = log.entry();
+    byte[] contents;
+    if (entry != null) {
+      ZipFile zip = new ZipFile(path);
+      try {
+        ZipEntry e = zip.getEntry(entry);
+        if (e == null) throw new ParseException(path.getAbsolutePath() + ": " + entry + ": entry not found");
+        InputStream in = zip.getInputStream(e);
+        try {
+          contents = readSlice(in, log.sliceOffset(), log.sliceLength());
+        } finally {
+          in.close();
+        }
+      } finally {
+        zip.close();
+      }
+    } else if (log.sliceLength() > 0) {
+      RandomAccessFile f = new RandomAccessFile(path, "r");
+      try {
+        f.seek(log.sliceOffset());
+        contents = new byte[log.sliceLength()];
+        f.readFully(contents);
+      } finally {
+        f.close();
+      }
+    } else {
+      InputStream in = new FileInputStream(path);
+      try {
+        contents = Util.streamToBytes(in);
+      } finally {
+        in.close();
+      }
+    }
+    GameLog full = parse(path, entry, contents, 0, contents.length);
+    if (full == null) throw new ParseException(path.getAbsolutePath() + ": no game found");
+    full.setSlice(entry, log.sliceOffset(), log.sliceLength());
+    return full;
+  }
+
+  private static byte[] readSlice(InputStream in, long offset, int length) throws IOException {
+    while (offset > 0) {
+      final long skipped = in.skip(offset);
+      if (skipped <= 0) throw new EOFException();
+      offset -= skipped;
+    }
+    if (length == 0) return Util.streamToBytes(in);
+    byte[] contents = new byte[length];
+    new DataInputStream(in).readFully(contents);
+    return contents;
+  }
+
+  // Parse the games in "contents", which is "file", or its "entry" if not null.
+  private static void parseGames(File file, String entry, byte[] contents, List<GameLog> logs, List<String> errors) {
+    final String prefix = (entry != null) ? entry + ": " : "";
+    if (!isKif((entry != null) ? entry : file.getName())) {
+      try {
+        GameLog log = parse(file, entry, contents, 0, contents.length);
+        if (log == null) {
+          errors.add(prefix + "No game found");
+        } else {
+          log.setSlice(entry, 0, 0);
+          logs.add(log);
+        }
+      } catch (IOException e) {
+        errors.add(prefix + "I/O error: " + e.getMessage());
+      } catch (ParseException e) {
+        errors.add(prefix + "KIF parse: " + e.getMessage());
+      }
+      return;
+    }
+
+    final int[] bounds = splitKif(contents);
+    final int numGames = bounds.length - 1;
+    for (int i = 0; i < numGames; ++i) {
+      final int begin = bounds[i];
+      final int end = bounds[i + 1];
+      try {
+        GameLog log = parse(file, entry, contents, begin, end - begin);
+        if (numGames == 1) {
+          log.setSlice(entry, 0, 0);
+        } else {
+          if (log.numPlays() == 0 && log.attrs().isEmpty()) continue;
+          log.setSlice(entry, begin, end - begin);
+        }
+        logs.add(log);
+      } catch (IOException e) {
+        errors.add(prefix + "offset " + begin + ": I/O error: " + e.getMessage());
+      } catch (ParseException e) {
+        errors.add(prefix + "offset " + begin + ": KIF parse: " + e.getMessage());
+      }
+    }
+  }
+
+  // Parse contents[offset, offset + length), which is "file", or its "entry" if not null, or
+  // a slice of either. Return null if an HTML file has no game.
+  private static GameLog parse(File file, String entry, byte[] contents, int offset, int length)
+      throws IOException, ParseException {
+    final String name = (entry != null) ? entry : file.getName();
+    ByteArrayInputStream in = new ByteArrayInputStream(contents, offset, length);
+    if (isHtml(name)) {
+      return GameLog.parseHtml(file, in);
+    } else {
+      return GameLog.parseKif(file, in);
+    }
+  }
+
+  /**
+   * Split a KIF file with one or more games concatenated. Return the byte offsets of the
+   * games, followed by contents.length, e.g., {0, contents.length} for a single game.
+   *
+   * A game starts at a header line (see KifLexer.STANDARD_ATTR and KifLexer.DATE) that
+   * follows the plays of the previous game. The comments on the last play ("*..."), the
+   * result ("まで..."), and empty lines right after the plays stay with the previous game;
+   * other lines, and the lines after them, go with the next game.
+   * Lines are found by looking for '\n', so a UTF-16 file is always one game.
+   */
+  public static int[] splitKif(byte[] contents) {
+    final int n = contents.length;
+    final String encoding = Util.guessEncoding(contents, Math.min(n, SNIFF_BYTES), n <= SNIFF_BYTES, "SHIFT-JIS");
+    int[] bounds = new int[16];
+    int numBounds = 0;
+    bounds[numBounds++] = 0;
+    if (!encoding.equals("UTF-16")) {
+      KifLexer lexer = new KifLexer(null);
+      boolean hasPlays = false;  // the current game has plays
+      int nextBegin = 0;  // where the next game starts, if a header line follows
+      boolean inNextGame = false;  // lines that go with the next game follow nextBegin
+      int lineBegin = 0;
+      while (lineBegin < n) {
+        int lineEnd = lineBegin;
+        while (lineEnd < n && contents[lineEnd] != '\n') ++lineEnd;
+        final int next = Math.min(lineEnd + 1, n);
+        if (lineEnd > lineBegin && contents[lineEnd - 1] == '\r') --lineEnd;
+
+        if (isPlayLine(contents, lineBegin, lineEnd)) {
+          hasPlays = true;
+          nextBegin = next;
+          inNextGame = false;
+        } else if (hasPlays) {
+          if (lineEnd == lineBegin || contents[lineBegin] == '*') {
+            if (!inNextGame) nextBegin = next;
+          } else {
+            String line;
+            try {
+              line = new String(contents, lineBegin, lineEnd - lineBegin, encoding);
+            } catch (UnsupportedEncodingException e) {
+              break;  // treat the rest as a part of the current game
+            }
+            final int kind = lexer.lex(line);
+            if (kind == KifLexer.SKIP) {
+              if (!inNextGame) nextBegin = next;
+            } else if (kind == KifLexer.STANDARD_ATTR || kind == KifLexer.DATE) {
+              if (numBounds == bounds.length) {
+                int[] tmp = new int[numBounds * 2];
+                System.arraycopy(bounds, 0, tmp, 0, numBounds);
+                bounds = tmp;
+              }
+              bounds[numBounds++] = nextBegin;
+              hasPlays = false;
+              inNextGame = false;
+            } else {
+              inNextGame = true;
+            }
+          }
+        }
+        lineBegin = next;
+      }
+    }
+    int[] result = new int[numBounds + 1];
+    System.arraycopy(bounds, 0, result, 0, numBounds);
+    result[numBounds] = n;
+    return result;
+  }
+
+  // Whether contents[begin, end) is a play line, as KifLexer defines it. The check is done
+  // on the bytes, since the characters that matter are all ASCII.
+  private static boolean isPlayLine(byte[] contents, int begin, int end) {
+    int i = begin;
+    while (i < end && isSpace(contents[i])) ++i;
+    final int digits = i;
+    while (i < end && contents[i] >= '0' && contents[i] <= '9') ++i;
+    if (i == digits) return false;
+    return i < end && isSpace(contents[i]);
+  }
+
+  private static boolean isSpace(byte b) {
+    return b == ' ' || b == '\t' || b == '\u000b' || b == '\f' || b == '\r';
+  }
+
+  private static String contentDigest(File file) throws IOException {
+    MessageDigest digest = newDigest();
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] buf = new byte[8192];
+      int n;
+      while ((n = in.read(buf)) > 0) digest.update(buf, 0, n);
+    } finally {
+      in.close();
+    }
+    return Util.bytesToHexText(digest.digest());
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError("MessageDigest.NoSuchAlgorithmException: " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,352 @@
+package com.ysaito.shogi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+/**
+ * Secondary indexes over a set of logs, identified by GameLog.fingerprint(): the logs of
+ * each player (black or white), tournament (GameLog.ATTR_TOURNAMENT), and opening
+ * (GameLog.ATTR_OPENING), and all the logs by date. Each index is a sorted array of the
+ * logs in the order of GameLog.SORT_BY_DATE, so a query finds its range by binary search
+ * and returns any page of it without scanning the rest. Adding or removing a log updates
+ * only the arrays the log is in. addAll() sorts each array once instead, for loading many
+ * logs at once.
+ *
+ * page() returns any page of all the logs in the order of a GameLog comparator, so that a list
+ * screen reads only the logs it shows.
+ *
+ * GameLogListManager keeps one for the logs listLogs() returns. This class is thread safe.
+ */
+public class GameLogIndex {
+  public enum Field {
+    PLAYER,
+    TOURNAMENT,
+    OPENING,
+  }
+
+  // maps fingerprint -> log
+  private final HashMap<String, GameLog> mLogs;
+
+  private final Postings mByDate;
+
+  // mPostings[field.ordinal()] maps an attribute value -> the logs that have it.
+  private final ArrayList<TreeMap<String, Postings>> mPostings;
+
+  // Set in addAll(), so that update() appends to the arrays, which are sorted on their next use.
+  private boolean mAppend;
+
+  // All the logs sorted by mSortedOrder, for page() in an order other than by date. Sorted on
+  // the first use after a change, and dropped on the next change.
+  private GameLog[] mSorted;
+  private Comparator<GameLog> mSortedOrder;
+
+  public GameLogIndex() {
+    mLogs = new HashMap<String, GameLog>();
+    mByDate = new Postings();
+    mPostings = new ArrayList<TreeMap<String, Postings>>();
+    for (int i = 0; i < Field.values().length; ++i) mPostings.add(new TreeMap<String, Postings>());
+  }
+
+  /**
+   * Add "log". It replaces the log with the same fingerprint, if any.
+   */
+  public synchronized void add(GameLog log) {
+    final String fingerprint = log.fingerprint();
+    GameLog old = mLogs.put(fingerprint, log);
+    if (old != null) updatePostings(old, false);
+    updatePostings(log, true);
+    mSorted = null;
+  }
+
+  /**
+   * Same as calling add() for each of "logs", but faster for many logs.
+   */
+  public synchronized void addAll(Collection<GameLog> logs) {
+    for (GameLog log : logs) {
+      GameLog old = mLogs.put(log.fingerprint(), log);
+      if (old != null) updatePostings(old, false);
+      mAppend = true;
+      updatePostings(log, true);
+      mAppend = false;
+    }
+    mSorted = null;
+  }
+
+  /**
+   * Remove the log with "fingerprint", if any.
+   */
+  public synchronized void remove(String fingerprint) {
+    GameLog old = mLogs.remove(fingerprint);
+    if (old != null) updatePostings(old, false);
+    mSorted = null;
+  }
+
+  /**
+   * Remove "log" if it is the log added with its fingerprint, i.e., it hasn't been replaced.
+   */
+  public synchronized void remove(GameLog log) {
+    final String fingerprint = log.fingerprint();
+    if (mLogs.get(fingerprint) == log) remove(fingerprint);
+  }
+
+  public synchronized void clear() {
+    mLogs.clear();
+    mByDate.clear();
+    for (TreeMap<String, Postings> m : mPostings) m.clear();
+    mSorted = null;
+  }
+
+  public synchronized boolean contains(String fingerprint) { return mLogs.containsKey(fingerprint); }
+
+  /** Return the log with "fingerprint", or null if there is none. */
+  public synchronized GameLog get(String fingerprint) { return mLogs.get(fingerprint); }
+
+  public synchronized int size() { return mLogs.size(); }
+
+  /** Return a newly created list of all the logs, in no particular order. */
+  public synchronized ArrayList<GameLog> logs() { return new ArrayList<GameLog>(mLogs.values()); }
+
+  /**
+   * Return the logs in the order of "order", e.g., GameLog.SORT_BY_BLACK_PLAYER, from the
+   * offset'th one up to "limit" of them. GameLog.SORT_BY_DATE reads the date index. Any other
+   * order sorts all the logs on the first call after a change, and reuses them until the
+   * next change.
+   */
+  public synchronized ArrayList<GameLog> page(Comparator<GameLog> order, int offset, int limit) {
+    ArrayList<GameLog> page = new ArrayList<GameLog>();
+    if (order == GameLog.SORT_BY_DATE) {
+      ArrayList<String> fingerprints = new ArrayList<String>();
+      mByDate.copy(offset, mByDate.size(), limit, fingerprints);
+      for (String fingerprint : fingerprints) page.add(mLogs.get(fingerprint));
+      return page;
+    }
+    if (mSorted == null || mSortedOrder != order) {
+      mSorted = mLogs.values().toArray(new GameLog[mLogs.size()]);
+      mSortedOrder = order;
+      Arrays.sort(mSorted, order);
+    }
+    final int begin = Math.max(0, offset);
+    final int end = (int)Math.min(mSorted.length, (long)begin + Math.max(0, limit));
+    for (int i = begin; i < end; ++i) page.add(mSorted[i]);
+    return page;
+  }
+
+  /**
+   * Return the distinct values of "field", sorted.
+   */
+  public synchronized ArrayList<String> values(Field field) {
+    return new ArrayList<String>(mPostings.get(field.ordinal()).keySet());
+  }
+
+  /**
+   * Return the number of logs whose "field" is "value".
+   */
+  public synchronized int count(Field field, String value) {
+    Postings p = mPostings.get(field.ordinal()).get(value);
+    return (p == null) ? 0 : p.size();
+  }
+
+  /**
+   * Return the fingerprints of the logs whose "field" is "value", oldest first, from the
+   * offset'th one up to "limit" of them.
+   */
+  public synchronized ArrayList<String> query(Field field, String value, int offset, int limit) {
+    Postings p = mPostings.get(field.ordinal()).get(value);
+    ArrayList<String> page = new ArrayList<String>();
+    if (p != null) p.copy(offset, p.size(), limit, page);
+    return page;
+  }
+
+  /**
+   * Return the number of logs dated in [fromMs, toMs).
+   */
+  public synchronized int countByDate(long fromMs, long toMs) {
+    return Math.max(0, mByDate.lowerBound(toMs) - mByDate.lowerBound(fromMs));
+  }
+
+  /**
+   * Return the fingerprints of the logs dated in [fromMs, toMs), oldest first, from the
+   * offset'th one up to "limit" of them.
+   */
+  public synchronized ArrayList<String> queryByDate(long fromMs, long toMs, int offset, int limit) {
+    ArrayList<String> page = new ArrayList<String>();
+    final int begin = mByDate.lowerBound(fromMs);
+    mByDate.copy(begin + Math.max(0, offset), mByDate.lowerBound(toMs), limit, page);
+    return page;
+  }
+
+  private void updatePostings(GameLog log, boolean add) {
+    final long date = log.getDate();
+    final String fingerprint = log.fingerprint();
+    update(mByDate, date, fingerprint, add);
+    final String black = log.attr(GameLog.ATTR_BLACK_PLAYER);
+    final String white = log.attr(GameLog.ATTR_WHITE_PLAYER);
+    update(Field.PLAYER, black, date, fingerprint, add);
+    if (white != null && !white.equals(black)) update(Field.PLAYER, white, date, fingerprint, add);
+    update(Field.TOURNAMENT, log.attr(GameLog.ATTR_TOURNAMENT), date, fingerprint, add);
+    update(Field.OPENING, log.attr(GameLog.ATTR_OPENING), date, fingerprint, add);
+  }
+
+  private void update(Field field, String value, long date, String fingerprint, boolean add) {
+    if (value == null) return;
+    TreeMap<String, Postings> m = mPostings.get(field.ordinal());
+    Postings p = m.get(value);
+    if (p == null) {
+      if (!add) return;
+      p = new Postings();
+      m.put(value, p);
+    }
+    update(p, date, fingerprint, add);
+    if (p.size() == 0) m.remove(value);
+  }
+
+  private void update(Postings p, long date, String fingerprint, boolean add) {
+    if (add && mAppend) {
+      p.append(date, fingerprint);
+    } else if (add) {
+      p.add(date, fingerprint);
+    } else {
+      p.remove(date, fingerprint);
+    }
+  }
+
+  /**
+   * Logs sorted by (date, fingerprint), the order of GameLog.SORT_BY_DATE, in parallel arrays.
+   * After append(), the arrays are sorted on the next call to any other method.
+   */
+  private static class Postings {
+    private long[] mDates = new long[4];
+    private String[] mFingerprints = new String[4];
+    private int mSize;
+    private boolean mSorted = true;
+
+    public int size() {
+      sort();
+      return mSize;
+    }
+
+    public void clear() {
+      mDates = new long[4];
+      mFingerprints = new String[4];
+      mSize = 0;
+      mSorted = true;
+    }
+
+    public void add(long date, String fingerprint) {
+      int i = find(date, fingerprint);
+      if (i >= 0) return;
+      i = -i - 1;
+      grow();
+      System.arraycopy(mDates, i, mDates, i + 1, mSize - i);
+      System.arraycopy(mFingerprints, i, mFingerprints, i + 1, mSize - i);
+      mDates[i] = date;
+      mFingerprints[i] = fingerprint;
+      ++mSize;
+    }
+
+    public void append(long date, String fingerprint) {
+      grow();
+      if (mSize > 0 && compare(mSize - 1, date, fingerprint) >= 0) mSorted = false;
+      mDates[mSize] = date;
+      mFingerprints[mSize] = fingerprint;
+      ++mSize;
+    }
+
+    private void grow() {
+      if (mSize < mDates.length) return;
+      long[] dates = new long[mSize * 2];
+      String[] fingerprints = new String[mSize * 2];
+      System.arraycopy(mDates, 0, dates, 0, mSize);
+      System.arraycopy(mFingerprints, 0, fingerprints, 0, mSize);
+      mDates = dates;
+      mFingerprints = fingerprints;
+    }
+
+    // Sort the arrays after append(), and drop the duplicates.
+    private void sort() {
+      if (mSorted) return;
+      Integer[] order = new Integer[mSize];
+      for (int i = 0; i < mSize; ++i) order[i] = i;
+      Arrays.sort(order, new Comparator<Integer>() {
+        public int compare(Integer i1, Integer i2) {
+          return Postings.this.compare(i1, mDates[i2], mFingerprints[i2]);
+        }
+      });
+      long[] dates = new long[mDates.length];
+      String[] fingerprints = new String[mDates.length];
+      int n = 0;
+      for (int i : order) {
+        if (n > 0 && dates[n - 1] == mDates[i] && fingerprints[n - 1].equals(mFingerprints[i])) continue;
+        dates[n] = mDates[i];
+        fingerprints[n] = mFingerprints[i];
+        ++n;
+      }
+      mDates = dates;
+      mFingerprints = fingerprints;
+      mSize = n;
+      mSorted = true;
+    }
+
+    // Compare the i'th log with (date, fingerprint).
+    private int compare(int i, long date, String fingerprint) {
+      if (mDates[i] != date) return (mDates[i] < date) ? -1 : 1;
+      return mFingerprints[i].compareTo(fingerprint);
+    }
+
+    public void remove(long date, String fingerprint) {
+      final int i = find(date, fingerprint);
+      if (i < 0) return;
+      System.arraycopy(mDates, i + 1, mDates, i, mSize - i - 1);
+      System.arraycopy(mFingerprints, i + 1, mFingerprints, i, mSize - i - 1);
+      --mSize;
+      mFingerprints[mSize] = null;
+    }
+
+    // Return the index of (date, fingerprint), or (-(insertion point) - 1) if it isn't found,
+    // like Arrays.binarySearch().
+    private int find(long date, String fingerprint) {
+      sort();
+      int lo = 0;
+      int hi = mSize;
+      while (lo < hi) {
+        final int mid = (lo + hi) >>> 1;
+        final int cmp = compare(mid, date, fingerprint);
+        if (cmp == 0) return mid;
+        if (cmp < 0) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      return -lo - 1;
+    }
+
+    // Return the index of the first log dated at or after "date".
+    public int lowerBound(long date) {
+      sort();
+      int lo = 0;
+      int hi = mSize;
+      while (lo < hi) {
+        final int mid = (lo + hi) >>> 1;
+        if (mDates[mid] < date) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      return lo;
+    }
+
+    // Add the fingerprints of [begin, end), up to "limit" of them, to "out".
+    public void copy(int begin, int end, int limit, ArrayList<String> out) {
+      sort();
+      if (begin < 0) begin = 0;
+      end = Math.min(end, (int)Math.min((long)begin + Math.max(0, limit), Integer.MAX_VALUE));
+      for (int i = begin; i < end; ++i) out.add(mFingerprints[i]);
+    }
+  }
+}
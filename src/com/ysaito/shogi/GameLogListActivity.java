@@ -4,7 +4,9 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.GregorianCalendar;
+import java.util.HashSet;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -25,7 +27,8 @@ import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.ListView;
 
 /**
- * Activity that lists available game logs.
+ * Activity that lists available game logs. Started by startPositionSearch(), it lists only
+ * the logs that reached the given position.
  *
  */
 public class GameLogListActivity extends GenericListActivity<GameLog> {
@@ -33,16 +36,31 @@ public class GameLogListActivity extends GenericListActivity<GameLog> {
   private GameLogListManager mGameLogList;
 
   private GameLogListManager.Mode mMode;
+
+  // The Board.hashKey() of the position to search for, or null to list every log.
+  private Long mPositionKey;
+
+  /**
+   * Start an activity that lists the logs that reached "board" with "nextPlayer" to move.
+   */
+  public static void startPositionSearch(Activity activity, Board board, Player nextPlayer) {
+    Intent intent = new Intent(activity, GameLogListActivity.class);
+    intent.putExtra("position_key", board.hashKey(nextPlayer));
+    activity.startActivity(intent);
+  }
   
   @Override
   public void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
     mGameLogList = GameLogListManager.getInstance();
+    if (getIntent().hasExtra("position_key")) {
+      mPositionKey = getIntent().getLongExtra("position_key", 0);
+    }
     
     initialize(
           null, /* no cache */
           0,    /* no cache */
-          getResources().getString(R.string.game_logs),
+          getResources().getString((mPositionKey != null) ? R.string.find_position : R.string.game_logs),
           new GameLog[0]);
     setSorter(GameLog.SORT_BY_DATE);
     
@@ -97,10 +115,33 @@ public class GameLogListActivity extends GenericListActivity<GameLog> {
   @Override
   public int numStreams() { return 1; }
 
+  // Only a position search reads the logs as a stream. The list of all the logs is paged.
   @Override
   public GameLog[] readNthStream(int index) throws Throwable {
     Collection<GameLog> list = mGameLogList.listLogs(this, mMode);
-    return list.toArray(new GameLog[0]);
+    HashSet<String> found = new HashSet<String>();
+    for (PositionIndex.Match m : mGameLogList.findPosition(this, mPositionKey)) found.add(m.fingerprint);
+    ArrayList<GameLog> matches = new ArrayList<GameLog>();
+    for (GameLog log : list) {
+      if (found.contains(log.fingerprint())) matches.add(log);
+    }
+    return matches.toArray(new GameLog[0]);
+  }
+
+  @Override
+  protected PagedSource<GameLog> pagedSource() {
+    if (mPositionKey != null) return null;
+    return new PagedSource<GameLog>() {
+      public int count() {
+        return mGameLogList.scanLogs(GameLogListActivity.this, mMode);
+      }
+
+      public GameLog[] read(Comparator<GameLog> sorter, int offset, int limit) {
+        if (sorter == null) sorter = GameLog.SORT_BY_DATE;
+        ArrayList<GameLog> page = mGameLogList.listLogs(GameLogListActivity.this, sorter, offset, limit);
+        return page.toArray(new GameLog[page.size()]);
+      }
+    };
   }
   
   @Override 
@@ -114,10 +155,51 @@ public class GameLogListActivity extends GenericListActivity<GameLog> {
       Log.d(TAG, "Invalid item click: " + position);
       return;
     }
-    Intent intent = new Intent(this, ReplayGameActivity.class);
+    replayGame(this, log);
+  }
+
+  /**
+   * Start an activity to replay "log", which was listed by GameLogListManager.
+   */
+  static void replayGame(Activity activity, GameLog log) {
+    if (log.hasPlays()) {
+      startReplay(activity, log);
+    } else {
+      new ReplayGameTask(activity).execute(log);
+    }
+  }
+
+  private static void startReplay(Activity activity, GameLog log) {
+    Intent intent = new Intent(activity, ReplayGameActivity.class);
     Serializable ss = log;
     intent.putExtra("gameLog", ss);
-    startActivity(intent);
+    activity.startActivity(intent);
+  }
+
+  /**
+   * Read the plays of a log listed by GameLogListManager, which has only the header,
+   * then start an activity to replay the game.
+   */
+  private static class ReplayGameTask extends AsyncTask<GameLog, String, GameLog> {
+    private final Activity mActivity;
+    private String mError;
+    ReplayGameTask(Activity a) { mActivity = a; }
+
+    @Override
+    protected GameLog doInBackground(GameLog... log) {
+      try {
+        return GameLogListManager.getInstance().readPlays(log[0]);
+      } catch (Throwable e) {
+        mError = "Failed to read log: " + e.getMessage();
+        return null;
+      }
+    }
+
+    @Override
+    protected void onPostExecute(GameLog log) {
+      if (mError != null) Util.showErrorDialog(mActivity, mError);
+      if (log != null) startReplay(mActivity, log);
+    }
   }
 
   @Override protected Dialog onCreateDialog(int id) {
@@ -137,10 +219,14 @@ public class GameLogListActivity extends GenericListActivity<GameLog> {
     MenuInflater inflater = getMenuInflater();
     inflater.inflate(R.menu.game_log_list_context_menu, menu);
     GameLog log = getObjectAtPosition(((AdapterView.AdapterContextMenuInfo)menuInfo).position);
+    if (log == null) return;  // not read yet
     
     if (log.path() != null) {
       menu.findItem(R.id.game_log_list_save_in_sdcard).setEnabled(false);
     }
+    if (log.isInCollection()) {
+      menu.findItem(R.id.game_log_list_delete_log).setEnabled(false);
+    }
   }  
 
   private Menu mOptionsMenu;
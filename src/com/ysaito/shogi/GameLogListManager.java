@@ -7,21 +7,34 @@ import android.preference.PreferenceManager;
 import android.util.Log;
 import android.widget.Toast;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * 
@@ -46,15 +59,70 @@ public class GameLogListManager {
     public final GameLog log;
   }
 
+  // The file the summary was saved in by older versions, as a serialized LogList. It is
+  // converted to the journal on the first read.
   private static String SUMMARY_PATH = "log_summary";
 
+  // The journal of the summary. See LogList.
+  private static String JOURNAL_PATH = "log_journal";
+
+  // The directory of the PositionIndex of the logs in mIndex.
+  private static String POSITION_INDEX_PATH = "position_index";
+
+  // The file of the OpeningTree of the logs in mIndex.
+  private static String OPENING_TREE_PATH = "opening_tree";
+
   public enum Mode {
     READ_SDCARD_SUMMARY,
     RESET_SDCARD_SUMMARY,
   }
 
   private GameLogListManager() { }
+
+  // The summary, read on the first use, and its journal.
+  private LogList mSummary;
+  private Journal mJournal;
+
+  // The index of the logs returned by listLogs(), i.e., the logs in mSummary and in the
+  // archives in mArchiveLogs.
+  private final GameLogIndex mIndex = new GameLogIndex();
+
+  // Compacts mJournal in the background. Created on the first compaction.
+  private ExecutorService mCompactionThread;
+
+  // The positions of the logs in mIndex, and their opening statistics, opened on the first use.
+  // Guarded by mPositionsLock, not by this object, so that findPosition() and openingStats()
+  // don't wait for listLogs().
+  private PositionIndex mPositions;
+  private OpeningTree mOpenings;
+  private final Object mPositionsLock = new Object();
+
+  // Indexes the positions of new logs in the background. Created by the first listLogs().
+  private ExecutorService mPositionThread;
+
+  /**
+   * Maximum number of logs kept by readPlays().
+   */
+  private static final int MAX_CACHED_PLAYS = 8;
+
+  // maps gamelog fingerprint -> gamelog with plays, in the order of access
+  @SuppressWarnings("serial")
+  private final LinkedHashMap<String, GameLog> mCachedPlays =
+    new LinkedHashMap<String, GameLog>(MAX_CACHED_PLAYS * 2, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, GameLog> eldest) {
+        return size() > MAX_CACHED_PLAYS;
+      }
+    };
   
+  // maps the absolute path of a GameLogArchive in summary.files -> the archive, opened on the
+  // first use. Closed when the file changes.
+  private final HashMap<String, GameLogArchive> mArchives = new HashMap<String, GameLogArchive>();
+
+  // maps the absolute path of a GameLogArchive in summary.files -> the headers of its games,
+  // read by the first listLogs() after the archive was opened.
+  private final HashMap<String, GameLog[]> mArchiveLogs = new HashMap<String, GameLog[]>();
+
   private static GameLogListManager mSingletonInstance;
   public static synchronized GameLogListManager getInstance() {
     if (mSingletonInstance == null) {
@@ -64,88 +132,566 @@ public class GameLogListManager {
   }
 
   /**
-   * Find all the in-memory and in-sdcard game logs
-   * 
+   * Find all the in-memory and in-sdcard game logs. With Mode.RESET_SDCARD_SUMMARY, every
+   * directory is listed and every file is checked for changes by its contents, but the files
+   * whose contents haven't changed are still not parsed again.
+   *
+   * The logs in a GameLogArchive aren't kept in the summary; their headers are read from
+   * the archive when it is opened. A game that is also in another file is listed once.
    */
   public synchronized Collection<GameLog> listLogs(
       Context context, 
       Mode mode) {
+    scanLogs(context, mode);
+    return mIndex.logs();
+  }
+
+  /**
+   * Same as listLogs(), but return only the number of logs found. Their pages are read by
+   * listLogs(Context, Comparator, int, int), so that a list of many logs isn't copied at once.
+   */
+  public synchronized int scanLogs(Context context, Mode mode) {
     LogList summary = readSummary(context);
-    if (mode == Mode.RESET_SDCARD_SUMMARY) {
-      removeLogsInSdCard(summary);
+    HashMap<String, GameLog> parsed = new HashMap<String, GameLog>();
+    scanDirectories(new File[]{ new File("/sdcard/download"), getLogDir(context) },
+                    summary, mode == Mode.RESET_SDCARD_SUMMARY, parsed);
+    writeSummary(context, summary);
+    syncArchives(summary);
+    updatePositions(context, parsed);
+    return mIndex.size();
+  }
+
+  /**
+   * Return the logs found by the last listLogs() or scanLogs() in the order of "order", one of
+   * the GameLog.SORT_BY_* comparators, from the offset'th one up to "limit" of them. This
+   * method doesn't scan the directories. See GameLogIndex.page().
+   */
+  public ArrayList<GameLog> listLogs(Context context, Comparator<GameLog> order, int offset, int limit) {
+    return getIndex(context).page(order, offset, limit);
+  }
+
+  /**
+   * Return the games listed by listLogs() that reached the position whose Board.hashKey()
+   * is "positionKey". The positions of the logs found by listLogs() are indexed in the
+   * background, so a game listed only recently may not be found yet. This method doesn't
+   * wait for listLogs(), and may be called concurrently with the other methods.
+   */
+  public ArrayList<PositionIndex.Match> findPosition(Context context, long positionKey) {
+    ArrayList<PositionIndex.Match> matches = new ArrayList<PositionIndex.Match>();
+    for (PositionIndex.Match m : positionIndex(context).find(positionKey)) {
+      // The index still has the logs deleted since its last merge.
+      if (mIndex.contains(m.fingerprint)) matches.add(m);
     }
-    
-    long scanStartTimeMs = System.currentTimeMillis();
-    scanDirectory(new File("/sdcard/download"), summary);
-    scanDirectory(getLogDir(context), summary);
+    return matches;
+  }
 
-    // TODO: don't write the summary if it hasn't changed.
-    summary.lastScanTimeMs = scanStartTimeMs;
-    writeSummary(context, summary);
+  /**
+   * Return the statistics of the plays made from the position whose Board.hashKey() is
+   * "positionKey" in the games listed by listLogs(), the most frequent play first. Like
+   * findPosition(), the statistics are updated in the background, and this method may be
+   * called concurrently with the other methods.
+   */
+  public ArrayList<OpeningTree.Stats> openingStats(Context context, long positionKey) {
+    ArrayList<OpeningTree.Stats> stats = openingTree(context).find(positionKey);
+    for (int i = 0; i < stats.size(); ++i) {
+      OpeningTree.Stats s = stats.get(i);
+      // The example may have been deleted since the statistics were last updated.
+      if (s.example != null && !mIndex.contains(s.example)) {
+        stats.set(i, new OpeningTree.Stats(s.play, s.games, s.blackWins, s.whiteWins, s.draws, null));
+      }
+    }
+    return stats;
+  }
+
+  private OpeningTree openingTree(Context context) {
+    synchronized (mPositionsLock) {
+      if (mOpenings == null) {
+        try {
+          mOpenings = OpeningTree.read(new File(context.getFilesDir(), OPENING_TREE_PATH));
+        } catch (IOException e) {
+          // Missing or corrupt. Rebuilt by the next listLogs().
+          mOpenings = new OpeningTree();
+        }
+      }
+      return mOpenings;
+    }
+  }
+
+  private PositionIndex positionIndex(Context context) {
+    synchronized (mPositionsLock) {
+      if (mPositions == null) {
+        mPositions = new PositionIndex(new File(context.getFilesDir(), POSITION_INDEX_PATH));
+      }
+      return mPositions;
+    }
+  }
+
+  // Index the positions of the logs in mIndex, and update their opening statistics, in the
+  // background. The logs that are already indexed or counted are skipped. "parsed" maps the
+  // fingerprints of the logs just parsed by scanDirectories() -> the logs with their plays,
+  // so that they aren't read again. The other logs are read by readPlays().
+  private void updatePositions(final Context context, HashMap<String, GameLog> parsed) {
+    final PositionIndex positions = positionIndex(context);
+    final OpeningTree openings = openingTree(context);
+    final ArrayList<GameLog> logs = mIndex.logs();
+    for (int i = 0; i < logs.size(); ++i) {
+      GameLog full = parsed.get(logs.get(i).fingerprint());
+      if (full != null) logs.set(i, full);
+    }
+    if (mPositionThread == null) mPositionThread = Executors.newSingleThreadExecutor();
+    mPositionThread.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          PositionIndex.PlayReader reader = new PositionIndex.PlayReader() {
+            @Override
+            public GameLog readPlays(GameLog log) throws IOException, ParseException {
+              return GameLogListManager.this.readPlays(log, false);
+            }
+          };
+          try {
+            positions.add(logs, reader, numParseThreads());
+            if (positions.needsMerge()) positions.merge(mIndex);
+          } catch (IOException e) {
+            Log.d(TAG, POSITION_INDEX_PATH + ": " + e.getMessage());
+          }
 
-    return summary.logs.values();
+          boolean changed = false;
+          for (String fingerprint : openings.fingerprints()) {
+            if (!mIndex.contains(fingerprint)) {
+              openings.remove(fingerprint);
+              changed = true;
+            }
+          }
+          if (openings.addAll(logs, reader, numParseThreads()) > 0) changed = true;
+          if (changed) {
+            try {
+              openings.write(new File(context.getFilesDir(), OPENING_TREE_PATH));
+            } catch (IOException e) {
+              Log.d(TAG, OPENING_TREE_PATH + ": " + e.getMessage());
+            }
+          }
+        } catch (Throwable e) {
+          // A bug here must not take the app down; the next call retries what is left.
+          Log.d(TAG, "Failed to index positions: " + Util.throwableToString(e));
+        }
+      }
+    });
   }
 
-  private void removeLogsInSdCard(LogList summary) {
-    summary.lastScanTimeMs = -1;
-    ArrayList<String> to_remove = new ArrayList<String>();
+  /**
+   * Return the index of the logs returned by listLogs(). It is updated as logs are listed,
+   * saved, and deleted.
+   */
+  public synchronized GameLogIndex getIndex(Context context) {
+    readSummary(context);
+    return mIndex;
+  }
+
+  // Read the headers of the archives in summary.files that haven't been read, and add the
+  // games of every archive that aren't in mIndex, i.e., in the summary or in an archive that
+  // comes earlier, to mIndex. A game removed from the summary comes back from an archive here.
+  private void syncArchives(LogList summary) {
+    ArrayList<String> paths = new ArrayList<String>();
+    for (String path : summary.files.keySet()) {
+      if (GameLogArchive.isArchive(path)) paths.add(path);
+    }
+    Collections.sort(paths);
+    for (String path : paths) {
+      GameLog[] headers = mArchiveLogs.get(path);
+      if (headers == null) {
+        GameLogArchive archive;
+        try {
+          archive = archive(new File(path));
+        } catch (IOException e) {
+          Log.d(TAG, path + ": " + e.getMessage());
+          continue;
+        }
+        headers = new GameLog[archive.numGames()];
+        for (int i = 0; i < headers.length; ++i) headers[i] = archive.header(i);
+        mArchiveLogs.put(path, headers);
+      }
+      ArrayList<GameLog> toAdd = new ArrayList<GameLog>();
+      HashSet<String> seen = new HashSet<String>();
+      for (GameLog h : headers) {
+        final String fingerprint = h.fingerprint();
+        if (!mIndex.contains(fingerprint) && seen.add(fingerprint)) toAdd.add(h);
+      }
+      mIndex.addAll(toAdd);
+    }
+  }
+
+  // Forget the archive "path", which has changed or has been removed.
+  private void closeArchive(String path) {
+    synchronized (mArchives) {
+      mArchives.remove(path);
+    }
+    GameLog[] headers = mArchiveLogs.remove(path);
+    if (headers != null) {
+      for (GameLog h : headers) mIndex.remove(h);
+    }
+  }
+
+  // Return the archive "path", opening it if needed.
+  private GameLogArchive archive(File path) throws IOException {
+    final String key = path.getAbsolutePath();
+    synchronized (mArchives) {
+      GameLogArchive archive = mArchives.get(key);
+      if (archive == null) {
+        archive = GameLogArchive.open(path);
+        mArchives.put(key, archive);
+      }
+      return archive;
+    }
+  }
+
+  /**
+   * Bring the logs of the files under "dirs" in "summary" up to date with the filesystem.
+   *
+   * A directory whose modification time hasn't changed since it was last listed isn't listed
+   * again, and a file whose size and modification time haven't changed isn't read again,
+   * unless "verifyAll". A file that is read but whose contents haven't changed isn't parsed
+   * again. The files to parse are parsed in parallel, and the results are merged in the
+   * order the files were listed, so a game found in more than one file always comes from
+   * the last one. The logs parsed, with their plays, are added to "parsed", keyed by
+   * fingerprint.
+   */
+  private void scanDirectories(File[] dirs, LogList summary, boolean verifyAll, Map<String, GameLog> parsed) {
+    final long scanStartTimeMs = System.currentTimeMillis();
+
+    // Stage 1: stat the files, and find those that may have changed.
+    HashSet<String> scannedDirs = new HashSet<String>();
+    HashSet<String> present = new HashSet<String>();
+    ArrayList<File> files = new ArrayList<File>();
+    ArrayList<FileState> states = new ArrayList<FileState>();
+    for (File dir : dirs) {
+      final String dirPath = dir.getAbsolutePath();
+      scannedDirs.add(dirPath);
+      for (File child : listFiles(dir, summary, verifyAll, scanStartTimeMs)) {
+        final String path = child.getAbsolutePath();
+        final long lastModified = child.lastModified();
+        if (lastModified == 0) continue;  // deleted since listed
+        final long size = child.length();
+        present.add(path);
+        FileState s = summary.files.get(path);
+        if (GameLogArchive.isArchive(path)) {
+          // An archive isn't parsed. Its games are read from the archive by listLogs().
+          if (s == null || verifyAll || !s.isClean(size, lastModified)) {
+            summary.putFile(path, new FileState(size, lastModified, scanStartTimeMs, null, NO_LOGS));
+            closeArchive(path);
+          }
+          continue;
+        }
+        if (s == null || verifyAll || !s.isClean(size, lastModified)) {
+          files.add(child);
+          states.add(new FileState(size, lastModified, scanStartTimeMs,
+                                   (s == null) ? null : s.contentDigest, (s == null) ? NO_LOGS : s.logFingerprints));
+        }
+      }
+    }
+    for (String dirPath : new ArrayList<String>(summary.dirs.keySet())) {
+      if (!scannedDirs.contains(dirPath)) summary.removeDir(dirPath);
+    }
+    for (String path : new ArrayList<String>(summary.files.keySet())) {
+      if (!present.contains(path)) summary.removeFile(path);
+    }
+    for (String path : new ArrayList<String>(mArchiveLogs.keySet())) {
+      if (!present.contains(path)) closeArchive(path);
+    }
+    synchronized (mArchives) {
+      mArchives.keySet().retainAll(present);
+    }
+    pruneLogs(summary);
+
+    // A file whose log was pruned above because a deleted file had the same game must be
+    // parsed again.
+    HashMap<String, Integer> indexes = new HashMap<String, Integer>();
+    for (int i = 0; i < files.size(); ++i) indexes.put(files.get(i).getAbsolutePath(), i);
+    ArrayList<String> lost = new ArrayList<String>();
+    for (Map.Entry<String, FileState> e : summary.files.entrySet()) {
+      for (String fingerprint : e.getValue().logFingerprints) {
+        if (!summary.logs.containsKey(fingerprint)) {
+          lost.add(e.getKey());
+          break;
+        }
+      }
+    }
+    Collections.sort(lost);
+    for (String path : lost) {
+      Integer i = indexes.get(path);
+      if (i != null) {
+        states.get(i).contentDigest = null;
+      } else {
+        FileState s = summary.files.get(path);
+        files.add(new File(path));
+        states.add(new FileState(s.size, s.lastModified, s.checkedAtMs, null, NO_LOGS));
+      }
+    }
+
+    // Stage 2: read the files, and parse those whose contents have changed.
+    String[] contentDigests = new String[files.size()];
+    for (int i = 0; i < contentDigests.length; ++i) contentDigests[i] = states.get(i).contentDigest;
+    ParseResult[] results = parseFiles(files, contentDigests, numParseThreads());
+    for (int i = 0; i < results.length; ++i) {
+      mergeResult(results[i], states.get(i), summary, parsed);
+    }
+  }
+
+  // Return the files to stat in "dir", sorted by name. List the directory only if it may have
+  // changed since the last listing; otherwise use the files in summary.files.
+  private static ArrayList<File> listFiles(File dir, LogList summary, boolean verifyAll, long nowMs) {
+    final String dirPath = dir.getAbsolutePath();
+    final long lastModified = dir.lastModified();
+    final Long listedLastModified = summary.dirs.get(dirPath);
+    ArrayList<File> files = new ArrayList<File>();
+    if (!verifyAll && listedLastModified != null && listedLastModified == lastModified) {
+      ArrayList<String> paths = new ArrayList<String>();
+      for (String path : summary.files.keySet()) {
+        if (dirPath.equals(new File(path).getParent())) paths.add(path);
+      }
+      Collections.sort(paths);
+      for (String path : paths) files.add(new File(path));
+      return files;
+    }
+    listChangedFiles(dir, -1, files);
+
+    // A file created within the resolution of the modification time after the listing doesn't
+    // change the modification time, so remember only a modification time that is old enough.
+    if (lastModified != 0 && lastModified < nowMs - MTIME_RESOLUTION_MS) {
+      summary.putDir(dirPath, lastModified);
+    } else {
+      summary.removeDir(dirPath);
+    }
+    return files;
+  }
+
+  // Remove the logs of files that no longer exist or no longer contain the log.
+  private static void pruneLogs(LogList summary) {
+    ArrayList<String> toRemove = new ArrayList<String>();
     for (Map.Entry<String, GameLog> e : summary.logs.entrySet()) {
-      if (e.getValue().path() != null) {
-        to_remove.add(e.getKey());
+      File path = e.getValue().path();
+      if (path == null) continue;
+      FileState s = summary.files.get(path.getAbsolutePath());
+      if (s == null || !s.hasLog(e.getKey())) toRemove.add(e.getKey());
+    }
+    for (String key : toRemove) summary.removeLog(key);
+  }
+
+  // Record the result "r" of reading a file whose new state is "s", and add its logs to "parsed".
+  private static void mergeResult(ParseResult r, FileState s, LogList summary, Map<String, GameLog> parsed) {
+    final String path = r.file.getAbsolutePath();
+    final FileState old = summary.files.get(path);
+    if (r.contentDigest == null) {
+      // The file couldn't be read. Keep its logs, and record a size that no file has, so that
+      // the next scan reads it again.
+      Log.d(TAG, path + ": " + r.error);
+      summary.putFile(path, new FileState(-1, s.lastModified, s.checkedAtMs, null,
+                                          (old == null) ? NO_LOGS : old.logFingerprints));
+      return;
+    }
+    if (!r.unchanged) {
+      s.contentDigest = r.contentDigest;
+      s.logFingerprints = new String[r.logs.size()];
+      for (int i = 0; i < s.logFingerprints.length; ++i) {
+        final GameLog log = r.logs.get(i);
+        s.logFingerprints[i] = log.fingerprint();
+        summary.putLog(log);
+        parsed.put(log.fingerprint(), log);
+      }
+      if (r.error != null) Log.d(TAG, path + ": " + r.error);
+
+      // Remove the logs that were read from the file but are no longer in it. A log read from
+      // another file is kept. If another file also has a log removed here, the next scan
+      // parses that file again; see scanDirectories().
+      if (old != null) {
+        for (String fingerprint : old.logFingerprints) {
+          if (s.hasLog(fingerprint)) continue;
+          final GameLog log = summary.logs.get(fingerprint);
+          if (log != null && log.path() != null && log.path().getAbsolutePath().equals(path)) {
+            summary.removeLog(fingerprint);
+          }
+        }
       }
     }
-    for (String key : to_remove) {
-      summary.logs.remove(key);
+    summary.putFile(path, s);
+  }
+
+  /**
+   * The outcome of reading one file. Unless "unchanged", "logs" has the games found in the
+   * file, and "error" explains why the file, or some of the games in it, couldn't be read.
+   * At least one of them is non-empty.
+   */
+  public static class ParseResult {
+    public ParseResult(File f, String cd, boolean u, ArrayList<GameLog> l, String e) {
+      file = f;
+      contentDigest = cd;
+      unchanged = u;
+      logs = l;
+      error = e;
     }
+    public final File file;
+
+    // The SHA-1 digest of the contents of the file, or null if the file couldn't be read.
+    public final String contentDigest;
+
+    // The file has the content digest passed to parseFiles, so it wasn't parsed.
+    public final boolean unchanged;
+
+    public final ArrayList<GameLog> logs;
+    public final String error;
   }
 
-  private void scanDirectory(File downloadDir, LogList summary) {
-    String[] files = downloadDir.list(new FilenameFilter(){
+  /**
+   * Maximum number of threads used to parse files in scanDirectories.
+   */
+  public static final int MAX_PARSE_THREADS = 4;
+
+  /**
+   * Add the files in "dir" that may contain games (see GameLogImporter.canImport() and
+   * GameLogArchive.isArchive()) modified at or after "sinceMs" to "files", sorted by name.
+   */
+  public static void listChangedFiles(File dir, long sinceMs, ArrayList<File> files) {
+    String[] basenames = dir.list(new FilenameFilter(){
       @Override
       public boolean accept(File dir, String filename) {
-        return isHtml(filename) || isKif(filename);
+        return GameLogImporter.canImport(filename) || GameLogArchive.isArchive(filename);
       }
     });
+    if (basenames == null) return;
 
-    if (files == null) return;
-    
-    for (String basename: files) {
-      File child = new File(downloadDir, basename);
-      try {
-        InputStream in = null;
+    // Sort so that when two files contain the same game, the same one wins in every scan.
+    Arrays.sort(basenames);
+    for (String basename : basenames) {
+      File child = new File(dir, basename);
+      if (child.lastModified() >= sinceMs) files.add(child);
+    }
+  }
+
+  /**
+   * Parse "files" using up to "numThreads" threads. The i'th result is for files.get(i),
+   * regardless of the order in which the files are parsed.
+   */
+  public static ParseResult[] parseFiles(List<File> files, int numThreads) {
+    return parseFiles(files, new String[files.size()], numThreads);
+  }
+
+  /**
+   * Same as parseFiles(files, numThreads), except that files.get(i) isn't parsed if the
+   * SHA-1 digest of its contents is knownDigests[i]. knownDigests[i] may be null.
+   */
+  public static ParseResult[] parseFiles(
+      final List<File> files, final String[] knownDigests, int numThreads) {
+    ParseResult[] results = new ParseResult[files.size()];
+    if (numThreads <= 1 || files.size() <= 1) {
+      for (int i = 0; i < results.length; ++i) results[i] = parseFile(files.get(i), knownDigests[i]);
+      return results;
+    }
+
+    ArrayList<Callable<ParseResult>> tasks = new ArrayList<Callable<ParseResult>>(files.size());
+    for (int i = 0; i < results.length; ++i) {
+      final int index = i;
+      tasks.add(new Callable<ParseResult>() {
+        @Override
+        public ParseResult call() {
+          return parseFile(files.get(index), knownDigests[index]);
+        }
+      });
+    }
+    ExecutorService threads = Executors.newFixedThreadPool(Math.min(numThreads, files.size()));
+    try {
+      List<Future<ParseResult>> futures = threads.invokeAll(tasks);
+      for (int i = 0; i < results.length; ++i) {
         try {
-          if (child.lastModified() >= summary.lastScanTimeMs) {
-            in = new FileInputStream(child);
-            GameLog log = null;
-            if (isHtml(basename)) {
-              log = GameLog.parseHtml(child, in);
-            } else {
-              log = GameLog.parseKif(child, in);
-            }
-            if (log != null) {
-              summary.logs.put(log.digest(), log);
-            }
-          }
-        } finally {
-          if (in != null) in.close();
+          results[i] = futures.get(i).get();
+        } catch (ExecutionException e) {
+          results[i] = new ParseResult(files.get(i), null, false, new ArrayList<GameLog>(),
+                                       Util.throwableToString(e.getCause()));
+        }
+      }
+    } catch (InterruptedException e) {
+      // Report the files that weren't parsed as failures.
+      for (int i = 0; i < results.length; ++i) {
+        if (results[i] == null) {
+          results[i] = new ParseResult(files.get(i), null, false, new ArrayList<GameLog>(), "Interrupted");
         }
-      } catch (IOException e) {
-        Log.d(TAG, child.getAbsolutePath() + ": I/O error: " + e.getMessage()); 
-      } catch (ParseException e) {
-        Log.d(TAG, child.getAbsolutePath() + ": KIF parse: " + e.getMessage());           
       }
+      Thread.currentThread().interrupt();
+    } finally {
+      threads.shutdownNow();
+    }
+    return results;
+  }
+
+  private static ParseResult parseFile(File file, String knownDigest) {
+    ArrayList<GameLog> logs = new ArrayList<GameLog>();
+    ArrayList<String> errors = new ArrayList<String>();
+    String digest;
+    try {
+      digest = GameLogImporter.readGames(file, knownDigest, logs, errors);
+    } catch (IOException e) {
+      return new ParseResult(file, null, false, logs, "I/O error: " + e.getMessage());
+    } catch (RuntimeException e) {
+      // Reported like a failure in a thread of parseFiles(), so that one file can't stop the scan.
+      return new ParseResult(file, null, false, new ArrayList<GameLog>(), Util.throwableToString(e));
     }
+    if (digest.equals(knownDigest)) return new ParseResult(file, digest, true, logs, null);
+    if (logs.isEmpty() && errors.isEmpty()) errors.add("No game found");
+    return new ParseResult(file, digest, false, logs, errors.isEmpty() ? null : errors.get(0));
+  }
+
+  private static int numParseThreads() {
+    return Math.min(Runtime.getRuntime().availableProcessors(), MAX_PARSE_THREADS);
+  }
+
+  /**
+   * Return "log" with its plays. listLogs() returns headers (see GameLog.header()) for the
+   * logs in the sdcard; their plays are read from the file here. The last MAX_CACHED_PLAYS
+   * logs read are cached, except those in a GameLogArchive, which are read from its mapping
+   * without parsing. This method may be called concurrently with the other methods.
+   *
+   * @throws ParseException if the file no longer contains a game.
+   */
+  public GameLog readPlays(GameLog log) throws IOException, ParseException {
+    return readPlays(log, true);
+  }
+
+  // Same as readPlays(log), but the log read is cached only if "cache".
+  private GameLog readPlays(GameLog log, boolean cache) throws IOException, ParseException {
+    if (log.hasPlays()) return log;
+    if (GameLogArchive.isArchive(log.path().getName())) {
+      GameLogArchive archive = archive(log.path());
+      final int index = archive.indexOf(log);
+      if (index < 0) throw new ParseException(log.path().getAbsolutePath() + ": game not found");
+      GameLog full = archive.read(index);
+      if (!full.fingerprint().equals(log.fingerprint())) {
+        Log.d(TAG, log.path().getAbsolutePath() + ": changed since listed");
+      }
+      return full;
+    }
+    synchronized (mCachedPlays) {
+      GameLog cached = mCachedPlays.get(log.fingerprint());
+      if (cached != null) return cached;
+    }
+    GameLog full = GameLogImporter.readGame(log);
+    if (!full.fingerprint().equals(log.fingerprint())) {
+      Log.d(TAG, log.path().getAbsolutePath() + ": changed since listed");
+    }
+    if (cache) {
+      synchronized (mCachedPlays) {
+        mCachedPlays.put(log.fingerprint(), full);
+      }
+    }
+    return full;
   }
 
   /**
    * Add a new game "log" in memory. 
    */
-  public void saveLogInMemory(
+  public synchronized void saveLogInMemory(
       Activity activity,
       GameLog log) {
     LogList summary = readSummary(activity);
-    if (summary == null) summary = new LogList();
-    summary.logs.put(log.digest(), log);
+    summary.putLog(log);
     writeSummary(activity, summary);
     showToast(activity, activity.getResources().getString(R.string.saved_game_log_in_memory));
   }
@@ -153,7 +699,7 @@ public class GameLogListManager {
   /**
    * Add game "log" in sdcard. If "log" is in memory, it is removed from memory.
    */
-  public void saveLogInSdcard(
+  public synchronized void saveLogInSdcard(
       Activity activity,
       GameLog log) {
     File logFile = new File(getLogDir(activity), log.digest() + ".kif");
@@ -163,10 +709,8 @@ public class GameLogListManager {
       // Remove the in-memory log from the summary. The sdcard version of the log 
       // will be added back in ListLogs later.
       LogList summary = readSummary(activity);
-      if (summary != null) {
-        summary.logs.remove(log.digest());
-        writeSummary(activity, summary);
-      }
+      summary.removeLog(log.fingerprint());
+      writeSummary(activity, summary);
       
       showToast(activity, String.format(activity.getResources().getString(R.string.saved_log_in_sdcard), logFile.getAbsolutePath()));
     } catch (IOException e) {
@@ -188,11 +732,46 @@ public class GameLogListManager {
   }
   
   /**
+   * Return the summary, reading it from the journal on the first call.
    * 
-   * TODO this method assumes that context.openFileInput(path) opens the same file for a given path for any value of "context".
+   * TODO this method assumes that context.getFilesDir() returns the same directory for any value of "context".
    */
   private LogList readSummary(Context context) {
+    if (mSummary != null) return mSummary;
+    final File journalFile = new File(context.getFilesDir(), JOURNAL_PATH);
     LogList summary = new LogList();
+    mJournal = new Journal(journalFile);
+    summary.setJournal(mJournal);
+    try {
+      for (Map.Entry<String, byte[]> e : mJournal.read().entrySet()) {
+        summary.load(e.getKey(), e.getValue());
+      }
+    } catch (IOException e) {
+      Log.d(TAG, JOURNAL_PATH + ": IOException: " + e.getMessage());
+      summary = new LogList();
+      journalFile.delete();
+      mJournal = new Journal(journalFile);
+      summary.setJournal(mJournal);
+    }
+    mIndex.clear();
+    mIndex.addAll(summary.logs.values());
+    summary.setIndex(mIndex);
+
+    // Convert the summary saved by an older version.
+    LogList oldSummary = readOldSummary(context);
+    if (oldSummary != null) {
+      for (GameLog log : oldSummary.logs.values()) summary.putLog(log);
+      writeSummary(context, summary);
+      context.deleteFile(SUMMARY_PATH);
+    }
+    mSummary = summary;
+    return summary;
+  }
+
+  // Read the summary saved by an older version. Return null if there is none. A summary that
+  // can't be read is deleted, so that it isn't read again on every start.
+  private LogList readOldSummary(Context context) {
+    LogList summary = null;
     FileInputStream fin = null;
     try {
       try {
@@ -206,8 +785,10 @@ public class GameLogListManager {
       ;
     } catch (ClassNotFoundException e) {
       Log.d(TAG, SUMMARY_PATH + ": ClassNotFoundException: " + e.getMessage());
+      context.deleteFile(SUMMARY_PATH);
     } catch (IOException e) {
       Log.d(TAG, SUMMARY_PATH + ": IOException: " + e.getMessage());
+      context.deleteFile(SUMMARY_PATH);
     }
     return summary;
   }
@@ -220,37 +801,33 @@ public class GameLogListManager {
     if (inmemory_logs.size() > MAX_IN_MEMORY_LOGS) {
       Collections.sort(inmemory_logs, GameLog.SORT_BY_DATE);
       for (int i = 0; i < inmemory_logs.size() - MAX_IN_MEMORY_LOGS; ++i) {
-        summary.logs.remove(inmemory_logs.get(i).digest());
+        summary.removeLog(inmemory_logs.get(i).fingerprint());
       }
     }
   }
   
+  // Save the changes made to "summary" since the last call.
   private void writeSummary(Context context, LogList summary) {
     removeOldInMemoryLogs(summary);
-    FileOutputStream fout = null;
     try {
-      try {
-        fout = context.openFileOutput(SUMMARY_PATH, Context.MODE_PRIVATE);
-        ObjectOutputStream oout = new ObjectOutputStream(fout);
-        oout.writeObject(summary);
-        oout.close();
-      } finally {
-        fout.close();
-      }
-    } catch (FileNotFoundException e) {
-      ;
+      mJournal.commit();
     } catch (IOException e) {
-      Log.d(TAG, SUMMARY_PATH + ": IOException: " + e.getMessage());
-      ;
+      Log.d(TAG, JOURNAL_PATH + ": IOException: " + e.getMessage());
+    }
+    if (mJournal.needsCompaction()) {
+      if (mCompactionThread == null) mCompactionThread = Executors.newSingleThreadExecutor();
+      final Journal journal = mJournal;
+      mCompactionThread.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            if (journal.needsCompaction()) journal.compact();
+          } catch (IOException e) {
+            Log.d(TAG, JOURNAL_PATH + ": compaction: " + e.getMessage());
+          }
+        }
+      });
     }
-  }
-
-  private static boolean isHtml(String basename) {
-    return basename.endsWith(".html") || basename.endsWith(".htm");
-  }
-
-  private static boolean isKif(String basename) {
-    return basename.endsWith(".kif");
   }
 
   /**
@@ -263,6 +840,10 @@ public class GameLogListManager {
     File path = log.path();
     if (path == null) {
       // The log hasn't been saved to the sdcard.
+    } else if (log.isInCollection()) {
+      // Deleting the file would delete the other games in it.
+      showToast(activity, "Can't delete a game in " + path.getAbsolutePath());
+      return null;
     } else {
       File trashPath = getTrashPath(activity, log);
       if (!path.renameTo(trashPath)) {
@@ -277,8 +858,7 @@ public class GameLogListManager {
     }
       
     LogList summary = readSummary(activity);
-    if (summary == null) summary = new LogList();
-    summary.logs.remove(log.digest());
+    summary.removeLog(log.fingerprint());
     writeSummary(activity, summary);
     if (path == null) {
       showToast(activity, activity.getResources().getString(R.string.deleted_log_in_memory));
@@ -305,14 +885,14 @@ public class GameLogListManager {
     }
       
     LogList summary = readSummary(activity);
-    if (summary == null) summary = new LogList();
-    summary.logs.put(undo.log.digest(), undo.log);
+    summary.putLog(undo.log);
     writeSummary(activity, summary);
     showToast(activity, activity.getResources().getString(R.string.restored_log));
   }
 
-  private static File getTrashPath(Context context, GameLog mLog) {
-    return new File(new File(getLogDir(context), "trash"), mLog.digest());
+  // The name is the fingerprint, since "log" may be a header, which has no digest().
+  private static File getTrashPath(Context context, GameLog log) {
+    return new File(new File(getLogDir(context), "trash"), log.fingerprint());
   }
   
   private static File getLogDir(Context context) {
@@ -342,17 +922,211 @@ public class GameLogListManager {
   //
   private static final String TAG = "ShogiLogLister";
 
-  @SuppressWarnings("serial") 
+  // The modification times of files and directories on the sdcard may be as coarse as this.
+  private static final long MTIME_RESOLUTION_MS = 2000;
+
+  // FileState.logFingerprints of a file without logs.
+  private static final String[] NO_LOGS = new String[0];
+
+  /**
+   * The logs, and the state of the files and the directories they were read from. The maps
+   * must be modified only through the put and remove methods, which record the changes in
+   * the journal. The key of a record is the key in the map prefixed by LOG_KEY, FILE_KEY, or
+   * DIR_KEY, and the value is the serialized GameLog, FileState.write(), or the modification
+   * time, respectively.
+   *
+   * This class was saved by Java serialization in older versions. readOldSummary() still reads
+   * "logs" from that form.
+   */
   private static class LogList implements Serializable {
+    // The value computed for this class before "files" and "dirs" were added, so that a summary
+    // written by an older version can still be read.
+    private static final long serialVersionUID = 1020972815463538293L;
+
+    private static final String LOG_KEY = "log:";
+    private static final String FILE_KEY = "file:";
+    private static final String DIR_KEY = "dir:";
+
     public LogList() {
-      lastScanTimeMs = -1;
       logs = new HashMap<String, GameLog>();
+      files = new HashMap<String, FileState>();
+      dirs = new HashMap<String, Long>();
     }
 
-    // The last walltime the filesystem was scanned.
-    public long lastScanTimeMs;
-
-    // maps gamelog digest -> gamelog
+    // maps gamelog fingerprint -> gamelog
     public final HashMap<String, GameLog> logs;
+
+    // maps the absolute path of a file found by scanDirectories -> its state.
+    public final HashMap<String, FileState> files;
+
+    // maps the absolute path of a directory listed by scanDirectories -> its modification time
+    // at the listing.
+    public final HashMap<String, Long> dirs;
+
+    // Records the changes. Null until setJournal() is called.
+    private transient Journal mJournal;
+
+    // Updated with "logs". Null until setIndex() is called.
+    private transient GameLogIndex mIndex;
+
+    public void setJournal(Journal journal) { mJournal = journal; }
+    public void setIndex(GameLogIndex index) { mIndex = index; }
+
+    // Add "log". Only the header of a log in the sdcard is kept; a log only in memory is kept
+    // with the plays since this is its only copy.
+    public void putLog(GameLog log) {
+      if (log.path() != null) log = log.header();
+      logs.put(log.fingerprint(), log);
+      if (mIndex != null) mIndex.add(log);
+      if (mJournal == null) return;
+      try {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(log);
+        out.close();
+        mJournal.put(LOG_KEY + log.fingerprint(), bytes.toByteArray());
+      } catch (IOException e) {
+        throw new AssertionError("ByteArrayOutputStream: " + e.getMessage());
+      }
+    }
+
+    public void removeLog(String fingerprint) {
+      if (logs.remove(fingerprint) == null) return;
+      if (mIndex != null) mIndex.remove(fingerprint);
+      if (mJournal != null) mJournal.remove(LOG_KEY + fingerprint);
+    }
+
+    public void putFile(String path, FileState s) {
+      files.put(path, s);
+      if (mJournal != null) mJournal.put(FILE_KEY + path, s.toBytes());
+    }
+
+    public void removeFile(String path) {
+      if (files.remove(path) != null && mJournal != null) mJournal.remove(FILE_KEY + path);
+    }
+
+    public void putDir(String path, long lastModified) {
+      Long old = dirs.put(path, lastModified);
+      if (old != null && old == lastModified) return;
+      if (mJournal != null) mJournal.put(DIR_KEY + path, longToBytes(lastModified));
+    }
+
+    public void removeDir(String path) {
+      if (dirs.remove(path) != null && mJournal != null) mJournal.remove(DIR_KEY + path);
+    }
+
+    // Apply a record read from the journal. A record that can't be decoded is dropped.
+    public void load(String key, byte[] value) {
+      try {
+        if (key.startsWith(LOG_KEY)) {
+          ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(value));
+          GameLog log = (GameLog)in.readObject();
+          if (key.equals(LOG_KEY + log.fingerprint())) {
+            logs.put(log.fingerprint(), log);
+          } else {
+            // The key doesn't match the log, e.g., the fingerprint of a log converted by
+            // GameLog.readObject() from an older form. Record it under the fingerprint.
+            mJournal.remove(key);
+            putLog(log);
+          }
+        } else if (key.startsWith(FILE_KEY)) {
+          files.put(key.substring(FILE_KEY.length()), FileState.fromBytes(value));
+        } else if (key.startsWith(DIR_KEY)) {
+          dirs.put(key.substring(DIR_KEY.length()), new DataInputStream(new ByteArrayInputStream(value)).readLong());
+        } else {
+          Log.d(TAG, JOURNAL_PATH + ": unknown key: " + key);
+        }
+      } catch (ClassNotFoundException e) {
+        Log.d(TAG, JOURNAL_PATH + ": " + key + ": ClassNotFoundException: " + e.getMessage());
+      } catch (IOException e) {
+        Log.d(TAG, JOURNAL_PATH + ": " + key + ": IOException: " + e.getMessage());
+      }
+    }
+
+    private static byte[] longToBytes(long value) {
+      byte[] bytes = new byte[8];
+      for (int i = 0; i < 8; ++i) bytes[i] = (byte)(value >>> (56 - i * 8));
+      return bytes;
+    }
+  }
+
+  private static class FileState implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public FileState(long sz, long m, long c, String cd, String[] lf) {
+      size = sz;
+      lastModified = m;
+      checkedAtMs = c;
+      contentDigest = cd;
+      logFingerprints = lf;
+    }
+
+    // Whether a file with "sz" and "m" is known to have the contents this object was made from.
+    // A file modified within MTIME_RESOLUTION_MS before it was checked may have been modified
+    // again without changing its size or modification time.
+    public boolean isClean(long sz, long m) {
+      return size == sz && lastModified == m && m < checkedAtMs - MTIME_RESOLUTION_MS;
+    }
+
+    public final long size;
+    public final long lastModified;
+
+    // The walltime the size and the modification time were read.
+    public final long checkedAtMs;
+
+    // The SHA-1 digest of the contents, or null if the file couldn't be read.
+    public String contentDigest;
+
+    // The fingerprints of the logs in the file.
+    public String[] logFingerprints;
+
+    public boolean hasLog(String fingerprint) {
+      for (String f : logFingerprints) {
+        if (f.equals(fingerprint)) return true;
+      }
+      return false;
+    }
+
+    public byte[] toBytes() {
+      try {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(size);
+        out.writeLong(lastModified);
+        out.writeLong(checkedAtMs);
+        out.writeUTF((contentDigest == null) ? "" : contentDigest);
+        // The first fingerprint, then the number and the rest of the fingerprints, if any.
+        out.writeUTF((logFingerprints.length == 0) ? "" : logFingerprints[0]);
+        if (logFingerprints.length > 1) {
+          out.writeInt(logFingerprints.length - 1);
+          for (int i = 1; i < logFingerprints.length; ++i) out.writeUTF(logFingerprints[i]);
+        }
+        out.close();
+        return bytes.toByteArray();
+      } catch (IOException e) {
+        throw new AssertionError("ByteArrayOutputStream: " + e.getMessage());
+      }
+    }
+
+    public static FileState fromBytes(byte[] b) throws IOException {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(b));
+      final long size = in.readLong();
+      final long lastModified = in.readLong();
+      final long checkedAtMs = in.readLong();
+      final String contentDigest = in.readUTF();
+      final String first = in.readUTF();
+      String[] logFingerprints;
+      if (first.equals("")) {
+        logFingerprints = NO_LOGS;
+      } else if (in.available() == 0) {
+        logFingerprints = new String[]{ first };
+      } else {
+        logFingerprints = new String[1 + in.readInt()];
+        logFingerprints[0] = first;
+        for (int i = 1; i < logFingerprints.length; ++i) logFingerprints[i] = in.readUTF();
+      }
+      return new FileState(size, lastModified, checkedAtMs,
+                           contentDigest.equals("") ? null : contentDigest, logFingerprints);
+    }
   }
 }
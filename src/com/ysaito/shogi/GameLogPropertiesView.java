@@ -46,7 +46,9 @@ public class GameLogPropertiesView extends TableLayout {
     }
     
     if (log.path() != null) {
-      addView(addRow(getResources().getString(R.string.file), log.path().getAbsolutePath()));
+      String file = log.path().getAbsolutePath();
+      if (log.entry() != null) file += " (" + log.entry() + ")";
+      addView(addRow(getResources().getString(R.string.file), file));
     }
     addView(addRow(getResources().getString(R.string.num_plays), 
         String.format("%d", log.numPlays())));
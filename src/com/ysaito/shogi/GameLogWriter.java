@@ -0,0 +1,350 @@
+package com.ysaito.shogi;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.InvalidParameterException;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.Map;
+
+/**
+ * Writes game logs to a stream in KIF or CSA format. Any number of logs can be written to
+ * one stream; they are separated by an empty line in KIF, and by a "/" line in CSA.
+ *
+ * The text is generated directly into a char buffer, which is passed to the encoder when
+ * full, so the cost is linear in the size of the output regardless of the number of logs.
+ * Only the plays of each log are replayed, on an array of the promotion state of each
+ * square, which is all the formats need to know about the position.
+ *
+ * Usage:
+ *   GameLogWriter w = new GameLogWriter(out, "kif_utf8");
+ *   for (GameLog log : logs) w.write(log);
+ *   w.close();
+ */
+public class GameLogWriter {
+  /** KIF, Shift_JIS, CRLF. */
+  public static final String FORMAT_KIF_DOS = "kif_dos";
+
+  /** KIF, UTF-8, LF. */
+  public static final String FORMAT_KIF_UTF8 = "kif_utf8";
+
+  /** CSA version 2.2, Shift_JIS, CRLF. */
+  public static final String FORMAT_CSA = "csa";
+
+  private static final int BUFFER_CHARS = 8192;
+
+  private final Writer mOut;
+  private final boolean mCsa;
+  private final String mEol;
+  private final char[] mBuf;
+  private int mLen;
+
+  // mPromoted[sq] is true if the piece at sq is promoted. Reset for every log.
+  private final boolean[] mPromoted;
+  private final Calendar mCalendar;
+  private int mNumLogs;
+
+  /**
+   * @param format One of FORMAT_XXX. Same as @id array/log_save_format_values, plus FORMAT_CSA.
+   */
+  public GameLogWriter(OutputStream out, String format) throws IOException {
+    if (format.equals(FORMAT_KIF_UTF8)) {
+      mOut = new OutputStreamWriter(out, "UTF-8");
+      mCsa = false;
+      mEol = "\n";
+    } else if (format.equals(FORMAT_KIF_DOS)) {
+      mOut = new OutputStreamWriter(out, "SHIFT-JIS");
+      mCsa = false;
+      mEol = "\r\n";
+    } else if (format.equals(FORMAT_CSA)) {
+      mOut = new OutputStreamWriter(out, "SHIFT-JIS");
+      mCsa = true;
+      mEol = "\r\n";
+    } else {
+      throw new InvalidParameterException("Unknown game log format: " + format);
+    }
+    mBuf = new char[BUFFER_CHARS];
+    mPromoted = new boolean[Board.DIM * Board.DIM];
+    mCalendar = new GregorianCalendar();
+  }
+
+  /**
+   * Append "log", which must have the plays (see GameLog.hasPlays()).
+   */
+  public void write(GameLog log) throws IOException {
+    if (mCsa) {
+      if (mNumLogs > 0) append('/').append(mEol);
+      writeCsa(log);
+    } else {
+      if (mNumLogs > 0) append(mEol);
+      writeKif(log);
+    }
+    ++mNumLogs;
+  }
+
+  /** Write the buffered text to the stream, and flush it. */
+  public void flush() throws IOException {
+    flushBuffer();
+    mOut.flush();
+  }
+
+  /** Write the buffered text to the stream, and close it. */
+  public void close() throws IOException {
+    flushBuffer();
+    mOut.close();
+  }
+
+  private void writeKif(GameLog log) throws IOException {
+    if (log.getDate() > 0) {
+      append("開始日時：");
+      appendDate(log.getDate());
+      append(mEol);
+    }
+    for (Map.Entry<String, String> e : log.attrs()) {
+      append(e.getKey()).append('：').append(e.getValue()).append(mEol);
+    }
+    append("手数----指手---------消費時間--").append(mEol);
+
+    resetPromoted();
+    final int numPlays = log.numPlays();
+    for (int i = 0; i < numPlays; ++i) {
+      final int play = log.packedPlay(i);
+      final int to = Play.packedTo(play);
+      final int from = Play.packedFrom(play);
+      final boolean promote = isNewlyPromoted(play);
+      int type = Board.type(Play.packedPiece(play));
+      if (promote) type = Board.unpromote(type);
+
+      appendInt(i + 1, 4);
+      append(' ');
+      append(Play.japaneseRomanNumbers[9 - to % Board.DIM]);
+      append(Play.japaneseNumbers[to / Board.DIM + 1]);
+      append(Piece.japaneseNames[type]);
+      if (promote) append('成');
+      if (from >= 0) {
+        append('(');
+        append((char)('0' + 9 - from % Board.DIM));
+        append((char)('0' + 1 + from / Board.DIM));
+        append(')');
+      } else {
+        append('打');
+      }
+      append(mEol);
+      applyPlay(play);
+    }
+    final String word = resultWord(log);
+    if (word != null) {
+      appendInt(numPlays + 1, 4);
+      append(' ').append(word).append(mEol);
+    }
+  }
+
+  // The word that ended the plays of "log" in KIF, e.g., "詰み", if it still gives the result
+  // of the log when it is read back. Null if it is unknown, e.g., for a game played in this
+  // app; then no word is written, rather than a guess at how the game ended.
+  private static String resultWord(GameLog log) {
+    final String word = log.resultWord();
+    if (word == null) return null;
+    final Player player = (log.numPlays() % 2 == 0) ? Player.BLACK : Player.WHITE;
+    return (GameLog.resultOf(word, player) == log.result()) ? word : null;
+  }
+
+  // The CSA special moves for the KIF words that end the plays. 反則勝ち is handled by writeCsa().
+  private static final String[][] CSA_RESULTS = {
+    { "投了", "%TORYO" },
+    { "詰み", "%TSUMI" },
+    { "切れ負け", "%TIME_UP" },
+    { "反則負け", "%ILLEGAL_MOVE" },
+    { "入玉勝ち", "%KACHI" },
+    { "千日手", "%SENNICHITE" },
+    { "持将棋", "%JISHOGI" },
+    { "中断", "%CHUDAN" },
+  };
+
+  private void writeCsa(GameLog log) throws IOException {
+    append("V2.2").append(mEol);
+    final String black = log.attr(GameLog.ATTR_BLACK_PLAYER);
+    if (black != null) append("N+").append(black).append(mEol);
+    final String white = log.attr(GameLog.ATTR_WHITE_PLAYER);
+    if (white != null) append("N-").append(white).append(mEol);
+    final String tournament = log.attr(GameLog.ATTR_TOURNAMENT);
+    if (tournament != null) append("$EVENT:").append(tournament).append(mEol);
+    final String location = log.attr(GameLog.ATTR_LOCATION);
+    if (location != null) append("$SITE:").append(location).append(mEol);
+    if (log.getDate() > 0) {
+      append("$START_TIME:");
+      appendDate(log.getDate());
+      append(mEol);
+    }
+    // The other attributes have no CSA equivalent, so they are written as comments.
+    for (Map.Entry<String, String> e : log.attrs()) {
+      final String key = e.getKey();
+      if (key.equals(GameLog.ATTR_BLACK_PLAYER) || key.equals(GameLog.ATTR_WHITE_PLAYER) ||
+          key.equals(GameLog.ATTR_TOURNAMENT) || key.equals(GameLog.ATTR_LOCATION)) {
+        continue;
+      }
+      append('\'').append(key).append('：').append(e.getValue()).append(mEol);
+    }
+
+    Handicap handicap;
+    try {
+      handicap = log.handicap();
+    } catch (InvalidParameterException e) {
+      handicap = Handicap.NONE;  // the attribute is still written above, as a comment
+    }
+    append("PI").append(csaRemovedPieces(handicap)).append(mEol);
+
+    resetPromoted();
+    final int numPlays = log.numPlays();
+    for (int i = 0; i < numPlays; ++i) {
+      final int play = log.packedPlay(i);
+      final int piece = Play.packedPiece(play);
+      if (i == 0) append(piece > 0 ? '+' : '-').append(mEol);
+      final int to = Play.packedTo(play);
+      final int from = Play.packedFrom(play);
+      append(piece > 0 ? '+' : '-');
+      if (from >= 0) {
+        append((char)('0' + 9 - from % Board.DIM));
+        append((char)('0' + 1 + from / Board.DIM));
+      } else {
+        append("00");
+      }
+      append((char)('0' + 9 - to % Board.DIM));
+      append((char)('0' + 1 + to / Board.DIM));
+      append(Piece.csaNames[Board.type(piece)]);
+      append(mEol);
+      applyPlay(play);
+    }
+    if (numPlays == 0) append('+').append(mEol);
+    final String word = resultWord(log);
+    if ("反則勝ち".equals(word)) {
+      // The player who made the last play lost by an illegal action.
+      append(numPlays % 2 == 0 ? "%-ILLEGAL_ACTION" : "%+ILLEGAL_ACTION").append(mEol);
+    } else {
+      for (String[] r : CSA_RESULTS) {
+        if (r[0].equals(word)) append(r[1]).append(mEol);
+      }
+    }
+  }
+
+  // The "PI" suffix of each handicap, which lists the squares and the types of the pieces
+  // that are removed from the initial position, e.g., "82HI". Indexed by Handicap.ordinal().
+  private static String[] mCsaRemovedPieces;
+
+  private static synchronized String csaRemovedPieces(Handicap h) {
+    if (mCsaRemovedPieces == null) {
+      Board full = new Board();
+      full.initialize(Handicap.NONE);
+      Board b = new Board();
+      Handicap[] handicaps = Handicap.values();
+      mCsaRemovedPieces = new String[handicaps.length];
+      for (int i = 0; i < handicaps.length; ++i) {
+        b.initialize(handicaps[i]);
+        StringBuilder s = new StringBuilder();
+        for (int y = 0; y < Board.DIM; ++y) {
+          for (int x = 0; x < Board.DIM; ++x) {
+            final int piece = full.getPiece(x, y);
+            if (piece != Piece.EMPTY && b.getPiece(x, y) == Piece.EMPTY) {
+              s.append(9 - x).append(y + 1).append(Piece.csaNames[Board.type(piece)]);
+            }
+          }
+        }
+        mCsaRemovedPieces[i] = s.toString();
+      }
+    }
+    return mCsaRemovedPieces[h.ordinal()];
+  }
+
+  private void resetPromoted() {
+    for (int i = 0; i < mPromoted.length; ++i) mPromoted[i] = false;
+  }
+
+  // Whether "play" promotes the piece. The pieces in the initial position are all unpromoted,
+  // so this only depends on the plays applied so far.
+  private boolean isNewlyPromoted(int play) {
+    final int from = Play.packedFrom(play);
+    return from >= 0 && Board.isPromoted(Play.packedPiece(play)) && !mPromoted[from];
+  }
+
+  private void applyPlay(int play) {
+    final int from = Play.packedFrom(play);
+    if (from >= 0) mPromoted[from] = false;
+    mPromoted[Play.packedTo(play)] = Board.isPromoted(Play.packedPiece(play));
+  }
+
+  // Append "yyyy/mm/dd hh:mm:ss".
+  private void appendDate(long dateMs) throws IOException {
+    final Calendar c = mCalendar;
+    c.setTimeInMillis(dateMs);
+    appendZeroPadded(c.get(Calendar.YEAR), 4);
+    append('/');
+    appendZeroPadded(c.get(Calendar.MONTH) - Calendar.JANUARY + 1, 2);
+    append('/');
+    appendZeroPadded(c.get(Calendar.DAY_OF_MONTH), 2);
+    append(' ');
+    appendZeroPadded(c.get(Calendar.HOUR_OF_DAY), 2);
+    append(':');
+    appendZeroPadded(c.get(Calendar.MINUTE), 2);
+    append(':');
+    appendZeroPadded(c.get(Calendar.SECOND), 2);
+  }
+
+  // Append non-negative "v", right-aligned with spaces to "width" chars.
+  private void appendInt(int v, int width) throws IOException {
+    for (int n = numDigits(v); n < width; ++n) append(' ');
+    appendDigits(v);
+  }
+
+  private void appendZeroPadded(int v, int width) throws IOException {
+    for (int n = numDigits(v); n < width; ++n) append('0');
+    appendDigits(v);
+  }
+
+  private void appendDigits(int v) throws IOException {
+    if (mLen + 10 > mBuf.length) flushBuffer();
+    final int end = mLen + numDigits(v);
+    for (int i = end - 1; i >= mLen; --i) {
+      mBuf[i] = (char)('0' + v % 10);
+      v /= 10;
+    }
+    mLen = end;
+  }
+
+  private static int numDigits(int v) {
+    int n = 1;
+    while (v >= 10) {
+      v /= 10;
+      ++n;
+    }
+    return n;
+  }
+
+  private GameLogWriter append(char c) throws IOException {
+    if (mLen == mBuf.length) flushBuffer();
+    mBuf[mLen++] = c;
+    return this;
+  }
+
+  private GameLogWriter append(String s) throws IOException {
+    final int n = s.length();
+    if (mLen + n > mBuf.length) {
+      flushBuffer();
+      if (n > mBuf.length) {
+        mOut.write(s);
+        return this;
+      }
+    }
+    s.getChars(0, n, mBuf, mLen);
+    mLen += n;
+    return this;
+  }
+
+  private void flushBuffer() throws IOException {
+    if (mLen > 0) {
+      mOut.write(mBuf, 0, mLen);
+      mLen = 0;
+    }
+  }
+}
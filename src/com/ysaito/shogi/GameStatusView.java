@@ -154,7 +154,7 @@ public class GameStatusView extends LinearLayout {
     mWhiteTime.update(white);
   }
   
-  private final String traditionalPlayNotation(Board board, Play thisMove, Play prevMove) {
+  static String traditionalPlayNotation(Board board, Play thisMove, Play prevMove) {
     if (Locale.getDefault().getLanguage().equals("ja")) {
       return thisMove.toTraditionalNotation(board, prevMove).toJapaneseString();
     } else {
@@ -1,14 +1,21 @@
 package com.ysaito.shogi;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import android.app.ListActivity;
 import android.content.Context;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -20,9 +27,17 @@ import android.widget.TextView;
 /**
  * An activity that implements a scrolling list scraped from an URL.
  * Used by the game log activity, optus player list activity, and optus player game log activity.
+ *
+ * The streams are read in parallel. Each stream is sorted in the background as it arrives,
+ * and merged into the list on the UI thread, at most once per FRAME_MS.
+ *
+ * A list too long to be held in memory is read through pagedSource() instead of the streams.
+ * The adapter then reads only the pages around the rows shown, and keeps at most MAX_PAGES of
+ * them.
  */
 public abstract class GenericListActivity<T> extends ListActivity {
-  
+  private static final String TAG = "GenericList";
+
   /** Given an object, return the string to be displayed in the list.
    */
   protected abstract String getListLabel(T obj);
@@ -33,6 +48,42 @@ public abstract class GenericListActivity<T> extends ListActivity {
   /** Read the @p index'th input stream. This method is allowed to block. */ 
   protected abstract T[] readNthStream(int index) throws Throwable;
 
+  /**
+   * A list read a page at a time. See pagedSource().
+   */
+  public interface PagedSource<T> {
+    /**
+     * Find the objects, and return their number. Called by each startListing(), before read().
+     * This method is allowed to block.
+     */
+    int count() throws Throwable;
+
+    /**
+     * Read the objects [offset, offset + limit) in the order of "sorter", which is the one
+     * given to setSorter(), or null. This method is allowed to block.
+     */
+    T[] read(Comparator<T> sorter, int offset, int limit) throws Throwable;
+  }
+
+  /**
+   * Return the source of the list if it is to be read a page at a time, or null to read the
+   * whole list by readNthStream(). Called once by initialize(). A paged list isn't cached.
+   */
+  protected PagedSource<T> pagedSource() { return null; }
+
+  // The streams that arrive within this many milliseconds are merged into the list at once.
+  private static final int FRAME_MS = 16;
+
+  // The number of objects read by each PagedSource.read().
+  private static final int PAGE_SIZE = 64;
+
+  // The number of pages kept by the adapter. The least recently shown pages are dropped.
+  private static final int MAX_PAGES = 8;
+
+  // The page of a row within this distance from a shown row is read ahead, so that scrolling
+  // rarely shows an empty row.
+  private static final int PREFETCH_ROWS = PAGE_SIZE / 2;
+
   /**
    *
    * @pre The caller must be the main thread
@@ -68,12 +119,37 @@ public abstract class GenericListActivity<T> extends ListActivity {
   private class MyAdapter extends BaseAdapter {
     private final LayoutInflater mInflater;
     private ArrayList<T> mObjects = new ArrayList<T>();
-    private Comparator<T> mSorter;
+
+    // Read by ListThread to sort the streams, so it is volatile.
+    private volatile Comparator<T> mSorter;
+
+    // The streams received since the last flush(). See enqueue().
+    private final ArrayList<ListingStatus<T>> mPending = new ArrayList<ListingStatus<T>>();
+    private final Handler mHandler = new Handler();
+    private boolean mFlushScheduled;
+    private final Runnable mFlush = new Runnable() {
+      public void run() { flush(); }
+    };
+
+    // In the paged mode, mObjects is unused. mPages maps page number -> the objects read,
+    // least recently used first, and mLoading has the pages being read. mGeneration changes
+    // when the pages are dropped, so that a page read before then is discarded.
+    private PagedSource<T> mPaged;
+    private int mCount;
+    private int mGeneration;
+    private final HashSet<Integer> mLoading = new HashSet<Integer>();
+    @SuppressWarnings("serial")
+    private final LinkedHashMap<Integer, T[]> mPages = new LinkedHashMap<Integer, T[]>(MAX_PAGES * 2, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, T[]> eldest) {
+        return size() > MAX_PAGES;
+      }
+    };
     
     public MyAdapter(Context context) { 
       mInflater = (LayoutInflater)context.getSystemService(Context.LAYOUT_INFLATER_SERVICE); 
     }
-    @Override public int getCount() { return mObjects.size(); }
+    @Override public int getCount() { return numObjects(); }
     @Override public Object getItem(int position) { return getObject(position); } 
     @Override public long getItemId(int position) { return position; }
     @Override public View getView(int position, View convertView, ViewGroup parent) {
@@ -85,35 +161,148 @@ public abstract class GenericListActivity<T> extends ListActivity {
         text = (TextView)convertView;
       }
       text.setHorizontallyScrolling(false);
-      text.setText(getListLabel(getObject(position)));
+      T obj = getObject(position);
+      text.setText((obj != null) ? getListLabel(obj) : "");  // a page not read yet
       return text;
     }
 
-    public void setObjects(T[] p) {
-      mObjects.clear();
-      addObjects(p);
+    public boolean isPaged() { return mPaged != null; }
+
+    public void setPagedSource(PagedSource<T> paged) { mPaged = paged; }
+
+    // Set the number of objects in the paged mode, and drop the pages read.
+    public void setCount(int count) {
+      mCount = count;
+      dropPages();
+      notifyDataSetChanged();
     }
-    
-    public void addObjects(T[] p) {
-      mObjects.ensureCapacity(mObjects.size() + p.length);
-      for (T obj : p) mObjects.add(obj);
-      if (mSorter != null) Collections.sort(mObjects, mSorter);
+
+    private void dropPages() {
+      mPages.clear();
+      mLoading.clear();
+      ++mGeneration;
+    }
+
+    // Start reading "page" unless it has been read or is being read.
+    private void loadPage(int page) {
+      if (page < 0 || (long)page * PAGE_SIZE >= mCount) return;
+      if (mPages.containsKey(page) || mLoading.contains(page)) return;
+      mLoading.add(page);
+      new PageThread(page, mGeneration, mSorter).execute();
+    }
+
+    private void addPage(int page, int generation, T[] objects) {
+      if (generation != mGeneration) return;
+      mLoading.remove(page);
+      if (objects != null) {
+        mPages.put(page, objects);
+        notifyDataSetChanged();
+      }
+    }
+
+    /**
+     * Add a stream to the list, or replace the list with it, in the next flush().
+     */
+    public void enqueue(ListingStatus<T> status) {
+      if (status.mode == ListingMode.DELETE_EXISTING_OBJECTS) mPending.clear();
+      mPending.add(status);
+      if (!mFlushScheduled) {
+        mFlushScheduled = true;
+        mHandler.postDelayed(mFlush, FRAME_MS);
+      }
+    }
+
+    // Merge the streams received since the last call into mObjects, and redraw the list once.
+    private void flush() {
+      mFlushScheduled = false;
+      if (mPending.isEmpty()) return;
+      ArrayList<List<T>> runs = new ArrayList<List<T>>();
+      if (mPending.get(0).mode != ListingMode.DELETE_EXISTING_OBJECTS) runs.add(mObjects);
+      final Comparator<T> sorter = mSorter;
+      for (ListingStatus<T> status : mPending) {
+        List<T> run = Arrays.asList(status.objects);
+        if (sorter != null && status.sorter != sorter) {
+          // The sorter changed after the stream was sorted.
+          run = new ArrayList<T>(run);
+          Collections.sort(run, sorter);
+        }
+        runs.add(run);
+      }
+      mPending.clear();
+      if (sorter != null) {
+        mObjects = Util.mergeSorted(runs, sorter);
+      } else {
+        ArrayList<T> objects = new ArrayList<T>();
+        for (List<T> run : runs) objects.addAll(run);
+        mObjects = objects;
+      }
       notifyDataSetChanged();
     }
     
-    public int numObjects() { return mObjects.size(); }
+    public int numObjects() { return (mPaged != null) ? mCount : mObjects.size(); }
     
+    /**
+     * Return the object at "position", or null if it is out of range or, in the paged mode,
+     * its page hasn't been read yet. The page is then read, and the list is redrawn.
+     */
     public T getObject(int position) {
+      if (mPaged != null) {
+        if (position < 0 || position >= mCount) return null;
+        final int page = position / PAGE_SIZE;
+        T[] objects = mPages.get(page);
+        loadPage(page);
+        loadPage((position - PREFETCH_ROWS) / PAGE_SIZE);
+        loadPage((position + PREFETCH_ROWS) / PAGE_SIZE);
+        if (objects == null || position % PAGE_SIZE >= objects.length) return null;
+        return objects[position % PAGE_SIZE];
+      }
       if (mObjects == null || position >= mObjects.size()) return null;
       return mObjects.get(position);
     }
     
     public void setSorter(Comparator<T> sorter) {
       mSorter = sorter;
-      if (mSorter != null) Collections.sort(mObjects, mSorter);
+      if (mPaged != null) {
+        dropPages();
+      } else if (mSorter != null) {
+        Collections.sort(mObjects, mSorter);
+      }
       notifyDataSetChanged();
     }
   }
+
+  /**
+   * Reads a page of a paged list. See PagedSource.
+   */
+  private class PageThread extends AsyncTask<Void, String, T[]> {
+    private final int mPage;
+    private final int mGeneration;
+    private final Comparator<T> mSorter;
+    private final PagedSource<T> mPaged;
+
+    public PageThread(int page, int generation, Comparator<T> sorter) {
+      mPage = page;
+      mGeneration = generation;
+      mSorter = sorter;
+      mPaged = mAdapter.mPaged;
+    }
+
+    @Override
+    protected T[] doInBackground(Void... unused) {
+      try {
+        return mPaged.read(mSorter, mPage * PAGE_SIZE, PAGE_SIZE);
+      } catch (Throwable e) {
+        // The page is read again when it is shown next.
+        Log.d(TAG, "Failed to read page " + mPage + ": " + Util.throwableToString(e));
+        return null;
+      }
+    }
+
+    @Override
+    protected void onPostExecute(T[] objects) {
+      mAdapter.addPage(mPage, mGeneration, objects);
+    }
+  }
   
   private GenericListActivity<T> mActivity;
   private MyAdapter mAdapter;
@@ -138,6 +327,8 @@ public abstract class GenericListActivity<T> extends ListActivity {
     
     setTitle(title);
     
+    mAdapter.setPagedSource(pagedSource());
+
     // Use an existing ListAdapter that will map an array
     // of strings to TextViews
     setListAdapter(mAdapter);
@@ -146,16 +337,28 @@ public abstract class GenericListActivity<T> extends ListActivity {
   private static enum ListingMode {
     DELETE_EXISTING_OBJECTS,
     ADD_TO_EXISTING_OBJECTS,
+    SET_COUNT,  // of a paged list
   };
   
   private static class ListingStatus<T> {
-    public ListingStatus(T[] o, ListingMode m) {
+    public ListingStatus(T[] o, ListingMode m, Comparator<T> s) {
       objects = o;
       mode = m;
+      sorter = s;
+      count = 0;
+    }
+
+    public ListingStatus(int c) {
+      objects = null;
+      mode = ListingMode.SET_COUNT;
+      sorter = null;
+      count = c;
     }
     
     public final T[] objects;
     public final ListingMode mode;
+    public final Comparator<T> sorter;  // "objects" are sorted by it, if not null
+    public final int count;
   }
   
   /**
@@ -243,6 +446,14 @@ public abstract class GenericListActivity<T> extends ListActivity {
     @SuppressWarnings("unchecked")
     @Override
     protected String doInBackground(Integer... mode) {
+      if (mAdapter.isPaged()) {
+        try {
+          publishProgress(new ListingStatus<T>(mAdapter.mPaged.count()));
+          return null;
+        } catch (Throwable e) {
+          return Util.throwableToString(e);
+        }
+      }
       ParallelFetcher fetcher = null;
       try {
         try {
@@ -255,8 +466,7 @@ public abstract class GenericListActivity<T> extends ListActivity {
           }
           final boolean hitCache = (r.obj != null);
           if (hitCache) {
-            publishProgress(new ListingStatus<T>(
-                (T[])r.obj, ListingMode.DELETE_EXISTING_OBJECTS));
+            publishProgress(sortedStatus((T[])r.obj, ListingMode.DELETE_EXISTING_OBJECTS));
           }
           
           if (r.needRefresh) {
@@ -269,7 +479,7 @@ public abstract class GenericListActivity<T> extends ListActivity {
                 for (T obj: objs) aggregate.add(obj);
                 if (!hitCache) {
                   // Incrementally update the screen as results arrive
-                  publishProgress(new ListingStatus<T>(objs, 
+                  publishProgress(sortedStatus(objs, 
                       (firstPublish ? ListingMode.DELETE_EXISTING_OBJECTS :
                         ListingMode.ADD_TO_EXISTING_OBJECTS)));
                   firstPublish = false;
@@ -284,7 +494,7 @@ public abstract class GenericListActivity<T> extends ListActivity {
               T[] objs = aggregate.toArray(mTmpArray);
               if (mCacheKey != null) mCache.write(mCacheKey, objs);
               if (hitCache) {
-                publishProgress(new ListingStatus<T>(objs, ListingMode.DELETE_EXISTING_OBJECTS));
+                publishProgress(sortedStatus(objs, ListingMode.DELETE_EXISTING_OBJECTS));
               }
             }
           }
@@ -302,14 +512,25 @@ public abstract class GenericListActivity<T> extends ListActivity {
       }
     }
     
+    // Return a status with a copy of "objs" sorted by the current sorter, so that the UI
+    // thread only merges it.
+    private ListingStatus<T> sortedStatus(T[] objs, ListingMode mode) {
+      final Comparator<T> sorter = mAdapter.mSorter;
+      if (sorter != null) {
+        objs = objs.clone();
+        Arrays.sort(objs, sorter);
+      }
+      return new ListingStatus<T>(objs, mode, sorter);
+    }
+
     @Override
     protected void onProgressUpdate(ListingStatus<T>... list) {
       for (ListingStatus<T> status : list) {
-        if (status.mode == ListingMode.DELETE_EXISTING_OBJECTS) {
-          mAdapter.setObjects(status.objects);
+        if (status.mode == ListingMode.SET_COUNT) {
+          mAdapter.setCount(status.count);
         } else {
-          mAdapter.addObjects(status.objects);
-       } 
+          mAdapter.enqueue(status);
+        }
       }
     }
     
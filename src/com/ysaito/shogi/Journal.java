@@ -0,0 +1,344 @@
+package com.ysaito.shogi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * A persistent map from strings to byte arrays, stored as an append-only file of put and
+ * remove records. Saving a change costs O(size of the change), regardless of the size of
+ * the map. The file is compacted, i.e., rewritten with only the records of the live entries,
+ * by compact(), which can run in a background thread concurrently with commit().
+ *
+ * The file is a header followed by records. Each record is
+ *
+ *   int: length of the payload
+ *   int: CRC32 of the payload
+ *   payload: byte OP_PUT or OP_REMOVE, the key (DataOutput.writeUTF), and the value (puts only)
+ *
+ * A record that is truncated or doesn't match its checksum, e.g., because the app was killed
+ * in the middle of a commit, ends the journal. read() truncates the file there.
+ *
+ * This class is thread safe.
+ */
+public class Journal {
+  private static final String TAG = "Journal";
+
+  private static final int MAGIC = 0x534a524e;  // "SJRN"
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 8;
+
+  private static final byte OP_PUT = 1;
+  private static final byte OP_REMOVE = 2;
+
+  // A record longer than this is considered corrupt.
+  private static final int MAX_RECORD_BYTES = 16 << 20;
+
+  // compact() does nothing until the journal has this many records.
+  private static final int MIN_RECORDS_TO_COMPACT = 256;
+
+  private final File mFile;
+
+  // The records added since the last commit(), encoded.
+  private final ByteArrayOutputStream mPending;
+  private final DataOutputStream mPendingOut;
+  private int mNumPending;
+
+  // The keys of the live entries, including the changes by the pending records, and the
+  // number of records in the file.
+  private final HashSet<String> mLiveKeys;
+  private int mNumRecords;
+
+  // The size of mFile.
+  private long mSize;
+
+  private boolean mCompacting;
+
+  public Journal(File file) {
+    mFile = file;
+    mPending = new ByteArrayOutputStream();
+    mPendingOut = new DataOutputStream(mPending);
+    mLiveKeys = new HashSet<String>();
+  }
+
+  /**
+   * Read the journal, and return the live entries in the order they were last put.
+   * Must be called once, before any other method.
+   */
+  public synchronized LinkedHashMap<String, byte[]> read() throws IOException {
+    LinkedHashMap<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+    mNumRecords = 0;
+    mSize = 0;
+    if (!mFile.exists()) return entries;
+
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException(mFile + ": not a journal");
+      }
+      mSize = HEADER_BYTES;
+      Record r = new Record();
+      while (readRecord(in, r)) {
+        entries.remove(r.key);
+        if (r.op == OP_PUT) entries.put(r.key, r.value);
+        mSize += r.size;
+        ++mNumRecords;
+      }
+    } catch (EOFException e) {
+      // Empty or truncated header. Start over.
+    } finally {
+      in.close();
+    }
+    if (mSize < mFile.length()) {
+      Log.d(TAG, mFile + ": dropping " + (mFile.length() - mSize) + " bytes at the end");
+      truncate(mSize);
+    }
+    mLiveKeys.clear();
+    mLiveKeys.addAll(entries.keySet());
+    return entries;
+  }
+
+  /** Add a record that sets "key" to "value". The record is saved by the next commit(). */
+  public synchronized void put(String key, byte[] value) {
+    addPending(OP_PUT, key, value);
+  }
+
+  /** Add a record that removes "key". The record is saved by the next commit(). */
+  public synchronized void remove(String key) {
+    addPending(OP_REMOVE, key, null);
+  }
+
+  /** Append the records added since the last commit() to the file, and sync it. */
+  public synchronized void commit() throws IOException {
+    if (mNumPending == 0) return;
+    if (mSize == 0) {
+      // Write the header along with the first records.
+      FileOutputStream out = new FileOutputStream(mFile);
+      try {
+        DataOutputStream dout = new DataOutputStream(out);
+        dout.writeInt(MAGIC);
+        dout.writeInt(VERSION);
+        mPending.writeTo(dout);
+        dout.flush();
+        out.getFD().sync();
+      } finally {
+        out.close();
+      }
+      mSize = HEADER_BYTES;
+    } else {
+      // Write at mSize rather than appending, so that the part of the records written by a
+      // commit() that failed is overwritten instead of ending the journal.
+      RandomAccessFile f = new RandomAccessFile(mFile, "rw");
+      try {
+        if (f.length() != mSize) f.setLength(mSize);
+        f.seek(mSize);
+        f.write(mPending.toByteArray());
+        f.getFD().sync();
+      } finally {
+        f.close();
+      }
+    }
+    mSize += mPending.size();
+    mNumRecords += mNumPending;
+    mPending.reset();
+    mNumPending = 0;
+  }
+
+  /** Whether the file has enough dead records to be worth compacting. */
+  public synchronized boolean needsCompaction() {
+    return !mCompacting && mNumRecords >= MIN_RECORDS_TO_COMPACT && mNumRecords > 2 * mLiveKeys.size();
+  }
+
+  /**
+   * Rewrite the file with only the last record of each live entry. The records committed
+   * up to the start of this call are read and written without holding the lock, so commit()
+   * may run concurrently; the records it appends are copied at the end.
+   */
+  public void compact() throws IOException {
+    final long end;
+    synchronized (this) {
+      if (mCompacting || mSize == 0) return;
+      mCompacting = true;
+      end = mSize;
+    }
+    final File tmp = new File(mFile.getPath() + ".tmp");
+    boolean done = false;
+    try {
+      // Find the last record of each key in [HEADER_BYTES, end).
+      HashMap<String, Long> lastOffsets = new HashMap<String, Long>();
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+      try {
+        skipFully(in, HEADER_BYTES);
+        Record r = new Record();
+        for (long offset = HEADER_BYTES; offset < end; offset += r.size) {
+          if (!readRecord(in, r)) throw new IOException(mFile + ": corrupt record at " + offset);
+          if (r.op == OP_PUT) {
+            lastOffsets.put(r.key, offset);
+          } else {
+            lastOffsets.remove(r.key);
+          }
+        }
+      } finally {
+        in.close();
+      }
+
+      // Copy the live records, in the order of the original file.
+      int numRecords = 0;
+      FileOutputStream out = new FileOutputStream(tmp);
+      try {
+        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(out));
+        dout.writeInt(MAGIC);
+        dout.writeInt(VERSION);
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        try {
+          skipFully(in, HEADER_BYTES);
+          Record r = new Record();
+          for (long offset = HEADER_BYTES; offset < end; offset += r.size) {
+            readRecord(in, r);
+            Long last = lastOffsets.get(r.key);
+            if (last != null && last == offset) {
+              writeRecord(dout, r.op, r.key, r.value);
+              ++numRecords;
+            }
+          }
+        } finally {
+          in.close();
+        }
+        dout.flush();
+
+        // Copy the records committed since the start, and switch the files.
+        synchronized (this) {
+          int numNewRecords = 0;
+          in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+          try {
+            skipFully(in, end);
+            Record r = new Record();
+            for (long offset = end; offset < mSize; offset += r.size) {
+              if (!readRecord(in, r)) throw new IOException(mFile + ": corrupt record at " + offset);
+              writeRecord(dout, r.op, r.key, r.value);
+              ++numNewRecords;
+            }
+          } finally {
+            in.close();
+          }
+          dout.flush();
+          out.getFD().sync();
+          out.close();
+          if (!tmp.renameTo(mFile)) throw new IOException("Could not rename " + tmp + " to " + mFile);
+          mSize = mFile.length();
+          mNumRecords = numRecords + numNewRecords;
+          done = true;
+        }
+      } finally {
+        out.close();
+      }
+    } finally {
+      if (!done) tmp.delete();
+      synchronized (this) { mCompacting = false; }
+    }
+  }
+
+  private void addPending(byte op, String key, byte[] value) {
+    try {
+      writeRecord(mPendingOut, op, key, value);
+    } catch (IOException e) {
+      throw new AssertionError("ByteArrayOutputStream: " + e.getMessage());
+    }
+    ++mNumPending;
+    if (op == OP_PUT) {
+      mLiveKeys.add(key);
+    } else {
+      mLiveKeys.remove(key);
+    }
+  }
+
+  private static class Record {
+    byte op;
+    String key;
+    byte[] value;
+    int size;  // bytes in the file, including the length and the checksum
+  }
+
+  private static void writeRecord(DataOutputStream out, byte op, String key, byte[] value)
+      throws IOException {
+    ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    DataOutputStream pout = new DataOutputStream(payload);
+    pout.writeByte(op);
+    pout.writeUTF(key);
+    if (value != null) pout.write(value);
+    pout.flush();
+    byte[] bytes = payload.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    out.writeInt(bytes.length);
+    out.writeInt((int)crc.getValue());
+    out.write(bytes);
+  }
+
+  // Read the next record into "r". Return false at the end of the file, or if the record is
+  // truncated or corrupt.
+  private static boolean readRecord(DataInputStream in, Record r) throws IOException {
+    final int length;
+    final int checksum;
+    byte[] bytes;
+    try {
+      length = in.readInt();
+      checksum = in.readInt();
+      if (length < 3 || length > MAX_RECORD_BYTES) return false;
+      bytes = new byte[length];
+      in.readFully(bytes);
+    } catch (EOFException e) {
+      return false;
+    }
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    if ((int)crc.getValue() != checksum) return false;
+
+    DataInputStream pin = new DataInputStream(new ByteArrayInputStream(bytes));
+    r.op = pin.readByte();
+    if (r.op != OP_PUT && r.op != OP_REMOVE) return false;
+    r.key = pin.readUTF();
+    final int keyEnd = length - pin.available();
+    if (r.op == OP_PUT) {
+      r.value = new byte[length - keyEnd];
+      System.arraycopy(bytes, keyEnd, r.value, 0, r.value.length);
+    } else {
+      r.value = null;
+    }
+    r.size = 8 + length;
+    return true;
+  }
+
+  private static void skipFully(InputStream in, long n) throws IOException {
+    while (n > 0) {
+      final long skipped = in.skip(n);
+      if (skipped <= 0) throw new EOFException();
+      n -= skipped;
+    }
+  }
+
+  private void truncate(long size) throws IOException {
+    RandomAccessFile f = new RandomAccessFile(mFile, "rw");
+    try {
+      f.setLength(size);
+    } finally {
+      f.close();
+    }
+  }
+}
@@ -0,0 +1,178 @@
+package com.ysaito.shogi;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Splits a KIF file into lines and classifies each line by looking at its first
+ * characters. Used by GameLog to parse KIF files in a single pass without regular
+ * expressions.
+ *
+ * Lines are separated the same way as java.util.Scanner.nextLine(), which this class
+ * replaces: CR LF, or any one of CR, LF, U+2028, U+2029, and U+0085.
+ */
+final class KifLexer {
+  // Values returned by next()
+  static final int EOF = 0;
+  static final int STANDARD_ATTR = 1;  // "先手：name". See name() and value().
+  static final int OTHER_ATTR = 2;     // "name：value" for a name not in GameLog.STANDARD_ATTR_NAMES
+  static final int DATE = 3;           // "開始日時：date". See value().
+  static final int PLAY = 4;           // "  12 ７六歩(77)". The play starts at line()[playBegin()].
+  static final int SKIP = 5;           // The header of the plays, or the result of the game.
+  static final int UNKNOWN = 6;
+
+  KifLexer(Reader in) {
+    mIn = in;
+    mBuf = new char[8192];
+    mLineBuf = new char[256];
+  }
+
+  /**
+   * Read the next line, and return its kind.
+   */
+  final int next() throws IOException {
+    mLine = readLine();
+    if (mLine == null) return EOF;
+    return lex(mLine);
+  }
+
+  /**
+   * Classify "line" the same way as next() classifies a line read from the input.
+   */
+  final int lex(String line) {
+    mLine = line;
+    final int length = line.length();
+    if (length == 0) return UNKNOWN;
+    final char c = line.charAt(0);
+
+    // Only a play starts with a space or a digit.
+    if ((isSpace(c) || isDigit(c)) && lexPlay(line)) return PLAY;
+
+    for (String name : GameLog.STANDARD_ATTR_NAMES) {
+      if (line.startsWith(name) && length > name.length() && isColon(line.charAt(name.length()))) {
+        int i = name.length() + 1;
+        while (i < length && isSpace(line.charAt(i))) ++i;
+        mName = name;
+        mValue = line.substring(i);
+        return STANDARD_ATTR;
+      }
+    }
+    if (line.startsWith(DATE_ATTR_NAME) && length > DATE_ATTR_NAME.length() &&
+        isColon(line.charAt(DATE_ATTR_NAME.length()))) {
+      mValue = line.substring(DATE_ATTR_NAME.length() + 1);
+      return DATE;
+    }
+    if (line.startsWith("手数") || line.startsWith("まで")) return SKIP;
+    if (lexOtherAttr(line)) return OTHER_ATTR;
+    return UNKNOWN;
+  }
+
+  /** The line read by the last call to next(). */
+  final String line() { return mLine; }
+
+  /** The attribute name, for STANDARD_ATTR and OTHER_ATTR. */
+  final String name() { return mName; }
+
+  /** The attribute value, for STANDARD_ATTR, OTHER_ATTR, and DATE. */
+  final String value() { return mValue; }
+
+  /** The index of the first character of the play in line(), for PLAY. */
+  final int playBegin() { return mPlayBegin; }
+
+  /** The number of lines read so far. */
+  final int lineNumber() { return mLineNumber; }
+
+  private static final String DATE_ATTR_NAME = "開始日時";
+
+  // A play line is spaces, the play number, one or more spaces, and the play.
+  private final boolean lexPlay(String line) {
+    final int length = line.length();
+    int i = 0;
+    while (i < length && isSpace(line.charAt(i))) ++i;
+    final int digits = i;
+    while (i < length && isDigit(line.charAt(i))) ++i;
+    if (i == digits) return false;
+    final int spaces = i;
+    while (i < length && isSpace(line.charAt(i))) ++i;
+    if (i == spaces) return false;
+    mPlayBegin = i;
+    return true;
+  }
+
+  // "name：value", where the name has no spaces and the value is non-empty. The
+  // name extends to the last colon that satisfies the conditions.
+  private final boolean lexOtherAttr(String line) {
+    final int length = line.length();
+    int end = 0;
+    while (end < length && !isSpace(line.charAt(end))) ++end;
+    // The colon must be in [1, end), and can't be the last character.
+    for (int i = Math.min(end, length - 1) - 1; i >= 1; --i) {
+      if (isColon(line.charAt(i))) {
+        mName = line.substring(0, i);
+        mValue = line.substring(i + 1);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // The characters in regex class \s.
+  static final boolean isSpace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000b' || c == '\f' || c == '\r';
+  }
+
+  private static final boolean isDigit(char c) { return c >= '0' && c <= '9'; }
+
+  private static final boolean isColon(char c) { return c == '：' || c == ':'; }
+
+  // Return the next line without the separator, or null at the end of the input.
+  private final String readLine() throws IOException {
+    int n = 0;
+    for (;;) {
+      if (mPos == mLimit) {
+        mLimit = mIn.read(mBuf, 0, mBuf.length);
+        mPos = 0;
+        if (mLimit <= 0) {
+          mLimit = 0;
+          if (n == 0) return null;
+          break;
+        }
+      }
+      final char c = mBuf[mPos++];
+      if (mSkipLf) {
+        mSkipLf = false;
+        if (c == '\n') continue;
+      }
+      if (c == '\n' || c == '\r' || c == '\u2028' || c == '\u2029' || c == '\u0085') {
+        mSkipLf = (c == '\r');
+        break;
+      }
+      if (n == mLineBuf.length) {
+        char[] tmp = new char[n * 2];
+        System.arraycopy(mLineBuf, 0, tmp, 0, n);
+        mLineBuf = tmp;
+      }
+      mLineBuf[n++] = c;
+    }
+    ++mLineNumber;
+    return new String(mLineBuf, 0, n);
+  }
+
+  private final Reader mIn;
+
+  // mBuf[mPos, mLimit) is the input read but not consumed yet.
+  private final char[] mBuf;
+  private int mPos;
+  private int mLimit;
+
+  // The last line ended with '\r', so a '\n' that follows is a part of the separator.
+  private boolean mSkipLf;
+
+  private char[] mLineBuf;
+  private int mLineNumber;
+
+  private String mLine;
+  private String mName;
+  private String mValue;
+  private int mPlayBegin;
+}
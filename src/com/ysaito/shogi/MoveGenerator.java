@@ -0,0 +1,254 @@
+package com.ysaito.shogi;
+
+import java.util.ArrayList;
+
+/**
+ * Legal move generator on top of the bitboard index kept by Board.
+ *
+ * Unlike Board.possibleMoveDestinations(), the plays generated here are legal. They take
+ * into account drops, promotions, nifu (two unpromoted pawns on the same file), pieces
+ * that would have no legal move afterwards (e.g., a pawn on the last row), moves that leave
+ * the player's own king in check, and uchifuzume (checkmate by dropping a pawn).
+ * Sennichite is not checked, since it depends on the history of the game.
+ */
+public class MoveGenerator {
+  private MoveGenerator() { }
+
+  /**
+   * Append all the legal plays by "player" on "board" to "plays".
+   *
+   * @return the number of plays appended.
+   */
+  public static int listLegalPlays(Board board, Player player, ArrayList<Play> plays) {
+    return new Generator(board, player, plays, false, true).run();
+  }
+
+  /**
+   * Return the number of legal plays by "player" on "board".
+   */
+  public static int countLegalPlays(Board board, Player player) {
+    return new Generator(board, player, null, false, true).run();
+  }
+
+  /**
+   * Check if "player" has any legal play. If false, the player is checkmated (or stalemated,
+   * which can't happen in a real game).
+   */
+  public static boolean hasLegalPlay(Board board, Player player) {
+    return new Generator(board, player, null, true, true).run() > 0;
+  }
+
+  /**
+   * Check if "play" by "player" is legal on "board".
+   */
+  public static boolean isLegalPlay(Board board, Player player, Play play) {
+    ArrayList<Play> plays = new ArrayList<Play>();
+    listLegalPlays(board, player, plays);
+    return plays.contains(play);
+  }
+
+  static final boolean canPromote(int type) {
+    return type == Piece.FU || type == Piece.KYO || type == Piece.KEI ||
+        type == Piece.GIN || type == Piece.KAKU || type == Piece.HI;
+  }
+
+  // Check if a piece of "type" owned by "player" has any move when placed on row "y".
+  static final boolean hasMoveFromRow(Player player, int type, int y) {
+    final int row = (player == Player.BLACK) ? y : Board.DIM - 1 - y;
+    if (type == Piece.FU || type == Piece.KYO) return row >= 1;
+    if (type == Piece.KEI) return row >= 2;
+    return true;
+  }
+
+  static final boolean isInPromotionZone(Player player, int y) {
+    return (player == Player.BLACK) ? y <= 2 : y >= Board.DIM - 3;
+  }
+
+  private static final class Generator {
+    public Generator(Board board, Player player, ArrayList<Play> plays,
+        boolean firstOnly, boolean withDrops) {
+      mBoard = board;
+      mPlayer = player;
+      mOpponent = player.opponent();
+      mPlayerIndex = BitBoard.playerIndex(player);
+      mSign = (player == Player.BLACK) ? 1 : -1;
+      mPlays = plays;
+      mFirstOnly = firstOnly;
+      mWithDrops = withDrops;
+    }
+
+    // Generate plays. Return the number of plays found.
+    public final int run() {
+      mKing = mBoard.kingSquare(mPlayer);
+      mInCheck = (mKing >= 0 && mBoard.isAttacked(mKing, mOpponent));
+      generateBoardPlays();
+      if (mWithDrops && !mDone) generateDrops();
+      return mCount;
+    }
+
+    private final void generateBoardPlays() {
+      final int own = Board.occupancyIndex(mPlayer);
+      final long ownLow = mBoard.lowBits(own);
+      final long ownHigh = mBoard.highBits(own);
+      for (int type = Piece.FU; type < Piece.NUM_TYPES && !mDone; ++type) {
+        if (!BitBoard.isValidType(type)) continue;
+        final int piece = mSign * type;
+        final int index = Board.bitsIndex(piece);
+        long low = mBoard.lowBits(index);
+        long high = mBoard.highBits(index);
+        while (low != 0 && !mDone) {
+          final int from = Long.numberOfTrailingZeros(low);
+          low &= low - 1;
+          generateFrom(piece, type, from, ownLow, ownHigh);
+        }
+        while (high != 0 && !mDone) {
+          final int from = 64 + Long.numberOfTrailingZeros(high);
+          high &= high - 1;
+          generateFrom(piece, type, from, ownLow, ownHigh);
+        }
+      }
+    }
+
+    private final void generateFrom(int piece, int type, int from, long ownLow, long ownHigh) {
+      final int step = BitBoard.stepIndex(mPlayerIndex, type, from);
+      long low = BitBoard.STEP_LOW[step] & ~ownLow;
+      long high = BitBoard.STEP_HIGH[step] & ~ownHigh;
+      while (low != 0) {
+        final int to = Long.numberOfTrailingZeros(low);
+        low &= low - 1;
+        addBoardPlay(piece, type, from, to);
+      }
+      while (high != 0) {
+        final int to = 64 + Long.numberOfTrailingZeros(high);
+        high &= high - 1;
+        addBoardPlay(piece, type, from, to);
+      }
+      for (int dir : BitBoard.slideDirections(mPlayerIndex, type)) {
+        for (int to : BitBoard.ray(dir, from)) {
+          final int target = mBoard.pieceAt(to);
+          if (target * mSign > 0) break;  // blocked by own piece
+          addBoardPlay(piece, type, from, to);
+          if (target != Piece.EMPTY) break;
+        }
+      }
+    }
+
+    private final void addBoardPlay(int piece, int type, int from, int to) {
+      if (!isSafeBoardPlay(piece, from, to)) return;
+      final int toY = to / Board.DIM;
+      if (canPromote(type) &&
+          (isInPromotionZone(mPlayer, from / Board.DIM) || isInPromotionZone(mPlayer, toY))) {
+        emit(Board.promote(piece), from, to);
+      }
+      if (hasMoveFromRow(mPlayer, type, toY)) emit(piece, from, to);
+    }
+
+    // Check that moving "piece" from "from" to "to" doesn't leave the player's king in check.
+    private final boolean isSafeBoardPlay(int piece, int from, int to) {
+      if (mKing < 0) return true;
+      if (!mInCheck && from != mKing && BitBoard.direction(mKing, from) < 0) {
+        // The piece isn't pinned, so moving it can't expose the king.
+        return true;
+      }
+      final int captured = mBoard.pieceAt(to);
+      mBoard.putPiece(from, Piece.EMPTY);
+      mBoard.putPiece(to, piece);
+      final boolean safe = !mBoard.isAttacked((from == mKing) ? to : mKing, mOpponent);
+      mBoard.putPiece(to, captured);
+      mBoard.putPiece(from, piece);
+      return safe;
+    }
+
+    private final void generateDrops() {
+      final int captured = mBoard.capturedBits(mPlayer);
+      if (captured == 0) return;
+      final int black = Board.occupancyIndex(Player.BLACK);
+      final int white = Board.occupancyIndex(Player.WHITE);
+      final long emptyLow = ~(mBoard.lowBits(black) | mBoard.lowBits(white));
+      final long emptyHigh = ~(mBoard.highBits(black) | mBoard.highBits(white)) & BitBoard.HIGH_MASK;
+
+      for (int type = Piece.FU; type <= Piece.HI && !mDone; ++type) {
+        if (Board.numCapturedPieces(captured, type) == 0) continue;
+        long low = emptyLow;
+        long high = emptyHigh;
+        for (int y = 0; y < Board.DIM; ++y) {
+          if (!hasMoveFromRow(mPlayer, type, y)) {
+            low &= ~BitBoard.ROW_LOW[y];
+            high &= ~BitBoard.ROW_HIGH[y];
+          }
+        }
+        if (type == Piece.FU) {
+          // Nifu
+          final int pawns = Board.bitsIndex(mSign * Piece.FU);
+          for (int x = 0; x < Board.DIM; ++x) {
+            if ((mBoard.lowBits(pawns) & BitBoard.FILE_LOW[x]) != 0 ||
+                (mBoard.highBits(pawns) & BitBoard.FILE_HIGH[x]) != 0) {
+              low &= ~BitBoard.FILE_LOW[x];
+              high &= ~BitBoard.FILE_HIGH[x];
+            }
+          }
+        }
+        final int piece = mSign * type;
+        while (low != 0 && !mDone) {
+          final int to = Long.numberOfTrailingZeros(low);
+          low &= low - 1;
+          addDrop(piece, to);
+        }
+        while (high != 0 && !mDone) {
+          final int to = 64 + Long.numberOfTrailingZeros(high);
+          high &= high - 1;
+          addDrop(piece, to);
+        }
+      }
+    }
+
+    private final void addDrop(int piece, int to) {
+      if (mInCheck) {
+        mBoard.putPiece(to, piece);
+        final boolean safe = !mBoard.isAttacked(mKing, mOpponent);
+        mBoard.putPiece(to, Piece.EMPTY);
+        if (!safe) return;
+      }
+      if (piece * mSign == Piece.FU && isPawnDropMate(piece, to)) return;
+      emit(piece, -1, to);
+    }
+
+    // Check if dropping "pawn" at "to" checkmates the opponent (uchifuzume).
+    private final boolean isPawnDropMate(int pawn, int to) {
+      final int front = to - mSign * Board.DIM;
+      if (front != mBoard.kingSquare(mOpponent)) return false;
+      mBoard.putPiece(to, pawn);
+      // The pawn checks from an adjacent square, so only a board move can resolve the check.
+      final boolean mate = (new Generator(mBoard, mOpponent, null, true, false).run() == 0);
+      mBoard.putPiece(to, Piece.EMPTY);
+      return mate;
+    }
+
+    private final void emit(int piece, int from, int to) {
+      ++mCount;
+      if (mPlays != null) {
+        if (from < 0) {
+          mPlays.add(new Play(piece, -1, -1, to % Board.DIM, to / Board.DIM));
+        } else {
+          mPlays.add(new Play(piece, from % Board.DIM, from / Board.DIM,
+              to % Board.DIM, to / Board.DIM));
+        }
+      }
+      if (mFirstOnly) mDone = true;
+    }
+
+    private final Board mBoard;
+    private final Player mPlayer;
+    private final Player mOpponent;
+    private final int mPlayerIndex;
+    private final int mSign;  // 1 if mPlayer is BLACK, -1 if WHITE
+    private final ArrayList<Play> mPlays;  // may be null
+    private final boolean mFirstOnly;  // stop after finding one play
+    private final boolean mWithDrops;
+
+    private int mKing;  // square of mPlayer's king, or -1
+    private boolean mInCheck;
+    private int mCount;
+    private boolean mDone;
+  }
+}
@@ -0,0 +1,65 @@
+package com.ysaito.shogi;
+
+import java.util.ArrayList;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.DialogInterface;
+import android.os.AsyncTask;
+
+/**
+ * Dialog that shows the plays made from a position in the game logs, with the number of
+ * games and their results. Choosing a play replays the newest game that made it.
+ *
+ * The statistics are read by GameLogListManager.openingStats().
+ */
+public class OpeningStatsDialog {
+  /**
+   * Show the plays made from "board" with "nextPlayer" to move. "prevPlay" is the play that
+   * led to "board", or null. "board" may be modified after this method returns.
+   */
+  public static void show(final Activity activity, Board board, final Player nextPlayer, final Play prevPlay) {
+    final Board b = new Board(board);
+    new AsyncTask<Void, String, ArrayList<OpeningTree.Stats>>() {
+      private final ArrayList<GameLog> mExamples = new ArrayList<GameLog>();
+
+      @Override
+      protected ArrayList<OpeningTree.Stats> doInBackground(Void... unused) {
+        GameLogListManager manager = GameLogListManager.getInstance();
+        // Read the summary first, so that openingStats() knows which examples are still there.
+        GameLogIndex index = manager.getIndex(activity);
+        ArrayList<OpeningTree.Stats> stats = manager.openingStats(activity, b.hashKey(nextPlayer));
+        for (OpeningTree.Stats s : stats) mExamples.add((s.example != null) ? index.get(s.example) : null);
+        return stats;
+      }
+
+      @Override
+      protected void onPostExecute(ArrayList<OpeningTree.Stats> stats) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(activity);
+        builder.setTitle(R.string.opening_stats);
+        if (stats.isEmpty()) {
+          builder.setMessage(R.string.opening_stats_none);
+        } else {
+          String[] labels = new String[stats.size()];
+          for (int i = 0; i < labels.length; ++i) {
+            OpeningTree.Stats s = stats.get(i);
+            labels[i] = activity.getResources().getString(
+                R.string.opening_stats_item,
+                GameStatusView.traditionalPlayNotation(b, Play.decode(s.play), prevPlay),
+                s.games, s.blackWins, s.whiteWins, s.draws);
+          }
+          builder.setItems(labels, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int which) {
+              GameLog example = mExamples.get(which);
+              if (example != null) GameLogListActivity.replayGame(activity, example);
+            }
+          });
+        }
+        builder.setNegativeButton(android.R.string.cancel, new DialogInterface.OnClickListener() {
+          public void onClick(DialogInterface dialog, int which) { }
+        });
+        builder.create().show();
+      }
+    }.execute();
+  }
+}
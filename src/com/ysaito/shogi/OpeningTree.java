@@ -0,0 +1,587 @@
+package com.ysaito.shogi;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Statistics of the plays made from each position in a set of games, for an opening
+ * explorer. For each position reached within the first MAX_PLY plays of a game, it has the
+ * plays made from the position, and for each play, the number of games, their results (see
+ * GameLog.result()), and the newest game that made it.
+ *
+ * The statistics are kept in parallel arrays:
+ *
+ *   positions: a hash table keyed by Board.hashKey(), with open addressing. Each position
+ *     has a list of its plays.
+ *   plays: the packed play (see Play.encode()), the next play of the same position, the
+ *     counts, and the example game.
+ *   games: the fingerprint, date, and result of each game, and the plays it made, so that
+ *     remove() can subtract the game without its log.
+ *
+ * add() and remove() update the statistics incrementally. addAll() replays the games in
+ * parallel, each thread into a tree of its own, and merges the trees. write() saves the
+ * arrays as they are, so read() loads them without rehashing. This class is thread safe.
+ */
+public class OpeningTree {
+  /** The statistics of a play from a position. See find(). */
+  public static class Stats {
+    public Stats(int p, int g, int bw, int ww, int d, String e) {
+      play = p;
+      games = g;
+      blackWins = bw;
+      whiteWins = ww;
+      draws = d;
+      example = e;
+    }
+
+    // The play, packed. See Play.decode().
+    public final int play;
+
+    // The number of games that made the play, and those that black won, white won, and drew.
+    // The games whose result is unknown count only in "games".
+    public final int games;
+    public final int blackWins;
+    public final int whiteWins;
+    public final int draws;
+
+    // The fingerprint of the newest game that made the play, or null if it has been removed.
+    public final String example;
+  }
+
+  /** Only the first MAX_PLY plays of each game are counted. */
+  public static final int MAX_PLY = 40;
+
+  private static final int MAGIC = 0x534f5054;  // "SOPT"
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 32;
+  private static final int GAME_BYTES = 32;  // the length of GameLog.fingerprint()
+
+  // The counts of each play in mCounts.
+  private static final int COUNT_GAMES = 0;
+  private static final int COUNT_BLACK_WINS = 1;
+  private static final int COUNT_WHITE_WINS = 2;
+  private static final int COUNT_DRAWS = 3;
+  private static final int NUM_COUNTS = 4;
+
+  // The position table. A slot is empty if mPosFirst is -1. Its size is a power of two, and
+  // at most half of the slots are used.
+  private long[] mPosKeys;
+  private int[] mPosFirst;  // the first play of the position
+  private int mNumPositions;
+
+  // The plays. A play whose game count dropped to 0 by remove() stays in its list.
+  private int[] mPlay;
+  private int[] mNext;  // the next play of the same position, or -1
+  private int[] mCounts;  // NUM_COUNTS per play
+  private int[] mExample;  // the index of the example game, or -1
+  private int mNumPlays;
+
+  // The games. A removed game leaves a hole (null fingerprint), which write() drops.
+  private String[] mGameFingerprints;
+  private long[] mGameDates;
+  private byte[] mGameResults;  // GameState.ordinal()
+  private int[][] mGamePlays;  // the plays made by each game, in order
+  private int mNumGames;
+
+  // maps fingerprint -> the index of the game
+  private final HashMap<String, Integer> mGameIndexes;
+
+  public OpeningTree() {
+    mPosKeys = new long[1024];
+    mPosFirst = newFilledArray(1024, -1);
+    mPlay = new int[1024];
+    mNext = new int[1024];
+    mCounts = new int[1024 * NUM_COUNTS];
+    mExample = new int[1024];
+    mGameFingerprints = new String[64];
+    mGameDates = new long[64];
+    mGameResults = new byte[64];
+    mGamePlays = new int[64][];
+    mGameIndexes = new HashMap<String, Integer>();
+  }
+
+  private static int[] newFilledArray(int size, int value) {
+    int[] a = new int[size];
+    for (int i = 0; i < size; ++i) a[i] = value;
+    return a;
+  }
+
+  /** Return the number of games counted. */
+  public synchronized int numGames() { return mGameIndexes.size(); }
+
+  /** Return the number of positions, including those whose plays are all removed. */
+  public synchronized int numPositions() { return mNumPositions; }
+
+  public synchronized boolean contains(String fingerprint) { return mGameIndexes.containsKey(fingerprint); }
+
+  /** Return a newly created list of the fingerprints of the games counted. */
+  public synchronized ArrayList<String> fingerprints() {
+    return new ArrayList<String>(mGameIndexes.keySet());
+  }
+
+  /**
+   * Return the statistics of the plays made from the position whose Board.hashKey() is "key",
+   * the most frequent play first.
+   */
+  public synchronized ArrayList<Stats> find(long key) {
+    ArrayList<Stats> stats = new ArrayList<Stats>();
+    final int slot = findSlot(key);
+    if (mPosFirst[slot] < 0) return stats;
+    for (int p = mPosFirst[slot]; p >= 0; p = mNext[p]) {
+      final int c = p * NUM_COUNTS;
+      if (mCounts[c + COUNT_GAMES] == 0) continue;
+      stats.add(new Stats(mPlay[p], mCounts[c + COUNT_GAMES], mCounts[c + COUNT_BLACK_WINS],
+                          mCounts[c + COUNT_WHITE_WINS], mCounts[c + COUNT_DRAWS],
+                          (mExample[p] < 0) ? null : mGameFingerprints[mExample[p]]));
+    }
+    Collections.sort(stats, BY_GAMES);
+    return stats;
+  }
+
+  private static final Comparator<Stats> BY_GAMES = new Comparator<Stats>() {
+    public int compare(Stats s1, Stats s2) {
+      if (s1.games != s2.games) return (s1.games > s2.games) ? -1 : 1;
+      return (s1.play < s2.play) ? -1 : (s1.play == s2.play ? 0 : 1);
+    }
+  };
+
+  /**
+   * Count "log", which must have the plays, unless it is counted already. Return whether
+   * it was added. A game whose plays can't be replayed is counted up to the failure.
+   */
+  public synchronized boolean add(GameLog log) {
+    if (mGameIndexes.containsKey(log.fingerprint())) return false;
+    Board board = new Board();
+    final int numPlays = Math.min(log.numPlays(), MAX_PLY);
+    long[] keys = new long[numPlays];
+    int n = 0;
+    try {
+      board.initialize(log.handicap());
+      Player player = Player.BLACK;
+      for (; n < numPlays; ++n) {
+        keys[n] = board.hashKey(player);
+        board.applyPly(player, log.play(n));
+        player = player.opponent();
+      }
+    } catch (InvalidParameterException e) {
+      // An unknown handicap.
+    } catch (RuntimeException e) {
+      // A play that doesn't fit the board, e.g., in a broken KIF file.
+    } catch (AssertionError e) {
+    }
+    final int game = newGame(log.fingerprint(), log.getDate(), log.result(), n);
+    for (int i = 0; i < n; ++i) countPlay(game, i, findOrAddPlay(keys[i], log.packedPlay(i)));
+    return true;
+  }
+
+  /**
+   * Remove the game with "fingerprint", if any.
+   */
+  public synchronized void remove(String fingerprint) {
+    Integer game = mGameIndexes.remove(fingerprint);
+    if (game == null) return;
+    final int result = mGameResults[game];
+    for (int p : mGamePlays[game]) {
+      final int c = p * NUM_COUNTS;
+      --mCounts[c + COUNT_GAMES];
+      final int r = resultCount(result);
+      if (r >= 0) --mCounts[c + r];
+      if (mExample[p] == game) mExample[p] = -1;
+    }
+    mGameFingerprints[game] = null;
+    mGamePlays[game] = null;
+  }
+
+  /**
+   * Count the games in "logs" that aren't counted yet, using up to "numThreads" threads.
+   * A log without plays is read by "reader". A game whose plays can't be read because of an
+   * I/O error isn't counted, so that the next call tries it again. A game whose plays can't be
+   * parsed is counted without plays, so it isn't tried again. Return the number of games added.
+   */
+  public int addAll(List<GameLog> logs, final PositionIndex.PlayReader reader, int numThreads) {
+    final ArrayList<GameLog> toAdd = new ArrayList<GameLog>();
+    for (GameLog log : logs) {
+      if (!contains(log.fingerprint())) toAdd.add(log);
+    }
+    if (toAdd.isEmpty()) return 0;
+    final int numSlices = Math.max(1, Math.min(numThreads, toAdd.size()));
+    if (numSlices == 1) return merge(build(toAdd, 0, toAdd.size(), reader));
+
+    ArrayList<Callable<OpeningTree>> tasks = new ArrayList<Callable<OpeningTree>>();
+    for (int i = 0; i < numSlices; ++i) {
+      final int begin = (int)((long)toAdd.size() * i / numSlices);
+      final int end = (int)((long)toAdd.size() * (i + 1) / numSlices);
+      tasks.add(new Callable<OpeningTree>() {
+        @Override
+        public OpeningTree call() {
+          return build(toAdd, begin, end, reader);
+        }
+      });
+    }
+    ExecutorService threads = Executors.newFixedThreadPool(numSlices);
+    int added = 0;
+    try {
+      for (Future<OpeningTree> f : threads.invokeAll(tasks)) added += merge(f.get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      throw new AssertionError("OpeningTree.addAll: " + Util.throwableToString(e.getCause()));
+    } finally {
+      threads.shutdownNow();
+    }
+    return added;
+  }
+
+  // Count logs[begin, end) in a new tree.
+  private static OpeningTree build(List<GameLog> logs, int begin, int end, PositionIndex.PlayReader reader) {
+    OpeningTree tree = new OpeningTree();
+    for (int i = begin; i < end; ++i) {
+      GameLog log = logs.get(i);
+      try {
+        if (!log.hasPlays()) {
+          GameLog full = reader.readPlays(log);
+          if (!full.fingerprint().equals(log.fingerprint())) continue;  // changed since listed
+          log = full;
+        }
+      } catch (IOException e) {
+        continue;
+      } catch (ParseException e) {
+        log = null;
+      } catch (RuntimeException e) {
+        log = null;  // e.g., a bug in a parser
+      }
+      if (log != null) {
+        tree.add(log);
+      } else {
+        GameLog header = logs.get(i);
+        if (!tree.contains(header.fingerprint())) {
+          tree.newGame(header.fingerprint(), header.getDate(), header.result(), 0);
+        }
+      }
+    }
+    return tree;
+  }
+
+  /**
+   * Add the games of "other" that aren't counted yet. Return the number of games added.
+   * "other" must not be modified concurrently.
+   */
+  public int merge(OpeningTree other) {
+    // The position of each play of "other".
+    long[] keys = new long[other.mNumPlays];
+    for (int slot = 0; slot < other.mPosFirst.length; ++slot) {
+      for (int p = other.mPosFirst[slot]; p >= 0; p = other.mNext[p]) keys[p] = other.mPosKeys[slot];
+    }
+    int added = 0;
+    synchronized (this) {
+      for (int g = 0; g < other.mNumGames; ++g) {
+        final String fingerprint = other.mGameFingerprints[g];
+        if (fingerprint == null || mGameIndexes.containsKey(fingerprint)) continue;
+        final int[] plays = other.mGamePlays[g];
+        final int game = newGame(fingerprint, other.mGameDates[g],
+                                 GameState.values()[other.mGameResults[g]], plays.length);
+        for (int i = 0; i < plays.length; ++i) {
+          countPlay(game, i, findOrAddPlay(keys[plays[i]], other.mPlay[plays[i]]));
+        }
+        ++added;
+      }
+    }
+    return added;
+  }
+
+  private int newGame(String fingerprint, long date, GameState result, int numPlays) {
+    if (mNumGames == mGameFingerprints.length) {
+      final int n = Math.max(64, mNumGames * 2);
+      String[] fingerprints = new String[n];
+      long[] dates = new long[n];
+      byte[] results = new byte[n];
+      int[][] plays = new int[n][];
+      System.arraycopy(mGameFingerprints, 0, fingerprints, 0, mNumGames);
+      System.arraycopy(mGameDates, 0, dates, 0, mNumGames);
+      System.arraycopy(mGameResults, 0, results, 0, mNumGames);
+      System.arraycopy(mGamePlays, 0, plays, 0, mNumGames);
+      mGameFingerprints = fingerprints;
+      mGameDates = dates;
+      mGameResults = results;
+      mGamePlays = plays;
+    }
+    final int game = mNumGames++;
+    mGameFingerprints[game] = fingerprint;
+    mGameDates[game] = date;
+    mGameResults[game] = (byte)result.ordinal();
+    mGamePlays[game] = new int[numPlays];
+    mGameIndexes.put(fingerprint, game);
+    return game;
+  }
+
+  // Count play "p" as the i'th play of "game".
+  private void countPlay(int game, int i, int p) {
+    mGamePlays[game][i] = p;
+    final int c = p * NUM_COUNTS;
+    ++mCounts[c + COUNT_GAMES];
+    final int r = resultCount(mGameResults[game]);
+    if (r >= 0) ++mCounts[c + r];
+    if (mExample[p] < 0 || mGameDates[mExample[p]] <= mGameDates[game]) mExample[p] = game;
+  }
+
+  // The count in mCounts of the games with "result" (GameState.ordinal()), or -1 if none.
+  private static int resultCount(int result) {
+    if (result == GameState.BLACK_WON.ordinal()) return COUNT_BLACK_WINS;
+    if (result == GameState.WHITE_WON.ordinal()) return COUNT_WHITE_WINS;
+    if (result == GameState.DRAW.ordinal()) return COUNT_DRAWS;
+    return -1;
+  }
+
+  // Return the slot of "key" in the position table, or the empty slot where it would go.
+  private int findSlot(long key) {
+    final int mask = mPosKeys.length - 1;
+    // The keys are Zobrist hashes, so their low bits are random enough.
+    int slot = (int)key & mask;
+    while (mPosFirst[slot] >= 0 && mPosKeys[slot] != key) slot = (slot + 1) & mask;
+    return slot;
+  }
+
+  // Return the index of "play" from position "key", adding it if needed.
+  private int findOrAddPlay(long key, int play) {
+    int slot = findSlot(key);
+    int last = -1;
+    for (int p = mPosFirst[slot]; p >= 0; p = mNext[p]) {
+      if (mPlay[p] == play) return p;
+      last = p;
+    }
+    if (mNumPlays == mPlay.length) growPlays();
+    final int p = mNumPlays++;
+    mPlay[p] = play;
+    mNext[p] = -1;
+    mExample[p] = -1;
+    if (last >= 0) {
+      mNext[last] = p;
+    } else {
+      mPosKeys[slot] = key;
+      mPosFirst[slot] = p;
+      if (++mNumPositions * 2 > mPosKeys.length) rehash(mPosKeys.length * 2);
+    }
+    return p;
+  }
+
+  private void growPlays() {
+    final int n = Math.max(1024, mNumPlays * 2);
+    int[] play = new int[n];
+    int[] next = new int[n];
+    int[] counts = new int[n * NUM_COUNTS];
+    int[] example = new int[n];
+    System.arraycopy(mPlay, 0, play, 0, mNumPlays);
+    System.arraycopy(mNext, 0, next, 0, mNumPlays);
+    System.arraycopy(mCounts, 0, counts, 0, mNumPlays * NUM_COUNTS);
+    System.arraycopy(mExample, 0, example, 0, mNumPlays);
+    mPlay = play;
+    mNext = next;
+    mCounts = counts;
+    mExample = example;
+  }
+
+  private void rehash(int size) {
+    long[] oldKeys = mPosKeys;
+    int[] oldFirst = mPosFirst;
+    mPosKeys = new long[size];
+    mPosFirst = newFilledArray(size, -1);
+    for (int i = 0; i < oldKeys.length; ++i) {
+      if (oldFirst[i] < 0) continue;
+      final int slot = findSlot(oldKeys[i]);
+      mPosKeys[slot] = oldKeys[i];
+      mPosFirst[slot] = oldFirst[i];
+    }
+  }
+
+  /**
+   * Save the tree in "file", replacing it atomically. The removed games are dropped.
+   *
+   * The file is laid out as follows. All the integers are big-endian.
+   *
+   *   header (HEADER_BYTES): int MAGIC, int VERSION, int MAX_PLY, int tableSize,
+   *     int numPlays, int numGames, int numGamePlays, int 0
+   *   long[tableSize] position keys, int[tableSize] the first play of each position
+   *   int[numPlays] plays, int[numPlays] next plays, int[numPlays * NUM_COUNTS] counts,
+   *   int[numPlays] example games
+   *   long[numGames] dates, int[numGames + 1] the offset of the plays of each game in:
+   *   int[numGamePlays] the plays of the games
+   *   numGames * GAME_BYTES fingerprints in ASCII, byte[numGames] results
+   */
+  public synchronized void write(File file) throws IOException {
+    // Renumber the games to drop the holes.
+    int[] renumber = new int[mNumGames];
+    int numGames = 0;
+    long numGamePlays = 0;
+    for (int g = 0; g < mNumGames; ++g) {
+      if (mGameFingerprints[g] == null) {
+        renumber[g] = -1;
+      } else {
+        renumber[g] = numGames++;
+        numGamePlays += mGamePlays[g].length;
+      }
+    }
+    final File tmp = new File(file.getPath() + ".tmp");
+    boolean done = false;
+    try {
+      FileOutputStream f = new FileOutputStream(tmp);
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(f, 65536));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(MAX_PLY);
+        out.writeInt(mPosKeys.length);
+        out.writeInt(mNumPlays);
+        out.writeInt(numGames);
+        out.writeInt((int)numGamePlays);
+        out.writeInt(0);
+        for (long key : mPosKeys) out.writeLong(key);
+        for (int first : mPosFirst) out.writeInt(first);
+        for (int i = 0; i < mNumPlays; ++i) out.writeInt(mPlay[i]);
+        for (int i = 0; i < mNumPlays; ++i) out.writeInt(mNext[i]);
+        for (int i = 0; i < mNumPlays * NUM_COUNTS; ++i) out.writeInt(mCounts[i]);
+        for (int i = 0; i < mNumPlays; ++i) out.writeInt((mExample[i] < 0) ? -1 : renumber[mExample[i]]);
+        for (int g = 0; g < mNumGames; ++g) {
+          if (renumber[g] >= 0) out.writeLong(mGameDates[g]);
+        }
+        int offset = 0;
+        out.writeInt(0);
+        for (int g = 0; g < mNumGames; ++g) {
+          if (renumber[g] < 0) continue;
+          offset += mGamePlays[g].length;
+          out.writeInt(offset);
+        }
+        for (int g = 0; g < mNumGames; ++g) {
+          if (renumber[g] < 0) continue;
+          for (int p : mGamePlays[g]) out.writeInt(p);
+        }
+        for (int g = 0; g < mNumGames; ++g) {
+          if (renumber[g] >= 0) out.writeBytes(mGameFingerprints[g]);
+        }
+        for (int g = 0; g < mNumGames; ++g) {
+          if (renumber[g] >= 0) out.writeByte(mGameResults[g]);
+        }
+        out.flush();
+        f.getFD().sync();
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(file)) throw new IOException("Could not rename " + tmp + " to " + file);
+      done = true;
+    } finally {
+      if (!done) tmp.delete();
+    }
+  }
+
+  /**
+   * Read a tree saved by write(). The tree is checked, so that a corrupt file can't make
+   * the other methods fail.
+   *
+   * @throws IOException if the file can't be read, or wasn't written by this version with
+   * the same MAX_PLY.
+   */
+  public static OpeningTree read(File file) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    ByteBuffer buf;
+    try {
+      FileChannel channel = in.getChannel();
+      buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      in.close();
+    }
+    final String path = file.getAbsolutePath();
+    final long size = buf.capacity();
+    if (size < HEADER_BYTES || buf.getInt(0) != MAGIC) throw new IOException(path + ": not an opening tree");
+    if (buf.getInt(4) != VERSION || buf.getInt(8) != MAX_PLY) {
+      throw new IOException(path + ": written by another version");
+    }
+    final int tableSize = buf.getInt(12);
+    final int numPlays = buf.getInt(16);
+    final int numGames = buf.getInt(20);
+    final int numGamePlays = buf.getInt(24);
+    if (tableSize < 2 || (tableSize & (tableSize - 1)) != 0 || numPlays < 0 || numGames < 0 || numGamePlays < 0 ||
+        size != HEADER_BYTES + tableSize * 12L + numPlays * (3L + NUM_COUNTS) * 4 +
+                numGames * (8L + 4 + GAME_BYTES + 1) + 4 + numGamePlays * 4L) {
+      throw new IOException(path + ": invalid header");
+    }
+
+    OpeningTree t = new OpeningTree();
+    buf.position(HEADER_BYTES);
+    t.mPosKeys = new long[tableSize];
+    buf.asLongBuffer().get(t.mPosKeys);
+    buf.position(buf.position() + tableSize * 8);
+    t.mPosFirst = readInts(buf, tableSize);
+    t.mPlay = readInts(buf, numPlays);
+    t.mNext = readInts(buf, numPlays);
+    t.mCounts = readInts(buf, numPlays * NUM_COUNTS);
+    t.mExample = readInts(buf, numPlays);
+    t.mNumPlays = numPlays;
+    t.mGameDates = new long[numGames];
+    buf.asLongBuffer().get(t.mGameDates);
+    buf.position(buf.position() + numGames * 8);
+    int[] offsets = readInts(buf, numGames + 1);
+    int[] gamePlays = readInts(buf, numGamePlays);
+    byte[] fingerprints = new byte[numGames * GAME_BYTES];
+    buf.get(fingerprints);
+    t.mGameResults = new byte[numGames];
+    buf.get(t.mGameResults);
+
+    for (int slot = 0; slot < tableSize; ++slot) {
+      final int first = t.mPosFirst[slot];
+      if (first < -1 || first >= numPlays) throw new IOException(path + ": invalid position table");
+      if (first >= 0) ++t.mNumPositions;
+    }
+    if (t.mNumPositions * 2 > tableSize) throw new IOException(path + ": invalid position table");
+    for (int p = 0; p < numPlays; ++p) {
+      // A list must end, so a play must come after the play linking to it.
+      if ((t.mNext[p] != -1 && t.mNext[p] <= p) || t.mNext[p] >= numPlays ||
+          t.mExample[p] < -1 || t.mExample[p] >= numGames) {
+        throw new IOException(path + ": invalid play " + p);
+      }
+    }
+    t.mGameFingerprints = new String[numGames];
+    t.mGamePlays = new int[numGames][];
+    char[] chars = new char[GAME_BYTES];
+    for (int g = 0; g < numGames; ++g) {
+      if (offsets[g] < 0 || offsets[g] > offsets[g + 1] || offsets[g + 1] > numGamePlays ||
+          t.mGameResults[g] < 0 || t.mGameResults[g] >= GameState.values().length) {
+        throw new IOException(path + ": invalid game " + g);
+      }
+      t.mGamePlays[g] = new int[offsets[g + 1] - offsets[g]];
+      for (int i = 0; i < t.mGamePlays[g].length; ++i) {
+        final int p = gamePlays[offsets[g] + i];
+        if (p < 0 || p >= numPlays) throw new IOException(path + ": invalid game " + g);
+        t.mGamePlays[g][i] = p;
+      }
+      for (int i = 0; i < GAME_BYTES; ++i) chars[i] = (char)(fingerprints[g * GAME_BYTES + i] & 0xff);
+      t.mGameFingerprints[g] = new String(chars);
+      t.mGameIndexes.put(t.mGameFingerprints[g], g);
+    }
+    t.mNumGames = numGames;
+    if (t.mGameIndexes.size() != numGames) throw new IOException(path + ": duplicate games");
+    return t;
+  }
+
+  private static int[] readInts(ByteBuffer buf, int n) {
+    int[] a = new int[n];
+    buf.asIntBuffer().get(a);
+    buf.position(buf.position() + n * 4);
+    return a;
+  }
+}
@@ -0,0 +1,199 @@
+package com.ysaito.shogi;
+
+import java.security.InvalidParameterException;
+
+/**
+ * Fixed-width binary encoding of a position -- the pieces on the board, the pieces in
+ * hand, and the player to move -- in PACKED_BYTES bytes. Two positions are equal iff
+ * their encodings are equal, so the encoding can be used as a key.
+ *
+ * The encoding is a stream of bits, starting at the LSB of the first byte:
+ *
+ *   1 bit: the player to move; 1 for Player.WHITE.
+ *   7 bits each: the squares of Player.BLACK's and Player.WHITE's kings, or NO_KING.
+ *   For each square except the kings', in order: a Huffman code of the piece. See CODES.
+ *   For each piece in Player.BLACK's hand, then in Player.WHITE's hand: the Huffman code
+ *     of the piece without its first bit.
+ *   The rest: 1s.
+ *
+ * A piece on the board is followed by a promotion bit (unless it's a KIN) and the owner
+ * bit (1 for Player.WHITE). A piece in hand is followed by the same bits, with the
+ * promotion bit 0. Moving a piece between the board and a hand doesn't change the
+ * length of the stream, so a position with the 40 pieces of a game fills the
+ * 256 bits exactly. Positions with fewer pieces, e.g., handicap games, are shorter.
+ */
+public class PackedPosition {
+  public static final int PACKED_BYTES = 32;
+
+  /**
+   * Encode the position of "board" with "nextPlayer" to move, to a new array.
+   *
+   * @throws InvalidParameterException if the position has more pieces than a game has.
+   */
+  public static byte[] pack(Board board, Player nextPlayer) {
+    byte[] packed = new byte[PACKED_BYTES];
+    pack(board, nextPlayer, packed, 0);
+    return packed;
+  }
+
+  /**
+   * Encode the position of "board" with "nextPlayer" to move, to packed[offset, offset + PACKED_BYTES).
+   *
+   * @throws InvalidParameterException if the position has more pieces than a game has.
+   */
+  public static void pack(Board board, Player nextPlayer, byte[] packed, int offset) {
+    for (int i = 0; i < PACKED_BYTES; ++i) packed[offset + i] = 0;
+    final int blackKing = board.kingSquare(Player.BLACK);
+    final int whiteKing = board.kingSquare(Player.WHITE);
+    int pos = offset * 8;
+    pos = write(packed, pos, (nextPlayer == Player.WHITE) ? 1 : 0, 1);
+    pos = write(packed, pos, (blackKing >= 0) ? blackKing : NO_KING, 7);
+    pos = write(packed, pos, (whiteKing >= 0) ? whiteKing : NO_KING, 7);
+
+    final int end = (offset + PACKED_BYTES) * 8;
+    for (int sq = 0; sq < Board.DIM * Board.DIM; ++sq) {
+      if (sq == blackKing || sq == whiteKing) continue;
+      final int piece = board.pieceAt(sq);
+      if (piece == Piece.EMPTY) {
+        pos = checkedWrite(packed, pos, end, 0, 1);
+        continue;
+      }
+      final int type = Board.type(piece);
+      if (type == Piece.OU) throw new InvalidParameterException("More than one king of a player");
+      final boolean promoted = Board.isPromoted(piece);
+      final int base = promoted ? Board.type(Board.unpromote(piece)) : type;
+      pos = checkedWrite(packed, pos, end, CODES[base], CODE_LENGTHS[base]);
+      if (base != Piece.KIN) pos = checkedWrite(packed, pos, end, promoted ? 1 : 0, 1);
+      pos = checkedWrite(packed, pos, end, (piece < 0) ? 1 : 0, 1);
+    }
+
+    for (int i = 0; i < 2; ++i) {
+      final Player p = (i == 0) ? Player.BLACK : Player.WHITE;
+      for (int type = Piece.FU; type <= Piece.HI; ++type) {
+        final int n = board.handCount(p, type);
+        for (int j = 0; j < n; ++j) {
+          pos = checkedWrite(packed, pos, end, CODES[type] >>> 1, CODE_LENGTHS[type] - 1);
+          if (type != Piece.KIN) pos = checkedWrite(packed, pos, end, 0, 1);
+          pos = checkedWrite(packed, pos, end, i, 1);
+        }
+      }
+    }
+    while (pos < end) pos = write(packed, pos, 1, 1);
+  }
+
+  /**
+   * Set "board" to the position encoded in packed[offset, offset + PACKED_BYTES) by pack(),
+   * and return the player to move next.
+   */
+  public static Player unpack(byte[] packed, int offset, Board board) throws ParseException {
+    final int end = (offset + PACKED_BYTES) * 8;
+    int pos = offset * 8;
+    final Player nextPlayer = (read(packed, pos++) == 0) ? Player.BLACK : Player.WHITE;
+    final int blackKing = readBits(packed, pos, 7);
+    final int whiteKing = readBits(packed, pos + 7, 7);
+    pos += 14;
+    if (blackKing != NO_KING && blackKing >= Board.DIM * Board.DIM ||
+        whiteKing != NO_KING && whiteKing >= Board.DIM * Board.DIM ||
+        blackKing != NO_KING && blackKing == whiteKing) {
+      throw new ParseException("Invalid king squares: " + blackKing + ", " + whiteKing);
+    }
+
+    byte[] squares = new byte[Board.DIM * Board.DIM];
+    if (blackKing != NO_KING) squares[blackKing] = Piece.OU;
+    if (whiteKing != NO_KING) squares[whiteKing] = -Piece.OU;
+    for (int sq = 0; sq < Board.DIM * Board.DIM; ++sq) {
+      if (sq == blackKing || sq == whiteKing) continue;
+      if (pos >= end) throw new ParseException("Truncated position");
+      if (read(packed, pos++) == 0) continue;  // empty
+      final int type = readCode(packed, pos, end);
+      pos += CODE_LENGTHS[type] - 1;
+      int piece = type;
+      if (type != Piece.KIN) {
+        if (pos >= end) throw new ParseException("Truncated position");
+        if (read(packed, pos++) != 0) piece = Board.promote(piece);
+      }
+      if (pos >= end) throw new ParseException("Truncated position");
+      if (read(packed, pos++) != 0) piece = -piece;
+      squares[sq] = (byte)piece;
+    }
+
+    int capturedBlack = 0, capturedWhite = 0;
+    while (pos < end && !onlyOnes(packed, pos, end)) {
+      final int type = readCode(packed, pos, end);
+      pos += CODE_LENGTHS[type] - 1;
+      if (type != Piece.KIN) {
+        if (pos >= end || read(packed, pos++) != 0) {
+          throw new ParseException("Invalid piece in hand");
+        }
+      }
+      if (pos >= end) throw new ParseException("Truncated position");
+      final boolean white = read(packed, pos++) != 0;
+      final int bits = white ? capturedWhite : capturedBlack;
+      if (Board.numCapturedPieces(bits, type) >= Board.MAX_CAPTURED[type]) {
+        throw new ParseException("Too many pieces in hand");
+      }
+      if (white) {
+        capturedWhite = Board.addToCapturedBits(capturedWhite, type, 1);
+      } else {
+        capturedBlack = Board.addToCapturedBits(capturedBlack, type, 1);
+      }
+    }
+    board.restoreSquares(squares, 0, capturedBlack, capturedWhite);
+    return nextPlayer;
+  }
+
+  // The value of a king square for a player without a king.
+  private static final int NO_KING = 127;
+
+  // CODES[type] is the Huffman code of an unpromoted piece of "type" on the board,
+  // CODE_LENGTHS[type] bits long, starting from the LSB. An empty square is a single 0.
+  //
+  //   FU 10, KYO 1100, KEI 1101, GIN 1110, KIN 11110, KAKU 111110, HI 111111
+  private static final int[] CODES = { 0, 0x1, 0x3, 0xb, 0x7, 0xf, 0x1f, 0x3f };
+  private static final int[] CODE_LENGTHS = { 1, 2, 4, 4, 4, 5, 6, 6 };
+
+  // Read the Huffman code of a piece, except its first bit (always 1), starting at bit "pos".
+  // Return the piece type. The code occupies CODE_LENGTHS[type] - 1 bits.
+  private static final int readCode(byte[] packed, int pos, int end) throws ParseException {
+    int code = 1;
+    for (int length = 1;; ++length) {
+      for (int type = Piece.FU; type <= Piece.HI; ++type) {
+        if (CODE_LENGTHS[type] == length && CODES[type] == code) return type;
+      }
+      if (pos >= end || length >= CODE_LENGTHS[Piece.HI]) {
+        throw new ParseException("Invalid piece code");
+      }
+      code |= read(packed, pos++) << length;
+    }
+  }
+
+  private static final int read(byte[] packed, int pos) {
+    return (packed[pos >> 3] >> (pos & 7)) & 1;
+  }
+
+  private static final int readBits(byte[] packed, int pos, int length) {
+    int value = 0;
+    for (int i = 0; i < length; ++i) value |= read(packed, pos + i) << i;
+    return value;
+  }
+
+  private static final boolean onlyOnes(byte[] packed, int pos, int end) {
+    for (; pos < end; ++pos) {
+      if (read(packed, pos) == 0) return false;
+    }
+    return true;
+  }
+
+  // Write the low "length" bits of "value" at bit "pos". Return the new position.
+  private static final int write(byte[] packed, int pos, int value, int length) {
+    for (int i = 0; i < length; ++i, ++pos) {
+      packed[pos >> 3] |= ((value >> i) & 1) << (pos & 7);
+    }
+    return pos;
+  }
+
+  private static final int checkedWrite(byte[] packed, int pos, int end, int value, int length) {
+    if (pos + length > end) throw new InvalidParameterException("Too many pieces to pack");
+    return write(packed, pos, value, length);
+  }
+}
@@ -3,16 +3,16 @@
 package com.ysaito.shogi;
 
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * A class representing a single play
  */
-@SuppressWarnings("serial")
 public class Play implements Serializable {
+  // The value computed for the class as released, so that the plays in a summary written by
+  // that version can still be read. See GameLog.serialPersistentFields.
+  private static final long serialVersionUID = -4381746602972455370L;
+
   // Japanese move display support
   public static final String japaneseNumbers[] = {
     null, "一", "二", "三", "四", "五", "六", "七", "八", "九",    
@@ -44,6 +44,69 @@ public class Play implements Serializable {
   public final int toX() { return mToX; }
   public final int toY() { return mToY; }  
   
+  //
+  // Packed encoding. A play can be stored in an int as follows:
+  //
+  //   bits 0-6:   destination square (toX + toY * Board.DIM)
+  //   bits 7-13:  source square (fromX + fromY * Board.DIM). 0 when dropping a piece.
+  //   bits 14-17: type of the piece after the play (e.g., Piece.FU)
+  //   bit 18:     PACKED_WHITE, set if the piece is owned by Player.WHITE
+  //   bit 19:     PACKED_DROP, set when dropping a captured piece
+  //   bit 20:     PACKED_PROMOTE, set if the play is known to promote the piece. 
+  //
+  // PACKED_PROMOTE is informational only. A Play doesn't record whether it promoted 
+  // the piece, so encode(Play) never sets it, and decode() ignores it.
+  //
+  public static final int PACKED_WHITE = 1 << 18;
+  public static final int PACKED_DROP = 1 << 19;
+  public static final int PACKED_PROMOTE = 1 << 20;
+
+  /**
+   * Encode the play into an int. See above for the format.
+   */
+  public static final int encode(Play p) {
+    return encode(p.mPiece, p.mFromX, p.mFromY, p.mToX, p.mToY, false);
+  }
+
+  /**
+   * Encode the play into an int. The arguments are the same as Play's constructor. 
+   * "promote" should be true if the play is known to promote the piece.
+   */
+  public static final int encode(int piece, int fromX, int fromY, int toX, int toY, boolean promote) {
+    int v = toX + toY * Board.DIM;
+    if (fromX < 0) {
+      v |= PACKED_DROP;
+    } else {
+      v |= (fromX + fromY * Board.DIM) << 7;
+    }
+    v |= Board.type(piece) << 14;
+    if (piece < 0) v |= PACKED_WHITE;
+    if (promote) v |= PACKED_PROMOTE;
+    return v;
+  }
+
+  /**
+   * Reverse of encode().
+   */
+  public static final Play decode(int v) {
+    final int to = packedTo(v);
+    if ((v & PACKED_DROP) != 0) {
+      return new Play(packedPiece(v), -1, -1, to % Board.DIM, to / Board.DIM);
+    } else {
+      final int from = packedFrom(v);
+      return new Play(packedPiece(v), 
+          from % Board.DIM, from / Board.DIM, to % Board.DIM, to / Board.DIM);
+    }
+  }
+
+  // Accessors for the encoded value. packedFrom returns -1 when dropping a piece.
+  public static final int packedTo(int v) { return v & 0x7f; }
+  public static final int packedFrom(int v) { return (v & PACKED_DROP) != 0 ? -1 : (v >> 7) & 0x7f; }
+  public static final int packedPiece(int v) {
+    final int type = (v >> 14) & 0xf;
+    return (v & PACKED_WHITE) != 0 ? -type : type;
+  }
+
   @Override public boolean equals(Object o) {
     if (o instanceof Play) {
       Play m = (Play)o;
@@ -108,87 +171,123 @@ public class Play implements Serializable {
   }
   
   
-  //private static final Pattern KIF_MOVE_PATTERN = Pattern.compile("([1-9１-９])([一二三四五六七八九])(.+)\\((.)(.)\\)");
-  private static final Pattern KIF_MOVE_PATTERN = Pattern.compile("([1-9１-９])(.)(.+)\\((.)(.)\\)\\s*");
-  private static final Pattern KIF_MOVE2_PATTERN = Pattern.compile("同[　\\s]*(.+)\\((.)(.)\\)\\s*");
-  private static final Pattern KIF_DROP_PATTERN = Pattern.compile("([1-9１-９])([一二三四五六七八九])(.*)");
-  
   // Parse a KIF-format string. It looks like
   // "８四歩(83)" (move FU at 83 to 84). Returns null if the play is a noop.
   public static final Play fromKifString(Play prevMove, Player player, String kifMove) throws ParseException {
-    Matcher m = KIF_MOVE_PATTERN.matcher(kifMove);
+    return fromKifString(prevMove, player, kifMove, 0, kifMove.length());
+  }
+
+  // Parse kifMove[begin, end) without creating substrings. Three forms are accepted:
+  //
+  //   "８四歩(83)"  a move; the destination, the piece, and the source in parentheses
+  //   "同　歩(83)"  a move to the destination of prevMove
+  //   "８四歩打"    a drop; anything after the piece name is ignored
+  //
+  // Trailing spaces after the source are ignored.
+  static final Play fromKifString(Play prevMove, Player player, String kifMove, int begin, int end)
+      throws ParseException {
     try {
-      if (m.matches()) {
-        return new Play(japaneseToPiece(player, m.group(3)),
-            arabicToXCoord(m.group(4)), arabicToYCoord(m.group(5)),
-            arabicToXCoord(m.group(1)), japaneseToYCoord(m.group(2)));
+      int e = end;
+      while (e > begin && KifLexer.isSpace(kifMove.charAt(e - 1))) --e;
+      // Whether the play ends with "(xy)". The piece name is in [.., e - 4).
+      final boolean hasSource = e - begin >= 4 && 
+          kifMove.charAt(e - 1) == ')' && kifMove.charAt(e - 4) == '(';
+      final char first = kifMove.charAt(begin);
+      
+      if (hasSource && e - begin >= 7 && isKifDigit(first)) {
+        return new Play(japaneseToPiece(player, kifMove, begin + 2, e - 4),
+            arabicToXCoord(kifMove.charAt(e - 3)), arabicToYCoord(kifMove.charAt(e - 2)),
+            arabicToXCoord(first), japaneseToYCoord(kifMove.charAt(begin + 1)));
       }
-      if (prevMove != null) {
-        m = KIF_MOVE2_PATTERN.matcher(kifMove);
-        if (m.matches()) {
-          return new Play(japaneseToPiece(player, m.group(1)), 
-              arabicToXCoord(m.group(2)), arabicToYCoord(m.group(3)),
-              prevMove.mToX, prevMove.mToY);
+      if (prevMove != null && first == '同' && hasSource && e - begin >= 6) {
+        int i = begin + 1;
+        while (i < e - 4 && (kifMove.charAt(i) == '　' || KifLexer.isSpace(kifMove.charAt(i)))) ++i;
+        if (i == e - 4) {
+          throw new NumberFormatException("No piece name");
         }
+        return new Play(japaneseToPiece(player, kifMove, i, e - 4), 
+            arabicToXCoord(kifMove.charAt(e - 3)), arabicToYCoord(kifMove.charAt(e - 2)),
+            prevMove.mToX, prevMove.mToY);
       }
-      m = KIF_DROP_PATTERN.matcher(kifMove);
-      if (m.matches()) {
-        Play mm = new Play(japaneseToPiece(player, m.group(3)), 
-            -1, -1, arabicToXCoord(m.group(1)), japaneseToYCoord(m.group(2)));
-        return mm;
+      if (end - begin >= 2 && isKifDigit(first) && isJapaneseNumber(kifMove.charAt(begin + 1))) {
+        return new Play(japaneseToPiece(player, kifMove, begin + 2, end), 
+            -1, -1, arabicToXCoord(first), japaneseToYCoord(kifMove.charAt(begin + 1)));
       }
-      if (kifMove.startsWith("千日手")) {
-        // Ignore
-        // TODO(saito) Display the game outcome
+      if (kifMove.startsWith("千日手", begin)) {
+        // The end of the game. GameLog.parseKif() records the outcome; see GameLog.result().
         return null;
       }
-      throw new ParseException("Illegal play string: \"" + kifMove + "\"");
+      throw new ParseException("Illegal play string: \"" + kifMove.substring(begin, end) + "\"");
     } catch (NumberFormatException e) {
-      throw new ParseException("Failed to parse " + kifMove + ": " + e.getMessage()); 
+      throw new ParseException("Failed to parse " + kifMove.substring(begin, end) + ": " + e.getMessage()); 
+    } catch (IndexOutOfBoundsException e) {
+      throw new ParseException("Illegal play string: \"" + kifMove.substring(begin, end) + "\"");
     }
   }
 
-  private static int arabicToXCoord(String s) throws NumberFormatException {
-    char ch = s.charAt(0);
+  private static boolean isKifDigit(char ch) {
+    return (ch >= '1' && ch <= '9') || (ch >= '１' && ch <= '９');
+  }
+
+  private static boolean isJapaneseNumber(char ch) {
+    for (int i = 1; i < japaneseNumbers.length; ++i) {
+      if (japaneseNumbers[i].charAt(0) == ch) return true;
+    }
+    return false;
+  }
+
+  private static int arabicToXCoord(char ch) {
     final int n = (ch >= '０' ? ch - '０' : ch - '0');
     return 9 - n;
   }
 
-  private static int arabicToYCoord(String s) throws NumberFormatException {
-    char ch = s.charAt(0);
+  private static int arabicToYCoord(char ch) {
     final int n = (ch >= '０' ? ch - '０' : ch - '0');
     return n - 1;
   }
 
-  private static int japaneseToYCoord(String s) throws NumberFormatException {
-    for (int i = 0; i < japaneseNumbers.length; ++i) {
-      if (s.equals(japaneseNumbers[i])) return i - 1;
+  private static int japaneseToYCoord(char ch) throws NumberFormatException {
+    for (int i = 1; i < japaneseNumbers.length; ++i) {
+      if (japaneseNumbers[i].charAt(0) == ch) return i - 1;
     }
-    throw new NumberFormatException(s + ": is not a japanese numeric string");
+    throw new NumberFormatException(ch + ": is not a japanese numeric string");
   }
 
-  private static int japaneseToPiece(Player player, String s) throws NumberFormatException {
-    final boolean promoted = (s.indexOf("成") >= 0);
+  // Parse s[begin, end) as a piece name. The name may contain other characters,
+  // e.g., "歩成" or "金上".
+  private static int japaneseToPiece(Player player, String s, int begin, int end) throws NumberFormatException {
+    final boolean promoted = (indexOf(s, begin, end, "成") >= 0);
     for (Map.Entry<String, String> e: Piece.alternateJapaneseNames.entrySet()) {
-      if (e.getKey().equals(s)) {
+      final String alt = e.getKey();
+      if (end - begin == alt.length() && s.regionMatches(begin, alt, 0, alt.length())) {
         s = e.getValue();
+        begin = 0;
+        end = s.length();
         break;
       }
     }
     for (int i = 0; i < Piece.japaneseNames.length; ++i) {
       final String pieceName = Piece.japaneseNames[i];
-      if (pieceName != null && s.indexOf(pieceName) >= 0) {
+      if (pieceName != null && indexOf(s, begin, end, pieceName) >= 0) {
         int piece = i;
         if (promoted) {
           if (Board.isPromoted(piece)) {
-            throw new NumberFormatException(s + ": already promoted");
+            throw new NumberFormatException(s.substring(begin, end) + ": already promoted");
           }
           piece = Board.promote(piece);
         }
         return (player == Player.BLACK) ? piece : -piece;
       }
     }
-    throw new NumberFormatException(s + ": Failed to parse as a japanese Shogi piece name");
+    throw new NumberFormatException(s.substring(begin, end) + ": Failed to parse as a japanese Shogi piece name");
+  }
+
+  // Return the index of "target" in s[begin, end), or -1.
+  private static int indexOf(String s, int begin, int end, String target) {
+    for (int i = begin; i <= end - target.length(); ++i) {
+      if (s.regionMatches(i, target, 0, target.length())) return i;
+    }
+    return -1;
   }
 
   // Modifier bits. Used by TraditionalNotation.modifier.
@@ -268,8 +367,9 @@ public class Play implements Serializable {
       modifier |= PROMOTE;
       pieceBeforeMove = Board.unpromote(mPiece);
     }
-    ArrayList<Board.Position> others = listOtherMoveSources(board);
-    if (others.isEmpty()) {
+    final int[] others = mTmpSources.get();
+    final int numOthers = listOtherMoveSources(board, others);
+    if (numOthers == 0) {
       ;
     } else if (isDroppingCapturedPiece()) {
       modifier |= DROP;
@@ -278,8 +378,8 @@ public class Play implements Serializable {
       modifier |= myMoveDir;
       
       boolean hasPieceWithSameMoveDir = false;
-      for (Board.Position p: others) {
-        int dir = moveDirection(board, p.x, p.y, mToX, mToY);
+      for (int i = 0; i < numOthers; ++i) {
+        int dir = moveDirection(board, squareX(others[i]), squareY(others[i]), mToX, mToY);
         if (dir == myMoveDir) {
           hasPieceWithSameMoveDir = true;
         } 
@@ -296,9 +396,11 @@ public class Play implements Serializable {
         // There are only three possibilites --- the piece is to the right,
         // to the left, or in the center of other pieces.
         int relPos = 0;
-        for (Board.Position p: others) {
-          if (moveDirection(board, p.x, p.y, mToX, mToY) == myMoveDir) {
-            relPos |= relativePosition(mFromX, mFromY, p.x, p.y);
+        for (int i = 0; i < numOthers; ++i) {
+          final int x = squareX(others[i]);
+          final int y = squareY(others[i]);
+          if (moveDirection(board, x, y, mToX, mToY) == myMoveDir) {
+            relPos |= relativePosition(mFromX, mFromY, x, y);
           }
         }
         if (relPos == (LEFT | RIGHT)) relPos = CENTER;
@@ -336,38 +438,46 @@ public class Play implements Serializable {
     }
   }
   
-  // Find pieces other than the one at <fromX, fromX> 
-  // that can move or can be dropped at<toX, toY>. 
-  // For captured pieces, Position.x and Position.y
-  // are both -1. 
-  private final ArrayList<Board.Position> listOtherMoveSources(Board board) {
-    ArrayList<Board.Position> list = new ArrayList<Board.Position>();
-    for (int x = 0; x < Board.DIM; ++x) {
-      for (int y = 0; y < Board.DIM; ++y) {
-        if (x == mFromX && y == mFromY) continue;  // exclude this piece.
-        int otherPiece = board.getPiece(x, y);
+  // Scratch buffers used by toTraditionalNotation. Notations are computed both by the UI
+  // thread and by background threads (e.g., GameLog.toKif), so they are per-thread.
+  private static final ThreadLocal<int[]> mTmpSources = new ThreadLocal<int[]>() {
+    @Override protected synchronized int[] initialValue() { 
+      return new int[2 * Board.MAX_ATTACKERS + 1];
+    }
+  };
+  private static final ThreadLocal<int[]> mTmpAttackers = new ThreadLocal<int[]>() {
+    @Override protected synchronized int[] initialValue() { 
+      return new int[Board.MAX_ATTACKERS];
+    }
+  };
 
-        // We need disambiguation only when there are two pieces of the same type that
-        // can move to the same spot. 
-        if (maybeUnpromote(otherPiece) != maybeUnpromote(mPiece)) continue;
+  // Helpers for decoding the values stored by listOtherMoveSources.
+  private static final int squareX(int sq) { return (sq < 0) ? -1 : sq % Board.DIM; }
+  private static final int squareY(int sq) { return (sq < 0) ? -1 : sq / Board.DIM; }
 
-        // If otherPiece can move to <fromX,  fromY>, then we need disambiguation
-        for (Board.Position p : board.possibleMoveDestinations(x, y)) {
-          if (p.x == mToX && p.y == mToY) {
-            list.add(new Board.Position(x, y));
-            break;
-          }
-        }
-      }
+  // Find pieces other than the one at <fromX, fromX> 
+  // that can move or can be dropped at<toX, toY>. 
+  // Store the squares (x + y * Board.DIM) of the pieces in "sources" and return the number 
+  // of pieces found. For captured pieces, the square is -1.
+  //
+  // A piece and its promoted form are treated as the same kind. The pieces are found by
+  // Board.attackers(), so the cost doesn't depend on the number of pieces on the board.
+  private final int listOtherMoveSources(Board board, int[] sources) {
+    final int to = mToX + mToY * Board.DIM;
+    final int from = isDroppingCapturedPiece() ? -1 : mFromX + mFromY * Board.DIM;
+    final int unpromoted = maybeUnpromote(mPiece);
+    int n = listAttackers(board, to, unpromoted, from, sources, 0);
+    if (MoveGenerator.canPromote(Board.type(unpromoted))) {
+      n = listAttackers(board, to, Board.promote(unpromoted), from, sources, n);
     }
     
     if (board.getPiece(mToX, mToY) == 0 && !isDroppingCapturedPiece()) {
       // The destination is empty now, so we need to check if
       // there's a captured piece that can be dropped to <tox,toy>.
       Player me = Board.player(mPiece);
-      for (Board.CapturedPiece cp: board.getCapturedPieces(me)) {
+      if (board.handCount(me, Board.type(mPiece)) > 0) {
         boolean dropAllowed = true;
-        if (Board.type(cp.piece) == Piece.FU) {
+        if (Board.type(mPiece) == Piece.FU) {
           // Don't allow double pawns
           for (int y = 0; y < Board.DIM; ++y) {
             int piece = board.getPiece(mToX, y);
@@ -378,13 +488,22 @@ public class Play implements Serializable {
             }
           }
         }
-        if (dropAllowed && cp.piece == mPiece) {
-          list.add(new Board.Position(-1, -1));
-          break;
-        }
+        if (dropAllowed) sources[n++] = -1;
       }
     }
-    return list;
+    return n;
+  }
+
+  // Append the squares of the pieces equal to "piece", except "exclude", that can move to
+  // "to" to sources[n, ...). Return the new number of elements in "sources".
+  private static final int listAttackers(Board board, int to, int piece, int exclude,
+      int[] sources, int n) {
+    final int[] attackers = mTmpAttackers.get();
+    final int numAttackers = board.attackers(to, piece, attackers);
+    for (int i = 0; i < numAttackers; ++i) {
+      if (attackers[i] != exclude) sources[n++] = attackers[i];
+    }
+    return n;
   }
   
   static final int maybeUnpromote(int piece) {
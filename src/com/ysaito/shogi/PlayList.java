@@ -0,0 +1,78 @@
+package com.ysaito.shogi;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * A growable list of plays, each stored as an int in the format defined by Play.encode().
+ * Takes about 1/10 of the memory of an ArrayList<Play>, and serializes into a single int array.
+ */
+@SuppressWarnings("serial")
+public class PlayList implements Serializable {
+  public PlayList() {
+    mPlays = new int[16];
+  }
+
+  public PlayList(ArrayList<Play> plays) {
+    mPlays = new int[Math.max(16, plays.size())];
+    for (int i = 0; i < plays.size(); ++i) add(plays.get(i));
+  }
+
+  public final int size() { return mSize; }
+
+  /**
+   * Return the n'th play. A new Play object is created on every call. Use getPacked() to avoid allocation.
+   */
+  public final Play get(int n) { return Play.decode(getPacked(n)); }
+
+  /**
+   * Return the n'th play, encoded by Play.encode().
+   */
+  public final int getPacked(int n) {
+    if (n < 0 || n >= mSize) {
+      throw new IndexOutOfBoundsException("Index: " + n + ", Size: " + mSize);
+    }
+    return mPlays[n];
+  }
+
+  public final void add(Play play) { addPacked(Play.encode(play)); }
+
+  public final void addPacked(int play) {
+    if (mSize == mPlays.length) {
+      int[] tmp = new int[mSize * 2];
+      System.arraycopy(mPlays, 0, tmp, 0, mSize);
+      mPlays = tmp;
+    }
+    mPlays[mSize++] = play;
+  }
+
+  public final void clear() { mSize = 0; }
+
+  /**
+   * Return the plays as a newly created list.
+   */
+  public final ArrayList<Play> toArrayList() {
+    ArrayList<Play> plays = new ArrayList<Play>(mSize);
+    for (int i = 0; i < mSize; ++i) plays.add(get(i));
+    return plays;
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.writeInt(mSize);
+    for (int i = 0; i < mSize; ++i) out.writeInt(mPlays[i]);
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    mSize = in.readInt();
+    if (mSize < 0) throw new IOException("Invalid PlayList size: " + mSize);
+    mPlays = new int[Math.max(16, mSize)];
+    for (int i = 0; i < mSize; ++i) mPlays[i] = in.readInt();
+  }
+
+  // mPlays[0, mSize) stores the plays. Not serialized by the default mechanism.
+  private transient int[] mPlays;
+  private transient int mSize;
+}
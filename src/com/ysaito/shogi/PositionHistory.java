@@ -0,0 +1,150 @@
+package com.ysaito.shogi;
+
+/**
+ * The sequence of positions in a game, keyed by Board.hashKey(), for detecting
+ * sennichite (the same position repeated four times).
+ *
+ * push(), pop() and count() run in constant (amortized) time. The object doesn't allocate
+ * memory once it has grown to the length of the game.
+ */
+public class PositionHistory {
+  // A position repeated this many times ends the game as sennichite.
+  public static final int SENNICHITE_COUNT = 4;
+
+  public PositionHistory() {
+    mKeys = new long[64];
+    mTableKeys = new long[64];
+    mTableCounts = new int[64];
+  }
+
+  /**
+   * Remove all the positions.
+   */
+  public final void clear() {
+    mSize = 0;
+    for (int i = 0; i < mTableCounts.length; ++i) mTableCounts[i] = 0;
+    mTableSize = 0;
+  }
+
+  /**
+   * Append the position with "key" (a value returned by Board.hashKey()). Return the number
+   * of times the position has occurred, including this one.
+   */
+  public final int push(long key) {
+    if (mSize == mKeys.length) {
+      long[] tmp = new long[mSize * 2];
+      System.arraycopy(mKeys, 0, tmp, 0, mSize);
+      mKeys = tmp;
+    }
+    mKeys[mSize++] = key;
+    int slot = findSlot(key);
+    if (mTableCounts[slot] == 0) {
+      if ((mTableSize + 1) * 2 > mTableKeys.length) {
+        rehash(mTableKeys.length * 2);
+        slot = findSlot(key);
+      }
+      ++mTableSize;
+      mTableKeys[slot] = key;
+    }
+    return ++mTableCounts[slot];
+  }
+
+  /**
+   * Remove the last position pushed, e.g., when a move is undone.
+   */
+  public final void pop() {
+    Assert.isTrue(mSize > 0);
+    final long key = mKeys[--mSize];
+    removeFromTable(key);
+  }
+
+  /**
+   * Return the number of times the position with "key" has occurred.
+   */
+  public final int count(long key) {
+    return mTableCounts[findSlot(key)];
+  }
+
+  /**
+   * Check if the position with "key" has occurred SENNICHITE_COUNT times or more.
+   */
+  public final boolean isSennichite(long key) {
+    return count(key) >= SENNICHITE_COUNT;
+  }
+
+  /**
+   * Return the number of positions pushed.
+   */
+  public final int size() { return mSize; }
+
+  /**
+   * Return the key of the n'th position pushed. 0 <= n < size().
+   */
+  public final long key(int n) {
+    Assert.lt(n, mSize);
+    return mKeys[n];
+  }
+
+  // Return the slot that stores "key", or the empty slot where it should be stored.
+  // The table is open-addressed with linear probing. A slot is empty iff its count is 0.
+  private final int findSlot(long key) {
+    final int mask = mTableKeys.length - 1;
+    int i = hashSlot(key, mask);
+    while (mTableCounts[i] != 0 && mTableKeys[i] != key) {
+      i = (i + 1) & mask;
+    }
+    return i;
+  }
+
+  private static final int hashSlot(long key, int mask) {
+    return ((int)(key ^ (key >>> 32))) & mask;
+  }
+
+  private final void removeFromTable(long key) {
+    int i = findSlot(key);
+    Assert.isTrue(mTableCounts[i] > 0);
+    if (--mTableCounts[i] > 0) return;
+    --mTableSize;
+    // Shift the following entries of the probe sequence back, so that the lookups
+    // of the remaining keys don't stop at the hole.
+    final int mask = mTableKeys.length - 1;
+    int hole = i;
+    int j = (i + 1) & mask;
+    while (mTableCounts[j] != 0) {
+      final int home = hashSlot(mTableKeys[j], mask);
+      // Move j to the hole unless its home slot is cyclically in (hole, j].
+      final boolean inRange = (hole <= j) ? (hole < home && home <= j) : (hole < home || home <= j);
+      if (!inRange) {
+        mTableKeys[hole] = mTableKeys[j];
+        mTableCounts[hole] = mTableCounts[j];
+        mTableCounts[j] = 0;
+        hole = j;
+      }
+      j = (j + 1) & mask;
+    }
+  }
+
+  private final void rehash(int newCapacity) {
+    final long[] oldKeys = mTableKeys;
+    final int[] oldCounts = mTableCounts;
+    mTableKeys = new long[newCapacity];
+    mTableCounts = new int[newCapacity];
+    for (int i = 0; i < oldKeys.length; ++i) {
+      if (oldCounts[i] != 0) {
+        final int slot = findSlot(oldKeys[i]);
+        mTableKeys[slot] = oldKeys[i];
+        mTableCounts[slot] = oldCounts[i];
+      }
+    }
+  }
+
+  // mKeys[0, mSize) are the positions pushed, in order.
+  private long[] mKeys;
+  private int mSize;
+
+  // Hash table from a key to the number of occurrences in mKeys[0, mSize).
+  // The length of the arrays is a power of two.
+  private long[] mTableKeys;
+  private int[] mTableCounts;
+  private int mTableSize;
+}
@@ -0,0 +1,665 @@
+package com.ysaito.shogi;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * An index of the positions reached in a set of games, for finding the games that passed
+ * through a given position. It maps the key of each position, Board.hashKey(), which covers
+ * the player to move, to the fingerprints of the games that reached it and the number of
+ * plays made before it (the "ply"; the initial position is ply 0).
+ *
+ * The index is a directory of immutable segment files. Each add() replays the games that
+ * aren't indexed yet, in parallel, and writes their postings to new segments, so the index
+ * is built incrementally. merge() rewrites the segments as one, dropping the games that are
+ * no longer wanted. A segment is memory-mapped, and find() binary-searches each segment, so
+ * a query reads O(log(postings)) entries per segment, no matter how many games there are.
+ *
+ * A segment is laid out as follows. All the integers are big-endian.
+ *
+ *   header (HEADER_BYTES): int MAGIC, int VERSION, int numGames, int numPostings
+ *   games (numGames * GAME_BYTES): the fingerprints in ASCII, sorted
+ *   postings (numPostings * POSTING_BYTES), sorted by key, then by value:
+ *     long key, int (game << PLY_BITS | ply), where game is an index into the games
+ *
+ * A game is in at most one segment, except after a merge() that was interrupted before it
+ * removed the old segments; find() drops the duplicates, and the next merge() removes them.
+ * This class is thread safe. find() may run concurrently with add() and merge().
+ */
+public class PositionIndex {
+  /** The result of find(): "fingerprint" reached the position after "ply" plays. */
+  public static class Match {
+    public Match(String f, int p) { fingerprint = f; ply = p; }
+    public final String fingerprint;
+    public final int ply;
+
+    @Override public boolean equals(Object o) {
+      if (!(o instanceof Match)) return false;
+      Match m = (Match)o;
+      return fingerprint.equals(m.fingerprint) && ply == m.ply;
+    }
+    @Override public int hashCode() { return fingerprint.hashCode() * 31 + ply; }
+    @Override public String toString() { return fingerprint + "@" + ply; }
+  }
+
+  /**
+   * Reads the plays of a game passed to add() without them. See GameLogListManager.readPlays().
+   */
+  public interface PlayReader {
+    public GameLog readPlays(GameLog log) throws IOException, ParseException;
+  }
+
+  /** Plays after MAX_PLY aren't indexed. */
+  public static final int MAX_PLY = 1023;
+
+  /** add() writes a segment for every BATCH_GAMES games, which bounds the memory it uses. */
+  public static final int BATCH_GAMES = 4096;
+
+  /** merge() is needed when there are more segments than this. */
+  public static final int MAX_SEGMENTS = 8;
+
+  private static final int MAGIC = 0x53504958;  // "SPIX"
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 16;
+  private static final int GAME_BYTES = 32;  // the length of GameLog.fingerprint()
+  private static final int POSTING_BYTES = 12;
+  private static final int PLY_BITS = 10;
+  private static final int MAX_SEGMENT_GAMES = 1 << (31 - PLY_BITS);
+
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String TMP_SUFFIX = ".tmp";
+
+  private final File mDir;
+
+  // The segments, oldest first. Replaced, never modified, so find() can read a snapshot
+  // without holding the lock.
+  private Segment[] mSegments;
+
+  // The sequence number of the next segment file.
+  private int mNextSeq;
+
+  // Held by add() and merge() for their whole run, so that they don't run concurrently.
+  private final Object mBuildLock = new Object();
+
+  /**
+   * Open the index in "dir", creating the directory if needed. A segment that can't be read
+   * is deleted, so its games will be indexed again by add().
+   */
+  public PositionIndex(File dir) {
+    mDir = dir;
+    dir.mkdirs();
+    ArrayList<Segment> segments = new ArrayList<Segment>();
+    String[] names = dir.list();
+    if (names == null) names = new String[0];
+    Arrays.sort(names);
+    for (String name : names) {
+      File f = new File(dir, name);
+      if (name.endsWith(TMP_SUFFIX)) {
+        f.delete();  // left by a crash in writeSegment()
+        continue;
+      }
+      if (!name.startsWith(SEGMENT_PREFIX)) continue;
+      int seq;
+      try {
+        seq = Integer.parseInt(name.substring(SEGMENT_PREFIX.length()));
+      } catch (NumberFormatException e) {
+        continue;
+      }
+      mNextSeq = Math.max(mNextSeq, seq + 1);
+      try {
+        segments.add(Segment.open(f, seq));
+      } catch (IOException e) {
+        f.delete();
+      }
+    }
+    Collections.sort(segments);
+    mSegments = segments.toArray(new Segment[segments.size()]);
+  }
+
+  private synchronized Segment[] segments() { return mSegments; }
+
+  public final int numSegments() { return segments().length; }
+
+  /** Return the number of games indexed, including the duplicates, if any. */
+  public final int numGames() {
+    int n = 0;
+    for (Segment s : segments()) n += s.numGames;
+    return n;
+  }
+
+  /** Return the number of postings, i.e., the number of positions of the games indexed. */
+  public final long numPostings() {
+    long n = 0;
+    for (Segment s : segments()) n += s.numPostings;
+    return n;
+  }
+
+  /** Whether the game with "fingerprint" has been indexed. */
+  public final boolean contains(String fingerprint) {
+    for (Segment s : segments()) {
+      if (s.findGame(fingerprint) >= 0) return true;
+    }
+    return false;
+  }
+
+  /** Whether merge() should be called. */
+  public final boolean needsMerge() { return numSegments() > MAX_SEGMENTS; }
+
+  /**
+   * Return the games that reached the position whose Board.hashKey() is "key", in the order
+   * they were indexed. A game that reached the position more than once has a Match for each.
+   */
+  public final ArrayList<Match> find(long key) {
+    ArrayList<Match> matches = new ArrayList<Match>();
+    HashSet<Match> seen = null;
+    Segment[] segments = segments();
+    for (Segment s : segments) {
+      for (int i = s.lowerBound(key); i < s.numPostings && s.key(i) == key; ++i) {
+        final int value = s.value(i);
+        final int game = s.game(value);
+        if (game < 0) continue;
+        Match m = new Match(s.fingerprint(game), value & MAX_PLY);
+        if (segments.length > 1) {
+          if (seen == null) seen = new HashSet<Match>();
+          if (!seen.add(m)) continue;
+        }
+        matches.add(m);
+      }
+    }
+    return matches;
+  }
+
+  /**
+   * Index the positions of the games in "logs" that aren't indexed yet, using up to
+   * "numThreads" threads. A log without plays is read by "reader". A game whose plays can't
+   * be read because of an I/O error is left out, so that the next call tries it again. A game
+   * that can't be parsed or replayed is indexed up to the point of the failure, so it isn't
+   * tried again.
+   */
+  public void add(List<GameLog> logs, final PlayReader reader, int numThreads) throws IOException {
+    synchronized (mBuildLock) {
+      // Sort by fingerprint, which is the order of the games in a segment.
+      ArrayList<GameLog> toAdd = new ArrayList<GameLog>();
+      HashSet<String> seen = new HashSet<String>();
+      for (GameLog log : logs) {
+        final String fingerprint = log.fingerprint();
+        if (seen.add(fingerprint) && !contains(fingerprint)) toAdd.add(log);
+      }
+      Collections.sort(toAdd, BY_FINGERPRINT);
+
+      ExecutorService threads = (numThreads > 1 && toAdd.size() > 1) ?
+          Executors.newFixedThreadPool(numThreads) : null;
+      try {
+        for (int begin = 0; begin < toAdd.size(); begin += BATCH_GAMES) {
+          List<GameLog> batch = toAdd.subList(begin, Math.min(begin + BATCH_GAMES, toAdd.size()));
+          boolean[] unread = new boolean[batch.size()];
+          Postings p = replay(batch, unread, reader, threads, numThreads);
+
+          // Renumber the games without the unread ones, which have no postings.
+          int[] games = new int[batch.size()];
+          ArrayList<String> fingerprints = new ArrayList<String>(batch.size());
+          for (int i = 0; i < games.length; ++i) {
+            games[i] = fingerprints.size();
+            if (!unread[i]) fingerprints.add(batch.get(i).fingerprint());
+          }
+          if (fingerprints.isEmpty()) continue;
+          if (fingerprints.size() < batch.size()) p.renumberGames(games);
+          p.sort();
+          addSegment(writeSegment(fingerprints.toArray(new String[fingerprints.size()]), p));
+        }
+      } finally {
+        if (threads != null) threads.shutdownNow();
+      }
+    }
+  }
+
+  /**
+   * Rewrite the segments as one. Only the games that "live" contains are kept; if "live" is
+   * null, every game is kept.
+   */
+  public void merge(GameLogIndex live) throws IOException {
+    synchronized (mBuildLock) {
+      Segment[] old = segments();
+      if (old.length == 0) return;
+
+      // The games kept, sorted, and where each game of each segment goes, or -1.
+      ArrayList<String> games = new ArrayList<String>();
+      HashSet<String> seen = new HashSet<String>();
+      for (Segment s : old) {
+        for (int g = 0; g < s.numGames; ++g) {
+          final String fingerprint = s.fingerprint(g);
+          if ((live == null || live.contains(fingerprint)) && seen.add(fingerprint)) games.add(fingerprint);
+        }
+      }
+      if (games.size() > MAX_SEGMENT_GAMES) throw new IOException("Position index too large");
+      Collections.sort(games);
+      String[] fingerprints = games.toArray(new String[games.size()]);
+      int[][] remap = new int[old.length][];
+      for (int i = 0; i < old.length; ++i) {
+        Segment s = old[i];
+        remap[i] = new int[s.numGames];
+        for (int g = 0; g < s.numGames; ++g) remap[i][g] = -1;
+      }
+      // A game in more than one segment keeps the postings of the first.
+      seen.clear();
+      for (int i = 0; i < old.length; ++i) {
+        Segment s = old[i];
+        for (int g = 0; g < s.numGames; ++g) {
+          final String fingerprint = s.fingerprint(g);
+          final int index = Arrays.binarySearch(fingerprints, fingerprint);
+          if (index >= 0 && seen.add(fingerprint)) remap[i][g] = index;
+        }
+      }
+
+      Segment merged = writeSegment(fingerprints, new MergedPostings(old, remap));
+      synchronized (this) {
+        mSegments = new Segment[]{ merged };
+      }
+      // A query running on the old segments still reads their mappings after the files are gone.
+      for (Segment s : old) s.file.delete();
+    }
+  }
+
+  private synchronized void addSegment(Segment s) {
+    Segment[] segments = new Segment[mSegments.length + 1];
+    System.arraycopy(mSegments, 0, segments, 0, mSegments.length);
+    segments[mSegments.length] = s;
+    mSegments = segments;
+  }
+
+  private synchronized int nextSeq() { return mNextSeq++; }
+
+  // Replay "batch", using "threads", if not null, to replay up to "numThreads" slices of it in
+  // parallel. The i'th game of "batch" is game i in the postings. unread[i] is set if the
+  // plays of the i'th game couldn't be read because of an I/O error.
+  private static Postings replay(final List<GameLog> batch, final boolean[] unread,
+      final PlayReader reader, ExecutorService threads, int numThreads) throws IOException {
+    if (threads == null || batch.size() <= 1) return replay(batch, 0, batch.size(), unread, reader);
+    final int numSlices = Math.min(numThreads, batch.size());
+    ArrayList<Callable<Postings>> tasks = new ArrayList<Callable<Postings>>();
+    for (int i = 0; i < numSlices; ++i) {
+      final int begin = (int)((long)batch.size() * i / numSlices);
+      final int end = (int)((long)batch.size() * (i + 1) / numSlices);
+      tasks.add(new Callable<Postings>() {
+        @Override
+        public Postings call() {
+          return replay(batch, begin, end, unread, reader);
+        }
+      });
+    }
+    Postings all = new Postings();
+    try {
+      for (Future<Postings> f : threads.invokeAll(tasks)) all.addAll(f.get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted");
+    } catch (ExecutionException e) {
+      throw new AssertionError("PositionIndex.replay: " + Util.throwableToString(e.getCause()));
+    }
+    return all;
+  }
+
+  // Replay games [begin, end) of "batch". See replay() above.
+  private static Postings replay(List<GameLog> batch, int begin, int end, boolean[] unread,
+                                 PlayReader reader) {
+    Postings p = new Postings();
+    Board board = new Board();
+    for (int game = begin; game < end; ++game) {
+      GameLog log = batch.get(game);
+      try {
+        if (!log.hasPlays()) {
+          GameLog full = reader.readPlays(log);
+          if (!full.fingerprint().equals(log.fingerprint())) continue;  // changed since listed
+          log = full;
+        }
+        board.initialize(log.handicap());
+      } catch (IOException e) {
+        unread[game] = true;
+        continue;
+      } catch (ParseException e) {
+        continue;
+      } catch (RuntimeException e) {
+        continue;  // e.g., an unknown handicap, or a bug in a parser
+      }
+      final int numPlays = Math.min(log.numPlays(), MAX_PLY);
+      Player player = Player.BLACK;
+      p.add(board.hashKey(player), game << PLY_BITS);
+      try {
+        for (int ply = 1; ply <= numPlays; ++ply) {
+          board.applyPly(player, log.play(ply - 1));
+          player = player.opponent();
+          p.add(board.hashKey(player), (game << PLY_BITS) | ply);
+        }
+      } catch (RuntimeException e) {
+        // A play that doesn't fit the board, e.g., in a broken KIF file.
+      } catch (AssertionError e) {
+      }
+    }
+    return p;
+  }
+
+  // Write a new segment with "fingerprints", which are sorted, and "postings", which are
+  // sorted, and map it.
+  private Segment writeSegment(String[] fingerprints, PostingSource postings) throws IOException {
+    final int seq = nextSeq();
+    final File file = new File(mDir, String.format("%s%08d", SEGMENT_PREFIX, seq));
+    final File tmp = new File(file.getPath() + TMP_SUFFIX);
+    boolean done = false;
+    try {
+      FileOutputStream f = new FileOutputStream(tmp);
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(f, 65536));
+      try {
+        out.write(new byte[HEADER_BYTES]);  // written below
+        for (String fingerprint : fingerprints) {
+          if (fingerprint.length() != GAME_BYTES) {
+            throw new InvalidParameterException("Invalid fingerprint: " + fingerprint);
+          }
+          out.writeBytes(fingerprint);
+        }
+        long numPostings = 0;
+        while (postings.next()) {
+          out.writeLong(postings.key());
+          out.writeInt(postings.value());
+          ++numPostings;
+        }
+        if (HEADER_BYTES + (long)fingerprints.length * GAME_BYTES + numPostings * POSTING_BYTES > Integer.MAX_VALUE) {
+          throw new IOException("Position index segment too large");
+        }
+        out.flush();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putInt(VERSION).putInt(fingerprints.length).putInt((int)numPostings);
+        header.rewind();
+        FileChannel channel = f.getChannel();
+        while (header.hasRemaining()) channel.write(header, header.position());
+        f.getFD().sync();
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(file)) throw new IOException("Could not rename " + tmp + " to " + file);
+      Segment s = Segment.open(file, seq);
+      done = true;
+      return s;
+    } finally {
+      if (!done) {
+        tmp.delete();
+        file.delete();
+      }
+    }
+  }
+
+  private static final Comparator<GameLog> BY_FINGERPRINT = new Comparator<GameLog>() {
+    public int compare(GameLog l1, GameLog l2) {
+      return l1.fingerprint().compareTo(l2.fingerprint());
+    }
+  };
+
+  /** A sequence of postings, sorted by key. */
+  private interface PostingSource {
+    // Advance to the next posting. Return false at the end.
+    public boolean next();
+    public long key();
+    public int value();
+  }
+
+  /** Postings in parallel arrays, filled by replay(). */
+  private static class Postings implements PostingSource {
+    private long[] mKeys = new long[1024];
+    private int[] mValues = new int[1024];
+    private int mSize;
+    private int mPos = -1;  // the current posting of the PostingSource
+
+    public void add(long key, int value) {
+      if (mSize == mKeys.length) grow(mSize * 2);
+      mKeys[mSize] = key;
+      mValues[mSize] = value;
+      ++mSize;
+    }
+
+    // Replace game g in the values with games[g].
+    public void renumberGames(int[] games) {
+      for (int i = 0; i < mSize; ++i) {
+        mValues[i] = (games[mValues[i] >>> PLY_BITS] << PLY_BITS) | (mValues[i] & MAX_PLY);
+      }
+    }
+
+    public void addAll(Postings p) {
+      if (mSize + p.mSize > mKeys.length) grow(Math.max(mSize * 2, mSize + p.mSize));
+      System.arraycopy(p.mKeys, 0, mKeys, mSize, p.mSize);
+      System.arraycopy(p.mValues, 0, mValues, mSize, p.mSize);
+      mSize += p.mSize;
+    }
+
+    private void grow(int capacity) {
+      long[] keys = new long[capacity];
+      int[] values = new int[capacity];
+      System.arraycopy(mKeys, 0, keys, 0, mSize);
+      System.arraycopy(mValues, 0, values, 0, mSize);
+      mKeys = keys;
+      mValues = values;
+    }
+
+    // Sort by (key, value).
+    public void sort() { sort(0, mSize); }
+
+    // Quicksort [begin, end). Recurse on the smaller part, so the stack is O(log n) deep.
+    private void sort(int begin, int end) {
+      while (end - begin > 16) {
+        final int mid = (begin + end) >>> 1;
+        // Median of three.
+        if (less(mid, begin)) swap(mid, begin);
+        if (less(end - 1, mid)) {
+          swap(end - 1, mid);
+          if (less(mid, begin)) swap(mid, begin);
+        }
+        final long pivotKey = mKeys[mid];
+        final int pivotValue = mValues[mid];
+        int i = begin;
+        int j = end - 1;
+        while (i <= j) {
+          while (less(mKeys[i], mValues[i], pivotKey, pivotValue)) ++i;
+          while (less(pivotKey, pivotValue, mKeys[j], mValues[j])) --j;
+          if (i <= j) swap(i++, j--);
+        }
+        if (j - begin < end - i) {
+          sort(begin, j + 1);
+          begin = i;
+        } else {
+          sort(i, end);
+          end = j + 1;
+        }
+      }
+      for (int i = begin + 1; i < end; ++i) {
+        for (int j = i; j > begin && less(j, j - 1); --j) swap(j, j - 1);
+      }
+    }
+
+    private boolean less(int i, int j) { return less(mKeys[i], mValues[i], mKeys[j], mValues[j]); }
+
+    private static boolean less(long k1, int v1, long k2, int v2) {
+      return k1 < k2 || (k1 == k2 && v1 < v2);
+    }
+
+    private void swap(int i, int j) {
+      final long k = mKeys[i];
+      mKeys[i] = mKeys[j];
+      mKeys[j] = k;
+      final int v = mValues[i];
+      mValues[i] = mValues[j];
+      mValues[j] = v;
+    }
+
+    public boolean next() { return ++mPos < mSize; }
+    public long key() { return mKeys[mPos]; }
+    public int value() { return mValues[mPos]; }
+  }
+
+  /**
+   * The postings of several segments, merged by key. The game of each posting of segments[i]
+   * is renumbered by remap[i]; a posting whose game maps to -1 is dropped.
+   */
+  private static class MergedPostings implements PostingSource {
+    private final Segment[] mSegments;
+    private final int[][] mRemap;
+    private final int[] mPos;  // the next posting to read in each segment
+    private long mKey;
+    private int mValue;
+
+    public MergedPostings(Segment[] segments, int[][] remap) {
+      mSegments = segments;
+      mRemap = remap;
+      mPos = new int[segments.length];
+    }
+
+    public boolean next() {
+      while (true) {
+        // The number of segments is small, so a linear scan finds the smallest key quickly.
+        int min = -1;
+        long minKey = 0;
+        for (int i = 0; i < mSegments.length; ++i) {
+          if (mPos[i] >= mSegments[i].numPostings) continue;
+          final long key = mSegments[i].key(mPos[i]);
+          if (min < 0 || key < minKey) {
+            min = i;
+            minKey = key;
+          }
+        }
+        if (min < 0) return false;
+        final int value = mSegments[min].value(mPos[min]++);
+        final int oldGame = mSegments[min].game(value);
+        final int game = (oldGame < 0) ? -1 : mRemap[min][oldGame];
+        if (game < 0) continue;
+        mKey = minKey;
+        mValue = (game << PLY_BITS) | (value & MAX_PLY);
+        return true;
+      }
+    }
+
+    public long key() { return mKey; }
+    public int value() { return mValue; }
+  }
+
+  /** A segment file, mapped. */
+  private static class Segment implements Comparable<Segment> {
+    public final File file;
+    public final int seq;
+    public final int numGames;
+    public final int numPostings;
+    private final ByteBuffer mBuf;
+    private final int mPostingsOffset;
+
+    private Segment(File f, int s, ByteBuffer buf) throws IOException {
+      file = f;
+      seq = s;
+      mBuf = buf;
+      final long size = buf.capacity();
+      if (size < HEADER_BYTES || buf.getInt(0) != MAGIC) throw corrupt("not a position index segment");
+      if (buf.getInt(4) != VERSION) throw corrupt("unsupported version " + buf.getInt(4));
+      numGames = buf.getInt(8);
+      numPostings = buf.getInt(12);
+      if (numGames < 0 || numGames > MAX_SEGMENT_GAMES || numPostings < 0 ||
+          HEADER_BYTES + (long)numGames * GAME_BYTES + (long)numPostings * POSTING_BYTES != size) {
+        throw corrupt("invalid header");
+      }
+      mPostingsOffset = HEADER_BYTES + numGames * GAME_BYTES;
+      // The postings aren't checked here, since there may be millions of them. The readers
+      // check the game of each posting they use instead; see game().
+    }
+
+    public static Segment open(File file, int seq) throws IOException {
+      FileInputStream in = new FileInputStream(file);
+      try {
+        FileChannel channel = in.getChannel();
+        MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        return new Segment(file, seq, buf);
+      } finally {
+        // The mapping stays valid after the channel is closed.
+        in.close();
+      }
+    }
+
+    private IOException corrupt(String message) {
+      return new IOException(file.getAbsolutePath() + ": " + message);
+    }
+
+    public int compareTo(Segment other) {
+      return (seq < other.seq) ? -1 : (seq == other.seq ? 0 : 1);
+    }
+
+    public long key(int i) { return mBuf.getLong(mPostingsOffset + i * POSTING_BYTES); }
+    public int value(int i) { return mBuf.getInt(mPostingsOffset + i * POSTING_BYTES + 8); }
+
+    // Return the game of posting "value", or -1 if the segment is corrupt.
+    public int game(int value) {
+      final int game = value >>> PLY_BITS;
+      return (game < numGames) ? game : -1;
+    }
+
+    public String fingerprint(int game) {
+      char[] chars = new char[GAME_BYTES];
+      final int offset = HEADER_BYTES + game * GAME_BYTES;
+      for (int i = 0; i < GAME_BYTES; ++i) chars[i] = (char)(mBuf.get(offset + i) & 0xff);
+      return new String(chars);
+    }
+
+    // Return the index of the first posting whose key is "key" or larger.
+    public int lowerBound(long key) {
+      int lo = 0;
+      int hi = numPostings;
+      while (lo < hi) {
+        final int mid = (lo + hi) >>> 1;
+        if (key(mid) < key) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      return lo;
+    }
+
+    // Return the index of the game with "fingerprint", or -1.
+    public int findGame(String fingerprint) {
+      if (fingerprint.length() != GAME_BYTES) return -1;
+      int lo = 0;
+      int hi = numGames;
+      while (lo < hi) {
+        final int mid = (lo + hi) >>> 1;
+        final int cmp = compareGame(mid, fingerprint);
+        if (cmp == 0) return mid;
+        if (cmp < 0) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      return -1;
+    }
+
+    private int compareGame(int game, String fingerprint) {
+      final int offset = HEADER_BYTES + game * GAME_BYTES;
+      for (int i = 0; i < GAME_BYTES; ++i) {
+        final int c = (mBuf.get(offset + i) & 0xff) - fingerprint.charAt(i);
+        if (c != 0) return c;
+      }
+      return 0;
+    }
+  }
+}
@@ -44,6 +44,14 @@ public class ReplayGameActivity extends Activity {
   // Number of moves made so far. 0 means the beginning of the game.
   private int mNextPlay;
 
+  // mUndos[i] is the value returned by Board.applyPly() for mPlays.get(i).
+  // Valid for i in [mFirstUndo, mNextPlay).
+  private int[] mUndos;
+  private int mFirstUndo;
+
+  // Board snapshots for seeking to a distant play.
+  private CheckpointIndex mCheckpoints;
+
   private static final int MAX_PROGRESS = 1000; 
   
   @Override
@@ -56,7 +64,8 @@ public class ReplayGameActivity extends Activity {
     initializeInstanceState(savedInstanceState);
 
     mLog = (GameLog)getIntent().getSerializableExtra("gameLog");
-    Assert.isTrue(mLog.numPlays() > 0);
+    // GameLogListActivity.replayGame() reads the plays of a header in the background.
+    Assert.isTrue(mLog.hasPlays() && mLog.numPlays() > 0);
     
     mGameState = GameState.ACTIVE;
     mNextPlay = 0;
@@ -64,6 +73,9 @@ public class ReplayGameActivity extends Activity {
     mPlays = new ArrayList<Play>();
     mBoard.initialize(mLog.handicap());
     mNextPlayer = Player.BLACK;
+    mUndos = new int[mLog.numPlays()];
+    mFirstUndo = 0;
+    mCheckpoints = new CheckpointIndex(mLog, CheckpointIndex.DEFAULT_MAX_BYTES);
     
     mStatusView = (GameStatusView)findViewById(R.id.replay_gamestatusview);
     mStatusView.initialize(
@@ -121,26 +133,43 @@ public class ReplayGameActivity extends Activity {
    *  numMoves==mLog.numMoves-1 will recreate the final game state.
    */ 
   private final void replayUpTo(int numPlays) {
-    mBoard.initialize(mLog.handicap());
-    mNextPlayer = Player.BLACK;
-    mPlays.clear();
-    
+    if (numPlays < mFirstUndo || Math.abs(numPlays - mNextPlay) > mCheckpoints.interval()) {
+      // Far from the current state. Restore the state before the last play from 
+      // a snapshot. The last play is applied below, so that GameStatusView can 
+      // compute its notation.
+      final int start = Math.max(numPlays - 1, 0);
+      mFirstUndo = mCheckpoints.seek(mBoard, start, mUndos);
+      mNextPlay = start;
+      mNextPlayer = (start % 2 == 0) ? Player.BLACK : Player.WHITE;
+      while (mPlays.size() > start) mPlays.remove(mPlays.size() - 1);
+      while (mPlays.size() < start) mPlays.add(mLog.play(mPlays.size()));
+    }
+
+    // Step backward or forward from the current state of the game.
+    while (mNextPlay > numPlays) {
+      --mNextPlay;
+      mNextPlayer = mNextPlayer.opponent();
+      mBoard.undoPly(mNextPlayer, mPlays.remove(mNextPlay), mUndos[mNextPlay]);
+    }
     Play play = null;
-    Board lastBoard = mBoard;
-    
-    // Compute the state of the game @ numMoves
-    for (int i = 0; i < numPlays; ++i) {
-      play = mLog.play(i);
-      if (i == numPlays - 1) {
-        lastBoard = new Board(mBoard);
+    while (mNextPlay < numPlays) {
+      play = mLog.play(mNextPlay);
+      mPlays.add(play);
+      if (mNextPlay == numPlays - 1) {
+        // GameStatusView computes the notation of the last play from the state of
+        // the board before the play.
+        mStatusView.update(mGameState, mBoard, mBoard, mPlays, mNextPlayer.opponent(), null);
       }
-      mBoard.applyPly(mNextPlayer, play);
+      mUndos[mNextPlay] = mBoard.applyPly(mNextPlayer, play);
       mNextPlayer = mNextPlayer.opponent();
-      mPlays.add(play);
+      ++mNextPlay;
     }
-    mNextPlay = numPlays;
-    mStatusView.update(mGameState, lastBoard, mBoard, mPlays, mNextPlayer, null);
-    mBoardView.update(mGameState, lastBoard, mBoard, 
+    if (play == null) {
+      // Moved backward, or didn't move at all
+      play = (numPlays > 0 ? mPlays.get(numPlays - 1) : null);
+      mStatusView.update(mGameState, null, mBoard, mPlays, mNextPlayer, null);
+    }
+    mBoardView.update(mGameState, null, mBoard, 
         Player.INVALID,  // Disallow board manipluation by the user 
         play, false);
     mSeekBar.setProgress((int)((float)MAX_PROGRESS * mNextPlay / mLog.numPlays()));
@@ -191,6 +220,12 @@ public class ReplayGameActivity extends Activity {
       }.execute(mLog);
       return true;
     }
+    case R.id.menu_find_position:
+      GameLogListActivity.startPositionSearch(this, mBoard, mNextPlayer);
+      return true;
+    case R.id.menu_opening_stats:
+      OpeningStatsDialog.show(this, mBoard, mNextPlayer, mPlays.isEmpty() ? null : mPlays.get(mPlays.size() - 1));
+      return true;
     case R.id.menu_log_properties:
       showDialog(DIALOG_LOG_PROPERTIES);
       return true;
@@ -0,0 +1,160 @@
+package com.ysaito.shogi;
+
+/**
+ * Converts a position to and from SFEN, the position format of the USI protocol, e.g.,
+ * "lnsgkgsnl/1r5b1/ppppppppp/9/9/9/PPPPPPPPP/1B5R1/LNSGKGSNL b - 1".
+ *
+ * Player.BLACK is "b" (sente) and its pieces are in upper case. The ranks are listed from
+ * the top of the Board (y = 0), and each rank from the left (x = 0), so the first square
+ * is 9a.
+ */
+public class Sfen {
+  /**
+   * The SFEN of "board" with "nextPlayer" to move. "moveNumber" is the last field of
+   * the SFEN, conventionally the number of plays made so far plus one.
+   */
+  public static String toSfen(Board board, Player nextPlayer, int moveNumber) {
+    StringBuilder b = new StringBuilder(96);
+    for (int y = 0; y < Board.DIM; ++y) {
+      if (y > 0) b.append('/');
+      int empty = 0;
+      for (int x = 0; x < Board.DIM; ++x) {
+        final int piece = board.getPiece(x, y);
+        if (piece == Piece.EMPTY) {
+          ++empty;
+          continue;
+        }
+        if (empty > 0) {
+          b.append((char)('0' + empty));
+          empty = 0;
+        }
+        if (Board.isPromoted(piece)) b.append('+');
+        b.append(letter(piece));
+      }
+      if (empty > 0) b.append((char)('0' + empty));
+    }
+    b.append((nextPlayer == Player.WHITE) ? " w " : " b ");
+
+    boolean emptyHands = true;
+    for (int i = 0; i < 2; ++i) {
+      final Player p = (i == 0) ? Player.BLACK : Player.WHITE;
+      for (int type : HAND_ORDER) {
+        final int n = board.handCount(p, type);
+        if (n == 0) continue;
+        if (n > 1) b.append(n);
+        b.append(letter((p == Player.BLACK) ? type : -type));
+        emptyHands = false;
+      }
+    }
+    if (emptyHands) b.append('-');
+    b.append(' ').append(moveNumber);
+    return b.toString();
+  }
+
+  /**
+   * Set "board" to the position in "sfen", and return the player to move next.
+   * The move number, if any, is ignored.
+   */
+  public static Player parse(String sfen, Board board) throws ParseException {
+    String[] fields = sfen.trim().split("\\s+");
+    if (fields.length < 3) throw new ParseException(sfen + ": too few fields in SFEN");
+
+    byte[] squares = new byte[Board.DIM * Board.DIM];
+    final String ranks = fields[0];
+    int x = 0, y = 0;
+    boolean promoted = false;
+    for (int i = 0; i < ranks.length(); ++i) {
+      final char c = ranks.charAt(i);
+      if (c == '/') {
+        if (x != Board.DIM || promoted) throw new ParseException(sfen + ": invalid rank " + (y + 1));
+        x = 0;
+        ++y;
+      } else if (c == '+') {
+        promoted = true;
+      } else if (c >= '1' && c <= '9') {
+        if (promoted) throw new ParseException(sfen + ": '+' before a number");
+        x += c - '0';
+        if (x > Board.DIM) throw new ParseException(sfen + ": invalid rank " + (y + 1));
+      } else {
+        int piece = pieceOf(c);
+        if (piece == Piece.EMPTY || x >= Board.DIM || y >= Board.DIM) {
+          throw new ParseException(sfen + ": invalid piece '" + c + "'");
+        }
+        if (promoted) {
+          if (!MoveGenerator.canPromote(Board.type(piece))) {
+            throw new ParseException(sfen + ": '" + c + "' can't be promoted");
+          }
+          piece = Board.promote(piece);
+          promoted = false;
+        }
+        squares[x + y * Board.DIM] = (byte)piece;
+        ++x;
+      }
+    }
+    if (y != Board.DIM - 1 || x != Board.DIM) throw new ParseException(sfen + ": invalid board");
+
+    final Player nextPlayer;
+    if (fields[1].equals("b")) {
+      nextPlayer = Player.BLACK;
+    } else if (fields[1].equals("w")) {
+      nextPlayer = Player.WHITE;
+    } else {
+      throw new ParseException(sfen + ": invalid player '" + fields[1] + "'");
+    }
+
+    int capturedBlack = 0, capturedWhite = 0;
+    final String hands = fields[2];
+    if (!hands.equals("-")) {
+      int n = 0;
+      for (int i = 0; i < hands.length(); ++i) {
+        final char c = hands.charAt(i);
+        if (c >= '0' && c <= '9') {
+          n = n * 10 + (c - '0');
+          if (n > Board.MAX_CAPTURED[Piece.FU]) throw new ParseException(sfen + ": invalid count in hand");
+          continue;
+        }
+        final int piece = pieceOf(c);
+        final int type = Board.type(piece);
+        if (type < Piece.FU || type > Piece.HI) {
+          throw new ParseException(sfen + ": invalid piece in hand '" + c + "'");
+        }
+        if (n == 0) n = 1;
+        final int bits = (piece > 0) ? capturedBlack : capturedWhite;
+        if (Board.numCapturedPieces(bits, type) + n > Board.MAX_CAPTURED[type]) {
+          throw new ParseException(sfen + ": too many '" + c + "' in hand");
+        }
+        if (piece > 0) {
+          capturedBlack = Board.addToCapturedBits(capturedBlack, type, n);
+        } else {
+          capturedWhite = Board.addToCapturedBits(capturedWhite, type, n);
+        }
+        n = 0;
+      }
+      if (n != 0) throw new ParseException(sfen + ": count without a piece in hand");
+    }
+    board.restoreSquares(squares, 0, capturedBlack, capturedWhite);
+    return nextPlayer;
+  }
+
+  // The order of the pieces in hand, as written by other USI programs.
+  private static final int[] HAND_ORDER = {
+    Piece.HI, Piece.KAKU, Piece.KIN, Piece.GIN, Piece.KEI, Piece.KYO, Piece.FU };
+
+  // LETTERS.charAt(type) is the letter of an unpromoted piece of Player.BLACK.
+  private static final String LETTERS = " PLNSGBRK";
+
+  // The letter of "piece", a value returned by Board.getPiece(), ignoring promotion.
+  private static final char letter(int piece) {
+    int type = Board.type(piece);
+    if (Board.isPromoted(piece)) type = Board.type(Board.unpromote(piece));
+    final char c = LETTERS.charAt(type);
+    return (piece > 0) ? c : Character.toLowerCase(c);
+  }
+
+  // Reverse of letter(). Return Piece.EMPTY if "c" isn't a piece.
+  private static final int pieceOf(char c) {
+    final int type = LETTERS.indexOf(Character.toUpperCase(c));
+    if (type <= 0) return Piece.EMPTY;
+    return Character.isUpperCase(c) ? type : -type;
+  }
+}
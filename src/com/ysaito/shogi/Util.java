@@ -8,12 +8,15 @@ import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 
 /**
  * @author saito@google.com (Yaz Saito)
@@ -26,10 +29,151 @@ public class Util {
     }
   };
 
+  private static ThreadLocal<byte[]> mSniffBuf = new ThreadLocal<byte[]>() {
+    @Override protected synchronized byte[] initialValue() { 
+      return new byte[MAX_SNIFF_BYTES];
+    }
+  };
+
+  // inputStreamToReader reads at most this many bytes to detect the encoding, and stops
+  // MIN_NON_ASCII_SNIFF_BYTES bytes after the first non-ASCII byte.
+  private static final int MAX_SNIFF_BYTES = 64 * 1024;
+  private static final int MIN_NON_ASCII_SNIFF_BYTES = 4096;
+
+  /**
+   * Return a reader that decodes "in". The encoding is detected from a prefix of "in": a
+   * byte order mark if any, else the one of UTF-8, SHIFT-JIS, and EUC-JP that the prefix
+   * is valid in, else the guess of UniversalDetector. If the prefix is pure ASCII, or the
+   * detection fails, "defaultEncoding" is used.
+   */
   public static Reader inputStreamToReader(InputStream in, String defaultEncoding) throws IOException {
-    byte[] contents = Util.streamToBytes(in);
-    String encoding = Util.detectEncoding(contents, defaultEncoding);
-    return new InputStreamReader(new ByteArrayInputStream(contents), encoding);
+    BufferedInputStream bin = new BufferedInputStream(in, 8192);
+    bin.mark(MAX_SNIFF_BYTES);
+    byte[] prefix = mSniffBuf.get();
+    int n = 0;
+    int firstNonAscii = -1;
+    boolean eof = false;
+    while (n < MAX_SNIFF_BYTES) {
+      final int r = bin.read(prefix, n, Math.min(MAX_SNIFF_BYTES - n, 8192));
+      if (r <= 0) {
+        eof = true;
+        break;
+      }
+      for (int i = n; firstNonAscii < 0 && i < n + r; ++i) {
+        if (prefix[i] < 0) firstNonAscii = i;
+      }
+      n += r;
+      if (firstNonAscii >= 0 && n - firstNonAscii >= MIN_NON_ASCII_SNIFF_BYTES) break;
+    }
+    bin.reset();
+
+    final String encoding = guessEncoding(prefix, n, eof, defaultEncoding);
+    if (encoding.equals("UTF-8") && hasUtf8Bom(prefix, n)) {
+      bin.skip(3);  // InputStreamReader doesn't drop a UTF-8 BOM
+    }
+    return new InputStreamReader(bin, encoding);
+  }
+
+  /**
+   * Guess the encoding of prefix[0, n), which is the start of a file, or the whole file if
+   * "eof", the same way as inputStreamToReader().
+   */
+  public static String guessEncoding(byte[] prefix, int n, boolean eof, String defaultEncoding) {
+    int firstNonAscii = -1;
+    for (int i = 0; i < n; ++i) {
+      if (prefix[i] < 0) {
+        firstNonAscii = i;
+        break;
+      }
+    }
+    if (hasUtf8Bom(prefix, n)) {
+      return "UTF-8";
+    } else if (n >= 2 && (prefix[0] & 0xff) == 0xfe && (prefix[1] & 0xff) == 0xff) {
+      return "UTF-16";
+    } else if (n >= 2 && (prefix[0] & 0xff) == 0xff && (prefix[1] & 0xff) == 0xfe) {
+      return "UTF-16";
+    } else if (firstNonAscii < 0) {
+      return (defaultEncoding != null) ? defaultEncoding : "SHIFT-JIS";
+    } else if (isValidUtf8(prefix, n, eof)) {
+      return "UTF-8";
+    }
+    final boolean sjis = isValidShiftJis(prefix, n, eof);
+    final boolean euc = isValidEucJp(prefix, n, eof);
+    if (sjis && !euc) return "SHIFT-JIS";
+    if (euc && !sjis) return "EUC-JP";
+    return detectEncoding(prefix, n, defaultEncoding);
+  }
+
+  private static boolean hasUtf8Bom(byte[] prefix, int n) {
+    return n >= 3 && (prefix[0] & 0xff) == 0xef && (prefix[1] & 0xff) == 0xbb && (prefix[2] & 0xff) == 0xbf;
+  }
+
+  // Whether contents[0, n) is valid UTF-8. If !eof, a truncated character at the end is allowed.
+  private static boolean isValidUtf8(byte[] contents, int n, boolean eof) {
+    int i = 0;
+    while (i < n) {
+      final int c = contents[i] & 0xff;
+      int trail;
+      if (c < 0x80) {
+        trail = 0;
+      } else if (c >= 0xc2 && c <= 0xdf) {
+        trail = 1;
+      } else if (c >= 0xe0 && c <= 0xef) {
+        trail = 2;
+      } else if (c >= 0xf0 && c <= 0xf4) {
+        trail = 3;
+      } else {
+        return false;
+      }
+      ++i;
+      for (; trail > 0; --trail, ++i) {
+        if (i >= n) return !eof;
+        if ((contents[i] & 0xc0) != 0x80) return false;
+      }
+    }
+    return true;
+  }
+
+  // Whether contents[0, n) is valid Shift-JIS. If !eof, a truncated character at the end is allowed.
+  private static boolean isValidShiftJis(byte[] contents, int n, boolean eof) {
+    int i = 0;
+    while (i < n) {
+      final int c = contents[i++] & 0xff;
+      if (c < 0x80 || (c >= 0xa1 && c <= 0xdf)) continue;  // ASCII or half-width kana
+      if (!((c >= 0x81 && c <= 0x9f) || (c >= 0xe0 && c <= 0xfc))) return false;
+      if (i >= n) return !eof;
+      final int c2 = contents[i++] & 0xff;
+      if (c2 < 0x40 || c2 == 0x7f || c2 > 0xfc) return false;
+    }
+    return true;
+  }
+
+  // Whether contents[0, n) is valid EUC-JP. If !eof, a truncated character at the end is allowed.
+  private static boolean isValidEucJp(byte[] contents, int n, boolean eof) {
+    int i = 0;
+    while (i < n) {
+      final int c = contents[i++] & 0xff;
+      if (c < 0x80) continue;
+      int trail;
+      if (c == 0x8e) {  // half-width kana
+        if (i >= n) return !eof;
+        final int c2 = contents[i++] & 0xff;
+        if (c2 < 0xa1 || c2 > 0xdf) return false;
+        continue;
+      } else if (c == 0x8f) {  // JIS X 0212
+        trail = 2;
+      } else if (c >= 0xa1 && c <= 0xfe) {
+        trail = 1;
+      } else {
+        return false;
+      }
+      for (; trail > 0; --trail) {
+        if (i >= n) return !eof;
+        final int c2 = contents[i++] & 0xff;
+        if (c2 < 0xa1 || c2 > 0xfe) return false;
+      }
+    }
+    return true;
   }
   
   /** Read the contents of @p into a byte array */
@@ -47,10 +191,17 @@ public class Util {
   public static String detectEncoding(
       byte[] contents,
       String defaultEncoding) {
+    return detectEncoding(contents, contents.length, defaultEncoding);
+  }
+
+  private static String detectEncoding(
+      byte[] contents,
+      int length,
+      String defaultEncoding) {
     UniversalDetector encodingDetector = new UniversalDetector(null);
     
     encodingDetector.reset();
-    encodingDetector.handleData(contents, 0, contents.length);
+    encodingDetector.handleData(contents, 0, length);
     encodingDetector.dataEnd();
     String encoding = encodingDetector.getDetectedCharset();
     if (encoding == null) {
@@ -60,6 +211,88 @@ public class Util {
     return encoding;
   }
   
+  /**
+   * Merge "runs", each sorted by "c", into one sorted list. Equal elements keep the order of
+   * their runs, so the result is the same as a stable sort of the runs concatenated. Takes
+   * O(n log k) time for n elements in k runs.
+   */
+  public static <T> ArrayList<T> mergeSorted(List<? extends List<T>> runs, Comparator<? super T> c) {
+    int total = 0;
+    for (List<T> run : runs) total += run.size();
+    ArrayList<T> out = new ArrayList<T>(total);
+    if (runs.size() == 2) {
+      // The common case of merging a run into a list. A plain merge is cheaper than the heap.
+      List<T> r1 = runs.get(0);
+      List<T> r2 = runs.get(1);
+      int i1 = 0;
+      int i2 = 0;
+      while (i1 < r1.size() && i2 < r2.size()) {
+        if (c.compare(r2.get(i2), r1.get(i1)) < 0) {
+          out.add(r2.get(i2++));
+        } else {
+          out.add(r1.get(i1++));
+        }
+      }
+      out.addAll(r1.subList(i1, r1.size()));
+      out.addAll(r2.subList(i2, r2.size()));
+      return out;
+    }
+    // A binary heap of the runs that have elements left, ordered by their next element, then
+    // by the run index.
+    final int k = runs.size();
+    int[] heap = new int[k];
+    int[] next = new int[k];
+    int n = 0;
+    for (int i = 0; i < k; ++i) {
+      if (runs.get(i).isEmpty()) continue;
+      heap[n] = i;
+      siftUp(runs, c, heap, next, n++);
+    }
+    while (n > 0) {
+      final int r = heap[0];
+      List<T> run = runs.get(r);
+      out.add(run.get(next[r]++));
+      if (next[r] == run.size()) heap[0] = heap[--n];
+      siftDown(runs, c, heap, next, n);
+    }
+    return out;
+  }
+
+  // Whether the next element of run r1 comes before that of run r2, for mergeSorted().
+  private static <T> boolean runBefore(List<? extends List<T>> runs, Comparator<? super T> c,
+                                       int[] next, int r1, int r2) {
+    final int cmp = c.compare(runs.get(r1).get(next[r1]), runs.get(r2).get(next[r2]));
+    return cmp < 0 || (cmp == 0 && r1 < r2);
+  }
+
+  private static <T> void siftUp(List<? extends List<T>> runs, Comparator<? super T> c,
+                                 int[] heap, int[] next, int i) {
+    while (i > 0) {
+      final int parent = (i - 1) / 2;
+      if (!runBefore(runs, c, next, heap[i], heap[parent])) break;
+      final int tmp = heap[i];
+      heap[i] = heap[parent];
+      heap[parent] = tmp;
+      i = parent;
+    }
+  }
+
+  private static <T> void siftDown(List<? extends List<T>> runs, Comparator<? super T> c,
+                                   int[] heap, int[] next, int n) {
+    int i = 0;
+    for (;;) {
+      int min = i;
+      final int left = 2 * i + 1;
+      if (left < n && runBefore(runs, c, next, heap[left], heap[min])) min = left;
+      if (left + 1 < n && runBefore(runs, c, next, heap[left + 1], heap[min])) min = left + 1;
+      if (min == i) return;
+      final int tmp = heap[i];
+      heap[i] = heap[min];
+      heap[min] = tmp;
+      i = min;
+    }
+  }
+
   public static String bytesToHexText(byte[] b) {
     StringBuffer hex = new StringBuffer();
     for (int i = 0;i < b.length; i++) {
@@ -0,0 +1,151 @@
+package com.ysaito.shogi;
+
+/**
+ * Zobrist hash keys for Board.
+ *
+ * The tables are generated exactly the way Bonanza's ini_random_table() (jni/ini.c) does:
+ * a Mersenne Twister seeded with 5489, each 64-bit value made of two 32-bit draws, high
+ * half first. Since Board.mSquares uses the same square numbering and piece codes as
+ * Bonanza's BOARD[], the XOR of pieceKey() over all the squares equals the value of
+ * hash_func() in jni/hash.c for the same position.
+ *
+ * Bonanza keeps the pieces in hand and the side to move outside of its hash key. Here,
+ * a hand holding N (> 0) pieces of a type contributes the key that Bonanza's
+ * book_hash_func() (jni/book.c) uses for it, i.e., b_hand_XX_rand[N - 1] for Player.BLACK
+ * and w_hand_XX_rand[N - 1] for Player.WHITE. The side-to-move key is the next value
+ * drawn from the generator after the Bonanza tables; it has no counterpart in Bonanza.
+ */
+public class Zobrist {
+  private Zobrist() { }
+
+  /**
+   * Return the key of "piece" (a value returned by Board.getPiece()) at square "sq" (= x + y * Board.DIM).
+   * The key for Piece.EMPTY is 0.
+   */
+  public static final long pieceKey(int piece, int sq) {
+    return PIECE_KEYS[Board.bitsIndex(piece) * NUM_SQUARES + sq];
+  }
+
+  /**
+   * Return the key of player p holding "n" pieces of "type" in hand. The key for n == 0 is 0.
+   */
+  public static final long handKey(Player p, int type, int n) {
+    if (n <= 0) return 0;
+    final long[] keys = HAND_KEYS[(p == Player.BLACK ? 0 : Piece.NUM_TYPES) + type];
+    return keys[Math.min(n, keys.length) - 1];
+  }
+
+  /**
+   * Return the key of all the pieces in "bits", the value of Board.mCapturedBlack or
+   * Board.mCapturedWhite.
+   */
+  public static final long handKey(Player p, int bits) {
+    long key = 0;
+    for (int type = Piece.FU; type <= Piece.HI; ++type) {
+      key ^= handKey(p, type, Board.numCapturedPieces(bits, type));
+    }
+    return key;
+  }
+
+  /**
+   * The key XORed into Board.hashKey() when Player.WHITE is to move.
+   */
+  public static final long WHITE_TO_MOVE;
+
+  private static final int NUM_SQUARES = Board.DIM * Board.DIM;
+
+  // PIECE_KEYS[Board.bitsIndex(piece) * NUM_SQUARES + sq]
+  private static final long[] PIECE_KEYS = new long[2 * Piece.NUM_TYPES * NUM_SQUARES];
+
+  // HAND_KEYS[playerOffset + type][n - 1]; playerOffset is 0 for Player.BLACK, Piece.NUM_TYPES for Player.WHITE.
+  private static final long[][] HAND_KEYS = new long[2 * Piece.NUM_TYPES][];
+
+  // The piece types in the order ini_random_table() fills their tables.
+  private static final int[] BOARD_TYPES = {
+    Piece.FU, Piece.KYO, Piece.KEI, Piece.GIN, Piece.KIN, Piece.KAKU, Piece.HI, Piece.OU,
+    Piece.TO, Piece.NARI_KYO, Piece.NARI_KEI, Piece.NARI_GIN, Piece.UMA, Piece.RYU,
+  };
+
+  static {
+    MersenneTwister r = new MersenneTwister(5489);
+    for (int sq = 0; sq < NUM_SQUARES; ++sq) {
+      for (int sign = 1; sign >= -1; sign -= 2) {
+        for (int type : BOARD_TYPES) {
+          PIECE_KEYS[Board.bitsIndex(sign * type) * NUM_SQUARES + sq] = r.next64();
+        }
+      }
+    }
+    final int b = 0;
+    final int w = Piece.NUM_TYPES;
+    HAND_KEYS[b + Piece.FU] = new long[18];
+    HAND_KEYS[w + Piece.FU] = new long[18];
+    for (int i = 0; i < 18; ++i) {
+      HAND_KEYS[b + Piece.FU][i] = r.next64();
+      HAND_KEYS[w + Piece.FU][i] = r.next64();
+    }
+    final int[] types4 = { Piece.KYO, Piece.KEI, Piece.GIN, Piece.KIN };
+    for (int type : types4) {
+      HAND_KEYS[b + type] = new long[4];
+      HAND_KEYS[w + type] = new long[4];
+    }
+    for (int i = 0; i < 4; ++i) {
+      for (int type : types4) HAND_KEYS[b + type][i] = r.next64();
+      for (int type : types4) HAND_KEYS[w + type][i] = r.next64();
+    }
+    HAND_KEYS[b + Piece.KAKU] = new long[2];
+    HAND_KEYS[b + Piece.HI] = new long[2];
+    HAND_KEYS[w + Piece.KAKU] = new long[2];
+    HAND_KEYS[w + Piece.HI] = new long[2];
+    for (int i = 0; i < 2; ++i) {
+      HAND_KEYS[b + Piece.KAKU][i] = r.next64();
+      HAND_KEYS[b + Piece.HI][i] = r.next64();
+      HAND_KEYS[w + Piece.KAKU][i] = r.next64();
+      HAND_KEYS[w + Piece.HI][i] = r.next64();
+    }
+    WHITE_TO_MOVE = r.next64();
+  }
+
+  /**
+   * Port of jni/rand.c. MT19937 by M. Matsumoto and T. Nishimura.
+   */
+  private static final class MersenneTwister {
+    private static final int N = 624;
+    private static final int M = 397;
+    private static final int MASK_U = 0x80000000;
+    private static final int MASK_L = 0x7fffffff;
+    private static final int MATRIX_A = 0x9908b0df;
+
+    public MersenneTwister(int seed) {
+      mVec[0] = seed;
+      for (int i = 1; i < N; ++i) {
+        mVec[i] = i + 1812433253 * (mVec[i - 1] ^ (mVec[i - 1] >>> 30));
+      }
+      mCount = N;
+    }
+
+    public final int next32() {
+      if (mCount == N) {
+        mCount = 0;
+        for (int i = 0; i < N; ++i) {
+          final int u = (mVec[i] & MASK_U) | (mVec[(i + 1) % N] & MASK_L);
+          mVec[i] = mVec[(i + M) % N] ^ (u >>> 1) ^ ((u & 1) != 0 ? MATRIX_A : 0);
+        }
+      }
+      int u = mVec[mCount++];
+      u ^= (u >>> 11);
+      u ^= (u << 7) & 0x9d2c5680;
+      u ^= (u << 15) & 0xefc60000;
+      u ^= (u >>> 18);
+      return u;
+    }
+
+    public final long next64() {
+      final long h = next32() & 0xffffffffL;
+      final long l = next32() & 0xffffffffL;
+      return (h << 32) | l;
+    }
+
+    private final int[] mVec = new int[N];
+    private int mCount;
+  }
+}
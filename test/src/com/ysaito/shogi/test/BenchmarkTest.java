@@ -0,0 +1,540 @@
+package com.ysaito.shogi.test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import com.ysaito.shogi.Board;
+import com.ysaito.shogi.GameLog;
+import com.ysaito.shogi.GameLogArchive;
+import com.ysaito.shogi.GameLogListManager;
+import com.ysaito.shogi.GameLogWriter;
+import com.ysaito.shogi.Handicap;
+import com.ysaito.shogi.PackedPosition;
+import com.ysaito.shogi.ParseException;
+import com.ysaito.shogi.Play;
+import com.ysaito.shogi.Player;
+import com.ysaito.shogi.Sfen;
+import com.ysaito.shogi.Util;
+
+import android.content.res.Resources;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+/**
+ * Throughput of the board core and the game log code: perft, replaying the KIF files under
+ * res/raw, generating the notation of each play, Board.attackers(), converting from and to
+ * KIF, writing CSA, encoding positions, sorting logs, merging sorted streams of list rows,
+ * importing a directory of KIF files, decoding large files, and reading a large GameLogArchive.
+ *
+ * Each result is appended to RESULTS_FILE in the files directory of the target app, and
+ * logged along with the previous result of the same benchmark, so that a regression shows
+ * up in the log of the next run. Pull the file with "adb pull" to see the history.
+ */
+public class BenchmarkTest extends InstrumentationTestCase {
+  static final String TAG = "BenchmarkTest";
+  static final String RESULTS_FILE = "benchmark_results.txt";
+
+  // The KIF corpus
+  static final int[] KIF_FILES = { R.raw.kifu1, R.raw.kifu2, R.raw.kifu3, R.raw.kifu4, R.raw.kifu5 };
+
+  // Each benchmark runs for at least this long, after one untimed warmup round.
+  static final long MIN_DURATION_NS = 2000L * 1000 * 1000;
+
+  // The number of files in the directory parsed by testScanDirectory.
+  static final int SCAN_FILES = 10000;
+
+  // The number of logs sorted by testSortLogs.
+  static final int SORT_LOGS = 1000;
+
+  // The number of streams merged by testMergeStreams, and the number of rows in each.
+  static final int MERGE_STREAMS = 100;
+  static final int MERGE_STREAM_ROWS = 1000;
+
+  // The number of games in the archive read by testArchive, and the number of games read at
+  // random in each round.
+  static final int ARCHIVE_GAMES = 100000;
+  static final int ARCHIVE_SEEKS = 1000;
+
+  private byte[][] mKifContents;
+  private GameLog[] mLogs;
+
+  @Override
+  public void setUp() throws Exception {
+    mKifContents = new byte[KIF_FILES.length][];
+    mLogs = new GameLog[KIF_FILES.length];
+    for (int i = 0; i < KIF_FILES.length; ++i) {
+      mKifContents[i] = readResource(KIF_FILES[i]);
+      mLogs[i] = parse(mKifContents[i]);
+    }
+  }
+
+  private byte[] readResource(int id) throws IOException {
+    Resources resources = getInstrumentation().getContext().getResources();
+    InputStream in = resources.openRawResource(id);
+    byte[] contents = Util.streamToBytes(in);
+    in.close();
+    return contents;
+  }
+
+  public void testPerft() throws Exception {
+    final Board b = new Board();
+    measure("perft", "nodes", new Benchmark() {
+      @Override public long run() {
+        long nodes = 0;
+        for (Handicap h : Handicap.values()) {
+          b.initialize(h);
+          final long n = PerftTest.perft(b, Player.BLACK, 3);
+          assertEquals(PerftTest.PERFT[h.ordinal()][2], n);
+          nodes += n;
+        }
+        return nodes;
+      }
+    });
+  }
+
+  public void testReplay() throws Exception {
+    final Board b = new Board();
+    measure("replay", "plies", new Benchmark() {
+      @Override public long run() {
+        long plies = 0;
+        for (GameLog log : mLogs) {
+          b.initialize(log.handicap());
+          Player player = Player.BLACK;
+          for (int i = 0; i < log.numPlays(); ++i) {
+            b.applyPly(player, log.play(i));
+            player = player.opponent();
+          }
+          plies += log.numPlays();
+        }
+        return plies;
+      }
+    });
+  }
+
+  public void testNotation() throws Exception {
+    final Board b = new Board();
+    measure("notation", "plies", new Benchmark() {
+      @Override public long run() {
+        long plies = 0;
+        for (GameLog log : mLogs) {
+          b.initialize(log.handicap());
+          Player player = Player.BLACK;
+          Play prevPlay = null;
+          for (int i = 0; i < log.numPlays(); ++i) {
+            Play play = log.play(i);
+            assertTrue(play.toTraditionalNotation(b, prevPlay).toJapaneseString().length() > 0);
+            b.applyPly(player, play);
+            player = player.opponent();
+            prevPlay = play;
+          }
+          plies += log.numPlays();
+        }
+        return plies;
+      }
+    });
+  }
+
+  // For each play in the corpus, list the pieces of the same kind that can move to the
+  // destination, with Board.attackers() and by scanning the board.
+  public void testAttackers() throws Exception {
+    final Board b = new Board();
+    final int[] squares = new int[Board.DIM * Board.DIM];
+    measure("attackers", "queries", new Benchmark() {
+      @Override public long run() {
+        return forEachPlay(b, new PlayVisitor() {
+          @Override public int visit(Play play, int to) {
+            return b.attackers(to, play.piece(), squares);
+          }
+        });
+      }
+    });
+    measure("attackers_scan", "queries", new Benchmark() {
+      @Override public long run() {
+        return forEachPlay(b, new PlayVisitor() {
+          @Override public int visit(Play play, int to) {
+            return BoardTest.attackersByScan(b, to, play.piece(), squares);
+          }
+        });
+      }
+    });
+  }
+
+  public void testToKif() throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    measure("to_kif", "games", new Benchmark() {
+      @Override public long run() throws Exception {
+        for (GameLog log : mLogs) {
+          out.reset();
+          log.toKif(out, "kif_utf8");
+        }
+        return mLogs.length;
+      }
+    });
+    measure("to_csa", "games", new Benchmark() {
+      @Override public long run() throws Exception {
+        out.reset();
+        GameLogWriter w = new GameLogWriter(out, GameLogWriter.FORMAT_CSA);
+        for (GameLog log : mLogs) w.write(log);
+        w.close();
+        return mLogs.length;
+      }
+    });
+  }
+
+  // Round trip every position of the corpus through PackedPosition, SFEN, and Java
+  // serialization, which is how a Board is passed in Intents and Bundles.
+  public void testPositionCodecs() throws Exception {
+    final ArrayList<Board> boards = new ArrayList<Board>();
+    final Board b = new Board();
+    forEachPlay(b, new PlayVisitor() {
+      @Override public int visit(Play play, int to) {
+        boards.add(new Board(b));
+        return 0;
+      }
+    });
+    final Board tmp = new Board();
+    final byte[] packed = new byte[PackedPosition.PACKED_BYTES];
+    measure("packed_position", "positions", new Benchmark() {
+      @Override public long run() throws Exception {
+        for (Board board : boards) {
+          PackedPosition.pack(board, Player.BLACK, packed, 0);
+          PackedPosition.unpack(packed, 0, tmp);
+        }
+        return boards.size();
+      }
+    });
+    measure("sfen", "positions", new Benchmark() {
+      @Override public long run() throws Exception {
+        for (Board board : boards) Sfen.parse(Sfen.toSfen(board, Player.BLACK, 1), tmp);
+        return boards.size();
+      }
+    });
+    final long[] bytes = new long[1];
+    measure("serialize", "positions", new Benchmark() {
+      @Override public long run() throws Exception {
+        for (Board board : boards) {
+          ByteArrayOutputStream out = new ByteArrayOutputStream();
+          ObjectOutputStream oout = new ObjectOutputStream(out);
+          oout.writeObject(board);
+          oout.close();
+          bytes[0] = out.size();
+          ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(out.toByteArray()));
+          in.readObject();
+        }
+        return boards.size();
+      }
+    });
+    Log.d(TAG, "bytes/position: packed " + PackedPosition.PACKED_BYTES +
+        ", sfen " + Sfen.toSfen(boards.get(boards.size() - 1), Player.BLACK, 1).length() +
+        ", serialized " + bytes[0]);
+  }
+
+  public void testParseKif() throws Exception {
+    long lines = 0;
+    for (byte[] contents : mKifContents) {
+      for (byte c : contents) {
+        if (c == '\n') ++lines;
+      }
+    }
+    final long linesPerRound = lines;
+    measure("parse_kif", "lines", new Benchmark() {
+      @Override public long run() throws Exception {
+        for (int i = 0; i < mKifContents.length; ++i) {
+          assertEquals(mLogs[i].numPlays(), parse(mKifContents[i]).numPlays());
+        }
+        return linesPerRound;
+      }
+    });
+  }
+
+  // Sort a catalog of SORT_LOGS logs with the same date by GameLog.SORT_BY_DATE, so that
+  // every comparison falls back to the tiebreaker. The logs are created in each round, as
+  // they are after a scan.
+  public void testSortLogs() throws Exception {
+    final ArrayList<ArrayList<Play>> plays = new ArrayList<ArrayList<Play>>();
+    for (GameLog log : mLogs) plays.add(log.plays());
+    measure("sort_logs", "logs", new Benchmark() {
+      @Override public long run() throws Exception {
+        ArrayList<GameLog> logs = new ArrayList<GameLog>(SORT_LOGS);
+        for (int i = 0; i < SORT_LOGS; ++i) {
+          TreeMap<String, String> attrs = new TreeMap<String, String>();
+          attrs.put(GameLog.ATTR_BLACK_PLAYER, "player" + i);
+          logs.add(GameLog.newLog(0, attrs.entrySet(), plays.get(i % plays.size()), null));
+        }
+        Collections.sort(logs, GameLog.SORT_BY_DATE);
+        return SORT_LOGS;
+      }
+    });
+  }
+
+  // Load MERGE_STREAMS streams of MERGE_STREAM_ROWS rows into a sorted list, timing the work
+  // done on the UI thread. GenericListActivity sorts each stream in the background, then
+  // merges the streams received in a frame into the list. "merge_streams" merges each stream
+  // alone, which is the worst case, when every stream arrives in a frame of its own.
+  // "merge_streams_coalesced" merges them all at once. "resort_streams" appends each stream
+  // to the list, then sorts the whole list, which is what the UI thread used to do.
+  public void testMergeStreams() throws Exception {
+    final Random random = new Random(0);
+    final Comparator<String> order = new Comparator<String>() {
+      public int compare(String s1, String s2) { return s1.compareTo(s2); }
+    };
+    final ArrayList<String[]> streams = new ArrayList<String[]>();
+    final ArrayList<List<String>> sortedStreams = new ArrayList<List<String>>();
+    for (int i = 0; i < MERGE_STREAMS; ++i) {
+      String[] rows = new String[MERGE_STREAM_ROWS];
+      for (int j = 0; j < rows.length; ++j) rows[j] = String.format("%08d", random.nextInt(100000000));
+      streams.add(rows);
+      String[] sorted = rows.clone();
+      Arrays.sort(sorted, order);
+      sortedStreams.add(Arrays.asList(sorted));
+    }
+    measure("merge_streams", "rows", new Benchmark() {
+      @Override public long run() throws Exception {
+        ArrayList<String> list = new ArrayList<String>();
+        for (List<String> stream : sortedStreams) {
+          ArrayList<List<String>> runs = new ArrayList<List<String>>();
+          runs.add(list);
+          runs.add(stream);
+          list = Util.mergeSorted(runs, order);
+        }
+        assertEquals(MERGE_STREAMS * MERGE_STREAM_ROWS, list.size());
+        return list.size();
+      }
+    });
+    measure("merge_streams_coalesced", "rows", new Benchmark() {
+      @Override public long run() throws Exception {
+        return Util.mergeSorted(sortedStreams, order).size();
+      }
+    });
+    measure("resort_streams", "rows", new Benchmark() {
+      @Override public long run() throws Exception {
+        ArrayList<String> list = new ArrayList<String>();
+        for (String[] stream : streams) {
+          for (String row : stream) list.add(row);
+          Collections.sort(list, order);
+        }
+        return list.size();
+      }
+    });
+  }
+
+  // Parse a directory of SCAN_FILES files, cycling through the corpus, with one thread
+  // and with GameLogListManager.MAX_PARSE_THREADS threads. kifu1 isn't a valid KIF, so
+  // the directory also has failures.
+  public void testScanDirectory() throws Exception {
+    final File dir = new File(getInstrumentation().getTargetContext().getFilesDir(), "scan_benchmark");
+    dir.mkdirs();
+    try {
+      for (int i = 0; i < SCAN_FILES; ++i) {
+        FileOutputStream out = new FileOutputStream(new File(dir, String.format("%05d.kif", i)));
+        out.write(mKifContents[i % mKifContents.length]);
+        out.close();
+      }
+      final ArrayList<File> files = new ArrayList<File>();
+      GameLogListManager.listChangedFiles(dir, -1, files);
+      assertEquals(SCAN_FILES, files.size());
+
+      final GameLogListManager.ParseResult[] serial = GameLogListManager.parseFiles(files, 1);
+      final GameLogListManager.ParseResult[] parallel =
+          GameLogListManager.parseFiles(files, GameLogListManager.MAX_PARSE_THREADS);
+      for (int i = 0; i < SCAN_FILES; ++i) {
+        assertEquals(files.get(i), parallel[i].file);
+        assertEquals(serial[i].error, parallel[i].error);
+        assertEquals(serial[i].logs.size(), parallel[i].logs.size());
+        for (int j = 0; j < serial[i].logs.size(); ++j) {
+          assertEquals(serial[i].logs.get(j), parallel[i].logs.get(j));
+        }
+      }
+      measure("scan_directory_1", "files", new Benchmark() {
+        @Override public long run() {
+          return GameLogListManager.parseFiles(files, 1).length;
+        }
+      });
+      measure("scan_directory_" + GameLogListManager.MAX_PARSE_THREADS, "files", new Benchmark() {
+        @Override public long run() {
+          return GameLogListManager.parseFiles(files, GameLogListManager.MAX_PARSE_THREADS).length;
+        }
+      });
+    } finally {
+      for (File f : dir.listFiles()) f.delete();
+      dir.delete();
+    }
+  }
+
+  // Decode a large HTML page and a file of many KIF games with Util.inputStreamToReader(),
+  // and, for comparison, by detecting the encoding of the whole contents first.
+  public void testDecode() throws Exception {
+    final byte[] html = readResource(R.raw.optus_kisi);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int i = 0; i < 50; ++i) {
+      for (byte[] contents : mKifContents) out.write(contents);
+    }
+    final byte[] kif = out.toByteArray();
+    final char[] buf = new char[8192];
+    for (final byte[] contents : new byte[][]{ html, kif }) {
+      final String name = (contents == html) ? "html" : "multi_kif";
+      measure("decode_" + name, "bytes", new Benchmark() {
+        @Override public long run() throws Exception {
+          Reader in = Util.inputStreamToReader(new ByteArrayInputStream(contents), "SHIFT-JIS");
+          while (in.read(buf) > 0) { }
+          return contents.length;
+        }
+      });
+      measure("decode_" + name + "_whole", "bytes", new Benchmark() {
+        @Override public long run() throws Exception {
+          byte[] bytes = Util.streamToBytes(new ByteArrayInputStream(contents));
+          Reader in = new InputStreamReader(
+              new ByteArrayInputStream(bytes), Util.detectEncoding(bytes, "SHIFT-JIS"));
+          while (in.read(buf) > 0) { }
+          return contents.length;
+        }
+      });
+    }
+  }
+
+  // Open an archive of ARCHIVE_GAMES games, cycling through the corpus with distinct
+  // players, list the headers of all the games, and read games at random.
+  public void testArchive() throws Exception {
+    final File file = new File(getInstrumentation().getTargetContext().getFilesDir(),
+                               "benchmark" + GameLogArchive.SUFFIX);
+    try {
+      GameLogArchive.Writer w = new GameLogArchive.Writer(file);
+      final ArrayList<ArrayList<Play>> plays = new ArrayList<ArrayList<Play>>();
+      for (GameLog log : mLogs) plays.add(log.plays());
+      for (int i = 0; i < ARCHIVE_GAMES; ++i) {
+        GameLog log = mLogs[i % mLogs.length];
+        TreeMap<String, String> attrs = new TreeMap<String, String>();
+        for (Map.Entry<String, String> e : log.attrs()) attrs.put(e.getKey(), e.getValue());
+        attrs.put(GameLog.ATTR_BLACK_PLAYER, "player" + (i % 1000));
+        w.add(GameLog.newLog(log.getDate() + i, attrs.entrySet(), plays.get(i % plays.size()), null));
+      }
+      w.close();
+
+      measure("archive_open", "opens", new Benchmark() {
+        @Override public long run() throws Exception {
+          assertEquals(ARCHIVE_GAMES, GameLogArchive.open(file).numGames());
+          return 1;
+        }
+      });
+      final GameLogArchive archive = GameLogArchive.open(file);
+      measure("archive_list", "headers", new Benchmark() {
+        @Override public long run() {
+          long plays = 0;
+          for (int i = 0; i < ARCHIVE_GAMES; ++i) plays += archive.header(i).numPlays();
+          assertTrue(plays > 0);
+          return ARCHIVE_GAMES;
+        }
+      });
+      final Random random = new Random(0);
+      measure("archive_seek", "games", new Benchmark() {
+        @Override public long run() {
+          for (int i = 0; i < ARCHIVE_SEEKS; ++i) {
+            final int game = random.nextInt(ARCHIVE_GAMES);
+            assertEquals(archive.numPlays(game), archive.read(game).numPlays());
+          }
+          return ARCHIVE_SEEKS;
+        }
+      });
+    } finally {
+      file.delete();
+    }
+  }
+
+  private interface PlayVisitor {
+    // Called with the board before "play". "to" is the destination square of "play".
+    public int visit(Play play, int to);
+  }
+
+  // Replay the corpus on "b", and call "v" for each play. Return the number of plays.
+  private long forEachPlay(Board b, PlayVisitor v) {
+    long plies = 0;
+    int checksum = 0;
+    for (GameLog log : mLogs) {
+      b.initialize(log.handicap());
+      Player player = Player.BLACK;
+      for (int i = 0; i < log.numPlays(); ++i) {
+        Play play = log.play(i);
+        checksum += v.visit(play, play.toX() + play.toY() * Board.DIM);
+        b.applyPly(player, play);
+        player = player.opponent();
+      }
+      plies += log.numPlays();
+    }
+    assertTrue(checksum >= 0);
+    return plies;
+  }
+
+  private interface Benchmark {
+    // Run one round of the benchmark. Return the number of ops performed.
+    public long run() throws Exception;
+  }
+
+  // Run "b" once to warm up, then repeatedly for at least MIN_DURATION_NS, and record the throughput.
+  private void measure(String name, String unit, Benchmark b) throws Exception {
+    b.run();
+    long ops = 0;
+    final long start = System.nanoTime();
+    long ns;
+    do {
+      ops += b.run();
+      ns = System.nanoTime() - start;
+    } while (ns < MIN_DURATION_NS);
+    record(name, ops, ns, unit);
+  }
+
+  private static GameLog parse(byte[] contents) throws ParseException, IOException {
+    return GameLog.parseKif(new File("/nonexistent/path"), new ByteArrayInputStream(contents));
+  }
+
+  // Log "count" ops in "ns" nanoseconds along with the previous result of the same benchmark,
+  // then append it to the results file. Each line of the file is
+  // "<name>\t<ops per second>\t<unit>\t<time of the run in ms>".
+  private void record(String name, long count, long ns, String unit) {
+    final double opsPerSec = count * 1e9 / ns;
+    File file = new File(getInstrumentation().getTargetContext().getFilesDir(), RESULTS_FILE);
+    double prev = -1;
+    try {
+      if (file.exists()) {
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        String line;
+        while ((line = in.readLine()) != null) {
+          String[] fields = line.split("\t");
+          if (fields.length >= 2 && fields[0].equals(name)) prev = Double.parseDouble(fields[1]);
+        }
+        in.close();
+      }
+      FileWriter out = new FileWriter(file, true);
+      out.write(name + "\t" + opsPerSec + "\t" + unit + "\t" + System.currentTimeMillis() + "\n");
+      out.close();
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to record the result in " + file + ": " + e);
+    } catch (NumberFormatException e) {
+      Log.e(TAG, file + ": corrupt result: " + e);
+    }
+    if (prev > 0) {
+      Log.d(TAG, String.format("%s: %.0f %s/s (previous %.0f, %+.1f%%)",
+          name, opsPerSec, unit, prev, (opsPerSec / prev - 1) * 100));
+    } else {
+      Log.d(TAG, String.format("%s: %.0f %s/s", name, opsPerSec, unit));
+    }
+  }
+}
@@ -1,7 +1,14 @@
 package com.ysaito.shogi.test;
 
+import java.util.ArrayList;
+import java.util.Random;
+
 import com.ysaito.shogi.Board;
+import com.ysaito.shogi.Handicap;
+import com.ysaito.shogi.MoveGenerator;
 import com.ysaito.shogi.Piece;
+import com.ysaito.shogi.Play;
+import com.ysaito.shogi.Player;
 
 import android.test.AndroidTestCase;
 
@@ -17,4 +24,250 @@ public class BoardTest extends AndroidTestCase {
     assertEquals(Board.unpromote(Piece.RYU), Piece.HI);
     assertEquals(Board.unpromote(-Piece.RYU), -Piece.HI);    
   }
+
+  public void testPossibleMoveDestinations() {
+    Board b = new Board();
+    int[] dests = new int[Board.MAX_MOVE_DESTINATIONS];
+    assertEquals(0, b.possibleMoveDestinations(4, 4, dests));
+
+    b.setPiece(4, 4, Piece.RYU);
+    assertEquals(Board.MAX_MOVE_DESTINATIONS, b.possibleMoveDestinations(4, 4, dests));
+
+    // Blocked by its own piece at <4, 2>; can capture the opponent piece at <2, 4>,
+    // but not move beyond it.
+    b.setPiece(4, 2, Piece.FU);
+    b.setPiece(2, 4, -Piece.FU);
+    final int n = b.possibleMoveDestinations(4, 4, dests);
+    assertEquals(Board.MAX_MOVE_DESTINATIONS - 5, n);
+    boolean foundCapture = false;
+    for (int i = 0; i < n; ++i) {
+      assertTrue(dests[i] != 4 + 2 * Board.DIM);
+      assertTrue(dests[i] != 1 + 4 * Board.DIM);
+      if (dests[i] == 2 + 4 * Board.DIM) foundCapture = true;
+    }
+    assertTrue(foundCapture);
+  }
+
+  public void testHashKeyMatchesBonanza() {
+    Board b = new Board();
+    b.initialize(Handicap.NONE);
+    // hash_func() in jni/hash.c for the initial position.
+    assertEquals(-6213925546226035085L, b.boardKey());
+    assertEquals(b.boardKey(), b.hashKey(Player.BLACK));
+    assertTrue(b.hashKey(Player.BLACK) != b.hashKey(Player.WHITE));
+
+    ArrayList<Board.CapturedPiece> captured = new ArrayList<Board.CapturedPiece>();
+    captured.add(new Board.CapturedPiece(Piece.FU, 1));
+    b.setCapturedPieces(Player.BLACK, captured);
+    // b_hand_pawn_rand[0]
+    assertEquals(-1553848403052816873L, b.hashKey(Player.BLACK) ^ b.boardKey());
+  }
+
+  public void testHashKeyIsIncremental() {
+    Random rand = new Random(1);
+    Board b = new Board();
+    b.initialize(Handicap.NONE);
+    Player player = Player.BLACK;
+    ArrayList<Play> plays = new ArrayList<Play>();
+    for (int ply = 0; ply < 200; ++ply) {
+      plays.clear();
+      if (MoveGenerator.listLegalPlays(b, player, plays) == 0) break;
+      b.applyPly(player, plays.get(rand.nextInt(plays.size())));
+      player = player.opponent();
+      assertEquals(copyBySetPiece(b).hashKey(player), b.hashKey(player));
+      assertEquals(b.hashKey(player), new Board(b).hashKey(player));
+    }
+  }
+
+  private static Board copyBySetPiece(Board src) {
+    Board b = new Board();
+    for (int y = 0; y < Board.DIM; ++y) {
+      for (int x = 0; x < Board.DIM; ++x) {
+        b.setPiece(x, y, src.getPiece(x, y));
+      }
+    }
+    b.setCapturedPieces(Player.BLACK, src.getCapturedPieces(Player.BLACK));
+    b.setCapturedPieces(Player.WHITE, src.getCapturedPieces(Player.WHITE));
+    return b;
+  }
+
+  public void testUndoPly() {
+    Random rand = new Random(2);
+    for (int game = 0; game < 20; ++game) {
+      Board b = new Board();
+      b.initialize(Handicap.NONE);
+      Player player = Player.BLACK;
+      ArrayList<Play> plays = new ArrayList<Play>();
+      ArrayList<Play> history = new ArrayList<Play>();
+      ArrayList<Board> boards = new ArrayList<Board>();
+      int[] undos = new int[300];
+      for (int ply = 0; ply < undos.length; ++ply) {
+        plays.clear();
+        if (MoveGenerator.listLegalPlays(b, player, plays) == 0) break;
+        Play play = plays.get(rand.nextInt(plays.size()));
+        boards.add(new Board(b));
+        history.add(play);
+        undos[ply] = b.applyPly(player, play);
+        player = player.opponent();
+      }
+      for (int ply = history.size() - 1; ply >= 0; --ply) {
+        player = player.opponent();
+        b.undoPly(player, history.get(ply), undos[ply]);
+        assertSameBoard(boards.get(ply), b, player);
+      }
+    }
+  }
+
+  public void testCapturedPiece() {
+    Board b = new Board();
+    b.setPiece(4, 4, Piece.HI);
+    b.setPiece(4, 1, -Piece.UMA);
+    final Play play = new Play(Piece.RYU, 4, 4, 4, 1);
+    final int undo = b.applyPly(Player.BLACK, play);
+    assertEquals(-Piece.UMA, Board.capturedPiece(undo));
+    assertEquals(1, b.getCapturedPieces(Player.BLACK).size());
+    b.undoPly(Player.BLACK, play, undo);
+    assertEquals(Piece.HI, b.getPiece(4, 4));
+    assertEquals(-Piece.UMA, b.getPiece(4, 1));
+    assertEquals(0, b.getCapturedPieces(Player.BLACK).size());
+  }
+
+  private static void assertSameBoard(Board expected, Board actual, Player nextPlayer) {
+    for (int y = 0; y < Board.DIM; ++y) {
+      for (int x = 0; x < Board.DIM; ++x) {
+        assertEquals(expected.getPiece(x, y), actual.getPiece(x, y));
+      }
+    }
+    for (Player p : new Player[] { Player.BLACK, Player.WHITE }) {
+      // The order of the CapturedPiece lists depends on the history, so compare the counts.
+      int[] e = new int[Piece.NUM_TYPES];
+      for (Board.CapturedPiece c : expected.getCapturedPieces(p)) e[Board.type(c.piece)] += c.n;
+      for (Board.CapturedPiece c : actual.getCapturedPieces(p)) e[Board.type(c.piece)] -= c.n;
+      for (int i = 0; i < e.length; ++i) assertEquals(0, e[i]);
+    }
+    assertEquals(expected.hashKey(nextPlayer), actual.hashKey(nextPlayer));
+  }
+
+  public void testHandCount() {
+    Board b = new Board();
+    b.setPiece(4, 4, Piece.HI);
+    b.setPiece(4, 2, -Piece.TO);
+    b.setPiece(4, 1, -Piece.FU);
+    b.applyPly(Player.BLACK, new Play(Piece.HI, 4, 4, 4, 2));
+    b.applyPly(Player.BLACK, new Play(Piece.RYU, 4, 2, 4, 1));
+    assertEquals(2, b.handCount(Player.BLACK, Piece.FU));
+    assertEquals(0, b.handCount(Player.BLACK, Piece.TO));
+    assertEquals(0, b.handCount(Player.WHITE, Piece.FU));
+
+    b.applyPly(Player.BLACK, new Play(Piece.FU, -1, -1, 3, 3));
+    assertEquals(1, b.handCount(Player.BLACK, Piece.FU));
+    assertEquals(Piece.FU, b.getPiece(3, 3));
+
+    ArrayList<Board.CapturedPiece> captured = b.getCapturedPieces(Player.BLACK);
+    assertEquals(1, captured.size());
+    assertEquals(Piece.FU, captured.get(0).piece);
+    assertEquals(1, captured.get(0).n);
+  }
+
+  // An illegal drop of a piece not in the hand is undone without adding the piece to the hand.
+  public void testUndoDropNotInHand() {
+    Board b = new Board();
+    b.setPiece(4, 4, Piece.HI);
+    b.setPiece(4, 1, -Piece.FU);
+    final Board before = new Board(b);
+    final Play drop = new Play(Piece.KIN, -1, -1, 3, 3);
+    final int undo = b.applyPly(Player.BLACK, drop);
+    assertEquals(Piece.KIN, b.getPiece(3, 3));
+    b.undoPly(Player.BLACK, drop, undo);
+    assertSameBoard(before, b, Player.BLACK);
+
+    // A legal drop in the same board still returns the piece to the hand.
+    final Play capture = new Play(Piece.HI, 4, 4, 4, 1);
+    final int captureUndo = b.applyPly(Player.BLACK, capture);
+    final Board captured = new Board(b);
+    final Play pawnDrop = new Play(Piece.FU, -1, -1, 3, 3);
+    b.undoPly(Player.BLACK, pawnDrop, b.applyPly(Player.BLACK, pawnDrop));
+    assertSameBoard(captured, b, Player.BLACK);
+    b.undoPly(Player.BLACK, capture, captureUndo);
+    assertSameBoard(before, b, Player.BLACK);
+  }
+
+  public void testAttackers() {
+    Board b = new Board();
+    int[] squares = new int[Board.MAX_ATTACKERS];
+    final int center = 4 + 4 * Board.DIM;
+    // Four RYUs next to <4, 4> diagonally, and four more sliding from the edges.
+    b.setPiece(3, 3, Piece.RYU);
+    b.setPiece(5, 3, Piece.RYU);
+    b.setPiece(3, 5, Piece.RYU);
+    b.setPiece(5, 5, Piece.RYU);
+    b.setPiece(4, 0, Piece.RYU);
+    b.setPiece(4, 8, Piece.RYU);
+    b.setPiece(0, 4, Piece.RYU);
+    b.setPiece(8, 4, Piece.RYU);
+    assertEquals(Board.MAX_ATTACKERS, b.attackers(center, Piece.RYU, squares));
+    assertEquals(0, b.attackers(center, -Piece.RYU, squares));
+    assertEquals(0, b.attackers(center, Piece.HI, squares));
+
+    // A piece in between blocks the slide, but the piece itself can be captured by the
+    // RYUs at <4, 0>, <4, 8> (through <4, 4>), <3, 3> and <5, 3>.
+    b.setPiece(4, 2, -Piece.FU);
+    assertEquals(Board.MAX_ATTACKERS - 1, b.attackers(center, Piece.RYU, squares));
+    assertEquals(4, b.attackers(4 + 2 * Board.DIM, Piece.RYU, squares));
+
+    // No piece can move onto a piece of its own side.
+    b.setPiece(4, 4, Piece.KIN);
+    assertEquals(0, b.attackers(center, Piece.RYU, squares));
+  }
+
+  // attackers() must agree with possibleMoveDestinations() on every square.
+  public void testAttackersMatchDestinations() {
+    Random rand = new Random(3);
+    int[] squares = new int[Board.MAX_ATTACKERS];
+    int[] expected = new int[Board.DIM * Board.DIM];
+    ArrayList<Play> plays = new ArrayList<Play>();
+    for (int game = 0; game < 10; ++game) {
+      Board b = new Board();
+      b.initialize(Handicap.values()[game % Handicap.values().length]);
+      Player player = Player.BLACK;
+      for (int ply = 0; ply < 200; ++ply) {
+        for (int sq = 0; sq < Board.DIM * Board.DIM; ++sq) {
+          for (int type = Piece.FU; type < Piece.NUM_TYPES; ++type) {
+            for (int piece = -type; piece <= type; piece += 2 * type) {
+              final int n = b.attackers(sq, piece, squares);
+              assertTrue(n <= Board.MAX_ATTACKERS);
+              final int numExpected = attackersByScan(b, sq, piece, expected);
+              assertEquals(numExpected, n);
+              for (int i = 0; i < n; ++i) {
+                boolean found = false;
+                for (int j = 0; j < numExpected; ++j) found |= (expected[j] == squares[i]);
+                assertTrue(found);
+              }
+            }
+          }
+        }
+        plays.clear();
+        if (MoveGenerator.listLegalPlays(b, player, plays) == 0) break;
+        b.applyPly(player, plays.get(rand.nextInt(plays.size())));
+        player = player.opponent();
+      }
+    }
+  }
+
+  // Reference implementation of Board.attackers(): scan the board, and check the
+  // destinations of every piece equal to "piece".
+  static int attackersByScan(Board b, int sq, int piece, int[] squares) {
+    int[] dests = new int[Board.MAX_MOVE_DESTINATIONS];
+    int n = 0;
+    for (int y = 0; y < Board.DIM; ++y) {
+      for (int x = 0; x < Board.DIM; ++x) {
+        if (b.getPiece(x, y) != piece) continue;
+        final int numDests = b.possibleMoveDestinations(x, y, dests);
+        for (int i = 0; i < numDests; ++i) {
+          if (dests[i] == sq) squares[n++] = x + y * Board.DIM;
+        }
+      }
+    }
+    return n;
+  }
 }
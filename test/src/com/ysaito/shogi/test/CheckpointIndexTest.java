@@ -0,0 +1,129 @@
+package com.ysaito.shogi.test;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TreeMap;
+
+import com.ysaito.shogi.Board;
+import com.ysaito.shogi.CheckpointIndex;
+import com.ysaito.shogi.GameLog;
+import com.ysaito.shogi.Handicap;
+import com.ysaito.shogi.MoveGenerator;
+import com.ysaito.shogi.Play;
+import com.ysaito.shogi.Player;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+public class CheckpointIndexTest extends AndroidTestCase {
+  static final String TAG = "CheckpointIndexTest";
+
+  public void testSeek() {
+    GameLog log = newSyntheticGame(new Random(1), 300);
+    ArrayList<Long> keys = new ArrayList<Long>();
+    Board b = new Board();
+    b.initialize(Handicap.NONE);
+    Player player = Player.BLACK;
+    keys.add(b.hashKey(player));
+    for (Play play : log.plays()) {
+      b.applyPly(player, play);
+      player = player.opponent();
+      keys.add(b.hashKey(player));
+    }
+
+    CheckpointIndex index = new CheckpointIndex(log, 2000);
+    assertTrue(index.memoryBytes() <= 2000);
+    int[] undos = new int[log.numPlays()];
+    Random rand = new Random(2);
+    Board board = new Board();
+    for (int i = 0; i < 1000; ++i) {
+      final int n = rand.nextInt(log.numPlays() + 1);
+      final int start = index.seek(board, n, undos);
+      assertTrue(start <= n);
+      assertTrue(n - start < index.interval());
+      final Player next = (n % 2 == 0) ? Player.BLACK : Player.WHITE;
+      assertEquals((long)keys.get(n), board.hashKey(next));
+
+      // The undo records must bring the board back to the snapshot.
+      for (int j = n - 1; j >= start; --j) {
+        board.undoPly((j % 2 == 0) ? Player.BLACK : Player.WHITE, log.play(j), undos[j]);
+      }
+      final Player startPlayer = (start % 2 == 0) ? Player.BLACK : Player.WHITE;
+      assertEquals((long)keys.get(start), board.hashKey(startPlayer));
+    }
+  }
+
+  public void testMemoryCap() {
+    GameLog log = newSyntheticGame(new Random(3), 1000);
+    CheckpointIndex small = new CheckpointIndex(log, 4 * 1024);
+    CheckpointIndex large = new CheckpointIndex(log, 64 * 1024);
+    assertTrue(small.memoryBytes() <= 4 * 1024);
+    assertTrue(large.memoryBytes() <= 64 * 1024);
+    assertTrue(small.interval() > large.interval());
+    assertEquals(CheckpointIndex.MIN_INTERVAL, large.interval());
+  }
+
+  // Seek randomly through 1000-ply games, and compare with replaying from the beginning.
+  public void testSeekBenchmark() {
+    final int numGames = 5;
+    final int numSeeks = 2000;
+    GameLog[] logs = new GameLog[numGames];
+    Random rand = new Random(4);
+    for (int i = 0; i < numGames; ++i) logs[i] = newSyntheticGame(rand, 1000);
+
+    Board board = new Board();
+    rand = new Random(5);
+    long start = System.nanoTime();
+    long checksum1 = 0;
+    for (GameLog log : logs) {
+      CheckpointIndex index = new CheckpointIndex(log, CheckpointIndex.DEFAULT_MAX_BYTES);
+      for (int i = 0; i < numSeeks; ++i) {
+        final int n = rand.nextInt(log.numPlays() + 1);
+        index.seek(board, n, null);
+        checksum1 += board.boardKey();
+      }
+    }
+    final long indexNs = System.nanoTime() - start;
+
+    rand = new Random(5);
+    start = System.nanoTime();
+    long checksum2 = 0;
+    for (GameLog log : logs) {
+      for (int i = 0; i < numSeeks; ++i) {
+        final int n = rand.nextInt(log.numPlays() + 1);
+        board.initialize(log.handicap());
+        for (int j = 0; j < n; ++j) {
+          board.applyPly((j % 2 == 0) ? Player.BLACK : Player.WHITE, log.play(j));
+        }
+        checksum2 += board.boardKey();
+      }
+    }
+    final long replayNs = System.nanoTime() - start;
+    assertEquals(checksum2, checksum1);
+    Log.d(TAG, String.format("seek: checkpoints %.2fus/seek, replay %.2fus/seek",
+        indexNs / 1000.0 / (numGames * numSeeks),
+        replayNs / 1000.0 / (numGames * numSeeks)));
+  }
+
+  // Create a game of "numPlays" random legal plays.
+  static GameLog newSyntheticGame(Random rand, int numPlays) {
+    ArrayList<Play> candidates = new ArrayList<Play>();
+    for (;;) {
+      Board b = new Board();
+      b.initialize(Handicap.NONE);
+      ArrayList<Play> plays = new ArrayList<Play>();
+      Player player = Player.BLACK;
+      while (plays.size() < numPlays) {
+        candidates.clear();
+        if (MoveGenerator.listLegalPlays(b, player, candidates) == 0) break;
+        Play play = candidates.get(rand.nextInt(candidates.size()));
+        b.applyPly(player, play);
+        plays.add(play);
+        player = player.opponent();
+      }
+      if (plays.size() == numPlays) {
+        return GameLog.newLog(0, new TreeMap<String, String>().entrySet(), plays, null);
+      }
+    }
+  }
+}
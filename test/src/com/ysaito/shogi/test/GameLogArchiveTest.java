@@ -0,0 +1,137 @@
+package com.ysaito.shogi.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TreeMap;
+
+import com.ysaito.shogi.GameLog;
+import com.ysaito.shogi.GameLogArchive;
+import com.ysaito.shogi.GameLogWriter;
+import com.ysaito.shogi.GameState;
+import com.ysaito.shogi.ParseException;
+import com.ysaito.shogi.Play;
+
+import android.test.AndroidTestCase;
+
+public class GameLogArchiveTest extends AndroidTestCase {
+  private File mDir;
+
+  @Override
+  public void setUp() throws Exception {
+    mDir = new File(getContext().getFilesDir(), "archive_test");
+    mDir.mkdirs();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    for (File f : mDir.listFiles()) f.delete();
+    mDir.delete();
+  }
+
+  public void testReadWrite() throws IOException, ParseException {
+    File file = new File(mDir, "a" + GameLogArchive.SUFFIX);
+    ArrayList<GameLog> logs = new ArrayList<GameLog>();
+    for (int i = 0; i < 100; ++i) logs.add(newLog("player" + (i % 7), 1000L * i, i % 5));
+    logs.add(GameLog.newLog(0, new TreeMap<String, String>().entrySet(), new ArrayList<Play>(), null));
+    logs.add(GameLog.parseKif(null, new ByteArrayInputStream("1 ７六歩(77)\n2 詰み\n".getBytes("UTF-8"))));
+    GameLogArchive.Writer w = new GameLogArchive.Writer(file);
+    for (GameLog log : logs) w.add(log);
+    w.close();
+
+    GameLogArchive a = GameLogArchive.open(file);
+    assertEquals(logs.size(), a.numGames());
+    for (int i = 0; i < logs.size(); ++i) {
+      GameLog log = logs.get(i);
+      GameLog h = a.header(i);
+      assertFalse(h.hasPlays());
+      assertEquals(log.fingerprint(), h.fingerprint());
+      assertEquals(log.getDate(), h.getDate());
+      assertEquals(log.numPlays(), h.numPlays());
+      assertEquals(log.attrs(), h.attrs());
+      assertEquals(log.result(), h.result());
+      assertEquals(log.resultWord(), h.resultWord());
+      assertEquals(file, h.path());
+      assertTrue(h.isInCollection());
+      assertEquals(i, a.indexOf(h));
+      assertEquals(log.getDate(), a.date(i));
+      assertEquals(log.attr(GameLog.ATTR_BLACK_PLAYER), a.attr(i, GameLog.ATTR_BLACK_PLAYER));
+      assertNull(a.attr(i, GameLog.ATTR_TITLE));
+
+      GameLog full = a.read(i);
+      assertEquals(log.fingerprint(), full.fingerprint());
+      assertEquals(log.plays(), full.plays());
+      assertEquals(log.result(), full.result());
+      assertEquals(log.resultWord(), full.resultWord());
+      for (int j = 0; j < log.numPlays(); ++j) assertEquals(log.packedPlay(j), a.packedPlay(i, j));
+    }
+    assertEquals(-1, a.indexOf(logs.get(0)));
+    try {
+      a.packedPlay(0, logs.get(0).numPlays());
+      fail();
+    } catch (IndexOutOfBoundsException e) {
+    }
+  }
+
+  public void testCorrupt() throws IOException {
+    File file = new File(mDir, "a" + GameLogArchive.SUFFIX);
+    GameLogArchive.Writer w = new GameLogArchive.Writer(file);
+    w.add(newLog("a", 0, 0));
+    w.close();
+    final long size = file.length();
+
+    // Truncate the string table.
+    RandomAccessFile f = new RandomAccessFile(file, "rw");
+    f.setLength(size - 1);
+    f.close();
+    assertNotOpened(file);
+
+    FileOutputStream out = new FileOutputStream(file);
+    out.write("先手：a\n".getBytes("UTF-8"));
+    out.close();
+    assertNotOpened(file);
+  }
+
+  public void testConvert() throws IOException {
+    File kif = new File(mDir, "many.kif");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    GameLogWriter writer = new GameLogWriter(bytes, GameLogWriter.FORMAT_KIF_UTF8);
+    for (int i = 0; i < 3; ++i) writer.write(newLog("player" + i, 0, i));
+    writer.close();
+    FileOutputStream out = new FileOutputStream(kif);
+    out.write(bytes.toByteArray());
+    out.close();
+
+    File file = new File(mDir, "a" + GameLogArchive.SUFFIX);
+    ArrayList<File> files = new ArrayList<File>();
+    files.add(kif);
+    files.add(new File(mDir, "missing.kif"));
+    ArrayList<String> errors = new ArrayList<String>();
+    assertEquals(3, GameLogArchive.convert(files, file, errors));
+    assertEquals(1, errors.size());
+
+    GameLogArchive a = GameLogArchive.open(file);
+    assertEquals(3, a.numGames());
+    for (int i = 0; i < 3; ++i) assertEquals(newLog("player" + i, 0, i), a.read(i));
+  }
+
+  private static void assertNotOpened(File file) {
+    try {
+      GameLogArchive.open(file);
+      fail();
+    } catch (IOException e) {
+    }
+  }
+
+  // A legal game whose plays and result depend on "variant".
+  private static GameLog newLog(String blackPlayer, long date, int variant) {
+    final GameState[] results = GameState.values();
+    return TestLogs.newLog(blackPlayer, "後手", date, results[variant % results.length],
+                           TestLogs.randomGame(new Random(variant), 20 + variant, 8));
+  }
+}
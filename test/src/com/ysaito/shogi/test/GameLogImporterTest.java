@@ -0,0 +1,146 @@
+package com.ysaito.shogi.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.ysaito.shogi.GameLog;
+import com.ysaito.shogi.GameLogImporter;
+import com.ysaito.shogi.GameLogWriter;
+import com.ysaito.shogi.ParseException;
+
+import android.test.AndroidTestCase;
+
+public class GameLogImporterTest extends AndroidTestCase {
+  private File mDir;
+
+  @Override
+  public void setUp() throws Exception {
+    mDir = new File(getContext().getFilesDir(), "importer_test");
+    mDir.mkdirs();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    for (File f : mDir.listFiles()) f.delete();
+    mDir.delete();
+  }
+
+  public void testSplitKif() throws IOException {
+    final String game1 = "先手：a\n後手：b\n手数----指手---------消費時間--\n   1 ７六歩(77)\n*comment\nまで1手\n\n";
+    final String game2 = "#KIF version=2.0\n開始日時：2011/01/01\n   1 ２六歩(27)\n   2 ８四歩(83)\n";
+    final String game3 = "先手：c\n   1 ５八玉(59)\n";
+    for (String encoding : new String[]{ "UTF-8", "SHIFT-JIS", "EUC-JP" }) {
+      final byte[] b1 = game1.getBytes(encoding);
+      final byte[] b2 = game2.getBytes(encoding);
+      final byte[] b3 = game3.getBytes(encoding);
+      int[] bounds = GameLogImporter.splitKif((game1 + game2 + game3).getBytes(encoding));
+      assertEquals(4, bounds.length);
+      assertEquals(0, bounds[0]);
+      assertEquals(b1.length, bounds[1]);
+      assertEquals(b1.length + b2.length, bounds[2]);
+      assertEquals(b1.length + b2.length + b3.length, bounds[3]);
+    }
+
+    // A header before the first play doesn't start a game.
+    int[] bounds = GameLogImporter.splitKif("先手：a\n後手：b\n先手：c\n   1 ７六歩(77)\n".getBytes("UTF-8"));
+    assertEquals(2, bounds.length);
+    assertEquals(0, GameLogImporter.splitKif(new byte[0])[0]);
+  }
+
+  public void testSingleGame() throws IOException, ParseException {
+    File file = new File(mDir, "single.kif");
+    writeFile(file, kif(newLog("a")));
+    ArrayList<GameLog> logs = new ArrayList<GameLog>();
+    ArrayList<String> errors = new ArrayList<String>();
+    GameLogImporter.readGames(file, null, logs, errors);
+    assertEquals(1, logs.size());
+    assertEquals(0, errors.size());
+    assertEquals(newLog("a"), logs.get(0));
+    assertFalse(logs.get(0).isInCollection());
+    assertEquals(newLog("a"), GameLogImporter.readGame(logs.get(0).header()));
+  }
+
+  public void testConcatenatedGames() throws IOException, ParseException {
+    File file = new File(mDir, "many.kif");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    GameLogWriter w = new GameLogWriter(out, GameLogWriter.FORMAT_KIF_DOS);
+    for (int i = 0; i < 10; ++i) w.write(newLog("player" + i));
+    w.close();
+    writeFile(file, out.toByteArray());
+
+    ArrayList<GameLog> logs = new ArrayList<GameLog>();
+    ArrayList<String> errors = new ArrayList<String>();
+    final String digest = GameLogImporter.readGames(file, null, logs, errors);
+    assertEquals(10, logs.size());
+    assertEquals(0, errors.size());
+    for (int i = 0; i < 10; ++i) {
+      GameLog log = logs.get(i);
+      assertEquals(newLog("player" + i), log);
+      assertTrue(log.isInCollection());
+      assertNull(log.entry());
+      assertEquals(log, GameLogImporter.readGame(log.header()));
+    }
+
+    // Nothing is parsed if the digest is unchanged.
+    logs.clear();
+    assertEquals(digest, GameLogImporter.readGames(file, digest, logs, errors));
+    assertEquals(0, logs.size());
+  }
+
+  public void testZip() throws IOException, ParseException {
+    File file = new File(mDir, "games.zip");
+    ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file));
+    zip.putNextEntry(new ZipEntry("one.kif"));
+    zip.write(kif(newLog("a")));
+    zip.putNextEntry(new ZipEntry("readme.txt"));
+    zip.write("not a game".getBytes());
+    zip.putNextEntry(new ZipEntry("dir/two.kif"));
+    zip.write(kif(newLog("b")));
+    zip.write("\n".getBytes());
+    zip.write(kif(newLog("c")));
+    zip.close();
+
+    ArrayList<GameLog> logs = new ArrayList<GameLog>();
+    ArrayList<String> errors = new ArrayList<String>();
+    final String digest = GameLogImporter.readGames(file, null, logs, errors);
+    assertEquals(0, errors.size());
+    assertEquals(3, logs.size());
+    assertEquals(newLog("a"), logs.get(0));
+    assertEquals("one.kif", logs.get(0).entry());
+    assertEquals(newLog("b"), logs.get(1));
+    assertEquals("dir/two.kif", logs.get(1).entry());
+    assertEquals(newLog("c"), logs.get(2));
+    assertEquals("dir/two.kif", logs.get(2).entry());
+    assertTrue(logs.get(2).sliceOffset() > 0);
+    for (GameLog log : logs) {
+      assertTrue(log.isInCollection());
+      assertEquals(file, log.path());
+      assertEquals(log, GameLogImporter.readGame(log.header()));
+    }
+
+    logs.clear();
+    assertEquals(digest, GameLogImporter.readGames(file, digest, logs, errors));
+    assertEquals(0, logs.size());
+  }
+
+  private static GameLog newLog(String blackPlayer) {
+    return TestLogs.newLog(blackPlayer, "後手", 0, null, TestLogs.plays(TestLogs.YAGURA));
+  }
+
+  private static byte[] kif(GameLog log) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    log.toKif(out, GameLogWriter.FORMAT_KIF_UTF8);
+    return out.toByteArray();
+  }
+
+  private static void writeFile(File file, byte[] contents) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(contents);
+    out.close();
+  }
+}
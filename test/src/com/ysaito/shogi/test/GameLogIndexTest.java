@@ -0,0 +1,138 @@
+package com.ysaito.shogi.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.TreeMap;
+
+import com.ysaito.shogi.GameLog;
+import com.ysaito.shogi.GameLogIndex;
+import com.ysaito.shogi.GameState;
+
+import android.test.AndroidTestCase;
+
+public class GameLogIndexTest extends AndroidTestCase {
+  public void testQuery() {
+    GameLogIndex index = new GameLogIndex();
+    GameLog a1 = newLog(100, "a", "b", "竜王戦", "四間飛車");
+    GameLog a2 = newLog(200, "c", "a", "竜王戦", null);
+    GameLog a3 = newLog(300, "a", "a", null, "四間飛車");
+    GameLog b1 = newLog(150, "b", "c", "名人戦", null);
+    index.add(a3);
+    index.add(a1);
+    index.add(b1);
+    index.add(a2);
+    assertEquals(4, index.size());
+
+    assertEquals(3, index.count(GameLogIndex.Field.PLAYER, "a"));
+    assertEquals(fingerprints(a1, a2, a3), index.query(GameLogIndex.Field.PLAYER, "a", 0, 10));
+    assertEquals(fingerprints(a2), index.query(GameLogIndex.Field.PLAYER, "a", 1, 1));
+    assertEquals(fingerprints(a3), index.query(GameLogIndex.Field.PLAYER, "a", 2, 10));
+    assertEquals(fingerprints(), index.query(GameLogIndex.Field.PLAYER, "a", 3, 10));
+    assertEquals(fingerprints(), index.query(GameLogIndex.Field.PLAYER, "nobody", 0, 10));
+    assertEquals(fingerprints(a1, a2), index.query(GameLogIndex.Field.TOURNAMENT, "竜王戦", 0, 10));
+    assertEquals(fingerprints(a1, a3), index.query(GameLogIndex.Field.OPENING, "四間飛車", 0, 10));
+    assertEquals(Arrays.asList("a", "b", "c"), index.values(GameLogIndex.Field.PLAYER));
+    assertEquals(Arrays.asList("名人戦", "竜王戦"), index.values(GameLogIndex.Field.TOURNAMENT));
+
+    assertEquals(2, index.countByDate(150, 300));
+    assertEquals(fingerprints(b1, a2), index.queryByDate(150, 300, 0, 10));
+    assertEquals(fingerprints(a2), index.queryByDate(150, 300, 1, 10));
+    assertEquals(fingerprints(a1, b1, a2, a3), index.queryByDate(Long.MIN_VALUE, Long.MAX_VALUE, 0, 10));
+
+    index.remove(a1.fingerprint());
+    assertEquals(fingerprints(a2, a3), index.query(GameLogIndex.Field.PLAYER, "a", 0, 10));
+    assertEquals(fingerprints(a2), index.query(GameLogIndex.Field.TOURNAMENT, "竜王戦", 0, 10));
+    assertEquals(Arrays.asList("a", "b", "c"), index.values(GameLogIndex.Field.PLAYER));
+    assertNull(index.get(a1.fingerprint()));
+
+    // Removing a log that has been replaced does nothing.
+    GameLog header = b1.header();
+    index.add(header);
+    index.remove(b1);
+    assertSame(header, index.get(b1.fingerprint()));
+    index.remove(header);
+    assertEquals(2, index.size());
+  }
+
+  // Compare addAll() and add() on random logs, and check the order against SORT_BY_DATE.
+  public void testAddAll() {
+    Random random = new Random(0);
+    ArrayList<GameLog> logs = new ArrayList<GameLog>();
+    for (int i = 0; i < 500; ++i) {
+      logs.add(newLog(random.nextInt(50), "p" + random.nextInt(10), "p" + random.nextInt(10),
+                      "t" + random.nextInt(3), null));
+    }
+    GameLogIndex incremental = new GameLogIndex();
+    for (GameLog log : logs) incremental.add(log);
+    GameLogIndex bulk = new GameLogIndex();
+    bulk.addAll(logs.subList(0, 250));
+    bulk.addAll(logs);
+    assertEquals(incremental.size(), bulk.size());
+    for (int i = 0; i < 10; ++i) {
+      final String player = "p" + i;
+      ArrayList<GameLog> expected = new ArrayList<GameLog>();
+      for (GameLog log : bulk.logs()) {
+        if (player.equals(log.attr(GameLog.ATTR_BLACK_PLAYER)) ||
+            player.equals(log.attr(GameLog.ATTR_WHITE_PLAYER))) {
+          expected.add(log);
+        }
+      }
+      Collections.sort(expected, GameLog.SORT_BY_DATE);
+      ArrayList<String> fingerprints = new ArrayList<String>();
+      for (GameLog log : expected) fingerprints.add(log.fingerprint());
+      assertEquals(fingerprints, bulk.query(GameLogIndex.Field.PLAYER, player, 0, 1000));
+      assertEquals(fingerprints, incremental.query(GameLogIndex.Field.PLAYER, player, 0, 1000));
+    }
+    assertEquals(incremental.queryByDate(10, 20, 0, 1000), bulk.queryByDate(10, 20, 0, 1000));
+  }
+
+  // Compare the pages of page() against sorting all the logs, in each order.
+  public void testPage() {
+    Random random = new Random(0);
+    GameLogIndex index = new GameLogIndex();
+    ArrayList<GameLog> logs = new ArrayList<GameLog>();
+    for (int i = 0; i < 200; ++i) {
+      logs.add(newLog(random.nextInt(50), "p" + random.nextInt(10), "p" + random.nextInt(10), null, null));
+    }
+    index.addAll(logs);
+    logs = index.logs();
+    for (Comparator<GameLog> order : Arrays.asList(
+             GameLog.SORT_BY_DATE, GameLog.SORT_BY_BLACK_PLAYER, GameLog.SORT_BY_WHITE_PLAYER)) {
+      Collections.sort(logs, order);
+      ArrayList<GameLog> pages = new ArrayList<GameLog>();
+      for (int offset = 0; offset < logs.size(); offset += 30) {
+        ArrayList<GameLog> page = index.page(order, offset, 30);
+        assertEquals(Math.min(30, logs.size() - offset), page.size());
+        pages.addAll(page);
+      }
+      assertEquals(logs, pages);
+      assertEquals(0, index.page(order, logs.size(), 30).size());
+    }
+
+    // A change is seen by the next page.
+    GameLog first = index.page(GameLog.SORT_BY_BLACK_PLAYER, 0, 1).get(0);
+    index.remove(first.fingerprint());
+    assertFalse(index.page(GameLog.SORT_BY_BLACK_PLAYER, 0, 1).get(0) == first);
+    assertEquals(logs.size() - 1, index.page(GameLog.SORT_BY_BLACK_PLAYER, 0, 1000).size());
+  }
+
+  private static ArrayList<String> fingerprints(GameLog... logs) {
+    ArrayList<String> fingerprints = new ArrayList<String>();
+    for (GameLog log : logs) fingerprints.add(log.fingerprint());
+    return fingerprints;
+  }
+
+  // A legal game, whose plays and result depend on the date and the players.
+  private static GameLog newLog(long date, String black, String white, String tournament, String opening) {
+    TreeMap<String, String> attrs = TestLogs.players(black, white);
+    if (tournament != null) attrs.put(GameLog.ATTR_TOURNAMENT, tournament);
+    if (opening != null) attrs.put(GameLog.ATTR_OPENING, opening);
+    Random random = new Random(date * 31 + (black + "/" + white).hashCode());
+    final GameState[] results = GameState.values();
+    return TestLogs.newLog(attrs, date, results[random.nextInt(results.length)],
+                           TestLogs.randomGame(random, 1 + random.nextInt(30), 10));
+  }
+}
@@ -0,0 +1,257 @@
+package com.ysaito.shogi.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import com.ysaito.shogi.GameLog;
+import com.ysaito.shogi.GameLogIndex;
+import com.ysaito.shogi.GameLogListManager;
+
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+
+public class GameLogListManagerTest extends AndroidTestCase {
+  private static final String SUMMARY_PATH = "log_summary";
+  private static final String JOURNAL_PATH = "log_journal";
+
+  @Override
+  public void setUp() throws Exception {
+    getContext().deleteFile(SUMMARY_PATH);
+    getContext().deleteFile(JOURNAL_PATH);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    getContext().deleteFile(SUMMARY_PATH);
+    getContext().deleteFile(JOURNAL_PATH);
+  }
+
+  // log_summary written by the released version is converted to the journal, keeping the log
+  // only in memory with its plays, and is then deleted.
+  public void testOldSummary() throws Exception {
+    InputStream in = getContext().getResources().openRawResource(R.raw.baseline_summary);
+    FileOutputStream out = getContext().openFileOutput(SUMMARY_PATH, 0);
+    byte[] buf = new byte[4096];
+    int n;
+    while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+    out.close();
+    in.close();
+
+    ArrayList<GameLog> logs = newManager().getIndex(getContext()).logs();
+    assertEquals(2, logs.size());
+    assertFalse(new File(getContext().getFilesDir(), SUMMARY_PATH).exists());
+    checkLogs(logs);
+
+    // Read back from the journal.
+    GameLogIndex index = newManager().getIndex(getContext());
+    assertEquals(2, index.size());
+    checkLogs(index.logs());
+  }
+
+  // A summary that can't be read is deleted.
+  public void testBadOldSummary() throws Exception {
+    FileOutputStream out = getContext().openFileOutput(SUMMARY_PATH, 0);
+    out.write(new byte[]{ 1, 2, 3 });
+    out.close();
+    assertEquals(0, newManager().getIndex(getContext()).size());
+    assertFalse(new File(getContext().getFilesDir(), SUMMARY_PATH).exists());
+  }
+
+  // Parsing in parallel gives the results of parsing serially, in the order of the files. A
+  // file that fails, even with a RuntimeException, is reported without losing the others.
+  public void testParseFiles() throws Exception {
+    File dir = new File(getContext().getFilesDir(), "parse_files_test");
+    deleteDir(dir);
+    dir.mkdir();
+    try {
+      Random random = new Random(0);
+      ArrayList<File> files = new ArrayList<File>();
+      for (int i = 0; i < 12; ++i) {
+        File file = new File(dir, String.format("%02d.kif", i));
+        GameLog[] logs = new GameLog[1 + i % 3];
+        for (int j = 0; j < logs.length; ++j) {
+          logs[j] = TestLogs.newLog("p" + i, "q" + j, 1000L * i, null,
+                                    TestLogs.randomGame(random, 1 + random.nextInt(40), 20));
+        }
+        TestLogs.writeKif(file, logs);
+        files.add(file);
+      }
+      File unreadable = new File(dir, "unreadable.kif");
+      unreadable.mkdir();  // can't be opened as a file
+      files.add(3, unreadable);
+      files.add(7, null);  // makes the parser throw a NullPointerException
+
+      GameLogListManager.ParseResult[] serial = GameLogListManager.parseFiles(files, 1);
+      for (int run = 0; run < 3; ++run) {
+        GameLogListManager.ParseResult[] parallel = GameLogListManager.parseFiles(files, 4);
+        assertEquals(files.size(), parallel.length);
+        for (int i = 0; i < files.size(); ++i) {
+          assertEquals(files.get(i), parallel[i].file);
+          assertEquals(serial[i].file, parallel[i].file);
+          assertEquals(serial[i].contentDigest, parallel[i].contentDigest);
+          assertEquals(serial[i].error == null, parallel[i].error == null);
+          assertEquals(fingerprints(serial[i].logs), fingerprints(parallel[i].logs));
+        }
+      }
+      for (int i = 0; i < files.size(); ++i) {
+        if (i == 3 || i == 7) {
+          assertNotNull(serial[i].error);
+          assertNull(serial[i].contentDigest);
+          assertEquals(0, serial[i].logs.size());
+        } else {
+          assertNull(serial[i].error);
+          final int n = Integer.parseInt(files.get(i).getName().substring(0, 2));
+          assertEquals(1 + n % 3, serial[i].logs.size());
+        }
+      }
+      assertTrue(serial[7].error, serial[7].error.contains("NullPointerException"));
+    } finally {
+      deleteDir(dir);
+    }
+  }
+
+  // Scans follow files that are deleted, rewritten, made unreadable, copied in with an old
+  // modification time, and that share a game.
+  public void testScan() throws Exception {
+    File dir = new File(getContext().getFilesDir(), "scan_test");
+    deleteDir(dir);
+    dir.mkdir();
+    SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getContext());
+    final String oldLogDir = prefs.getString(LOG_DIR_KEY, null);
+    prefs.edit().putString(LOG_DIR_KEY, dir.getAbsolutePath()).commit();
+    try {
+      Random random = new Random(0);
+      GameLog[] g = new GameLog[6];
+      for (int i = 0; i < g.length; ++i) {
+        g[i] = TestLogs.newLog("p" + i, "q" + i, 1000L * i, null,
+                               TestLogs.randomGame(random, 10 + random.nextInt(30), 20));
+      }
+      final long oldMs = (System.currentTimeMillis() / 1000 - 3600) * 1000;
+      File a = new File(dir, "a.kif");
+      File b = new File(dir, "b.kif");
+      File c = new File(dir, "c.kif");
+      TestLogs.writeKif(a, g[0], g[1]);
+      TestLogs.writeKif(b, g[2]);
+      TestLogs.writeKif(c, g[3]);
+      for (File f : new File[]{ a, b, c, dir }) f.setLastModified(oldMs);
+      GameLogListManager m = newManager();
+      m.scanLogs(getContext(), GameLogListManager.Mode.READ_SDCARD_SUMMARY);
+      assertScan(m, dir, g[0], a, g[1], a, g[2], b, g[3], c);
+      m.scanLogs(getContext(), GameLogListManager.Mode.READ_SDCARD_SUMMARY);
+      assertScan(m, dir, g[0], a, g[1], a, g[2], b, g[3], c);
+
+      // Deleted.
+      c.delete();
+      m.scanLogs(getContext(), GameLogListManager.Mode.READ_SDCARD_SUMMARY);
+      assertScan(m, dir, g[0], a, g[1], a, g[2], b);
+
+      // Rewritten with fewer games.
+      TestLogs.writeKif(a, g[0]);
+      m.scanLogs(getContext(), GameLogListManager.Mode.READ_SDCARD_SUMMARY);
+      assertScan(m, dir, g[0], a, g[2], b);
+
+      // Unreadable: a directory in place of the file, which even root can't read. Its game is
+      // kept, and the file is read again by every scan until it can be read.
+      b.delete();
+      b.mkdir();
+      for (int i = 0; i < 2; ++i) {
+        m.scanLogs(getContext(), GameLogListManager.Mode.READ_SDCARD_SUMMARY);
+        assertScan(m, dir, g[0], a, g[2], b);
+      }
+      b.delete();
+      TestLogs.writeKif(b, g[2], g[4]);
+      m.scanLogs(getContext(), GameLogListManager.Mode.READ_SDCARD_SUMMARY);
+      assertScan(m, dir, g[0], a, g[2], b, g[4], b);
+
+      // Copied in with a modification time older than the last scan.
+      File d = new File(dir, "d.kif");
+      TestLogs.writeKif(d, g[5]);
+      d.setLastModified(oldMs - 1000000);
+      m.scanLogs(getContext(), GameLogListManager.Mode.READ_SDCARD_SUMMARY);
+      assertScan(m, dir, g[0], a, g[2], b, g[4], b, g[5], d);
+
+      // The same game in two files is listed once. When one file goes away, the game comes
+      // back from the other.
+      File e = new File(dir, "e.kif");
+      TestLogs.writeKif(e, g[0]);
+      m.scanLogs(getContext(), GameLogListManager.Mode.READ_SDCARD_SUMMARY);
+      assertScan(m, dir, g[0], e, g[2], b, g[4], b, g[5], d);
+      e.delete();
+      m.scanLogs(getContext(), GameLogListManager.Mode.READ_SDCARD_SUMMARY);
+      assertScan(m, dir, g[0], a, g[2], b, g[4], b, g[5], d);
+
+      // Read back from the journal.
+      m = newManager();
+      assertScan(m, dir, g[0], a, g[2], b, g[4], b, g[5], d);
+      m.scanLogs(getContext(), GameLogListManager.Mode.RESET_SDCARD_SUMMARY);
+      assertScan(m, dir, g[0], a, g[2], b, g[4], b, g[5], d);
+    } finally {
+      if (oldLogDir == null) {
+        prefs.edit().remove(LOG_DIR_KEY).commit();
+      } else {
+        prefs.edit().putString(LOG_DIR_KEY, oldLogDir).commit();
+      }
+      deleteDir(dir);
+    }
+  }
+
+  private static final String LOG_DIR_KEY = "game_log_dir";
+
+  // Check that the logs of "m" in "dir" are log1 in file1, log2 in file2, and so on.
+  private void assertScan(GameLogListManager m, File dir, Object... expected) {
+    HashMap<String, File> want = new HashMap<String, File>();
+    for (int i = 0; i < expected.length; i += 2) {
+      want.put(((GameLog)expected[i]).fingerprint(), (File)expected[i + 1]);
+    }
+    HashMap<String, File> found = new HashMap<String, File>();
+    for (GameLog log : m.getIndex(getContext()).logs()) {
+      if (log.path() == null || !dir.equals(log.path().getParentFile())) continue;
+      assertNull(found.put(log.fingerprint(), log.path()));
+    }
+    assertEquals(want, found);
+  }
+
+  private static ArrayList<String> fingerprints(ArrayList<GameLog> logs) {
+    ArrayList<String> fingerprints = new ArrayList<String>();
+    for (GameLog log : logs) fingerprints.add(log.fingerprint());
+    return fingerprints;
+  }
+
+  private static void deleteDir(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        if (f.isDirectory()) deleteDir(f);
+        f.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  private static void checkLogs(ArrayList<GameLog> logs) {
+    for (GameLog log : logs) {
+      if (log.path() == null) {
+        assertEquals("羽生善治", log.attr(GameLog.ATTR_BLACK_PLAYER));
+        assertTrue(log.hasPlays());
+        assertEquals(3, log.numPlays());
+      } else {
+        assertEquals("大山康晴", log.attr(GameLog.ATTR_BLACK_PLAYER));
+        assertFalse(log.hasPlays());
+        assertEquals(2, log.numPlays());
+      }
+    }
+  }
+
+  // A manager that hasn't read the summary, unlike GameLogListManager.getInstance().
+  private static GameLogListManager newManager() throws Exception {
+    Constructor<GameLogListManager> c = GameLogListManager.class.getDeclaredConstructor();
+    c.setAccessible(true);
+    return c.newInstance();
+  }
+}
@@ -7,12 +7,23 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
 import com.ysaito.shogi.GameLog;
+import com.ysaito.shogi.GameLogWriter;
+import com.ysaito.shogi.GameState;
 import com.ysaito.shogi.ParseException;
+import com.ysaito.shogi.Piece;
+import com.ysaito.shogi.Play;
 
 import android.content.res.Resources;
 import android.test.InstrumentationTestCase;
@@ -75,6 +86,38 @@ public class GameLogTest extends InstrumentationTestCase {
     GameLog log = openKifFile(R.raw.kifu4);
   }
   
+  public void testLineForms() throws ParseException, IOException {
+    String kif =
+        "開始日時：2011/01/16 10:30\r\n" +
+        "先手: 佐藤康光\r\n" +
+        "後手：久保利明\r" +
+        "備考：a:b\n" +
+        "手数----指手---------消費時間--\n" +
+        "   1 ７六歩(77)\n" +
+        "   2 ３四歩(33)   \n" +
+        "3 ２二角成(88)\n" +
+        "   4 同　銀(31)\n" +
+        "   5 ４五角打\n" +
+        "   6 投了\n" +
+        "まで5手で先手の勝ち\n";
+    GameLog log = GameLog.parseKif(new File("/nonexistent/path"),
+        new ByteArrayInputStream(kif.getBytes("UTF-8")));
+    assertEquals("佐藤康光", log.attr(GameLog.ATTR_BLACK_PLAYER));
+    assertEquals("久保利明", log.attr(GameLog.ATTR_WHITE_PLAYER));
+    assertEquals("b", log.attr("備考：a"));
+    assertEquals(5, log.numPlays());
+    assertEquals("7776FU", log.play(0).toCsaString());
+    assertEquals("8822UM", log.play(2).toCsaString());
+    assertEquals("3122GI", log.play(3).toCsaString());
+    assertEquals("0045KA", log.play(4).toCsaString());
+    assertEquals(GameState.BLACK_WON, log.result());
+
+    GregorianCalendar c = new GregorianCalendar();
+    c.setTimeInMillis(log.getDate());
+    assertEquals(16, c.get(Calendar.DAY_OF_MONTH));
+    assertEquals(10, c.get(Calendar.HOUR_OF_DAY));
+  }
+
   public void testHtml() throws ParseException, IOException {
     GameLog log = openHtmlFile(R.raw.download1);
     assertEquals(log.attr(GameLog.ATTR_WHITE_PLAYER), "早川俊");
@@ -132,6 +175,164 @@ public class GameLogTest extends InstrumentationTestCase {
     assertLogEquals(log, log2);
   }
   
+  public void testHeader() throws ParseException, IOException, ClassNotFoundException {
+    GameLog log = openKifFile(R.raw.kifu4);
+    GameLog header = log.header();
+    assertTrue(log.hasPlays());
+    assertFalse(header.hasPlays());
+    assertTrue(header.header() == header);
+    assertEquals(log, header);
+    assertEquals(log.numPlays(), header.numPlays());
+    assertEquals(log.getDate(), header.getDate());
+    assertEquals(log.path(), header.path());
+    assertEquals(log.attrs(), header.attrs());
+    try {
+      header.play(0);
+      fail("Should have thrown");
+    } catch (AssertionError e) {
+      // expected
+    }
+    try {
+      header.digest();
+      fail("Should have thrown");
+    } catch (AssertionError e) {
+      // expected
+    }
+
+    // A header survives serialization, which is how GameLogListManager saves it.
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ObjectOutputStream oout = new ObjectOutputStream(out);
+    oout.writeObject(header);
+    oout.close();
+    GameLog header2 = (GameLog)new ObjectInputStream(new ByteArrayInputStream(out.toByteArray())).readObject();
+    assertFalse(header2.hasPlays());
+    assertEquals(log.fingerprint(), header2.fingerprint());
+    assertEquals(log.numPlays(), header2.numPlays());
+  }
+
+  public void testFingerprint() throws ParseException, IOException, ClassNotFoundException {
+    GameLog log = openKifFile(R.raw.kifu4);
+    assertEquals(32, log.fingerprint().length());
+
+    // The fingerprint doesn't depend on the order the attributes are set in.
+    ArrayList<Map.Entry<String, String>> reversed = new ArrayList<Map.Entry<String, String>>(log.attrs());
+    Collections.reverse(reversed);
+    LinkedHashMap<String, String> attrs = new LinkedHashMap<String, String>();
+    for (Map.Entry<String, String> e : reversed) attrs.put(e.getKey(), e.getValue());
+    GameLog copy = GameLog.newLog(log.getDate(), attrs.entrySet(), log.plays(), null);
+    assertEquals(log.fingerprint(), copy.fingerprint());
+    assertEquals(log, copy);
+    assertEquals(log.hashCode(), copy.hashCode());
+
+    // Changing an attribute or a play changes the fingerprint.
+    attrs.put(GameLog.ATTR_BLACK_PLAYER, "x");
+    assertFalse(log.fingerprint().equals(
+        GameLog.newLog(log.getDate(), attrs.entrySet(), log.plays(), null).fingerprint()));
+    ArrayList<Play> plays = log.plays();
+    plays.remove(plays.size() - 1);
+    assertFalse(log.fingerprint().equals(
+        GameLog.newLog(log.getDate(), log.attrs(), plays, null).fingerprint()));
+
+    // Swapping the values of two attributes changes the fingerprint.
+    GameLog l1 = parseKifString("先手：a\n後手：b\n");
+    GameLog l2 = parseKifString("先手：b\n後手：a\n");
+    assertFalse(l1.fingerprint().equals(l2.fingerprint()));
+
+    // An attribute set twice counts once.
+    assertEquals(l1.fingerprint(), parseKifString("先手：c\n後手：b\n先手：a\n").fingerprint());
+
+    // The fingerprint survives serialization.
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ObjectOutputStream oout = new ObjectOutputStream(out);
+    oout.writeObject(log);
+    oout.close();
+    GameLog log2 = (GameLog)new ObjectInputStream(new ByteArrayInputStream(out.toByteArray())).readObject();
+    assertEquals(log.fingerprint(), log2.fingerprint());
+  }
+
+  public void testResult() throws ParseException, IOException, ClassNotFoundException {
+    final String plays = "手数----指手---------消費時間--\n   1 ７六歩(77)\n";
+    assertEquals(GameState.ACTIVE, parseKifString(plays).result());
+    assertEquals(GameState.BLACK_WON, parseKifString(plays + "   2 投了\n").result());
+    assertEquals(GameState.WHITE_WON, parseKifString(plays + "   2 反則勝ち\n").result());
+    assertEquals(GameState.DRAW, parseKifString(plays + "   2 千日手\n").result());
+    assertEquals(GameState.ACTIVE, parseKifString(plays + "   2 中断\n").result());
+    assertEquals(GameState.WHITE_WON, parseKifString(plays + "   2 ３四歩(33)\n   3 詰み\n").result());
+
+    // The result survives writing, headers, and serialization, and isn't in the fingerprint.
+    for (String end : new String[]{ "   2 投了\n", "   2 反則勝ち\n", "   2 千日手\n" }) {
+      GameLog log = parseKifString(plays + end);
+      assertEquals(end.substring(5, end.length() - 1), log.resultWord());
+      assertEquals(parseKifString(plays).fingerprint(), log.fingerprint());
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      log.toKif(out, GameLogWriter.FORMAT_KIF_UTF8);
+      assertEquals(log.result(), parseKifString(new String(out.toByteArray(), "UTF-8")).result());
+      assertEquals(log.result(), log.header().result());
+      out = new ByteArrayOutputStream();
+      ObjectOutputStream oout = new ObjectOutputStream(out);
+      oout.writeObject(log.header());
+      oout.close();
+      GameLog header = (GameLog)new ObjectInputStream(new ByteArrayInputStream(out.toByteArray())).readObject();
+      assertEquals(log.result(), header.result());
+      assertEquals(log.resultWord(), header.resultWord());
+    }
+  }
+
+  // log_summary written by the released version, before PlayList and the fingerprint. It holds
+  // a log only in memory, with three plays, and a log in the sdcard, with two.
+  public void testOldSummary() throws Exception {
+    Resources resources = getInstrumentation().getContext().getResources();
+    InputStream in = resources.openRawResource(R.raw.baseline_summary);
+    Object summary = new ObjectInputStream(in).readObject();
+    in.close();
+    Field field = summary.getClass().getDeclaredField("logs");
+    field.setAccessible(true);
+    GameLog inMemory = null, inSdcard = null;
+    for (Object o : ((Map<?, ?>)field.get(summary)).values()) {
+      GameLog log = (GameLog)o;
+      if (log.path() == null) {
+        inMemory = log;
+      } else {
+        inSdcard = log;
+      }
+    }
+
+    TreeMap<String, String> attrs = new TreeMap<String, String>();
+    attrs.put(GameLog.ATTR_BLACK_PLAYER, "羽生善治");
+    attrs.put(GameLog.ATTR_WHITE_PLAYER, "谷川浩司");
+    ArrayList<Play> plays = new ArrayList<Play>();
+    plays.add(new Play(Piece.FU, 2, 6, 2, 5));
+    plays.add(new Play(-Piece.FU, 6, 2, 6, 3));
+    plays.add(new Play(Piece.KAKU, 1, 7, 7, 1));
+    GameLog expected = GameLog.newLog(1300000000000L, attrs.entrySet(), plays, null);
+    assertLogEquals(expected, inMemory);
+    assertEquals(expected.fingerprint(), inMemory.fingerprint());
+    assertEquals(1300000000000L, inMemory.getDate());
+
+    attrs.put(GameLog.ATTR_BLACK_PLAYER, "大山康晴");
+    plays.remove(2);
+    expected = GameLog.newLog(1200000000000L, attrs.entrySet(), plays, null);
+    assertLogEquals(expected, inSdcard);
+    assertEquals(expected.fingerprint(), inSdcard.fingerprint());
+    assertEquals(new File("/sdcard/download/oyama.kif"), inSdcard.path());
+
+    // The converted log is written in the current form, and its header too.
+    for (GameLog log : new GameLog[]{ inMemory, inSdcard.header() }) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      ObjectOutputStream oout = new ObjectOutputStream(out);
+      oout.writeObject(log);
+      oout.close();
+      GameLog log2 = (GameLog)new ObjectInputStream(new ByteArrayInputStream(out.toByteArray())).readObject();
+      assertEquals(log.fingerprint(), log2.fingerprint());
+      assertEquals(log.numPlays(), log2.numPlays());
+      assertEquals(log.hasPlays(), log2.hasPlays());
+    }
+  }
+
+  private static GameLog parseKifString(String kif) throws ParseException, IOException {
+    return GameLog.parseKif(null, new ByteArrayInputStream(kif.getBytes("UTF-8")));
+  }
+
   private void assertLogEquals(GameLog l1, GameLog l2) {
     assertEquals(l1.attrs().size(), l2.attrs().size());
     
@@ -0,0 +1,94 @@
+package com.ysaito.shogi.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.TreeMap;
+
+import com.ysaito.shogi.GameLog;
+import com.ysaito.shogi.GameLogWriter;
+import com.ysaito.shogi.GameState;
+import com.ysaito.shogi.Handicap;
+import com.ysaito.shogi.ParseException;
+
+import android.test.AndroidTestCase;
+
+public class GameLogWriterTest extends AndroidTestCase {
+  static final String KIF =
+    "先手：a\n" +
+    "後手：b\n" +
+    "手数----指手---------消費時間--\n" +
+    "   1 ７六歩(77)\n" +
+    "   2 ３四歩(33)\n" +
+    "   3 ２二角成(88)\n" +
+    "   4 ２二銀(31)\n" +
+    "   5 ４五角打\n";
+
+  static final String CSA =
+    "V2.2\r\n" +
+    "N+a\r\n" +
+    "N-b\r\n" +
+    "PI\r\n" +
+    "+\r\n" +
+    "+7776FU\r\n" +
+    "-3334FU\r\n" +
+    "+8822UM\r\n" +
+    "-3122GI\r\n" +
+    "+0045KA\r\n";
+
+  public void testKif() throws IOException {
+    assertEquals(KIF, write(GameLogWriter.FORMAT_KIF_UTF8, newLog(null)));
+    assertEquals(KIF.replace("\n", "\r\n"), write(GameLogWriter.FORMAT_KIF_DOS, newLog(null)));
+    assertEquals(KIF + "\n" + KIF, write(GameLogWriter.FORMAT_KIF_UTF8, newLog(null), newLog(null)));
+  }
+
+  public void testCsa() throws IOException {
+    assertEquals(CSA, write(GameLogWriter.FORMAT_CSA, newLog(null)));
+    assertEquals(CSA + "/\r\n" + CSA, write(GameLogWriter.FORMAT_CSA, newLog(null), newLog(null)));
+
+    String csa = write(GameLogWriter.FORMAT_CSA, newLog(Handicap.KAKU));
+    assertTrue(csa, csa.contains("\r\n'手合割：角落\r\nPI88KA\r\n"));
+    csa = write(GameLogWriter.FORMAT_CSA, newLog(Handicap.SIX));
+    assertTrue(csa, csa.contains("\r\nPI88KA28HI99KY89KE29KE19KY\r\n"));
+  }
+
+  // The word that ended the plays is written back. A result without the word isn't written,
+  // since it doesn't say how the game ended.
+  public void testResult() throws IOException, ParseException {
+    final String[][] results = {
+      { "   6 詰み\n", "%TSUMI\r\n" },
+      { "   6 投了\n", "%TORYO\r\n" },
+      { "   6 反則勝ち\n", "%+ILLEGAL_ACTION\r\n" },
+      { "   6 切れ負け\n", "%TIME_UP\r\n" },
+      { "   6 持将棋\n", "%JISHOGI\r\n" },
+      { "   6 中断\n", "%CHUDAN\r\n" },
+    };
+    for (String[] r : results) {
+      GameLog log = GameLog.parseKif(null, new ByteArrayInputStream((KIF + r[0]).getBytes("UTF-8")));
+      assertEquals(KIF + r[0], write(GameLogWriter.FORMAT_KIF_UTF8, log));
+      assertEquals(CSA + r[1], write(GameLogWriter.FORMAT_CSA, log));
+    }
+    GameLog log = newLog(null);
+    log.setResult(GameState.WHITE_WON);
+    assertEquals(KIF, write(GameLogWriter.FORMAT_KIF_UTF8, log));
+    assertEquals(CSA, write(GameLogWriter.FORMAT_CSA, log));
+  }
+
+  // The game in KIF and CSA, or its first two plays with "handicap" if non-null.
+  private static GameLog newLog(Handicap handicap) {
+    TreeMap<String, String> attrs = TestLogs.players("a", "b");
+    if (handicap == null) {
+      return TestLogs.newLog(attrs, 0, null, TestLogs.plays("7776", "3334", "8822+", "3122", "0045KA"));
+    }
+    attrs.put(GameLog.ATTR_HANDICAP, handicap.toJapaneseString());
+    return TestLogs.newLog(attrs, 0, null, TestLogs.plays(handicap, "7776", "3334"));
+  }
+
+  private static String write(String format, GameLog... logs) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    GameLogWriter w = new GameLogWriter(out, format);
+    for (GameLog log : logs) w.write(log);
+    w.close();
+    return new String(out.toByteArray(), format.equals(GameLogWriter.FORMAT_KIF_UTF8) ? "UTF-8" : "SHIFT-JIS");
+  }
+}
@@ -0,0 +1,181 @@
+package com.ysaito.shogi.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+
+import com.ysaito.shogi.Journal;
+
+import android.test.AndroidTestCase;
+
+public class JournalTest extends AndroidTestCase {
+  private File mFile;
+
+  @Override
+  public void setUp() throws Exception {
+    mFile = new File(getContext().getFilesDir(), "journal_test");
+    mFile.delete();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    mFile.delete();
+  }
+
+  public void testPutAndRemove() throws IOException {
+    Journal j = new Journal(mFile);
+    assertEquals(0, j.read().size());
+    j.put("a", bytes("1"));
+    j.put("b", bytes("2"));
+    j.commit();
+    j.put("a", bytes("3"));
+    j.remove("b");
+    j.put("c", bytes(""));
+    j.commit();
+
+    LinkedHashMap<String, byte[]> entries = new Journal(mFile).read();
+    assertEquals("[a, c]", entries.keySet().toString());
+    assertEquals("3", string(entries.get("a")));
+    assertEquals("", string(entries.get("c")));
+  }
+
+  public void testUncommitted() throws IOException {
+    Journal j = new Journal(mFile);
+    j.read();
+    j.put("a", bytes("1"));
+    j.commit();
+    j.put("b", bytes("2"));
+    assertEquals("[a]", new Journal(mFile).read().keySet().toString());
+  }
+
+  // A partially written record at the end is dropped, and the file is truncated so that
+  // new records can be appended.
+  public void testTruncatedRecord() throws IOException {
+    Journal j = new Journal(mFile);
+    j.read();
+    j.put("a", bytes("1"));
+    j.commit();
+    final long size = mFile.length();
+    j.put("b", bytes("2"));
+    j.commit();
+    setLength(mFile.length() - 1);
+
+    j = new Journal(mFile);
+    assertEquals("[a]", j.read().keySet().toString());
+    assertEquals(size, mFile.length());
+    j.put("c", bytes("3"));
+    j.commit();
+    assertEquals("[a, c]", new Journal(mFile).read().keySet().toString());
+  }
+
+  // The part of the records written by a commit() that failed is overwritten by the next
+  // commit(), which writes the records again.
+  public void testTornCommit() throws IOException {
+    Journal j = new Journal(mFile);
+    j.read();
+    j.put("a", bytes("1"));
+    j.commit();
+    final long size = mFile.length();
+    j.put("b", bytes("2"));
+    FileOutputStream out = new FileOutputStream(mFile, true);
+    out.write(new byte[]{ 0, 0, 0, 6, 1 });
+    out.close();
+    j.put("c", bytes("3"));
+    j.commit();
+    assertEquals(size + 2 * (8 + 1 + 3 + 1), mFile.length());
+    assertEquals("[a, b, c]", new Journal(mFile).read().keySet().toString());
+  }
+
+  public void testCorruptRecord() throws IOException {
+    Journal j = new Journal(mFile);
+    j.read();
+    j.put("a", bytes("1"));
+    j.commit();
+    j.put("b", bytes("2"));
+    j.commit();
+    j.put("c", bytes("3"));
+    j.commit();
+
+    // Flip the last byte of "b"'s value.
+    RandomAccessFile f = new RandomAccessFile(mFile, "rw");
+    final long pos = mFile.length() - (8 + 1 + 3 + 1) - 1;
+    f.seek(pos);
+    assertEquals('2', f.read());
+    f.seek(pos);
+    f.write('x');
+    f.close();
+    assertEquals("[a]", new Journal(mFile).read().keySet().toString());
+  }
+
+  public void testCompact() throws IOException {
+    Journal j = new Journal(mFile);
+    j.read();
+    for (int i = 0; i < 1000; ++i) {
+      j.put("k" + (i % 10), bytes("v" + i));
+      if (i % 10 == 9) j.remove("k" + (i % 7));
+      j.commit();
+    }
+    final String before = toString(new Journal(mFile).read());
+    assertTrue(j.needsCompaction());
+    final long size = mFile.length();
+    j.compact();
+    assertTrue(mFile.length() < size / 10);
+    assertFalse(j.needsCompaction());
+    assertEquals(before, toString(new Journal(mFile).read()));
+
+    // The compacted file can still be appended to.
+    j.put("x", bytes("y"));
+    j.commit();
+    assertEquals("y", string(new Journal(mFile).read().get("x")));
+  }
+
+  // Commit records while the journal is being compacted.
+  public void testCommitDuringCompaction() throws Exception {
+    final Journal j = new Journal(mFile);
+    j.read();
+    for (int i = 0; i < 5000; ++i) {
+      j.put("k" + (i % 100), bytes("v" + i));
+      j.commit();
+    }
+    Thread compactor = new Thread() {
+      @Override public void run() {
+        try {
+          j.compact();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    compactor.start();
+    for (int i = 0; i < 100; ++i) {
+      j.put("n" + i, bytes("w" + i));
+      j.commit();
+    }
+    compactor.join();
+
+    LinkedHashMap<String, byte[]> entries = new Journal(mFile).read();
+    assertEquals(200, entries.size());
+    for (int i = 0; i < 100; ++i) {
+      assertEquals("v" + (4900 + i), string(entries.get("k" + i)));
+      assertEquals("w" + i, string(entries.get("n" + i)));
+    }
+  }
+
+  private static String toString(LinkedHashMap<String, byte[]> entries) {
+    StringBuilder b = new StringBuilder();
+    for (String key : entries.keySet()) b.append(key).append('=').append(string(entries.get(key))).append(' ');
+    return b.toString();
+  }
+
+  private void setLength(long length) throws IOException {
+    RandomAccessFile f = new RandomAccessFile(mFile, "rw");
+    f.setLength(length);
+    f.close();
+  }
+
+  private static byte[] bytes(String s) { return s.getBytes(); }
+
+  private static String string(byte[] b) { return new String(b); }
+}
@@ -0,0 +1,95 @@
+package com.ysaito.shogi.test;
+
+import java.util.ArrayList;
+
+import com.ysaito.shogi.Board;
+import com.ysaito.shogi.Handicap;
+import com.ysaito.shogi.MoveGenerator;
+import com.ysaito.shogi.Piece;
+import com.ysaito.shogi.Play;
+import com.ysaito.shogi.Player;
+
+import android.test.AndroidTestCase;
+
+public class MoveGeneratorTest extends AndroidTestCase {
+  public void testInitialPosition() {
+    Board b = new Board();
+    b.initialize(Handicap.NONE);
+    assertEquals(30, MoveGenerator.countLegalPlays(b, Player.BLACK));
+    assertEquals(30, MoveGenerator.countLegalPlays(b, Player.WHITE));
+    assertEquals(900, perft(b, Player.BLACK, 2));
+    assertEquals(25470, perft(b, Player.BLACK, 3));
+  }
+
+  public void testNifu() {
+    Board b = newBoard(Piece.FU);
+    b.setPiece(4, 8, Piece.OU);
+    b.setPiece(2, 6, Piece.FU);
+    ArrayList<Play> plays = new ArrayList<Play>();
+    MoveGenerator.listLegalPlays(b, Player.BLACK, plays);
+    assertFalse(plays.contains(new Play(Piece.FU, -1, -1, 2, 3)));
+    assertTrue(plays.contains(new Play(Piece.FU, -1, -1, 3, 3)));
+    // A pawn can't be dropped on the last row.
+    assertFalse(plays.contains(new Play(Piece.FU, -1, -1, 3, 0)));
+  }
+
+  public void testMustPromote() {
+    Board b = newBoard();
+    b.setPiece(4, 8, Piece.OU);
+    b.setPiece(3, 1, Piece.FU);
+    b.setPiece(5, 2, Piece.KEI);
+    ArrayList<Play> plays = new ArrayList<Play>();
+    MoveGenerator.listLegalPlays(b, Player.BLACK, plays);
+    assertTrue(plays.contains(new Play(Piece.TO, 3, 1, 3, 0)));
+    assertFalse(plays.contains(new Play(Piece.FU, 3, 1, 3, 0)));
+    assertTrue(plays.contains(new Play(Piece.NARI_KEI, 5, 2, 4, 0)));
+    assertFalse(plays.contains(new Play(Piece.KEI, 5, 2, 4, 0)));
+  }
+
+  public void testUchifuzume() {
+    // White king in the corner, its escape blocked by its own lance.
+    Board b = newBoard(Piece.FU);
+    b.setPiece(8, 0, -Piece.OU);
+    b.setPiece(7, 0, -Piece.KYO);
+    b.setPiece(7, 2, Piece.KIN);
+    b.setPiece(4, 8, Piece.OU);
+    ArrayList<Play> plays = new ArrayList<Play>();
+    MoveGenerator.listLegalPlays(b, Player.BLACK, plays);
+    assertFalse(plays.contains(new Play(Piece.FU, -1, -1, 8, 1)));
+    assertTrue(plays.contains(new Play(Piece.FU, -1, -1, 8, 2)));
+  }
+
+  public void testPinnedPiece() {
+    Board b = newBoard();
+    b.setPiece(4, 8, Piece.OU);
+    b.setPiece(4, 6, Piece.GIN);
+    b.setPiece(4, 0, -Piece.HI);
+    ArrayList<Play> plays = new ArrayList<Play>();
+    MoveGenerator.listLegalPlays(b, Player.BLACK, plays);
+    assertTrue(plays.contains(new Play(Piece.GIN, 4, 6, 4, 5)));
+    assertFalse(plays.contains(new Play(Piece.GIN, 4, 6, 3, 5)));
+    assertFalse(MoveGenerator.isLegalPlay(b, Player.BLACK, new Play(Piece.GIN, 4, 6, 5, 5)));
+  }
+
+  // Create an empty board. Player.BLACK owns one of each of "captured".
+  private Board newBoard(int... captured) {
+    Board b = new Board();
+    ArrayList<Board.CapturedPiece> list = new ArrayList<Board.CapturedPiece>();
+    for (int piece : captured) list.add(new Board.CapturedPiece(piece, 1));
+    b.setCapturedPieces(Player.BLACK, list);
+    return b;
+  }
+
+  private static long perft(Board b, Player p, int depth) {
+    if (depth == 1) return MoveGenerator.countLegalPlays(b, p);
+    ArrayList<Play> plays = new ArrayList<Play>();
+    MoveGenerator.listLegalPlays(b, p, plays);
+    long n = 0;
+    for (Play play : plays) {
+      final int undo = b.applyPly(p, play);
+      n += perft(b, p.opponent(), depth - 1);
+      b.undoPly(p, play, undo);
+    }
+    return n;
+  }
+}
@@ -24,6 +24,26 @@ public class MoveTest extends AndroidTestCase {
   @Override public void setUp() {
   }
   
+  public void testEncode() {
+    Play[] plays = {
+        new Play(Piece.FU, 1, 6, 1, 5),
+        new Play(-Piece.RYU, 8, 8, 0, 0),
+        new Play(Piece.TO, 4, 3, 4, 2),
+        new Play(-Piece.KAKU, -1, -1, 4, 4),
+        new Play(Piece.FU, -1, -1, 0, 8),
+    };
+    for (Play p : plays) {
+      final int v = Play.encode(p);
+      assertEquals(p, Play.decode(v));
+      assertEquals(p.piece(), Play.packedPiece(v));
+      assertEquals(p.toX() + p.toY() * Board.DIM, Play.packedTo(v));
+      assertEquals(p.isDroppingPiece() ? -1 : p.fromX() + p.fromY() * Board.DIM, Play.packedFrom(v));
+    }
+    final int promoted = Play.encode(Piece.TO, 4, 3, 4, 2, true);
+    assertTrue((promoted & Play.PACKED_PROMOTE) != 0);
+    assertEquals(plays[2], Play.decode(promoted));
+  }
+
   public void testToCsaString() {
     Play move = new Play(Piece.FU, 1, 1, 1, 2);
     assertEquals(move.toCsaString(), "8283FU");
@@ -0,0 +1,208 @@
+package com.ysaito.shogi.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import com.ysaito.shogi.Board;
+import com.ysaito.shogi.GameLog;
+import com.ysaito.shogi.GameState;
+import com.ysaito.shogi.Handicap;
+import com.ysaito.shogi.OpeningTree;
+import com.ysaito.shogi.ParseException;
+import com.ysaito.shogi.Play;
+import com.ysaito.shogi.Player;
+import com.ysaito.shogi.PositionIndex;
+
+import android.test.AndroidTestCase;
+
+public class OpeningTreeTest extends AndroidTestCase {
+  private File mFile;
+
+  @Override
+  public void setUp() throws Exception {
+    mFile = new File(getContext().getFilesDir(), "opening_tree_test");
+    mFile.delete();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    mFile.delete();
+  }
+
+  private static final PositionIndex.PlayReader NO_READER = new PositionIndex.PlayReader() {
+    public GameLog readPlays(GameLog log) throws ParseException {
+      throw new ParseException("no plays");
+    }
+  };
+
+  public void testFind() throws IOException {
+    GameLog a = newLog("a", 100, GameState.BLACK_WON, TestLogs.plays(TestLogs.YAGURA));
+    GameLog b = newLog("b", 300, GameState.WHITE_WON, TestLogs.plays(TestLogs.SHIKEN_BISHA));
+    GameLog c = newLog("c", 200, GameState.ACTIVE, TestLogs.plays("7776"));
+    GameLog d = newLog("d", 50, GameState.DRAW, TestLogs.plays(TestLogs.AIGAKARI));
+    final Play p76 = a.play(0);
+    final Play p26 = d.play(0);
+    OpeningTree tree = new OpeningTree();
+    assertTrue(tree.add(a));
+    assertFalse(tree.add(a));
+    tree.add(b);
+    tree.add(c);
+    tree.add(d);
+    assertEquals(4, tree.numGames());
+
+    Board board = new Board();
+    board.initialize(Handicap.NONE);
+    final long initial = board.hashKey(Player.BLACK);
+    ArrayList<OpeningTree.Stats> stats = tree.find(initial);
+    assertEquals(2, stats.size());
+    assertStats(stats.get(0), p76, 3, 1, 1, 0, b);
+    assertStats(stats.get(1), p26, 1, 0, 0, 1, d);
+    assertEquals(0, tree.find(board.hashKey(Player.WHITE)).size());
+    board.applyPly(Player.BLACK, p76);
+    assertEquals(2, tree.find(board.hashKey(Player.WHITE)).size());
+
+    // Removing the newest game drops the example, and the counts.
+    tree.remove(b.fingerprint());
+    assertFalse(tree.contains(b.fingerprint()));
+    stats = tree.find(initial);
+    assertStats(stats.get(0), p76, 2, 1, 0, 0, null);
+    ArrayList<OpeningTree.Stats> replies = tree.find(board.hashKey(Player.WHITE));
+    assertEquals(1, replies.size());
+    assertStats(replies.get(0), a.play(1), 1, 1, 0, 0, a);
+
+    // Read back. The removed game is gone.
+    tree.write(mFile);
+    tree = OpeningTree.read(mFile);
+    assertEquals(3, tree.numGames());
+    assertFalse(tree.contains(b.fingerprint()));
+    assertStats(tree.find(initial).get(0), p76, 2, 1, 0, 0, null);
+    tree.remove(a.fingerprint());
+    assertEquals(0, tree.find(board.hashKey(Player.WHITE)).size());
+    tree.add(b);
+    assertStats(tree.find(initial).get(0), p76, 2, 0, 1, 0, b);
+  }
+
+  public void testCorrupt() throws IOException {
+    OpeningTree tree = new OpeningTree();
+    tree.add(newLog("a", 100, GameState.BLACK_WON, TestLogs.plays(TestLogs.KAKU_GAWARI)));
+    tree.write(mFile);
+    FileOutputStream out = new FileOutputStream(mFile, true);
+    out.write(0);
+    out.close();
+    try {
+      OpeningTree.read(mFile);
+      fail();
+    } catch (IOException e) {
+    }
+  }
+
+  public void testReader() {
+    final GameLog a = newLog("a", 100, GameState.BLACK_WON, TestLogs.plays(TestLogs.YAGURA));
+    final GameLog broken = newLog("broken", 200, GameState.WHITE_WON, TestLogs.plays("7776"));
+    final GameLog buggy = newLog("buggy", 300, GameState.DRAW, TestLogs.plays("7776"));
+    final GameLog unreadable = newLog("unreadable", 400, GameState.WHITE_WON,
+                                      TestLogs.plays(TestLogs.KAKU_GAWARI));
+    final boolean[] readable = new boolean[1];
+    PositionIndex.PlayReader reader = new PositionIndex.PlayReader() {
+      public GameLog readPlays(GameLog log) throws IOException, ParseException {
+        if (log.fingerprint().equals(a.fingerprint())) return a;
+        if (log.fingerprint().equals(broken.fingerprint())) throw new ParseException("broken");
+        if (log.fingerprint().equals(buggy.fingerprint())) throw new NullPointerException("buggy");
+        if (readable[0]) return unreadable;
+        throw new IOException("unreadable");
+      }
+    };
+    ArrayList<GameLog> logs = new ArrayList<GameLog>();
+    logs.add(a.header());
+    logs.add(broken.header());
+    logs.add(buggy.header());
+    logs.add(unreadable.header());
+    OpeningTree tree = new OpeningTree();
+    // A game that can't be parsed is counted without plays, so it isn't read again, but a
+    // game that can't be read because of an I/O error is tried again.
+    assertEquals(3, tree.addAll(logs, reader, 2));
+    assertTrue(tree.contains(broken.fingerprint()));
+    assertTrue(tree.contains(buggy.fingerprint()));
+    assertFalse(tree.contains(unreadable.fingerprint()));
+    Board board = new Board();
+    board.initialize(Handicap.NONE);
+    final long initial = board.hashKey(Player.BLACK);
+    assertEquals(1, tree.find(initial).size());
+    assertStats(tree.find(initial).get(0), a.play(0), 1, 1, 0, 0, a);
+
+    readable[0] = true;
+    assertEquals(1, tree.addAll(logs, reader, 1));
+    assertEquals(4, tree.numGames());
+    ArrayList<OpeningTree.Stats> stats = tree.find(initial);
+    assertEquals(2, stats.size());
+    assertStats(stats.get(0), a.play(0), 1, 1, 0, 0, a);
+    assertStats(stats.get(1), unreadable.play(0), 1, 0, 1, 0, unreadable);
+  }
+
+  // Compare addAll(), using many threads, against add() of each game.
+  public void testAddAll() throws IOException {
+    Random random = new Random(0);
+    ArrayList<GameLog> logs = new ArrayList<GameLog>();
+    for (int i = 0; i < 300; ++i) logs.add(randomLog(random, i));
+    OpeningTree expected = new OpeningTree();
+    for (GameLog log : logs) expected.add(log);
+
+    OpeningTree tree = new OpeningTree();
+    assertEquals(100, tree.addAll(logs.subList(0, 100), NO_READER, 1));
+    assertEquals(200, tree.addAll(logs, NO_READER, 4));
+    tree.write(mFile);
+    tree = OpeningTree.read(mFile);
+    assertEquals(logs.size(), tree.numGames());
+    assertEquals(expected.numPositions(), tree.numPositions());
+
+    Board board = new Board();
+    for (GameLog log : logs.subList(0, 20)) {
+      board.initialize(Handicap.NONE);
+      Player player = Player.BLACK;
+      for (int i = 0; i <= log.numPlays(); ++i) {
+        final long key = board.hashKey(player);
+        assertEquals(toMap(expected.find(key)), toMap(tree.find(key)));
+        if (i < log.numPlays()) {
+          board.applyPly(player, log.play(i));
+          player = player.opponent();
+        }
+      }
+    }
+  }
+
+  private static void assertStats(OpeningTree.Stats s, Play play, int games, int blackWins,
+                                  int whiteWins, int draws, GameLog example) {
+    assertEquals(play, Play.decode(s.play));
+    assertEquals(games, s.games);
+    assertEquals(blackWins, s.blackWins);
+    assertEquals(whiteWins, s.whiteWins);
+    assertEquals(draws, s.draws);
+    assertEquals((example == null) ? null : example.fingerprint(), s.example);
+  }
+
+  // play -> "games/blackWins/whiteWins/draws/example"
+  private static HashMap<Integer, String> toMap(ArrayList<OpeningTree.Stats> stats) {
+    HashMap<Integer, String> map = new HashMap<Integer, String>();
+    for (OpeningTree.Stats s : stats) {
+      map.put(s.play, s.games + "/" + s.blackWins + "/" + s.whiteWins + "/" + s.draws + "/" + s.example);
+    }
+    return map;
+  }
+
+  // A short game of legal plays chosen among a few, so that the games share openings, with a
+  // random date and result.
+  private static GameLog randomLog(Random random, int id) {
+    GameState[] results = GameState.values();
+    final long date = random.nextInt(50);
+    final GameState result = results[random.nextInt(results.length)];
+    return newLog("p" + id, date, result, TestLogs.randomGame(random, random.nextInt(8), 3));
+  }
+
+  private static GameLog newLog(String blackPlayer, long date, GameState result, ArrayList<Play> plays) {
+    return TestLogs.newLog(blackPlayer, "後手", date, result, plays);
+  }
+}
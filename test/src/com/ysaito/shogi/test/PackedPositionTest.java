@@ -0,0 +1,90 @@
+package com.ysaito.shogi.test;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+import com.ysaito.shogi.Board;
+import com.ysaito.shogi.Handicap;
+import com.ysaito.shogi.MoveGenerator;
+import com.ysaito.shogi.PackedPosition;
+import com.ysaito.shogi.ParseException;
+import com.ysaito.shogi.Piece;
+import com.ysaito.shogi.Play;
+import com.ysaito.shogi.Player;
+import com.ysaito.shogi.Sfen;
+
+import android.test.AndroidTestCase;
+
+public class PackedPositionTest extends AndroidTestCase {
+  public void testMidgame() throws ParseException {
+    Board b = new Board();
+    final Player player = Sfen.parse(SfenTest.MIDGAME, b);
+    byte[] packed = PackedPosition.pack(b, player);
+    assertEquals(PackedPosition.PACKED_BYTES, packed.length);
+
+    Board unpacked = new Board();
+    assertEquals(Player.WHITE, PackedPosition.unpack(packed, 0, unpacked));
+    assertEquals(SfenTest.MIDGAME, Sfen.toSfen(unpacked, Player.WHITE, 124));
+  }
+
+  // Random games from every initial position. Positions must round trip, and two
+  // positions must have the same encoding iff they are the same.
+  public void testRoundTrip() throws ParseException {
+    Random rand = new Random(1);
+    ArrayList<Play> plays = new ArrayList<Play>();
+    HashMap<Long, byte[]> seen = new HashMap<Long, byte[]>();
+    HashMap<String, Long> seenPacked = new HashMap<String, Long>();
+    byte[] packed = new byte[PackedPosition.PACKED_BYTES + 3];
+    Board unpacked = new Board();
+    for (int game = 0; game < 40; ++game) {
+      Board b = new Board();
+      b.initialize(Handicap.values()[game % Handicap.values().length]);
+      Player player = Player.BLACK;
+      for (int ply = 0; ply < 300; ++ply) {
+        PackedPosition.pack(b, player, packed, 3);
+        assertEquals(player, PackedPosition.unpack(packed, 3, unpacked));
+        final long key = b.hashKey(player);
+        assertEquals(key, unpacked.hashKey(player));
+
+        byte[] p = new byte[PackedPosition.PACKED_BYTES];
+        System.arraycopy(packed, 3, p, 0, p.length);
+        if (seen.containsKey(key)) assertTrue(Arrays.equals(seen.get(key), p));
+        seen.put(key, p);
+        final String s = Arrays.toString(p);
+        if (seenPacked.containsKey(s)) assertEquals((long)seenPacked.get(s), key);
+        seenPacked.put(s, key);
+
+        plays.clear();
+        if (MoveGenerator.listLegalPlays(b, player, plays) == 0) break;
+        b.applyPly(player, plays.get(rand.nextInt(plays.size())));
+        player = player.opponent();
+      }
+    }
+  }
+
+  public void testTooManyPieces() {
+    Board b = new Board();
+    b.initialize(Handicap.NONE);
+    for (int x = 0; x < Board.DIM; ++x) b.setPiece(x, 4, Piece.KIN);
+    try {
+      PackedPosition.pack(b, Player.BLACK);
+      fail();
+    } catch (InvalidParameterException e) {
+      // expected
+    }
+  }
+
+  public void testCorrupt() {
+    byte[] packed = new byte[PackedPosition.PACKED_BYTES];
+    Arrays.fill(packed, (byte)0xff);
+    try {
+      PackedPosition.unpack(packed, 0, new Board());
+      fail();
+    } catch (ParseException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,71 @@
+package com.ysaito.shogi.test;
+
+import java.util.ArrayList;
+
+import com.ysaito.shogi.Board;
+import com.ysaito.shogi.Handicap;
+import com.ysaito.shogi.MoveGenerator;
+import com.ysaito.shogi.Play;
+import com.ysaito.shogi.Player;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Counts the leaf nodes of the game tree from the initial positions. The counts for the
+ * even game are the published perft values; those for the handicaps are regression values
+ * generated by MoveGenerator. Player.BLACK, the handicapped player, moves first.
+ */
+public class PerftTest extends AndroidTestCase {
+  // PERFT[h][d] is the number of nodes at depth d + 1 from the initial position for
+  // Handicap.values()[h]. Only the NONE row is independently known; a change in the others
+  // means that the move generation changed.
+  static final long[][] PERFT = {
+    { 30, 900, 25470, 719731 },  // NONE
+    { 30, 900, 25530, 721433 },  // KYO
+    { 33, 990, 29910, 846566 },  // KAKU
+    { 25, 750, 18570, 524461 },  // HI
+    { 25, 750, 18570, 524465 },  // HI_KYO
+    { 26, 780, 19740, 558731 },  // HI_KAKU
+    { 24, 720, 16800, 475521 },  // FOUR
+    { 24, 720, 16740, 473823 },  // SIX
+  };
+
+  public void testInitialPosition() {
+    checkPerft(Handicap.NONE, 4);
+  }
+
+  public void testHandicaps() {
+    for (Handicap h : Handicap.values()) checkPerft(h, 3);
+  }
+
+  // apply/undo must leave the board as it was, so that a second run gives the same count.
+  public void testRepeatable() {
+    Board b = new Board();
+    b.initialize(Handicap.KAKU);
+    final long key = b.hashKey(Player.BLACK);
+    assertEquals(PERFT[Handicap.KAKU.ordinal()][2], perft(b, Player.BLACK, 3));
+    assertEquals(key, b.hashKey(Player.BLACK));
+    assertEquals(PERFT[Handicap.KAKU.ordinal()][2], perft(b, Player.BLACK, 3));
+  }
+
+  private static void checkPerft(Handicap h, int maxDepth) {
+    Board b = new Board();
+    b.initialize(h);
+    for (int depth = 1; depth <= maxDepth; ++depth) {
+      assertEquals(h + "/" + depth, PERFT[h.ordinal()][depth - 1], perft(b, Player.BLACK, depth));
+    }
+  }
+
+  static long perft(Board b, Player p, int depth) {
+    if (depth == 1) return MoveGenerator.countLegalPlays(b, p);
+    ArrayList<Play> plays = new ArrayList<Play>();
+    MoveGenerator.listLegalPlays(b, p, plays);
+    long n = 0;
+    for (Play play : plays) {
+      final int undo = b.applyPly(p, play);
+      n += perft(b, p.opponent(), depth - 1);
+      b.undoPly(p, play, undo);
+    }
+    return n;
+  }
+}
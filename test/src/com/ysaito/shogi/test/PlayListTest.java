@@ -0,0 +1,60 @@
+package com.ysaito.shogi.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Random;
+
+import com.ysaito.shogi.GameLog;
+import com.ysaito.shogi.Play;
+import com.ysaito.shogi.PlayList;
+
+import android.test.AndroidTestCase;
+
+public class PlayListTest extends AndroidTestCase {
+  public void testAddAndGet() {
+    PlayList l = new PlayList();
+    for (int i = 0; i < 100; ++i) l.add(new Play(1 + i % 8, i % 9, 8 - i % 9, (i + 3) % 9, (i + 5) % 9));
+    assertEquals(100, l.size());
+    for (int i = 0; i < 100; ++i) {
+      assertEquals(new Play(1 + i % 8, i % 9, 8 - i % 9, (i + 3) % 9, (i + 5) % 9), l.get(i));
+    }
+    try {
+      l.get(100);
+      fail("Should have thrown");
+    } catch (IndexOutOfBoundsException e) {
+      // expected
+    }
+  }
+
+  public void testSerialize() throws Exception {
+    GameLog log = CheckpointIndexTest.newSyntheticGame(new Random(1), 200);
+    ArrayList<Play> plays = log.plays();
+    PlayList l = new PlayList(plays);
+    PlayList l2 = (PlayList)deserialize(serialize(l));
+    assertEquals(plays.size(), l2.size());
+    for (int i = 0; i < plays.size(); ++i) assertEquals(plays.get(i), l2.get(i));
+
+    GameLog log2 = (GameLog)deserialize(serialize(log));
+    assertEquals(log.digest(), log2.digest());
+    assertEquals(log.numPlays(), log2.numPlays());
+
+    // PlayList must be much more compact than ArrayList<Play>.
+    assertTrue(serialize(l).length * 5 < serialize(plays).length);
+  }
+
+  private static byte[] serialize(Object o) throws IOException {
+    ByteArrayOutputStream b = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(b);
+    out.writeObject(o);
+    out.close();
+    return b.toByteArray();
+  }
+
+  private static Object deserialize(byte[] b) throws Exception {
+    return new ObjectInputStream(new ByteArrayInputStream(b)).readObject();
+  }
+}
@@ -0,0 +1,59 @@
+package com.ysaito.shogi.test;
+
+import com.ysaito.shogi.Board;
+import com.ysaito.shogi.Handicap;
+import com.ysaito.shogi.Piece;
+import com.ysaito.shogi.Play;
+import com.ysaito.shogi.Player;
+import com.ysaito.shogi.PositionHistory;
+
+import android.test.AndroidTestCase;
+
+public class PositionHistoryTest extends AndroidTestCase {
+  public void testSennichite() {
+    Board b = new Board();
+    b.initialize(Handicap.NONE);
+    PositionHistory h = new PositionHistory();
+    final long initial = b.hashKey(Player.BLACK);
+    assertEquals(1, h.push(initial));
+
+    // Both players move their rooks back and forth.
+    Play[] plays = {
+        new Play(Piece.HI, 7, 7, 6, 7),
+        new Play(-Piece.HI, 1, 1, 2, 1),
+        new Play(Piece.HI, 6, 7, 7, 7),
+        new Play(-Piece.HI, 2, 1, 1, 1),
+    };
+    Player player = Player.BLACK;
+    for (int i = 0; i < 12; ++i) {
+      b.applyPly(player, plays[i % plays.length]);
+      player = player.opponent();
+      h.push(b.hashKey(player));
+    }
+    assertEquals(13, h.size());
+    assertEquals(4, h.count(initial));
+    assertTrue(h.isSennichite(initial));
+
+    h.pop();
+    assertEquals(3, h.count(initial));
+    assertFalse(h.isSennichite(initial));
+  }
+
+  public void testManyKeys() {
+    PositionHistory h = new PositionHistory();
+    for (long k = 0; k < 1000; ++k) {
+      assertEquals(1, h.push(k * 0x9e3779b97f4a7c15L));
+      assertEquals(2, h.push(k * 0x9e3779b97f4a7c15L));
+    }
+    for (int i = 0; i < 1000; ++i) h.pop();
+    for (long k = 0; k < 500; ++k) {
+      assertEquals(2, h.count(k * 0x9e3779b97f4a7c15L));
+    }
+    for (long k = 500; k < 1000; ++k) {
+      assertEquals(0, h.count(k * 0x9e3779b97f4a7c15L));
+    }
+    h.clear();
+    assertEquals(0, h.count(0));
+    assertEquals(0, h.size());
+  }
+}
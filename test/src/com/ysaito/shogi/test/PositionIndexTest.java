@@ -0,0 +1,185 @@
+package com.ysaito.shogi.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+import com.ysaito.shogi.Board;
+import com.ysaito.shogi.GameLog;
+import com.ysaito.shogi.GameLogIndex;
+import com.ysaito.shogi.Handicap;
+import com.ysaito.shogi.ParseException;
+import com.ysaito.shogi.Play;
+import com.ysaito.shogi.Player;
+import com.ysaito.shogi.PositionIndex;
+
+import android.test.AndroidTestCase;
+
+public class PositionIndexTest extends AndroidTestCase {
+  private File mDir;
+
+  @Override
+  public void setUp() throws Exception {
+    mDir = new File(getContext().getFilesDir(), "position_index_test");
+    deleteDir();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    deleteDir();
+  }
+
+  private void deleteDir() {
+    File[] files = mDir.listFiles();
+    if (files != null) {
+      for (File f : files) f.delete();
+    }
+    mDir.delete();
+  }
+
+  private static final PositionIndex.PlayReader NO_READER = new PositionIndex.PlayReader() {
+    public GameLog readPlays(GameLog log) throws ParseException {
+      throw new ParseException("no plays");
+    }
+  };
+
+  public void testFind() throws IOException {
+    GameLog a = newLog("a", TestLogs.plays("7776", "3334"));
+    GameLog b = newLog("b", TestLogs.plays("7776", "7374"));
+    GameLog c = newLog("c", TestLogs.plays("3736"));
+    PositionIndex index = new PositionIndex(mDir);
+    index.add(logs(a, b), NO_READER, 2);
+    index.add(logs(a, c), NO_READER, 1);  // "a" isn't indexed again
+    assertEquals(2, index.numSegments());
+    assertEquals(3, index.numGames());
+    assertEquals(2 * 3 + 2, index.numPostings());
+    assertTrue(index.contains(c.fingerprint()));
+
+    Board board = new Board();
+    board.initialize(Handicap.NONE);
+    assertEquals(matches(a, 0, b, 0, c, 0), new HashSet<PositionIndex.Match>(index.find(board.hashKey(Player.BLACK))));
+    assertEquals(0, index.find(board.hashKey(Player.WHITE)).size());
+    board.applyPly(Player.BLACK, a.play(0));
+    assertEquals(matches(a, 1, b, 1), new HashSet<PositionIndex.Match>(index.find(board.hashKey(Player.WHITE))));
+    board.applyPly(Player.WHITE, a.play(1));
+    assertEquals(matches(a, 2), new HashSet<PositionIndex.Match>(index.find(board.hashKey(Player.BLACK))));
+
+    // Reopen, and merge without "b".
+    index = new PositionIndex(mDir);
+    assertEquals(3, index.numGames());
+    GameLogIndex live = new GameLogIndex();
+    live.add(a);
+    live.add(c);
+    index.merge(live);
+    assertEquals(1, index.numSegments());
+    assertEquals(2, index.numGames());
+    assertFalse(index.contains(b.fingerprint()));
+    assertEquals(matches(a, 2), new HashSet<PositionIndex.Match>(index.find(board.hashKey(Player.BLACK))));
+    board.initialize(Handicap.NONE);
+    assertEquals(matches(a, 0, c, 0), new HashSet<PositionIndex.Match>(index.find(board.hashKey(Player.BLACK))));
+    assertEquals(1, mDir.list().length);
+  }
+
+  public void testReader() throws IOException {
+    final GameLog a = newLog("a", TestLogs.plays("7776"));
+    final GameLog broken = newLog("broken", TestLogs.plays("7776"));
+    final GameLog buggy = newLog("buggy", TestLogs.plays("2726"));
+    final GameLog unreadable = newLog("unreadable", TestLogs.plays(TestLogs.YAGURA));
+    final boolean[] readable = new boolean[1];
+    PositionIndex.PlayReader reader = new PositionIndex.PlayReader() {
+      public GameLog readPlays(GameLog log) throws IOException, ParseException {
+        if (log.fingerprint().equals(a.fingerprint())) return a;
+        if (log.fingerprint().equals(broken.fingerprint())) throw new ParseException("broken");
+        if (log.fingerprint().equals(buggy.fingerprint())) throw new NullPointerException("buggy");
+        if (readable[0]) return unreadable;
+        throw new IOException("unreadable");
+      }
+    };
+    ArrayList<GameLog> logs = logs(a.header(), broken.header(), buggy.header(), unreadable.header());
+    PositionIndex index = new PositionIndex(mDir);
+    index.add(logs, reader, 2);
+    // A game that can't be parsed is recorded, so it isn't read again, but a game that can't
+    // be read because of an I/O error is tried again.
+    assertTrue(index.contains(broken.fingerprint()));
+    assertTrue(index.contains(buggy.fingerprint()));
+    assertFalse(index.contains(unreadable.fingerprint()));
+    assertEquals(3, index.numGames());
+    assertEquals(2, index.numPostings());
+
+    readable[0] = true;
+    index.add(logs, reader, 1);
+    assertTrue(index.contains(unreadable.fingerprint()));
+    assertEquals(4, index.numGames());
+    assertEquals(2 + TestLogs.YAGURA.length + 1, index.numPostings());
+    Board board = new Board();
+    board.initialize(Handicap.NONE);
+    assertEquals(matches(a, 0, unreadable, 0), new HashSet<PositionIndex.Match>(index.find(board.hashKey(Player.BLACK))));
+  }
+
+  // Compare find() against replaying the games, on random games merged from many segments.
+  public void testRandom() throws IOException {
+    Random random = new Random(0);
+    ArrayList<GameLog> logs = new ArrayList<GameLog>();
+    for (int i = 0; i < 300; ++i) logs.add(randomLog(random, "p" + i));
+    PositionIndex index = new PositionIndex(mDir);
+    for (int i = 0; i < logs.size(); i += 30) index.add(logs.subList(i, i + 30), NO_READER, 3);
+    assertEquals(10, index.numSegments());
+    assertTrue(index.needsMerge());
+    index.merge(null);
+    assertFalse(index.needsMerge());
+    assertEquals(logs.size(), index.numGames());
+
+    Board board = new Board();
+    for (int i = 0; i < 20; ++i) {
+      GameLog log = logs.get(random.nextInt(logs.size()));
+      final int ply = random.nextInt(log.numPlays() + 1);
+      board.initialize(Handicap.NONE);
+      Player player = Player.BLACK;
+      for (int j = 0; j < ply; ++j) {
+        board.applyPly(player, log.play(j));
+        player = player.opponent();
+      }
+      final long key = board.hashKey(player);
+      HashSet<PositionIndex.Match> expected = new HashSet<PositionIndex.Match>();
+      for (GameLog other : logs) {
+        Board b = new Board();
+        b.initialize(Handicap.NONE);
+        Player p = Player.BLACK;
+        if (b.hashKey(p) == key) expected.add(new PositionIndex.Match(other.fingerprint(), 0));
+        for (int j = 0; j < other.numPlays(); ++j) {
+          b.applyPly(p, other.play(j));
+          p = p.opponent();
+          if (b.hashKey(p) == key) expected.add(new PositionIndex.Match(other.fingerprint(), j + 1));
+        }
+      }
+      assertTrue(expected.contains(new PositionIndex.Match(log.fingerprint(), ply)));
+      assertEquals(expected, new HashSet<PositionIndex.Match>(index.find(key)));
+    }
+  }
+
+  // A short game of legal plays chosen among a few, so that the games share positions.
+  private static GameLog randomLog(Random random, String name) {
+    return newLog(name, TestLogs.randomGame(random, random.nextInt(8), 3));
+  }
+
+  private static ArrayList<GameLog> logs(GameLog... logs) {
+    ArrayList<GameLog> list = new ArrayList<GameLog>();
+    for (GameLog log : logs) list.add(log);
+    return list;
+  }
+
+  // matches(log1, ply1, log2, ply2, ...)
+  private static HashSet<PositionIndex.Match> matches(Object... args) {
+    HashSet<PositionIndex.Match> matches = new HashSet<PositionIndex.Match>();
+    for (int i = 0; i < args.length; i += 2) {
+      matches.add(new PositionIndex.Match(((GameLog)args[i]).fingerprint(), (Integer)args[i + 1]));
+    }
+    return matches;
+  }
+
+  private static GameLog newLog(String blackPlayer, ArrayList<Play> plays) {
+    return TestLogs.newLog(blackPlayer, null, 0, null, plays);
+  }
+}
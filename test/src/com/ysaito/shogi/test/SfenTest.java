@@ -0,0 +1,90 @@
+package com.ysaito.shogi.test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import com.ysaito.shogi.Board;
+import com.ysaito.shogi.Handicap;
+import com.ysaito.shogi.MoveGenerator;
+import com.ysaito.shogi.ParseException;
+import com.ysaito.shogi.Piece;
+import com.ysaito.shogi.Play;
+import com.ysaito.shogi.Player;
+import com.ysaito.shogi.Sfen;
+
+import android.test.AndroidTestCase;
+
+public class SfenTest extends AndroidTestCase {
+  static final String INITIAL = "lnsgkgsnl/1r5b1/ppppppppp/9/9/9/PPPPPPPPP/1B5R1/LNSGKGSNL b - 1";
+
+  // A position with promoted pieces and pieces in both hands.
+  static final String MIDGAME = "8l/1l+R2P3/p2pBG1pp/kps1p4/Nn1P2G2/P1P1P2PP/1PS6/1KSG3+r1/LN2+p3L w Sbgn3p 124";
+
+  public void testInitialPosition() throws ParseException {
+    Board b = new Board();
+    b.initialize(Handicap.NONE);
+    assertEquals(INITIAL, Sfen.toSfen(b, Player.BLACK, 1));
+
+    Board parsed = new Board();
+    assertEquals(Player.BLACK, Sfen.parse(INITIAL, parsed));
+    assertEquals(b.hashKey(Player.BLACK), parsed.hashKey(Player.BLACK));
+
+    b.initialize(Handicap.HI_KAKU);
+    assertEquals("lnsgkgsnl/1r5b1/ppppppppp/9/9/9/PPPPPPPPP/9/LNSGKGSNL b - 1",
+        Sfen.toSfen(b, Player.BLACK, 1));
+  }
+
+  public void testPromotedPiecesAndHands() throws ParseException {
+    Board b = new Board();
+    assertEquals(Player.WHITE, Sfen.parse(MIDGAME, b));
+    assertEquals(MIDGAME, Sfen.toSfen(b, Player.WHITE, 124));
+    assertEquals(Piece.RYU, b.getPiece(2, 1));
+    assertEquals(-Piece.RYU, b.getPiece(7, 7));
+    assertEquals(-Piece.TO, b.getPiece(4, 8));
+    assertEquals(1, b.handCount(Player.BLACK, Piece.GIN));
+    assertEquals(3, b.handCount(Player.WHITE, Piece.FU));
+    assertEquals(1, b.handCount(Player.WHITE, Piece.KEI));
+  }
+
+  public void testRoundTrip() throws ParseException {
+    Random rand = new Random(1);
+    ArrayList<Play> plays = new ArrayList<Play>();
+    Board parsed = new Board();
+    for (Handicap h : Handicap.values()) {
+      Board b = new Board();
+      b.initialize(h);
+      Player player = Player.BLACK;
+      for (int ply = 0; ply < 200; ++ply) {
+        final String sfen = Sfen.toSfen(b, player, ply + 1);
+        assertEquals(player, Sfen.parse(sfen, parsed));
+        assertEquals(b.hashKey(player), parsed.hashKey(player));
+        assertEquals(sfen, Sfen.toSfen(parsed, player, ply + 1));
+        plays.clear();
+        if (MoveGenerator.listLegalPlays(b, player, plays) == 0) break;
+        b.applyPly(player, plays.get(rand.nextInt(plays.size())));
+        player = player.opponent();
+      }
+    }
+  }
+
+  public void testInvalid() {
+    assertInvalid("lnsgkgsnl/1r5b1/ppppppppp/9/9/9/PPPPPPPPP/1B5R1/LNSGKGSNL");
+    assertInvalid("lnsgkgsnl/1r5b1/ppppppppp/9/9/9/PPPPPPPPP/1B5R1/LNSGKGSN b - 1");
+    assertInvalid("lnsgkgsnl/1r5b1/ppppppppp/9/9/9/PPPPPPPPP/1B5R1/LNSGKGSNLL b - 1");
+    assertInvalid("lnsgkgsnl/1r5b1/ppppppppp/9/9/9/PPPPPPPPP/1B5R1/LNSGKGSNL/9 b - 1");
+    assertInvalid("lnsgkgsnl/1r5b1/ppppppppp/9/9/9/PPPPPPPPP/1B5R1/LNS+GKGSNL b - 1");
+    assertInvalid("lnsgkgsnl/1r5b1/ppppppppp/9/9/9/PPPPPPPPP/1B5R1/LNSGKGSNL x - 1");
+    assertInvalid("lnsgkgsnl/1r5b1/ppppppppp/9/9/9/PPPPPPPPP/1B5R1/LNSGKGSNL b K 1");
+    assertInvalid("lnsgkgsnl/1r5b1/ppppppppp/9/9/9/PPPPPPPPP/1B5R1/LNSGKGSNL b 3R 1");
+    assertInvalid("lnsgkgsnl/1r5b1/ppppppppp/9/9/9/PPPPPPPPP/1B5R1/LNSGKGSNL b 2 1");
+  }
+
+  private static void assertInvalid(String sfen) {
+    try {
+      Sfen.parse(sfen, new Board());
+      fail(sfen);
+    } catch (ParseException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package com.ysaito.shogi.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TreeMap;
+
+import com.ysaito.shogi.Board;
+import com.ysaito.shogi.GameLog;
+import com.ysaito.shogi.GameLogWriter;
+import com.ysaito.shogi.GameState;
+import com.ysaito.shogi.Handicap;
+import com.ysaito.shogi.MoveGenerator;
+import com.ysaito.shogi.Play;
+import com.ysaito.shogi.Player;
+
+/**
+ * Game logs shared by the tests. Every play is checked against MoveGenerator.listLegalPlays(),
+ * so the games can be replayed on a Board.
+ */
+final class TestLogs {
+  private TestLogs() { }
+
+  // Openings from the even-game position, in CSA notation. See plays().
+  static final String[] YAGURA = { "7776", "8384", "7968", "3334", "6877", "7162" };
+  static final String[] SHIKEN_BISHA = { "7776", "3334", "6766", "8384", "2868" };
+  static final String[] KAKU_GAWARI = { "2726", "8384", "7776", "3334", "8822+", "3122", "0045KA" };
+  static final String[] AIGAKARI = { "2726", "8384", "2625", "8485" };
+
+  /**
+   * Return the plays of "moves" from the initial position of "handicap". A move is the
+   * source and the destination squares as in CSA, e.g., "7776", followed by "+" if the
+   * piece promotes. A drop is "00", the destination, and the piece, e.g., "0045KA".
+   */
+  static ArrayList<Play> plays(Handicap handicap, String... moves) {
+    Board board = new Board();
+    board.initialize(handicap);
+    Player player = Player.BLACK;
+    ArrayList<Play> plays = new ArrayList<Play>();
+    ArrayList<Play> legal = new ArrayList<Play>();
+    for (String move : moves) {
+      legal.clear();
+      MoveGenerator.listLegalPlays(board, player, legal);
+      Play play = null;
+      for (Play p : legal) {
+        if (matches(board, p, move)) play = p;
+      }
+      if (play == null) throw new AssertionError(move + ": not a legal play");
+      board.applyPly(player, play);
+      plays.add(play);
+      player = player.opponent();
+    }
+    return plays;
+  }
+
+  static ArrayList<Play> plays(String... moves) {
+    return plays(Handicap.NONE, moves);
+  }
+
+  /**
+   * Return a game of up to "numPlays" legal plays from the even-game position. Each play is
+   * chosen by "random" from the first "breadth" plays listed by MoveGenerator, so that
+   * games made with a small breadth share positions.
+   */
+  static ArrayList<Play> randomGame(Random random, int numPlays, int breadth) {
+    Board board = new Board();
+    board.initialize(Handicap.NONE);
+    Player player = Player.BLACK;
+    ArrayList<Play> plays = new ArrayList<Play>();
+    ArrayList<Play> legal = new ArrayList<Play>();
+    for (int i = 0; i < numPlays; ++i) {
+      legal.clear();
+      if (MoveGenerator.listLegalPlays(board, player, legal) == 0) break;
+      Play play = legal.get(random.nextInt(Math.min(breadth, legal.size())));
+      board.applyPly(player, play);
+      plays.add(play);
+      player = player.opponent();
+    }
+    return plays;
+  }
+
+  static TreeMap<String, String> players(String blackPlayer, String whitePlayer) {
+    TreeMap<String, String> attrs = new TreeMap<String, String>();
+    if (blackPlayer != null) attrs.put(GameLog.ATTR_BLACK_PLAYER, blackPlayer);
+    if (whitePlayer != null) attrs.put(GameLog.ATTR_WHITE_PLAYER, whitePlayer);
+    return attrs;
+  }
+
+  /** Return a log only in memory. "result" may be null if unknown. */
+  static GameLog newLog(TreeMap<String, String> attrs, long dateMs, GameState result, ArrayList<Play> plays) {
+    GameLog log = GameLog.newLog(dateMs, attrs.entrySet(), plays, null);
+    if (result != null) log.setResult(result);
+    return log;
+  }
+
+  static GameLog newLog(String blackPlayer, String whitePlayer, long dateMs, GameState result,
+                        ArrayList<Play> plays) {
+    return newLog(players(blackPlayer, whitePlayer), dateMs, result, plays);
+  }
+
+  /** Write "logs" to "file" in KIF, one after another. */
+  static void writeKif(File file, GameLog... logs) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      GameLogWriter w = new GameLogWriter(out, GameLogWriter.FORMAT_KIF_UTF8);
+      for (GameLog log : logs) w.write(log);
+      w.close();
+    } finally {
+      out.close();
+    }
+  }
+
+  private static final String[] CSA_PIECES = { null, "FU", "KY", "KE", "GI", "KI", "KA", "HI" };
+
+  private static boolean matches(Board board, Play play, String move) {
+    final int toX = 9 - (move.charAt(2) - '0');
+    final int toY = move.charAt(3) - '1';
+    if (play.toX() != toX || play.toY() != toY) return false;
+    if (move.startsWith("00")) {
+      return play.isDroppingPiece() && CSA_PIECES[Board.type(play.piece())].equals(move.substring(4));
+    }
+    final int fromX = 9 - (move.charAt(0) - '0');
+    final int fromY = move.charAt(1) - '1';
+    if (play.isDroppingPiece() || play.fromX() != fromX || play.fromY() != fromY) return false;
+    final boolean promotes = board.getPiece(fromX, fromY) != play.piece();
+    return promotes == move.endsWith("+");
+  }
+}
@@ -0,0 +1,82 @@
+package com.ysaito.shogi.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import com.ysaito.shogi.Util;
+
+import android.test.AndroidTestCase;
+
+public class UtilTest extends AndroidTestCase {
+  static final String KIF = "開始日時：2011/01/01\n先手：羽生善治\n後手：ｶﾀｶﾅ\n   1 ７六歩(77)\n";
+
+  public void testDetectJapaneseEncodings() throws IOException {
+    for (String encoding : new String[]{ "UTF-8", "Shift_JIS", "EUC-JP" }) {
+      // The default encoding is never right.
+      assertEquals(encoding, KIF, decode(KIF.getBytes(encoding), "UTF-16BE"));
+    }
+  }
+
+  public void testAscii() throws IOException {
+    assertEquals("foo bar baz", decode("foo bar baz".getBytes("US-ASCII"), "EUC-JP"));
+    assertEquals("", decode(new byte[0], null));
+  }
+
+  public void testByteOrderMark() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(new byte[]{ (byte)0xef, (byte)0xbb, (byte)0xbf });
+    out.write(KIF.getBytes("UTF-8"));
+    assertEquals(KIF, decode(out.toByteArray(), "EUC-JP"));
+    assertEquals(KIF, decode(KIF.getBytes("UTF-16"), "EUC-JP"));
+  }
+
+  // The first non-ASCII character appears after a long ASCII header, as in an HTML page.
+  public void testLongAsciiPrefix() throws IOException {
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; i < 3000; ++i) b.append("<!-- padding -->\n");
+    for (int i = 0; i < 100; ++i) b.append(KIF);
+    final String contents = b.toString();
+    for (String encoding : new String[]{ "UTF-8", "Shift_JIS", "EUC-JP" }) {
+      assertEquals(encoding, contents, decode(contents.getBytes(encoding), null));
+    }
+  }
+
+  private static String decode(byte[] contents, String defaultEncoding) throws IOException {
+    Reader in = Util.inputStreamToReader(new ByteArrayInputStream(contents), defaultEncoding);
+    StringBuilder b = new StringBuilder();
+    char[] buf = new char[1000];
+    int n;
+    while ((n = in.read(buf)) > 0) b.append(buf, 0, n);
+    return b.toString();
+  }
+
+  // mergeSorted() must equal a stable sort of the runs concatenated.
+  public void testMergeSorted() {
+    // Compare only the high digits, so that equal elements show their order.
+    final Comparator<Integer> byHundreds = new Comparator<Integer>() {
+      public int compare(Integer i1, Integer i2) { return (i1 / 100) - (i2 / 100); }
+    };
+    Random random = new Random(0);
+    for (int numRuns = 0; numRuns < 20; ++numRuns) {
+      ArrayList<List<Integer>> runs = new ArrayList<List<Integer>>();
+      ArrayList<Integer> expected = new ArrayList<Integer>();
+      for (int i = 0; i < numRuns; ++i) {
+        ArrayList<Integer> run = new ArrayList<Integer>();
+        final int n = random.nextInt(30);
+        for (int j = 0; j < n; ++j) run.add(random.nextInt(1000));
+        Collections.sort(run, byHundreds);
+        runs.add(run);
+        expected.addAll(run);
+      }
+      Collections.sort(expected, byHundreds);
+      assertEquals(expected, Util.mergeSorted(runs, byHundreds));
+    }
+  }
+}